@@ -0,0 +1,277 @@
+package dup.analyze;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import dup.model.Context;
+import dup.model.ContextMonitor;
+import dup.model.Database;
+import dup.model.FileInfo;
+
+/**
+ * Runs the work that changes the database - opening, closing and saving
+ * contexts and analyzing files again after their details are loaded - one task
+ * at a time on its own thread, so the UI thread never waits for it.<br>
+ * The files are read and compared on that thread, but the resulting changes to
+ * the model are made through the Database's ModelUpdater, which a UI sets to
+ * make them on its own thread, so it never sees the model half changed.<br>
+ * Results are published as AnalysisSnapshots: one after each level of detail
+ * while files are processed, and a complete one when each task is finished.
+ * Listeners are called on the analysis thread, and must hand the snapshot over
+ * to their own thread (e.g. with SwingUtilities.invokeLater), and call
+ * snapshotShown() once they have dropped the files of older snapshots: closed
+ * contexts are only released then.<br>
+ * While a context is open, a ContextMonitor watches its folder, and changes on
+ * disk are applied to the database as another task.
+ */
+public class AnalysisService {
+	/** Keep open contexts up to date with changes on disk */
+	public static boolean monitorContexts = true;
+
+	public interface Listener {
+		void snapshotPublished(AnalysisSnapshot snapshot);
+	}
+
+	private final Database db;
+	private final ExecutorService executor;
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private final ConcurrentHashMap<Context, ContextMonitor> monitors = //
+			new ConcurrentHashMap<Context, ContextMonitor>();
+	private volatile AnalysisSnapshot snapshot;
+	/** Sequence number of the last snapshot (analysis thread only) */
+	private int sequence = 0;
+	/** Contexts closed before each snapshot, not released yet (analysis thread only) */
+	private final SortedMap<Integer, Database.Removed> unreleased = new TreeMap<Integer, Database.Removed>();
+
+	public AnalysisService(Database db) {
+		this.db = db;
+		this.snapshot = new AnalysisSnapshot(db, 0, DetailLevel.MAX, true);
+
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Analysis");
+				thread.setDaemon(true);
+
+				return thread;
+			}
+		});
+
+		db.setDeferRelease(true);
+		db.setStageListener(new Database.StageListener() {
+			public void stageCompleted(DetailLevel level) {
+				publish(level, false);
+			}
+		});
+	}
+
+	public void addListener(Listener listener) {
+		this.listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		this.listeners.remove(listener);
+	}
+
+	/** The latest snapshot published */
+	public AnalysisSnapshot getSnapshot() {
+		return this.snapshot;
+	}
+
+	/** Open a context for a folder, as Database.openContext() */
+	public Future<Context> openContext(final String folderPath, final String contextName) {
+		return submit(new Callable<Context>() {
+			public Context call() {
+				Context context = AnalysisService.this.db.openContext(folderPath, contextName);
+
+				if (context != null) {
+					startMonitor(context);
+				}
+
+				return context;
+			}
+		});
+	}
+
+	/** Close some contexts */
+	public Future<Void> closeContexts(Collection<Context> contexts) {
+		final List<Context> toClose = new ArrayList<Context>(contexts);
+
+		return submit(new Callable<Void>() {
+			public Void call() {
+				for (Context context : toClose) {
+					stopMonitor(context);
+					AnalysisService.this.db.closeContext(context);
+				}
+
+				return null;
+			}
+		});
+	}
+
+	public Future<Void> saveContext(final Context context) {
+		return submit(new Callable<Void>() {
+			public Void call() {
+				AnalysisService.this.db.saveContext(context);
+
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Set checksums read in the background on their files, as
+	 * Database.analyzeFiles(), and analyze the files again
+	 */
+	public Future<Void> analyzeFiles(Map<FileInfo, ChecksumValues> loaded, final DetailLevel detail) {
+		final Map<FileInfo, ChecksumValues> checksums = new LinkedHashMap<FileInfo, ChecksumValues>(loaded);
+
+		return submit(new Callable<Void>() {
+			public Void call() {
+				AnalysisService.this.db.analyzeFiles(checksums, detail);
+
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * A listener is showing a snapshot, and no longer holds the files of older
+	 * ones; what was removed before it can be released.
+	 */
+	public void snapshotShown(final AnalysisSnapshot snapshot) {
+		try {
+			this.executor.execute(new Runnable() {
+				public void run() {
+					release(snapshot.getSequence());
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Shut down; everything is released there
+		}
+	}
+
+	/** Release what was removed up to a snapshot */
+	private void release(int sequence) {
+		SortedMap<Integer, Database.Removed> released = this.unreleased.headMap(sequence + 1);
+
+		for (Database.Removed removed : released.values()) {
+			removed.release();
+		}
+
+		released.clear();
+	}
+
+	/** Apply changes on disk in some folders of a context */
+	public Future<Void> refreshFolders(final Context context, Collection<File> folders) {
+		final List<File> changed = new ArrayList<File>(folders);
+
+		return submit(new Callable<Void>() {
+			public Void call() {
+				AnalysisService.this.db.refreshFolders(context, changed);
+
+				return null;
+			}
+		});
+	}
+
+	private void startMonitor(Context context) {
+		if (!monitorContexts || (context.getRootFile() == null) || !context.getRootFile().isDirectory()) {
+			return;
+		}
+
+		ContextMonitor monitor = new ContextMonitor(context, new ContextMonitor.Listener() {
+			public void foldersChanged(Context context, Set<File> folders) {
+				refreshFolders(context, folders);
+			}
+		});
+
+		if (this.monitors.putIfAbsent(context, monitor) == null) {
+			monitor.start();
+		}
+	}
+
+	private void stopMonitor(Context context) {
+		ContextMonitor monitor = this.monitors.remove(context);
+
+		if (monitor != null) {
+			monitor.stop();
+		}
+	}
+
+	/** Stop taking tasks, and wait a while for the current one to finish */
+	public void shutDown() {
+		for (Context context : new ArrayList<Context>(this.monitors.keySet())) {
+			stopMonitor(context);
+		}
+
+		this.executor.shutdownNow();
+
+		boolean stopped = false;
+
+		try {
+			stopped = this.executor.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		this.db.setStageListener(null);
+
+		// Nothing shows the closed contexts any more
+		if (stopped) {
+			release(this.sequence);
+			this.db.takeRemoved().release();
+			this.db.setDeferRelease(false);
+		}
+	}
+
+	/** Run a task, then publish the complete results */
+	private <T> Future<T> submit(final Callable<T> task) {
+		return this.executor.submit(new Callable<T>() {
+			public T call() throws Exception {
+				try {
+					return task.call();
+				} catch (Exception e) {
+					e.printStackTrace();
+					throw e;
+				} finally {
+					publish(DetailLevel.MAX, true);
+				}
+			}
+		});
+	}
+
+	private void publish(DetailLevel level, boolean complete) {
+		AnalysisSnapshot snap = new AnalysisSnapshot(this.db, ++this.sequence, level, complete);
+
+		if (complete) {
+			Database.Removed removed = this.db.takeRemoved();
+
+			// Released once a snapshot without them has been shown
+			if (!removed.isEmpty()) {
+				this.unreleased.put(snap.getSequence(), removed);
+			}
+		}
+
+		this.snapshot = snap;
+
+		for (Listener listener : this.listeners) {
+			listener.snapshotPublished(snap);
+		}
+	}
+}
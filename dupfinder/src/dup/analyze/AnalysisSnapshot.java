@@ -0,0 +1,78 @@
+package dup.analyze;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import dup.model.Context;
+import dup.model.Database;
+import dup.util.Utility;
+
+/**
+ * The results of analysis at one point, published by the AnalysisService for
+ * the UI: the contexts open and a summary of the duplicate groups found.<br>
+ * Snapshots are taken on the analysis thread and do not change afterwards.
+ * While contexts are being processed, snapshots are published after each level
+ * of detail, so the groups of same-size files come first and are then refined.
+ */
+public class AnalysisSnapshot {
+	private final int sequence;
+	private final DetailLevel level;
+	private final boolean complete;
+	private final List<Context> contexts;
+	private final int groupCount;
+	private final int fileCount;
+	private final long wastedBytes;
+
+	/** Summarize the current state of the database (on the analysis thread) */
+	AnalysisSnapshot(Database db, int sequence, DetailLevel level, boolean complete) {
+		DuplicateTotals totals = db.getTotals();
+
+		this.sequence = sequence;
+		this.level = level;
+		this.complete = complete;
+		this.contexts = Collections.unmodifiableList(new ArrayList<Context>(db.getContexts()));
+		this.groupCount = totals.getGroupCount();
+		this.fileCount = totals.getFileCount();
+		this.wastedBytes = totals.getWastedBytes();
+	}
+
+	/** Increases with each snapshot published */
+	public int getSequence() {
+		return this.sequence;
+	}
+
+	/** The level of detail the groups have been refined to */
+	public DetailLevel getLevel() {
+		return this.level;
+	}
+
+	/** Is analysis finished, or will more snapshots follow? */
+	public boolean isComplete() {
+		return this.complete;
+	}
+
+	/** The open contexts, sorted by name */
+	public List<Context> getContexts() {
+		return this.contexts;
+	}
+
+	public int getGroupCount() {
+		return this.groupCount;
+	}
+
+	public int getFileCount() {
+		return this.fileCount;
+	}
+
+	/** Space that removing all but one file of each group would free */
+	public long getWastedBytes() {
+		return this.wastedBytes;
+	}
+
+	public String toString() {
+		return String.format("%s%d groups, %d files, %s wasted", //
+				this.complete ? "" : "Analyzing (" + this.level + "): ", //
+				this.groupCount, this.fileCount, Utility.formatSize(this.wastedBytes));
+	}
+}
@@ -2,13 +2,12 @@ package dup.analyze;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
 import java.util.List;
 
 import dup.model.Context;
 import dup.model.Database;
 import dup.model.FileInfo;
-import dup.model.FolderInfo;
+import dup.model.FileSizeIndex;
 import dup.util.Trace;
 
 /** Helper class to process a group of contexts looking for duplicates */
@@ -18,16 +17,31 @@ public final class Analyzer {
 			return;
 		}
 
-		new Analyzer(contexts).analyze();
+		new Analyzer(contexts, Database.instance().getDuplicates()).analyze();
+	}
+
+	/**
+	 * Update the global duplicates of the files in some groups of same-size files,
+	 * after the groups changed as a context was opened or closed
+	 */
+	public static void analyzeGlobalDuplicates(Collection<Context> contexts, //
+			Collection<DuplicateInfo2> dupinfos) {
+		new Analyzer(contexts, dupinfos).analyze();
 	}
 
 	/** The contexts we are processing */
 	private Collection<Context> contexts;
+	/** The groups of same-size files to analyze */
+	private Collection<DuplicateInfo2> dupinfos;
 	/** All files in all of our contexts, grouped by context */
-	private List<List<FileInfo>> finfos;
+	private List<FileSizeIndex> finfos;
+	/** Distinct file sizes in each context, in ascending order */
+	private long[][] sizes;
 	/** Count of all files */
 	private int totalFileCount;
-	/** Keeps track of current file index per context */
+	/** Count of files in sizes already processed */
+	private int processedFileCount;
+	/** Keeps track of current size index per context */
 	private int[] idx;
 	/** The current file size we are considering */
 	private long curFileSize;
@@ -36,8 +50,9 @@ public final class Analyzer {
 	/** */
 	private long deadline;
 
-	private Analyzer(Collection<Context> contexts) {
+	private Analyzer(Collection<Context> contexts, Collection<DuplicateInfo2> dupinfos) {
 		this.contexts = contexts;
+		this.dupinfos = dupinfos;
 
 		this.idx = new int[this.contexts.size()];
 		this.curFileSize = 0;
@@ -46,18 +61,10 @@ public final class Analyzer {
 	private void analyze() {
 		this.deadline = System.currentTimeMillis();
 
-		gatherContextFiles();
-
-		for (DuplicateInfo2 dupinfo : Database.instance().duplicates) {
+		for (DuplicateInfo2 dupinfo : this.dupinfos) {
 			traceProgress(dupinfo);
 
-			for (List<FileInfo> dupfiles : dupinfo.getDuplicateLists()) {
-				if (hasGlobalDuplicates(dupfiles)) {
-					for (FileInfo dfile : dupfiles) {
-						dfile.setGlobalDuplicates(dupfiles);
-					}
-				}
-			}
+			dupinfo.updateGlobalDuplicates();
 		}
 	}
 
@@ -67,13 +74,12 @@ public final class Analyzer {
 			return false;
 		}
 
-		FolderInfo firstroot = null;
+		int firstcontext = -1;
 
-		// TODO check context id instead
 		for (FileInfo file : dupfiles) {
-			if (firstroot == null) {
-				firstroot = file.getRootFolder();
-			} else if (firstroot != file.getRootFolder()) {
+			if (firstcontext < 0) {
+				firstcontext = file.contextid;
+			} else if (firstcontext != file.contextid) {
 				return true;
 			}
 		}
@@ -82,30 +88,11 @@ public final class Analyzer {
 	}
 
 	/**
-	 * Get list of files in a list that duplicate the first file in the list. Remove
-	 * the duplicate files from the original list and return the new list.
+	 * Get lists of duplicate files in a list of same-size files. The files are
+	 * compared as a group, so each file is read at most once.
 	 */
-	private List<FileInfo> getDuplicates(List<FileInfo> samesize) {
-		List<FileInfo> dupfiles = null;
-
-		FileInfo file = samesize.remove(0);
-
-		for (Iterator<FileInfo> iter = samesize.iterator(); iter.hasNext();) {
-			FileInfo file2 = iter.next();
-
-			if (file.isDuplicateOf(file2, true)) {
-				if (dupfiles == null) {
-					dupfiles = new ArrayList<FileInfo>();
-
-					dupfiles.add(file);
-				}
-
-				dupfiles.add(file2);
-				iter.remove();
-			}
-		}
-
-		return dupfiles;
+	private List<List<FileInfo>> getDuplicates(List<FileInfo> samesize) {
+		return GroupComparator.findDuplicates(samesize, DetailLevel.MAX);
 	}
 
 	/** Build list of files of the current size. Empty list if no duplicates */
@@ -117,25 +104,24 @@ public final class Analyzer {
 		FileInfo firstfile = null;
 
 		for (int contextNum = 0; contextNum < this.idx.length; ++contextNum) {
-			List<FileInfo> contextFiles = this.finfos.get(contextNum);
+			long[] contextSizes = this.sizes[contextNum];
 			int idx = this.idx[contextNum];
 
-			while (contextFiles.size() > idx) {
-				FileInfo finfo = contextFiles.get(idx);
-
-				if (finfo.getSize() != this.curFileSize) {
-					break;
-				}
+			if ((idx >= contextSizes.length) || (contextSizes[idx] != this.curFileSize)) {
+				continue;
+			}
 
+			for (FileInfo finfo : this.finfos.get(contextNum).getFiles(this.curFileSize)) {
 				if (firstfile == null) {
 					firstfile = finfo;
 				} else {
 					samesize.add(finfo);
 				}
 
-				++idx;
-				++this.idx[contextNum];
+				++this.processedFileCount;
 			}
+
+			++this.idx[contextNum];
 		}
 
 		if (!samesize.isEmpty()) {
@@ -147,11 +133,13 @@ public final class Analyzer {
 
 	/** Build lists of files per context and total file count */
 	private void gatherContextFiles() {
-		this.finfos = new ArrayList<List<FileInfo>>();
+		this.finfos = new ArrayList<FileSizeIndex>();
+		this.sizes = new long[this.contexts.size()][];
 
 		for (Context context : this.contexts) {
-			List<FileInfo> contextFiles = context.getAllFiles();
+			FileSizeIndex contextFiles = context.getAllFiles();
 
+			this.sizes[this.finfos.size()] = contextFiles.getSortedSizes();
 			this.finfos.add(contextFiles);
 			this.totalFileCount += contextFiles.size();
 		}
@@ -167,13 +155,7 @@ public final class Analyzer {
 
 	/** Return total count of files remaining to process */
 	private int countRemainingFiles() {
-		int remaining = this.totalFileCount;
-
-		for (int ii : this.idx) {
-			remaining -= ii;
-		}
-
-		return remaining;
+		return this.totalFileCount - this.processedFileCount;
 	}
 
 	/** Look through next file in each context to find the next potential dups */
@@ -185,19 +167,19 @@ public final class Analyzer {
 			long secondsize = Long.MAX_VALUE;
 
 			for (int ii = 0; ii < this.idx.length; ++ii) {
-				List<FileInfo> list = this.finfos.get(ii);
-				if (list.size() <= this.idx[ii]) {
+				long[] contextSizes = this.sizes[ii];
+				if (contextSizes.length <= this.idx[ii]) {
 					continue;
 				}
 
-				FileInfo file = list.get(this.idx[ii]);
+				long size = contextSizes[this.idx[ii]];
 
-				if (file.getSize() < minsize) {
+				if (size < minsize) {
 					secondsize = minsize;
-					minsize = file.getSize();
+					minsize = size;
 					minidx = ii;
-				} else if (file.getSize() < secondsize) {
-					secondsize = file.getSize();
+				} else if (size < secondsize) {
+					secondsize = size;
 				}
 			}
 
@@ -210,9 +192,10 @@ public final class Analyzer {
 				return true;
 			}
 
-			List<FileInfo> list = this.finfos.get(minidx);
-			while ((this.idx[minidx] < list.size()) //
-					&& list.get(this.idx[minidx]).getSize() < secondsize) {
+			long[] contextSizes = this.sizes[minidx];
+			while ((this.idx[minidx] < contextSizes.length) //
+					&& contextSizes[this.idx[minidx]] < secondsize) {
+				this.processedFileCount += this.finfos.get(minidx).getFileCount(contextSizes[this.idx[minidx]]);
 				++this.idx[minidx];
 			}
 		}
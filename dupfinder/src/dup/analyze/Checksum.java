@@ -1,24 +1,37 @@
 package dup.analyze;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
+import dup.metrics.Counter;
+import dup.metrics.Histogram;
+import dup.metrics.Meter;
+import dup.metrics.Metrics;
 import dup.model.Context;
 import dup.model.FileInfo;
 import dup.util.Trace;
+import dup.util.Utility;
 
 /** Functions for calculating checksums for files */
 public abstract class Checksum {
 	public static final int BUFFER_SIZE = 1024;
 	public static final int prefixCount = 1;
 
-	/** Percentage of file data to include in checksum calculations */
-	private static double samplePercent() {
-		return 2.0;
-	}
+	/**
+	 * The parts of a file read for its sample checksum. Up to 50 MB this reads
+	 * the same blocks as the original 2% sampling; larger files are sampled in
+	 * no more than 1 MB.
+	 */
+	public static SamplingPolicy samplingPolicy = //
+			new SamplingPolicy.CappedPolicy(1024 * 1024, SamplingPolicy.LEGACY);
+	/** Sampled ranges less than this far apart are read with one request */
+	public static int coalesceGap = 32 * 1024;
 
 	/** Holds information about checksums during the process of calculation */
 	private static class Checksums_internal {
@@ -33,6 +46,7 @@ public abstract class Checksum {
 
 			try {
 				switch (detail) {
+				case Full:
 				case Sample:
 					sx = MessageDigest.getInstance("MD5");
 				case Prefix:
@@ -62,8 +76,15 @@ public abstract class Checksum {
 		}
 	}
 
-	public static int checksumCount = 0;
-	public static int samplecount = 0;
+	/** Files whose checksums were calculated by getChecksums */
+	private static final Counter calculations = Metrics.counter("checksum.calculations");
+	/** Time to calculate each file's checksum at each level */
+	private static final Histogram prefixTime = Metrics.histogram("checksum.prefix.time");
+	private static final Histogram sampleTime = Metrics.histogram("checksum.sample.time");
+	private static final Histogram fullTime = Metrics.histogram("checksum.full.time");
+	private static final Meter fullBytes = Metrics.meter("checksum.full.bytes");
+	/** Read requests for prefix and sample checksums */
+	private static final Counter sampleReads = Metrics.counter("checksum.sample.reads");
 
 	/** Calculate checksum(s) for a file */
 	public static ChecksumValues getChecksums(FileInfo finfo, Context context, DetailLevel detail) {
@@ -82,8 +103,32 @@ public abstract class Checksum {
 		Checksums_internal cksums = new Checksums_internal(detail);
 
 		try {
-			++checksumCount;
+			long start = System.nanoTime();
+
+			calculations.increment();
 			calcChecksums(file, cksums);
+
+			// Each level is timed on its own, so full checksum throughput covers
+			// only the full read
+			recordChecksum((detail == DetailLevel.Full) ? DetailLevel.Sample : detail, //
+					finfo, System.nanoTime() - start);
+
+			if (detail == DetailLevel.Full) {
+				final XXHash64 hash = new XXHash64();
+				start = System.nanoTime();
+
+				boolean readable = readFullBlocks(file, new BlockSink() {
+					public void update(byte[] buffer, int offset, int length) {
+						hash.update(buffer, offset, length);
+					}
+				});
+
+				cksums.checksums.full = getFullChecksum((readable) ? hash : null);
+
+				if (readable) {
+					recordChecksum(DetailLevel.Full, finfo, System.nanoTime() - start);
+				}
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -97,55 +142,55 @@ public abstract class Checksum {
 	}
 
 	/** Process checksum(s) for a file and save results */
-	private static void calcChecksums(File file, Checksums_internal cksums) throws Exception {
-		int sampleFreq = (int) (100.0 / samplePercent());
-		RandomAccessFile raf = null;
+	private static void calcChecksums(File file, final Checksums_internal cksums) throws Exception {
+		FileChannel channel = null;
 
 		try {
-			byte[] buffer = new byte[BUFFER_SIZE];
-
-			raf = new RandomAccessFile(file, "r");
-
-			for (int ii = 0;; ++ii) {
-				if (cksums.msgdigestSample != null) {
-					if ((ii > prefixCount) && (0 != (ii % sampleFreq))) {
-						continue;
+			channel = new RandomAccessFile(file, "r").getChannel();
+
+			// The same blocks and sample bytes as calculatePrefixChecksum(), so files
+			// whose details were loaded here still match files checksummed there
+			readRanges(channel, PREFIX_POLICY.getRanges(channel.size()), new BlockSink() {
+				public void update(byte[] buffer, int offset, int length) {
+					if (cksums.checksums.sampleBytes == null) {
+						cksums.checksums.sampleBytes = Arrays.copyOfRange(buffer, offset, //
+								offset + Math.min(length, ChecksumValues.PREFIX_LENGTH));
 					}
 
-					raf.seek(BUFFER_SIZE * (long) ii);
-				}
-
-				if ((cksums.msgdigestSample == null) && (ii >= prefixCount)) {
-					break;
-				}
-
-				int numRead = raf.read(buffer);
-				if (numRead <= 0) {
-					break;
-				}
-
-				if ((ii == 0) && (cksums.checksums.sampleBytes == null)) {
-					int length = Math.min(numRead, 128);
-					cksums.checksums.sampleBytes = Arrays.copyOf(buffer, length);
-				}
-
-				if ((cksums.msgdigestPrefix != null) && (ii < prefixCount)) {
-					cksums.msgdigestPrefix.update(buffer, 0, numRead);
+					if (cksums.msgdigestPrefix != null) {
+						cksums.msgdigestPrefix.update(buffer, offset, length);
+					}
 				}
+			});
 
-				if ((cksums.msgdigestSample != null) && ((ii % sampleFreq) == 0)) {
-					cksums.msgdigestSample.update(buffer, 0, numRead);
-				}
+			if (cksums.msgdigestSample != null) {
+				readRanges(channel, samplingPolicy.getRanges(channel.size()), new BlockSink() {
+					public void update(byte[] buffer, int offset, int length) {
+						cksums.msgdigestSample.update(buffer, offset, length);
+					}
+				});
 			}
 
 			cksums.processData();
 		} finally {
-			if (raf != null) {
-				raf.close();
+			if (channel != null) {
+				channel.close();
 			}
 		}
 	}
 
+	/** Receives blocks of file data as they are read */
+	interface BlockSink {
+		void update(byte[] buffer, int offset, int length);
+	}
+
+	/** The blocks read for a prefix checksum: 8 blocks, 1% of the file apart */
+	private static final SamplingPolicy PREFIX_POLICY = new SamplingPolicy.PercentPolicy(1.0, 8);
+	/** Size of each read for a full checksum */
+	private static final int FULL_BUFFER_SIZE = 1024 * 1024;
+	/** Largest read of sampled ranges (a single larger range is read in parts) */
+	private static final int RANGE_BUFFER_SIZE = 1024 * 1024;
+
 	/** Calculate prefix checksum for a file */
 	public static void calculatePrefixChecksum(FileInfo finfo) {
 		if (finfo.getContext() == null) {
@@ -154,8 +199,11 @@ public abstract class Checksum {
 
 		try {
 			File file = finfo.getJavaFile();
-			int sum = getChecksum(createChecksumDigest(finfo, file, 8, 1.0));
+			long start = System.nanoTime();
+			int sum = getChecksum(createChecksumDigest(finfo, file, PREFIX_POLICY));
 			finfo.setPrefixChecksum(sum);
+
+			recordChecksum(DetailLevel.Prefix, finfo, System.nanoTime() - start);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -172,24 +220,115 @@ public abstract class Checksum {
 			return;
 		}
 
-		Trace.traceln(Trace.VERBOSE, "Sample Checksum # " + ++samplecount + " " + finfo.getName());
+		Trace.traceln(Trace.VERBOSE, "Sample Checksum # " + (sampleTime.getCount() + 1) + " " + finfo.getName());
 
 		try {
 			File file = finfo.getJavaFile();
-			int sum = getChecksum(createChecksumDigest(finfo, file, -1, samplePercent()));
+			long start = System.nanoTime();
+			int sum = getChecksum(createChecksumDigest(finfo, file, samplingPolicy));
 			finfo.setSampleChecksum(sum);
+
+			recordChecksum(DetailLevel.Sample, finfo, System.nanoTime() - start);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/** Calculate checksum for the entire file content and save results */
+	public static void calculateFullChecksum(FileInfo finfo) {
+		if (finfo.getContext() == null) {
+			return;
+		}
+
+		try {
+			File file = finfo.getJavaFile();
+			final XXHash64 hash = new XXHash64();
+			long start = System.nanoTime();
+
+			boolean readable = readFullBlocks(file, new BlockSink() {
+				public void update(byte[] buffer, int offset, int length) {
+					hash.update(buffer, offset, length);
+				}
+			});
+
+			finfo.setFullChecksum(getFullChecksum((readable) ? hash : null));
+
+			if (readable) {
+				recordChecksum(DetailLevel.Full, finfo, System.nanoTime() - start);
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
+	/** Calculate a full checksum from a hash (null if unreadable) */
+	static long getFullChecksum(XXHash64 hash) {
+		if (hash == null) {
+			return 1;
+		}
+
+		long check = hash.getValue();
+
+		return (check == ChecksumValues.CKSUM_UNDEFINED) ? 1 : check;
+	}
+
+	/** Add the time to checksum a file to the metrics, tracing full checksums */
+	static void recordChecksum(DetailLevel level, FileInfo finfo, long nanos) {
+		switch (level) {
+		case Prefix:
+			prefixTime.record(nanos);
+			break;
+
+		case Sample:
+			sampleTime.record(nanos);
+			break;
+
+		default:
+			fullTime.record(nanos);
+			fullBytes.mark(finfo.getSize());
+
+			Trace.traceln(Trace.VERBOSE, String.format("Full Checksum # %d %s %s %.1f MB/s", //
+					fullTime.getCount(), finfo.getName(), //
+					Utility.formatSize(finfo.getSize()), //
+					getThroughput(finfo.getSize(), nanos)));
+			break;
+		}
+	}
+
+	/**
+	 * Trace the throughput of full checksums
+	 *
+	 * @param delta Metrics for the period to report
+	 */
+	public static void reportFullChecksums(Metrics.Snapshot delta) {
+		Histogram.Snapshot times = delta.getHistogram(fullTime.getName());
+		long bytes = delta.getMeter(fullBytes.getName())[1];
+
+		if ((times == null) || (times.count == 0)) {
+			return;
+		}
+
+		Trace.traceln(Trace.NORMAL, String.format("Full checksums: %d files %s %.1f MB/s per file", //
+				times.count, Utility.formatSize(bytes), //
+				getThroughput(bytes, times.sum)));
+	}
+
+	/** Calculate megabytes per second */
+	private static double getThroughput(long bytes, long nanos) {
+		if (nanos <= 0) {
+			return 0.0;
+		}
+
+		return (bytes / (1024.0 * 1024.0)) / (nanos / 1e9);
+	}
+
 	/** Calculate checksum from digest */
 	private static int getChecksum(MessageDigest digest) {
 		return getChecksum(digest.digest());
 	}
 
 	/** Calculate a checksum from digest data */
-	private static int getChecksum(byte[] bb) {
+	static int getChecksum(byte[] bb) {
 		if (bb == null) {
 			return 1;
 		}
@@ -207,51 +346,186 @@ public abstract class Checksum {
 
 	/** Build checksum data by reading file data */
 	private static byte[] createChecksumDigest(FileInfo finfo, File file, //
-			int count, double percentage) //
+			SamplingPolicy policy) //
 			throws Exception {
-		MessageDigest msgdigest = MessageDigest.getInstance("MD5");
+		final MessageDigest msgdigest = MessageDigest.getInstance("MD5");
+
+		boolean readable = readChecksumBlocks(finfo, file, policy, new BlockSink() {
+			public void update(byte[] buffer, int offset, int length) {
+				msgdigest.update(buffer, offset, length);
+			}
+		});
 
-		RandomAccessFile raf = null;
-		byte[] buffer = new byte[1024];
+		return (readable) ? msgdigest.digest() : null;
+	}
 
-		int blocksToSkip = (int) ((100.0 / percentage) - 1);
-		int bytesToSkip = blocksToSkip * buffer.length;
+	/** Read the blocks that make up the prefix checksum for a file */
+	static boolean readPrefixBlocks(FileInfo finfo, File file, BlockSink sink) throws Exception {
+		return readChecksumBlocks(finfo, file, PREFIX_POLICY, sink);
+	}
+
+	/** Read the blocks that make up the sample checksum for a file */
+	static boolean readSampleBlocks(FileInfo finfo, File file, BlockSink sink) throws Exception {
+		return readChecksumBlocks(finfo, file, samplingPolicy, sink);
+	}
+
+	/**
+	 * Read the entire content of a file, in large sequential reads.
+	 * 
+	 * @return False if the file cannot be read
+	 */
+	static boolean readFullBlocks(File file, BlockSink sink) throws Exception {
+		if (!file.isFile() || !file.canRead()) {
+			return false;
+		}
+
+		FileChannel channel = null;
+		ByteBuffer buffer = ByteBuffer.allocate(FULL_BUFFER_SIZE);
 
 		try {
-			if (!file.isFile() || !file.canRead()) {
-				return null;
+			channel = new RandomAccessFile(file, "r").getChannel();
+
+			for (;;) {
+				buffer.clear();
+
+				int numRead = channel.read(buffer);
+				if (numRead < 0) {
+					break;
+				}
+
+				sink.update(buffer.array(), 0, numRead);
+			}
+		} finally {
+			if (channel != null) {
+				channel.close();
 			}
+		}
 
-			raf = new RandomAccessFile(file, "r");
+		return true;
+	}
 
-			for (int ii = 0; (count <= 0) || (ii < count); ++ii) {
-				int numRead = raf.read(buffer);
+	/**
+	 * Read the blocks of file data that make up a checksum, and save the sample
+	 * bytes from the start of the file.
+	 * 
+	 * @return False if the file cannot be read
+	 */
+	private static boolean readChecksumBlocks(final FileInfo finfo, File file, //
+			SamplingPolicy policy, final BlockSink sink) //
+			throws Exception {
+		if (!file.isFile() || !file.canRead()) {
+			return false;
+		}
 
-				if (numRead <= 0) {
-					break;
+		FileChannel channel = null;
+
+		try {
+			channel = new RandomAccessFile(file, "r").getChannel();
+
+			readRanges(channel, policy.getRanges(channel.size()), new BlockSink() {
+				private boolean first = true;
+
+				public void update(byte[] buffer, int offset, int length) {
+					if (this.first) {
+						int sampleSize = Math.min(length, ChecksumValues.PREFIX_LENGTH);
+						finfo.setSampleBytes(Arrays.copyOfRange(buffer, offset, offset + sampleSize), sampleSize);
+						this.first = false;
+					}
+
+					sink.update(buffer, offset, length);
 				}
+			});
+		} finally {
+			if (channel != null) {
+				channel.close();
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Read ranges of a file with positional reads, passing each range to the
+	 * sink. Ranges less than coalesceGap apart are read together, and only the
+	 * ranges themselves are passed on. Reading stops at the end of the file.
+	 * 
+	 * @param ranges Offset and length of each range, in order of offset
+	 */
+	private static void readRanges(FileChannel channel, long[] ranges, BlockSink sink) throws IOException {
+		ByteBuffer buffer = null;
+
+		for (int ii = 0; ii < ranges.length;) {
+			long start = ranges[ii];
+			long end = start + ranges[ii + 1];
+			int next = ii + 2;
+
+			while ((next < ranges.length) //
+					&& (ranges[next] - end <= coalesceGap) //
+					&& (ranges[next] + ranges[next + 1] - start <= RANGE_BUFFER_SIZE)) {
+				end = ranges[next] + ranges[next + 1];
+				next += 2;
+			}
 
-				if (ii == 0) {
-					int sampleSize = Math.min(numRead, ChecksumValues.PREFIX_LENGTH);
-					finfo.setSampleBytes(buffer, sampleSize);
+			int needed = (int) Math.min(RANGE_BUFFER_SIZE, end - start);
+
+			if ((buffer == null) || (buffer.capacity() < needed)) {
+				buffer = ByteBuffer.allocate(needed);
+			}
+
+			if (end - start > buffer.capacity()) {
+				// A single range larger than the buffer
+				for (long pos = start; pos < end; pos += buffer.capacity()) {
+					int numRead = readAt(channel, buffer, pos, (int) Math.min(buffer.capacity(), end - pos));
+
+					if (numRead > 0) {
+						sink.update(buffer.array(), 0, numRead);
+					}
+
+					if (numRead < buffer.limit()) {
+						return;
+					}
 				}
+			} else {
+				int numRead = readAt(channel, buffer, start, (int) (end - start));
 
-				msgdigest.update(buffer, 0, numRead);
+				for (; ii < next; ii += 2) {
+					int from = (int) (ranges[ii] - start);
+					int to = (int) (ranges[ii] + ranges[ii + 1] - start);
 
-				if (blocksToSkip > 0) {
-					int skipped = raf.skipBytes(bytesToSkip);
+					if (numRead > from) {
+						sink.update(buffer.array(), from, Math.min(numRead, to) - from);
+					}
 
-					if (skipped < bytesToSkip) {
-						break;
+					if (numRead < to) {
+						return;
 					}
 				}
 			}
-		} finally {
-			if (raf != null) {
-				raf.close();
+
+			ii = next;
+		}
+	}
+
+	/**
+	 * Fill a buffer from a position in a file.
+	 * 
+	 * @return The number of bytes read, fewer than length at the end of the file
+	 */
+	private static int readAt(FileChannel channel, ByteBuffer buffer, long position, int length) //
+			throws IOException {
+		buffer.clear();
+		buffer.limit(length);
+
+		while (buffer.hasRemaining()) {
+			int numRead = channel.read(buffer, position + buffer.position());
+
+			if (numRead < 0) {
+				break;
 			}
 		}
 
-		return msgdigest.digest();
+		sampleReads.increment();
+
+		return buffer.position();
 	}
 }
@@ -0,0 +1,330 @@
+package dup.analyze;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import dup.model.FileInfo;
+import dup.util.Trace;
+import dup.util.Utility;
+
+/**
+ * Calculates checksums for a batch of files using separate I/O and hashing
+ * threads.<br>
+ * I/O workers read the checksum blocks for a file and pass them in batches to
+ * the hashing worker that owns the file. Each hashing worker has a bounded
+ * queue, so readers block when hashing falls behind, and at most ioThreads *
+ * queueDepth files are waiting to be read, so submitting a large batch of files
+ * blocks rather than queueing a job for every file. All batches for a file
+ * go to the same hashing worker in order, so the digest is computed over
+ * exactly the same data as Checksum.calculatePrefixChecksum,
+ * calculateSampleChecksum and calculateFullChecksum would read, and the
+ * resulting values are identical.
+ */
+public class ChecksumPipeline {
+	/** Number of threads reading file data (0 disables the pipeline) */
+	public static int ioThreads = 4;
+	/** Number of threads computing digests */
+	public static int hashThreads = Runtime.getRuntime().availableProcessors();
+	/** Maximum number of batches waiting for each hashing thread */
+	public static int queueDepth = 64;
+
+	/** Number of bytes of file data passed to the hashing threads at a time */
+	public static final int BATCH_SIZE = 64 * 1024;
+
+	public static boolean isEnabled() {
+		return ioThreads > 0;
+	}
+
+	/**
+	 * Calculate checksums at a given level for a set of files, and save the
+	 * results in the files.
+	 *
+	 * @param files The files to process
+	 * @param level Prefix, Sample or Full
+	 */
+	public static void calculateChecksums(Collection<FileInfo> files, DetailLevel level) {
+		if (files.isEmpty()) {
+			return;
+		}
+
+		new ChecksumPipeline(level).run(files);
+	}
+
+	/** A chunk of file data (or end of file) for a hashing worker */
+	private static class Batch {
+		public final Job job;
+		public final byte[] data;
+		public final int length;
+		/** This is the last batch for the file */
+		public final boolean last;
+
+		public Batch(Job job, byte[] data, int length, boolean last) {
+			this.job = job;
+			this.data = data;
+			this.length = length;
+			this.last = last;
+		}
+	}
+
+	/** Marks the end of input for a hashing worker */
+	private static final Batch END = new Batch(null, null, 0, true);
+
+	/** Checksum calculation for one file */
+	private class Job implements Runnable, Checksum.BlockSink {
+		public final FileInfo file;
+		public final BlockingQueue<Batch> queue;
+		/** Released when the file has been read */
+		private final Semaphore pending;
+		public MessageDigest digest = null;
+		public XXHash64 fullHash = null;
+		/** Time when reading started, for full checksum throughput */
+		public long startNanos = 0;
+
+		/** False if the file could not be read */
+		public boolean readable = false;
+		/** True if reading failed with an exception */
+		public boolean failed = false;
+
+		/** Allocated when reading starts, so queued jobs hold no data */
+		private byte[] buffer = null;
+		private int length = 0;
+
+		public Job(FileInfo file, BlockingQueue<Batch> queue, Semaphore pending) {
+			this.file = file;
+			this.queue = queue;
+			this.pending = pending;
+		}
+
+		/** Read the file data (I/O worker) */
+		public void run() {
+			this.startNanos = System.nanoTime();
+			this.buffer = new byte[BATCH_SIZE];
+
+			try {
+				File javafile = this.file.getJavaFile();
+
+				switch (level) {
+				case Prefix:
+					this.readable = Checksum.readPrefixBlocks(this.file, javafile, this);
+					break;
+				case Sample:
+					this.readable = Checksum.readSampleBlocks(this.file, javafile, this);
+					break;
+				default:
+					this.readable = Checksum.readFullBlocks(javafile, this);
+					break;
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+				this.failed = true;
+			} finally {
+				send(true);
+				this.buffer = null;
+				this.pending.release();
+			}
+		}
+
+		public void update(byte[] data, int offset, int len) {
+			while (len > 0) {
+				int n = Math.min(len, this.buffer.length - this.length);
+
+				System.arraycopy(data, offset, this.buffer, this.length, n);
+				this.length += n;
+				offset += n;
+				len -= n;
+
+				if (this.length == this.buffer.length) {
+					send(false);
+				}
+			}
+		}
+
+		private void send(boolean last) {
+			Batch batch = new Batch(this, this.buffer, this.length, last);
+
+			if (!last) {
+				this.buffer = new byte[BATCH_SIZE];
+			}
+
+			this.length = 0;
+
+			try {
+				this.queue.put(batch);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/** Digest a batch of data (hashing worker) */
+		public void hash(Batch batch) throws Exception {
+			if (level == DetailLevel.Full) {
+				hashFull(batch);
+				return;
+			}
+
+			if (this.digest == null) {
+				this.digest = MessageDigest.getInstance("MD5");
+			}
+
+			this.digest.update(batch.data, 0, batch.length);
+
+			if (!batch.last || this.failed) {
+				return;
+			}
+
+			int sum = Checksum.getChecksum((this.readable) ? this.digest.digest() : null);
+
+			if (level == DetailLevel.Prefix) {
+				this.file.setPrefixChecksum(sum);
+			} else {
+				this.file.setSampleChecksum(sum);
+			}
+
+			if (this.readable) {
+				Checksum.recordChecksum(level, this.file, System.nanoTime() - this.startNanos);
+			}
+		}
+
+		private void hashFull(Batch batch) {
+			if (this.fullHash == null) {
+				this.fullHash = new XXHash64();
+			}
+
+			this.fullHash.update(batch.data, 0, batch.length);
+
+			if (!batch.last || this.failed) {
+				return;
+			}
+
+			this.file.setFullChecksum(Checksum.getFullChecksum((this.readable) ? this.fullHash : null));
+
+			if (this.readable) {
+				Checksum.recordChecksum(level, this.file, System.nanoTime() - this.startNanos);
+			}
+		}
+	}
+
+	/** Hashing worker - processes batches from one queue */
+	private static class HashWorker implements Runnable {
+		private final BlockingQueue<Batch> queue;
+
+		public HashWorker(BlockingQueue<Batch> queue) {
+			this.queue = queue;
+		}
+
+		public void run() {
+			for (;;) {
+				Batch batch;
+
+				try {
+					batch = this.queue.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				if (batch == END) {
+					return;
+				}
+
+				try {
+					batch.job.hash(batch);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private final DetailLevel level;
+
+	private ChecksumPipeline(DetailLevel level) {
+		assert (level == DetailLevel.Prefix) || (level == DetailLevel.Sample) //
+				|| (level == DetailLevel.Full);
+
+		this.level = level;
+	}
+
+	private void run(Collection<FileInfo> files) {
+		int nhash = Math.max(1, hashThreads);
+		int nio = Math.max(1, ioThreads);
+
+		Trace.traceln(Trace.VERBOSE, String.format( //
+				"Checksum pipeline: %d files level %s io=%d hash=%d", //
+				files.size(), this.level.toString(), nio, nhash));
+
+		List<BlockingQueue<Batch>> queues = new ArrayList<BlockingQueue<Batch>>();
+		ExecutorService hashers = Executors.newFixedThreadPool(nhash);
+
+		for (int ii = 0; ii < nhash; ++ii) {
+			BlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(Math.max(1, queueDepth));
+
+			queues.add(queue);
+			hashers.execute(new HashWorker(queue));
+		}
+
+		ExecutorService readers = Executors.newFixedThreadPool(nio);
+		Semaphore pending = new Semaphore(nio * Math.max(1, queueDepth));
+		long start = System.nanoTime();
+		long bytes = 0;
+
+		try {
+			int idx = 0;
+
+			for (FileInfo file : files) {
+				if (file.getContext() == null) {
+					continue;
+				}
+
+				bytes += file.getSize();
+
+				// Wait for a reader to catch up rather than queue every file at once
+				pending.acquire();
+				readers.execute(new Job(file, queues.get(idx++ % nhash), pending));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			shutdown(readers);
+
+			for (BlockingQueue<Batch> queue : queues) {
+				try {
+					queue.put(END);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			shutdown(hashers);
+		}
+
+		if (this.level == DetailLevel.Full) {
+			double seconds = (System.nanoTime() - start) / 1e9;
+
+			Trace.traceln(Trace.NORMAL, String.format("Full checksum pipeline: %d files %s %.1f MB/s", //
+					files.size(), Utility.formatSize(bytes), //
+					(seconds > 0) ? (bytes / (1024.0 * 1024.0)) / seconds : 0.0));
+		}
+	}
+
+	private static void shutdown(ExecutorService executor) {
+		executor.shutdown();
+
+		try {
+			while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				// keep waiting
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -24,6 +24,11 @@ public class ChecksumValues implements Comparable<ChecksumValues> {
 				&& (cksum1 == cksum2));
 	}
 
+	public static boolean isIdentical(long cksum1, long cksum2) {
+		return ((cksum1 != 0) && (cksum2 != 0) //
+				&& (cksum1 == cksum2));
+	}
+
 	public static boolean isIdentical(byte[] bytes1, byte[] bytes2) {
 		if ((bytes1 == null) || (bytes2 == null)) {
 			return true;
@@ -45,15 +50,19 @@ public class ChecksumValues implements Comparable<ChecksumValues> {
 	public int prefix;
 	public int sample;
 	public byte[] sampleBytes;
+	/** Hash of the entire file content */
+	public long full;
 
 	public ChecksumValues() {
 		this.prefix = this.sample = CKSUM_UNDEFINED;
+		this.full = CKSUM_UNDEFINED;
 		this.sampleBytes = null;
 	}
 
 	public void setValues(ChecksumValues source) {
 		this.prefix = source.prefix;
 		this.sample = source.sample;
+		this.full = source.full;
 
 		this.sampleBytes = (source.sampleBytes != null) //
 				? Arrays.copyOf(source.sampleBytes, source.sampleBytes.length) //
@@ -61,6 +70,10 @@ public class ChecksumValues implements Comparable<ChecksumValues> {
 	}
 
 	public DetailLevel getDetailLevel() {
+		if (this.full != CKSUM_UNDEFINED) {
+			return DetailLevel.Full;
+		}
+
 		if (this.sample != CKSUM_UNDEFINED) {
 			return DetailLevel.Sample;
 		}
@@ -89,6 +102,14 @@ public class ChecksumValues implements Comparable<ChecksumValues> {
 			return diff;
 		}
 
+		if (this.full != other.full) {
+			if (this.full == CKSUM_UNDEFINED) {
+				return -1;
+			}
+
+			return (other.full == CKSUM_UNDEFINED) ? 1 : Long.compare(this.full, other.full);
+		}
+
 		if (this.sampleBytes == null) {
 			return (other.sampleBytes == null) ? 0 : -1;
 		}
@@ -115,8 +136,8 @@ public class ChecksumValues implements Comparable<ChecksumValues> {
 	}
 
 	 public String toString() {
-		return String.format("Cksum: p=%d s=%d sbLen=%d", //
-				this.prefix, this.sample, //
+		return String.format("Cksum: p=%d s=%d f=%016X sbLen=%d", //
+				this.prefix, this.sample, this.full, //
 				((this.sampleBytes != null) ? this.sampleBytes.length : 0));
 	}
 }
\ No newline at end of file
@@ -4,9 +4,10 @@ public enum DetailLevel {
 	None(0, "None"), //
 	Size(1, "Size"), //
 	Prefix(2, "Prefix"), //
-	Sample(3, "Sample");
+	Sample(3, "Sample"), //
+	Full(4, "Full");
 
-	public static final DetailLevel MAX = Sample;
+	public static final DetailLevel MAX = Full;
 
 	int intval;
 	String name;
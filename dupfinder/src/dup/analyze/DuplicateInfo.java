@@ -16,6 +16,7 @@ public class DuplicateInfo {
 	private FileInfo file;
 
 	private Set<FileInfo> verifiedDuplicateFiles = null;
+	/** Created when the first different file is verified */
 	private Set<FileInfo> verifiedDifferentFiles = null;
 
 	private Set<FileInfo> contextDuplicates = null;
@@ -25,7 +26,7 @@ public class DuplicateInfo {
 		this.file = file;
 
 		this.verifiedDuplicateFiles = null;
-		this.verifiedDifferentFiles = new HashSet<FileInfo>();
+		this.verifiedDifferentFiles = null;
 	}
 
 	public void dispose() {
@@ -40,21 +41,22 @@ public class DuplicateInfo {
 			this.verifiedDuplicateFiles = null;
 		}
 
-		for (FileInfo f : this.verifiedDifferentFiles) {
-			f.getDupinfo().forgetFile(this.file);
-		}
+		if (this.verifiedDifferentFiles != null) {
+			for (FileInfo f : this.verifiedDifferentFiles) {
+				f.getDupinfo().forgetFile(this.file);
+			}
 
-		this.verifiedDifferentFiles.clear();
+			this.verifiedDifferentFiles = null;
+		}
 
 		if (this.contextDuplicates != null) {
 			this.contextDuplicates.remove(this.file);
 			this.contextDuplicates = null;
 		}
 
-		if (this.globalDuplicates != null) {
-			this.globalDuplicates.remove(this.file);
-			this.globalDuplicates = null;
-		}
+		// The global duplicate list belongs to DuplicateInfo2
+		clearGlobalDuplicates();
+		this.file.duplicatesChanged();
 
 		this.file = null;
 	}
@@ -64,7 +66,8 @@ public class DuplicateInfo {
 		// Remember file and verified identical/duplicate files
 		// Reanalysis will rebuild duplicate chains, however.
 		this.contextDuplicates = null;
-		this.globalDuplicates = null;
+		clearGlobalDuplicates();
+		this.file.duplicatesChanged();
 	}
 
 	private void forgetFile(FileInfo file) {
@@ -77,7 +80,9 @@ public class DuplicateInfo {
 			}
 		}
 
-		this.verifiedDifferentFiles.remove(file);
+		if (this.verifiedDifferentFiles != null) {
+			this.verifiedDifferentFiles.remove(file);
+		}
 	}
 
 	public boolean hasContextDuplicates() {
@@ -89,6 +94,10 @@ public class DuplicateInfo {
 	}
 
 	public boolean hasDuplicatesInFolder() {
+		if (this.contextDuplicates == null) {
+			return false;
+		}
+
 		FolderInfo folder = this.file.getFolder();
 
 		for (FileInfo file : this.contextDuplicates) {
@@ -113,7 +122,7 @@ public class DuplicateInfo {
 			return false;
 		}
 
-		return this.file.checksums.equals(((DuplicateInfo) o).file.checksums);
+		return this.file.getChecksums().equals(((DuplicateInfo) o).file.getChecksums());
 	}
 
 	public Collection<FileInfo> getGlobalDuplicates() {
@@ -123,8 +132,20 @@ public class DuplicateInfo {
 	public void setGlobalDuplicates(List<FileInfo> dups) {
 		assert (dups != null);
 
+		boolean changed = (this.globalDuplicates == null);
+
 		this.globalDuplicates = dups;
-		++this.file.getFolder().globalDupCount;
+
+		if (changed) {
+			this.file.duplicatesChanged();
+		}
+	}
+
+	public void clearGlobalDuplicates() {
+		if (this.globalDuplicates != null) {
+			this.globalDuplicates = null;
+			this.file.duplicatesChanged();
+		}
 	}
 
 	public Collection<FileInfo> getContextDuplicates() {
@@ -175,22 +196,27 @@ public class DuplicateInfo {
 			other.contextDuplicates = dups;
 		}
 
+		this.file.duplicatesChanged();
+		other.file.duplicatesChanged();
+
 		return true;
 	}
 
+	/**
+	 * Forget the duplicates of this file. The file must already have been removed
+	 * from its DuplicateInfo2, which owns the global duplicate list.
+	 */
 	public void removeFromDuplicateChains() {
 		if (this.globalDuplicates != null) {
-			this.globalDuplicates.remove(this.file);
+			Collection<FileInfo> dups = this.globalDuplicates;
 
-			if (!Analyzer.hasGlobalDuplicates(this.globalDuplicates)) {
-				for (FileInfo f : this.globalDuplicates) {
-					f.getDupinfo().globalDuplicates = null;
-				}
+			clearGlobalDuplicates();
 
-				this.globalDuplicates.clear();
+			if (!Analyzer.hasGlobalDuplicates(dups)) {
+				for (FileInfo f : dups) {
+					f.getDupinfo().clearGlobalDuplicates();
+				}
 			}
-
-			this.globalDuplicates = null;
 		}
 
 		if (this.contextDuplicates != null) {
@@ -200,16 +226,18 @@ public class DuplicateInfo {
 				FileInfo f = this.contextDuplicates.iterator().next();
 
 				f.getDupinfo().contextDuplicates = null;
+				f.duplicatesChanged();
 
 				this.contextDuplicates.clear();
 			}
 
 			this.contextDuplicates = null;
+			this.file.duplicatesChanged();
 		}
 	}
 
 	public boolean isVerifiedEqual(DuplicateInfo other) {
-		if (this.verifiedDifferentFiles.contains(other.file)) {
+		if ((this.verifiedDifferentFiles != null) && this.verifiedDifferentFiles.contains(other.file)) {
 			return false;
 		}
 
@@ -273,6 +301,13 @@ public class DuplicateInfo {
 	}
 
 	public void addToVerifiedDifferent(DuplicateInfo other) {
+		if (this.verifiedDifferentFiles == null) {
+			this.verifiedDifferentFiles = new HashSet<FileInfo>();
+		}
+		if (other.verifiedDifferentFiles == null) {
+			other.verifiedDifferentFiles = new HashSet<FileInfo>();
+		}
+
 		this.verifiedDifferentFiles.add(other.file);
 		other.verifiedDifferentFiles.add(this.file);
 	}
@@ -286,6 +321,8 @@ public class DuplicateInfo {
 
 	public Collection<FileInfo> getVerifiedDifferentFiles() {
 		// TODO construct from Database.verifiedDifferent?
-		return this.verifiedDifferentFiles;
+		return (this.verifiedDifferentFiles != null) //
+				? this.verifiedDifferentFiles //
+				: FileInfo.NoFiles;
 	}
 }
\ No newline at end of file
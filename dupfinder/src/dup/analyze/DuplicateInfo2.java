@@ -1,15 +1,20 @@
 package dup.analyze;
 
+import java.nio.ByteBuffer;
+import java.util.AbstractCollection;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-import dup.model.Context;
 import dup.model.FileInfo;
+import dup.util.LongHashMap;
 
 public class DuplicateInfo2 {
 	private final long filesize;
@@ -17,40 +22,219 @@ public class DuplicateInfo2 {
 	/** All files in this group (same size), sorted by checksum info */
 	private List<FileInfo> sameSizeFiles;
 
-	/** Sub-groups of files with identical checksum info, sorted by context */
-	private Map<ChecksumValues, List<FileInfo>> duplicateFiles;
+	/** Sub-groups of files that are identical, as far as we know */
+	private List<DuplicateList> duplicateLists;
+
+	/** The sub-group each duplicate file belongs to */
+	private Map<FileInfo, DuplicateList> duplicateFiles;
+
+	/**
+	 * Sub-groups of files that are the same file on disk (hard links, or one file
+	 * seen through two mounts). Only the first file of each is compared with
+	 * other files; these are not duplicates, as they take no extra space.
+	 */
+	private List<List<FileInfo>> sameFileLists = null;
+
+	/** This group's share of the DuplicateTotals, as last counted */
+	boolean counted = false;
+	int countedGroups = 0;
+	int countedFiles = 0;
+	int countedLongest = 0;
+	int countedSameFiles = 0;
+	int countedLinks = 0;
 
 	public DuplicateInfo2(long size) {
 		this.filesize = size;
 		this.sameSizeFiles = new ArrayList<FileInfo>();
-		this.duplicateFiles = new HashMap<ChecksumValues, List<FileInfo>>();
+		this.duplicateLists = new ArrayList<DuplicateList>();
+		this.duplicateFiles = new HashMap<FileInfo, DuplicateList>();
 	}
 
 	public long fileSize() {
 		return this.filesize;
 	}
 
+	/** Number of files of this size */
+	public int getFileCount() {
+		return this.sameSizeFiles.size();
+	}
+
 	/** Get the files that are AFAIK identical to a given file */
 	public List<FileInfo> getDuplicates(FileInfo file) {
-		List<FileInfo> dups = this.duplicateFiles.get(file.checksums);
-		return dups;
+		DuplicateList dups = this.duplicateFiles.get(file);
+
+		return (dups != null) ? Collections.unmodifiableList(dups) : null;
 	}
 
 	public void forgetFile(FileInfo file) {
-		this.sameSizeFiles.remove(file);
+		forgetFiles(Collections.singletonList(file));
+	}
 
-		List<FileInfo> dups = getDuplicates(file);
-		if (dups != null) {
-			dups.remove(file);
+	/**
+	 * Forget a batch of files (e.g. a closed context's). Each list they are in is
+	 * filtered once, rather than searched once per file.
+	 */
+	public void forgetFiles(Collection<FileInfo> files) {
+		Set<FileInfo> forgotten = Collections.newSetFromMap(new IdentityHashMap<FileInfo, Boolean>());
+		forgotten.addAll(files);
+
+		this.sameSizeFiles.removeAll(forgotten);
+
+		if (this.sameFileLists != null) {
+			for (Iterator<List<FileInfo>> iter = this.sameFileLists.iterator(); iter.hasNext();) {
+				List<FileInfo> links = iter.next();
+
+				if (links.removeAll(forgotten) && (links.size() < 2)) {
+					iter.remove();
+				}
+			}
+		}
+
+		Set<DuplicateList> changed = Collections.newSetFromMap(new IdentityHashMap<DuplicateList, Boolean>());
+
+		for (FileInfo file : files) {
+			DuplicateList dups = this.duplicateFiles.remove(file);
+
+			if (dups != null) {
+				changed.add(dups);
+			}
+		}
+
+		Set<DuplicateList> emptied = Collections.newSetFromMap(new IdentityHashMap<DuplicateList, Boolean>());
+
+		for (DuplicateList dups : changed) {
+			dups.removeFiles(forgotten);
 
 			if (dups.size() < 2) {
-				this.duplicateFiles.remove(file.checksums);
+				for (FileInfo file : dups) {
+					this.duplicateFiles.remove(file);
+				}
+
+				emptied.add(dups);
 			}
 		}
+
+		if (!emptied.isEmpty()) {
+			this.duplicateLists.removeAll(emptied);
+		}
 	}
 
+	/**
+	 * Get the sub-groups of identical files. This is a read-only view, which
+	 * changes as files are processed or forgotten.
+	 */
 	public Collection<List<FileInfo>> getDuplicateLists() {
-		return this.duplicateFiles.values();
+		return new ReadOnlyLists(this.duplicateLists);
+	}
+
+	/** Get the lists of files that are the same file on disk (read-only view) */
+	public Collection<List<FileInfo>> getSameFileLists() {
+		return (this.sameFileLists != null) //
+				? new ReadOnlyLists(this.sameFileLists) //
+				: Collections.<List<FileInfo>>emptyList();
+	}
+
+	/** Read-only view of a list of sub-groups, whose sub-groups are read-only */
+	private static class ReadOnlyLists extends AbstractCollection<List<FileInfo>> {
+		private final List<? extends List<FileInfo>> lists;
+
+		public ReadOnlyLists(List<? extends List<FileInfo>> lists) {
+			this.lists = lists;
+		}
+
+		public int size() {
+			return this.lists.size();
+		}
+
+		public Iterator<List<FileInfo>> iterator() {
+			final Iterator<? extends List<FileInfo>> iter = this.lists.iterator();
+
+			return new Iterator<List<FileInfo>>() {
+				public boolean hasNext() {
+					return iter.hasNext();
+				}
+
+				public List<FileInfo> next() {
+					return Collections.unmodifiableList(iter.next());
+				}
+			};
+		}
+	}
+
+	/**
+	 * Get the files in the group that are distinct on disk, and gather the lists
+	 * of files that are the same file. Of the files with the same device and
+	 * inode, only the first is included.
+	 */
+	private List<FileInfo> getDistinctFiles(List<List<FileInfo>> sameFiles) {
+		LongHashMap<List<FileInfo>> inodes = null;
+		Map<FileInfo, List<FileInfo>> links = null;
+		List<FileInfo> distinct = new ArrayList<FileInfo>(this.sameSizeFiles.size());
+
+		for (FileInfo file : this.sameSizeFiles) {
+			FileInfo original = null;
+
+			if (file.hasFileKey()) {
+				if (inodes == null) {
+					inodes = new LongHashMap<List<FileInfo>>();
+				}
+
+				List<FileInfo> candidates = inodes.get(file.getInode());
+
+				if (candidates == null) {
+					candidates = new ArrayList<FileInfo>(1);
+					inodes.put(file.getInode(), candidates);
+				}
+
+				for (FileInfo candidate : candidates) {
+					if (candidate.isSameFile(file)) {
+						original = candidate;
+						break;
+					}
+				}
+
+				if (original == null) {
+					candidates.add(file);
+				}
+			}
+
+			if (original == null) {
+				distinct.add(file);
+				continue;
+			}
+
+			if (links == null) {
+				links = new IdentityHashMap<FileInfo, List<FileInfo>>();
+			}
+
+			List<FileInfo> same = links.get(original);
+			if (same == null) {
+				same = new ArrayList<FileInfo>();
+				same.add(original);
+				links.put(original, same);
+			}
+
+			same.add(file);
+		}
+
+		if (links != null) {
+			sameFiles.addAll(links.values());
+		}
+
+		return distinct;
+	}
+
+	private void addDuplicateList(DuplicateList dups) {
+		this.duplicateLists.add(dups);
+
+		for (FileInfo file : dups) {
+			this.duplicateFiles.put(file, dups);
+		}
+	}
+
+	private void clearDuplicateLists() {
+		this.duplicateLists.clear();
+		this.duplicateFiles.clear();
 	}
 
 	/**
@@ -111,35 +295,39 @@ public class DuplicateInfo2 {
 					return diff;
 				}
 
-				return f1.checksums.compareTo(f2.checksums);
+				return f1.getChecksums().compareTo(f2.getChecksums());
 			}
 		});
 
 		if (fixed) {
 			// Rebuild duplicate chains using new information
 
-			this.duplicateFiles.clear();
+			clearDuplicateLists();
 
 			FileInfo lastfile = null;
+			DuplicateList dups = null;
 
 			for (FileInfo file : this.sameSizeFiles) {
 				if (file.getDetailLevel().compareTo(DetailLevel.Size) <= 0) {
 					// Skip it
 				} else if ((lastfile != null) && file.checksumsMatch(lastfile)) {
-					List<FileInfo> dups = this.duplicateFiles.get(file.checksums);
-
 					if (dups == null) {
-						dups = new ArrayList<FileInfo>();
-						this.duplicateFiles.put(file.checksums, dups);
-
-						dups.add(lastfile);
+						dups = new DuplicateList();
+						dups.addFile(lastfile);
 					}
 
-					dups.add(file);
+					dups.addFile(file);
+				} else if (dups != null) {
+					addDuplicateList(dups);
+					dups = null;
 				}
 
 				lastfile = file;
 			}
+
+			if (dups != null) {
+				addDuplicateList(dups);
+			}
 		}
 	}
 
@@ -151,14 +339,14 @@ public class DuplicateInfo2 {
 					return diff;
 				}
 
-				return f1.checksums.compareTo(f2.checksums);
+				return f1.getChecksums().compareTo(f2.getChecksums());
 			}
 		});
 	}
 
 	public boolean hasDuplicates() {
 		// TODO I don't know if I will have lists with just one file yet
-		for (List<FileInfo> dups : this.duplicateFiles.values()) {
+		for (List<FileInfo> dups : this.duplicateLists) {
 			if (dups.size() > 1) {
 				return true;
 			}
@@ -167,63 +355,212 @@ public class DuplicateInfo2 {
 		return false;
 	}
 
+	/** Are any identical files in different contexts? */
 	public boolean hasGlobalDuplicates() {
-		for (List<FileInfo> dups : this.duplicateFiles.values()) {
-			Context lastcontext = null;
-
-			for (FileInfo file : dups) {
-				if (lastcontext != file.getContext()) {
-					return true;
-				}
+		for (DuplicateList dups : this.duplicateLists) {
+			if (dups.hasGlobalDuplicates()) {
+				return true;
 			}
 		}
 
 		return false;
 	}
 
+	/** Are any identical files in the same context? */
 	public boolean hasLocalDuplicates() {
-		for (List<FileInfo> dups : this.duplicateFiles.values()) {
-			Context lastcontext = null;
+		for (DuplicateList dups : this.duplicateLists) {
+			if (dups.hasLocalDuplicates()) {
+				return true;
+			}
+		}
 
-			for (FileInfo file : dups) {
-				if (lastcontext == file.getContext()) {
-					return true;
+		return false;
+	}
+
+	/**
+	 * Point each file in a sub-group spanning contexts at its global duplicates,
+	 * and clear the global duplicates of the other files
+	 */
+	public void updateGlobalDuplicates() {
+		for (FileInfo file : this.sameSizeFiles) {
+			file.clearGlobalDuplicates();
+		}
+
+		for (DuplicateList dups : this.duplicateLists) {
+			if (dups.hasGlobalDuplicates()) {
+				List<FileInfo> global = Collections.unmodifiableList(dups);
+
+				for (FileInfo file : dups) {
+					file.setGlobalDuplicates(global);
 				}
 			}
 		}
+	}
 
-		return false;
+	/**
+	 * Get the sub-groups of identical files that are in more than one context
+	 * (read-only views)
+	 */
+	public List<List<FileInfo>> getGlobalDuplicateLists() {
+		List<List<FileInfo>> global = new ArrayList<List<FileInfo>>();
+
+		for (DuplicateList dups : this.duplicateLists) {
+			if (dups.hasGlobalDuplicates()) {
+				global.add(Collections.unmodifiableList(dups));
+			}
+		}
+
+		return global;
 	}
 
-	public void processFiles(DetailLevel level) {
-		// sortFilesByChecksums();
+	/**
+	 * Gather the files whose checksums processFiles() would calculate at a given
+	 * level, so they can be calculated ahead of time. Lower level checksums must
+	 * already be calculated.
+	 */
+	public void getFilesNeedingChecksums(DetailLevel level, Collection<FileInfo> out) {
+		if (!level.isGreaterThan(DetailLevel.Size)) {
+			return;
+		}
 
-		this.duplicateFiles.clear();
+		List<FileInfo> candidates = new ArrayList<FileInfo>();
+
+		for (FileInfo file : getDistinctFiles(new ArrayList<List<FileInfo>>())) {
+			if (!file.isIgnoredFile()) {
+				candidates.add(file);
+			}
+		}
 
-		for (int idx = 0; idx < this.sameSizeFiles.size(); ++idx) {
-			FileInfo file = this.sameSizeFiles.get(idx);
+		if (candidates.size() < 2) {
+			return;
+		}
 
-			for (int otheridx = idx + 1; otheridx < this.sameSizeFiles.size(); ++otheridx) {
-				FileInfo otherfile = this.sameSizeFiles.get(otheridx);
+		if (level == DetailLevel.Prefix) {
+			for (FileInfo file : candidates) {
+				if (file.getPrefixChecksum() == ChecksumValues.CKSUM_UNDEFINED) {
+					out.add(file);
+				}
+			}
 
-				if (file.isDuplicateOf(otherfile, level)) {
-					List<FileInfo> dups = this.duplicateFiles.get(file.checksums);
+			return;
+		}
 
-					if (dups == null) {
-						dups = new ArrayList<FileInfo>();
-						this.duplicateFiles.put(file.checksums, dups);
+		// Full checksums are used only for files too large to compare
+		if ((level == DetailLevel.Full) && (this.filesize <= FileInfo.COMPARE_THRESHOLD)) {
+			return;
+		}
 
-						dups.add(file);
-					}
+		// Sample checksums are compared only for files with the same prefix
+		// checksum and compatible sample bytes; full checksums only for files
+		// whose sample checksums also match.
+		Map<Long, List<FileInfo>> checksumGroups = new HashMap<Long, List<FileInfo>>();
 
-					if (!dups.contains(otherfile)) {
-						dups.add(otherfile);
-					}
+		for (FileInfo file : candidates) {
+			long key = file.getPrefixChecksum();
+			if (key == ChecksumValues.CKSUM_UNDEFINED) {
+				continue;
+			}
+
+			if (level == DetailLevel.Full) {
+				int sample = file.getSampleChecksum();
+				if (sample == ChecksumValues.CKSUM_UNDEFINED) {
+					continue;
+				}
+
+				key = (key << 32) | (sample & 0xFFFFFFFFL);
+			}
+
+			List<FileInfo> group = checksumGroups.get(key);
+			if (group == null) {
+				group = new ArrayList<FileInfo>();
+				checksumGroups.put(key, group);
+			}
+
+			group.add(file);
+		}
+
+		for (List<FileInfo> group : checksumGroups.values()) {
+			if (group.size() < 2) {
+				continue;
+			}
+
+			int nullcount = 0;
+			Map<ByteBuffer, Integer> bytecounts = new HashMap<ByteBuffer, Integer>();
+
+			for (FileInfo file : group) {
+				byte[] bytes = file.getSampleBytes();
+
+				if (bytes == null) {
+					++nullcount;
+				} else {
+					ByteBuffer key = ByteBuffer.wrap(bytes);
+					Integer count = bytecounts.get(key);
+
+					bytecounts.put(key, (count != null) ? count + 1 : 1);
+				}
+			}
+
+			for (FileInfo file : group) {
+				boolean calculated = (level == DetailLevel.Sample) //
+						? (file.getSampleChecksum() != ChecksumValues.CKSUM_UNDEFINED) //
+						: (file.getFullChecksum() != ChecksumValues.CKSUM_UNDEFINED);
+
+				if (calculated) {
+					continue;
+				}
+
+				byte[] bytes = file.getSampleBytes();
+				boolean compared = (bytes == null) //
+						|| (nullcount > 0) //
+						|| (bytecounts.get(ByteBuffer.wrap(bytes)) > 1);
+
+				if (compared) {
+					out.add(file);
 				}
 			}
 		}
+	}
+
+	/**
+	 * Rebuild the lists of duplicates using the given level of detail. Files are
+	 * compared as a group, not in pairs, so each file is read at most once.
+	 */
+	public void processFiles(DetailLevel level) {
+		setResults(findDuplicates(level));
+	}
+
+	/** Sub-groups found by findDuplicates(), for setResults() to apply */
+	public static class Results {
+		private final List<List<FileInfo>> sameFileLists = new ArrayList<List<FileInfo>>();
+		private final List<DuplicateList> duplicateLists = new ArrayList<DuplicateList>();
+	}
+
+	/**
+	 * Find the sub-groups of identical files at a level of detail, reading the
+	 * files as necessary. The group is not changed, so it can be read by other
+	 * threads meanwhile.
+	 */
+	public Results findDuplicates(DetailLevel level) {
+		Results results = new Results();
+
+		List<FileInfo> distinct = getDistinctFiles(results.sameFileLists);
+
+		for (List<FileInfo> dups : GroupComparator.findDuplicates(distinct, level)) {
+			results.duplicateLists.add(new DuplicateList(dups));
+		}
 
-		// sortFilesByChecksums();
+		return results;
+	}
+
+	/** Replace the sub-groups with those found by findDuplicates() */
+	public void setResults(Results results) {
+		this.sameFileLists = !results.sameFileLists.isEmpty() ? results.sameFileLists : null;
+
+		clearDuplicateLists();
+
+		for (DuplicateList dups : results.duplicateLists) {
+			addDuplicateList(dups);
+		}
 	}
 
 	public String toString() {
@@ -232,7 +569,7 @@ public class DuplicateInfo2 {
 		sb.append(String.format("DuplicateInfo: sz=%d files=%d chains=%d", //
 				this.filesize, //
 				this.sameSizeFiles.size(), //
-				this.duplicateFiles.size()));
+				this.duplicateLists.size()));
 
 		return sb.toString();
 	}
@@ -0,0 +1,140 @@
+package dup.analyze;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import dup.model.FileInfo;
+
+/**
+ * A sub-group of identical files, with the set of contexts (by
+ * FileObjectInfo.contextid) its files belong to. The set is updated as files
+ * are added and removed, so whether the group spans contexts, or has more than
+ * one file in a context, is known without visiting the files.<br>
+ * Context ids below 64 are kept in one word; higher ids, which only occur after
+ * many contexts have been opened, in a second array.<br>
+ * Only DuplicateInfo2 changes these lists; others get read-only views.
+ */
+class DuplicateList extends ArrayList<FileInfo> {
+	private static final long serialVersionUID = 1L;
+
+	/** Bits for context ids 0-63 */
+	private long contexts = 0;
+	/** Bits for context ids 64 and up, or null */
+	private long[] moreContexts = null;
+	/** Number of bits set */
+	private int contextCount = 0;
+
+	public DuplicateList() {
+	}
+
+	public DuplicateList(Collection<FileInfo> files) {
+		super(files.size());
+
+		for (FileInfo file : files) {
+			addFile(file);
+		}
+	}
+
+	public void addFile(FileInfo file) {
+		add(file);
+		addContext(file.contextid);
+	}
+
+	/** Remove a file, and its context if no other file is in it */
+	public boolean removeFile(FileInfo file) {
+		if (!remove(file)) {
+			return false;
+		}
+
+		for (FileInfo other : this) {
+			if (other.contextid == file.contextid) {
+				return true;
+			}
+		}
+
+		removeContext(file.contextid);
+
+		return true;
+	}
+
+	/** Remove a batch of files in one pass, and the contexts left with no file */
+	public void removeFiles(Collection<FileInfo> files) {
+		if (!removeAll(files)) {
+			return;
+		}
+
+		this.contexts = 0;
+		this.moreContexts = null;
+		this.contextCount = 0;
+
+		for (FileInfo file : this) {
+			addContext(file.contextid);
+		}
+	}
+
+	/** Number of contexts with files in this group */
+	public int getContextCount() {
+		return this.contextCount;
+	}
+
+	/** Are the files in more than one context? */
+	public boolean hasGlobalDuplicates() {
+		return this.contextCount > 1;
+	}
+
+	/** Are two or more files in the same context? */
+	public boolean hasLocalDuplicates() {
+		return size() > this.contextCount;
+	}
+
+	public boolean hasContext(int contextid) {
+		if (contextid < 64) {
+			return (this.contexts & (1L << contextid)) != 0;
+		}
+
+		int word = (contextid >> 6) - 1;
+
+		return (this.moreContexts != null) && (word < this.moreContexts.length) //
+				&& ((this.moreContexts[word] & (1L << contextid)) != 0);
+	}
+
+	private void addContext(int contextid) {
+		if (hasContext(contextid)) {
+			return;
+		}
+
+		if (contextid < 64) {
+			this.contexts |= 1L << contextid;
+		} else {
+			int word = (contextid >> 6) - 1;
+
+			if ((this.moreContexts == null) || (word >= this.moreContexts.length)) {
+				long[] words = new long[word + 1];
+
+				if (this.moreContexts != null) {
+					System.arraycopy(this.moreContexts, 0, words, 0, this.moreContexts.length);
+				}
+
+				this.moreContexts = words;
+			}
+
+			this.moreContexts[word] |= 1L << contextid;
+		}
+
+		++this.contextCount;
+	}
+
+	private void removeContext(int contextid) {
+		if (!hasContext(contextid)) {
+			return;
+		}
+
+		if (contextid < 64) {
+			this.contexts &= ~(1L << contextid);
+		} else {
+			this.moreContexts[(contextid >> 6) - 1] &= ~(1L << contextid);
+		}
+
+		--this.contextCount;
+	}
+}
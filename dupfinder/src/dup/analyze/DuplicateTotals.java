@@ -0,0 +1,119 @@
+package dup.analyze;
+
+import java.util.List;
+import java.util.TreeMap;
+
+import dup.model.FileInfo;
+
+/**
+ * Running totals of the duplicates found in all groups of same-size files.<br>
+ * Each group's share is remembered in the group when it is counted, so after a
+ * group is processed again only the difference is applied, rather than
+ * walking every group to summarize the results.
+ */
+public class DuplicateTotals {
+	private int groupCount = 0;
+	private int fileCount = 0;
+	private long wastedBytes = 0;
+	/** Number of size groups whose longest sub-group has each length */
+	private final TreeMap<Integer, Integer> longest = new TreeMap<Integer, Integer>();
+
+	private int sameFileCount = 0;
+	private int linkCount = 0;
+	private long linkBytes = 0;
+
+	/** Count a group again after it was processed, replacing its old share */
+	public void recount(DuplicateInfo2 dupinfo) {
+		remove(dupinfo);
+
+		dupinfo.counted = true;
+
+		for (List<FileInfo> dups : dupinfo.getDuplicateLists()) {
+			++dupinfo.countedGroups;
+			dupinfo.countedFiles += dups.size();
+			dupinfo.countedLongest = Math.max(dupinfo.countedLongest, dups.size());
+		}
+
+		for (List<FileInfo> links : dupinfo.getSameFileLists()) {
+			++dupinfo.countedSameFiles;
+			dupinfo.countedLinks += links.size() - 1;
+		}
+
+		this.groupCount += dupinfo.countedGroups;
+		this.fileCount += dupinfo.countedFiles;
+		this.wastedBytes += dupinfo.fileSize() * (dupinfo.countedFiles - dupinfo.countedGroups);
+		this.sameFileCount += dupinfo.countedSameFiles;
+		this.linkCount += dupinfo.countedLinks;
+		this.linkBytes += dupinfo.fileSize() * dupinfo.countedLinks;
+
+		if (dupinfo.countedLongest > 0) {
+			Integer count = this.longest.get(dupinfo.countedLongest);
+			this.longest.put(dupinfo.countedLongest, (count != null) ? count + 1 : 1);
+		}
+	}
+
+	/** Take away the share of a group that is discarded (or about to be recounted) */
+	public void remove(DuplicateInfo2 dupinfo) {
+		if (!dupinfo.counted) {
+			return;
+		}
+
+		this.groupCount -= dupinfo.countedGroups;
+		this.fileCount -= dupinfo.countedFiles;
+		this.wastedBytes -= dupinfo.fileSize() * (dupinfo.countedFiles - dupinfo.countedGroups);
+		this.sameFileCount -= dupinfo.countedSameFiles;
+		this.linkCount -= dupinfo.countedLinks;
+		this.linkBytes -= dupinfo.fileSize() * dupinfo.countedLinks;
+
+		if (dupinfo.countedLongest > 0) {
+			int count = this.longest.get(dupinfo.countedLongest);
+
+			if (count > 1) {
+				this.longest.put(dupinfo.countedLongest, count - 1);
+			} else {
+				this.longest.remove(dupinfo.countedLongest);
+			}
+		}
+
+		dupinfo.counted = false;
+		dupinfo.countedGroups = 0;
+		dupinfo.countedFiles = 0;
+		dupinfo.countedLongest = 0;
+		dupinfo.countedSameFiles = 0;
+		dupinfo.countedLinks = 0;
+	}
+
+	/** Number of sub-groups of identical files */
+	public int getGroupCount() {
+		return this.groupCount;
+	}
+
+	/** Number of files in the sub-groups of identical files */
+	public int getFileCount() {
+		return this.fileCount;
+	}
+
+	/** Space that removing all but one file of each sub-group would free */
+	public long getWastedBytes() {
+		return this.wastedBytes;
+	}
+
+	/** Size of the largest sub-group of identical files */
+	public int getLongestGroup() {
+		return this.longest.isEmpty() ? 0 : this.longest.lastKey();
+	}
+
+	/** Number of files that other files are links to */
+	public int getSameFileCount() {
+		return this.sameFileCount;
+	}
+
+	/** Number of links to other files, which were not compared */
+	public int getLinkCount() {
+		return this.linkCount;
+	}
+
+	public long getLinkBytes() {
+		return this.linkBytes;
+	}
+}
@@ -1,18 +1,20 @@
 package dup.analyze;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStream;
-import java.util.Arrays;
 
 import dup.model.Database;
 import dup.model.FileInfo;
+import dup.util.FileComparator;
 import dup.util.Trace;
 
 /** Functions related to checksum generation and file comparison */
 public class Fingerprint {
 	/** Determine and remember if two files are duplicates or not */
 	public static boolean filesAreIdentical(FileInfo file1, FileInfo file2) {
+		if (file1.isSameFile(file2)) {
+			return true;
+		}
+
 		boolean identical = filesAreIdentical_internal(file1, file2);
 
 		if (identical) {
@@ -31,6 +33,11 @@ public class Fingerprint {
 			return true;
 		}
 
+		Boolean registered = RegisteredDupDiffInfo.getRegisteredResult(fileinfo1, fileinfo2);
+		if (registered != null) {
+			return registered;
+		}
+
 		File file1 = fileinfo1.getJavaFile();
 		File file2 = fileinfo2.getJavaFile();
 
@@ -43,45 +50,10 @@ public class Fingerprint {
 			return false;
 		}
 
-		if (RegisteredDupDiffInfo.isRegisteredDifferentFile(fileinfo1, fileinfo2)) {
-			return false;
-		}
-
-		if (RegisteredDupDiffInfo.isRegisteredDuplicateFile(fileinfo1, fileinfo2)) {
-			return true;
-		}
-
-		InputStream fis1 = null;
-		InputStream fis2 = null;
-
 		try {
-			fis1 = new FileInputStream(file1);
-			fis2 = new FileInputStream(file2);
-
-			byte[] buffer1 = new byte[1024];
-			byte[] buffer2 = new byte[1024];
-
-			for (;;) {
-				int numRead1 = fis1.read(buffer1);
-				int numRead2 = fis2.read(buffer2);
-
-				if (numRead1 != numRead2) {
-					return false;
-				}
-
-				if (numRead1 <= 0) {
-					return true;
-				}
-
-				if (!Arrays.equals(buffer1, buffer2)) {
-					return false;
-				}
-			}
+			return FileComparator.findMismatch(file1, file2) < 0;
 		} catch (Exception e) {
 			return false;
-		} finally {
-			safeClose(fis1);
-			safeClose(fis2);
 		}
 	}
 
@@ -97,13 +69,7 @@ public class Fingerprint {
 		Checksum.calculateSampleChecksum(file);
 	}
 
-	private static void safeClose(InputStream fis) {
-		try {
-			if (fis != null) {
-				fis.close();
-			}
-		} catch (Exception e) {
-			// ignore
-		}
+	public static void calculateFullChecksum(FileInfo file) {
+		Checksum.calculateFullChecksum(file);
 	}
 }
@@ -0,0 +1,624 @@
+package dup.analyze;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import dup.metrics.Histogram;
+import dup.metrics.Meter;
+import dup.metrics.Metrics;
+import dup.model.Database;
+import dup.model.FileInfo;
+import dup.model.persist.VerificationCache;
+import dup.util.Trace;
+
+/**
+ * Finds the sets of identical files in a group of same-size files.<br>
+ * Instead of comparing files in pairs, all files in the group are read block by
+ * block in lockstep. After each block the group is split into classes of files
+ * whose content matches so far, and files that match no other file are dropped.
+ * Each file is read at most once.<br>
+ * A group too large for a buffer of at least MIN_BLOCK_SIZE per file within
+ * maxBufferSpace is first split by a hash of each block, reading one file at a
+ * time, until the parts are small enough to compare as above (from the start,
+ * since equal hashes prove nothing).
+ */
+public class GroupComparator {
+	/** Maximum total size of the block buffers used to compare one group */
+	public static int maxBufferSpace = 1024 * 1024 * 64;
+	/** Above this many files, files are reopened for each block */
+	public static int maxOpenFiles = 256;
+
+	/** Time to compare each group, and bytes read from all of its files */
+	private static final Histogram groupTime = Metrics.histogram("compare.group.time");
+	private static final Meter groupBytes = Metrics.meter("compare.group.bytes");
+
+	private static final int MIN_BLOCK_SIZE = 1024 * 4;
+	private static final int MAX_BLOCK_SIZE = 1024 * 1024;
+
+	/**
+	 * Find the duplicates in a group of same-size files at a given level of
+	 * detail. Files are first grouped by checksums; files small enough to be
+	 * compared are then compared if the level is Sample or higher.
+	 *
+	 * @return Lists of duplicate files (each with at least two files)
+	 */
+	public static List<List<FileInfo>> findDuplicates(Collection<FileInfo> files, DetailLevel level) {
+		List<List<FileInfo>> duplicates = new ArrayList<List<FileInfo>>();
+
+		for (List<FileInfo> group : groupByChecksums(files, level)) {
+			boolean compareFiles = !level.isLessThan(DetailLevel.Sample) //
+					&& (group.get(0).getSize() <= FileInfo.COMPARE_THRESHOLD);
+
+			if (compareFiles) {
+				duplicates.addAll(findIdenticalFiles(group));
+			} else {
+				duplicates.add(group);
+			}
+		}
+
+		return duplicates;
+	}
+
+	/**
+	 * Group files whose checksums match at a level of detail.<br>
+	 * Files are partitioned by prefix checksum, then each partition by sample
+	 * checksum, then (for files too large to compare) by full checksum, with
+	 * hash maps, so the cost is linear however many files there are. A checksum
+	 * is only calculated for files that share the previous one with another file.
+	 * A file whose checksum can't be calculated matches no other file.
+	 *
+	 * @return Groups of at least two files
+	 */
+	static List<List<FileInfo>> groupByChecksums(Collection<FileInfo> files, DetailLevel level) {
+		List<List<FileInfo>> partitions = new ArrayList<List<FileInfo>>();
+		List<FileInfo> candidates = new ArrayList<FileInfo>(files.size());
+
+		for (FileInfo file : files) {
+			if (!file.isIgnoredFile()) {
+				candidates.add(file);
+			}
+		}
+
+		if (candidates.size() < 2) {
+			return partitions;
+		}
+
+		partitions.add(candidates);
+
+		if (!level.isGreaterThan(DetailLevel.Size)) {
+			return partitions;
+		}
+
+		partitions = partition(partitions, DetailLevel.Prefix);
+
+		if (level.isLessThan(DetailLevel.Sample)) {
+			return partitions;
+		}
+
+		partitions = partition(partitions, DetailLevel.Sample);
+
+		if (!level.isLessThan(DetailLevel.Full) && (candidates.get(0).getSize() > FileInfo.COMPARE_THRESHOLD)) {
+			partitions = partition(partitions, DetailLevel.Full);
+		}
+
+		// Files whose sample bytes are not loaded match any sample bytes, so they
+		// can't be hashed; the (rare) files in a partition whose bytes differ are
+		// separated pairwise
+		List<List<FileInfo>> groups = new ArrayList<List<FileInfo>>();
+
+		for (List<FileInfo> partition : partitions) {
+			groupMatchingFiles(partition, level, groups);
+		}
+
+		return groups;
+	}
+
+	/**
+	 * Split each partition by the checksum at a level of detail.
+	 *
+	 * @return The parts with at least two files
+	 */
+	private static List<List<FileInfo>> partition(List<List<FileInfo>> partitions, DetailLevel level) {
+		List<List<FileInfo>> parts = new ArrayList<List<FileInfo>>();
+
+		for (List<FileInfo> partition : partitions) {
+			Map<Long, List<FileInfo>> byChecksum = new LinkedHashMap<Long, List<FileInfo>>();
+
+			for (FileInfo file : partition) {
+				long checksum = (level == DetailLevel.Prefix) ? file.getPrefixChecksum(true) //
+						: (level == DetailLevel.Sample) ? file.getSampleChecksum(true) //
+								: file.getFullChecksum(true);
+
+				if (checksum == ChecksumValues.CKSUM_UNDEFINED) {
+					continue;
+				}
+
+				List<FileInfo> part = byChecksum.get(checksum);
+				if (part == null) {
+					part = new ArrayList<FileInfo>();
+					byChecksum.put(checksum, part);
+				}
+
+				part.add(file);
+			}
+
+			for (List<FileInfo> part : byChecksum.values()) {
+				if (part.size() > 1) {
+					parts.add(part);
+				}
+			}
+		}
+
+		return parts;
+	}
+
+	/** Group files by matching each with the first file of each group so far */
+	private static void groupMatchingFiles(List<FileInfo> files, DetailLevel level, List<List<FileInfo>> out) {
+		List<List<FileInfo>> groups = new ArrayList<List<FileInfo>>();
+
+		for (FileInfo file : files) {
+			List<FileInfo> match = null;
+
+			for (List<FileInfo> group : groups) {
+				if (group.get(0).checksumsMatch(file, level)) {
+					match = group;
+					break;
+				}
+			}
+
+			if (match == null) {
+				match = new ArrayList<FileInfo>();
+				groups.add(match);
+			}
+
+			match.add(file);
+		}
+
+		for (List<FileInfo> group : groups) {
+			if (group.size() > 1) {
+				out.add(group);
+			}
+		}
+	}
+
+	/**
+	 * Compare the content of a group of same-size files, and remember the results.
+	 *
+	 * @return Lists of identical files (each with at least two files)
+	 */
+	public static List<List<FileInfo>> findIdenticalFiles(List<FileInfo> files) {
+		List<List<FileInfo>> classes = new ArrayList<List<FileInfo>>();
+
+		if (files.size() < 2) {
+			return classes;
+		}
+
+		if (Database.skipFileComparison) {
+			Trace.traceln(Trace.VERBOSE, "Skipping file compare...");
+			classes.add(new ArrayList<FileInfo>(files));
+			return classes;
+		}
+
+		if (getRegisteredClasses(files, classes)) {
+			return classes;
+		}
+
+		classes.clear();
+
+		List<FileInfo> singles = new ArrayList<FileInfo>();
+		compareGroup(files, classes, singles);
+
+		registerResults(classes);
+
+		// Write the results of the group together, rather than one at a time
+		VerificationCache.instance().flush();
+
+		return classes;
+	}
+
+	/**
+	 * Compare the content of a group of same-size files, without using or
+	 * registering earlier results
+	 *
+	 * @param classes Receives classes of two or more identical files
+	 * @param singles Receives files that match no other file
+	 */
+	public static void compareGroup(List<FileInfo> files, List<List<FileInfo>> classes, List<FileInfo> singles) {
+		if (files.size() < 2) {
+			singles.addAll(files);
+		} else if (files.size() <= getMaxPassFiles()) {
+			new GroupComparator(files).compare(classes, singles);
+		} else {
+			new GroupComparator(files).split(classes, singles);
+		}
+	}
+
+	/** The most files compared in one pass, each with its own block buffer */
+	private static int getMaxPassFiles() {
+		return Math.max(2, maxBufferSpace / MIN_BLOCK_SIZE);
+	}
+
+	/**
+	 * Split files into classes using previously registered comparison results.
+	 *
+	 * @return True if the results are complete (no file need be read)
+	 */
+	private static boolean getRegisteredClasses(List<FileInfo> files, List<List<FileInfo>> classes) {
+		List<List<FileInfo>> known = new ArrayList<List<FileInfo>>();
+
+		for (FileInfo file : files) {
+			List<FileInfo> match = null;
+
+			for (List<FileInfo> cls : known) {
+				Boolean identical = null;
+
+				// The files in a class are identical, so any one of them will do
+				for (FileInfo member : cls) {
+					identical = RegisteredDupDiffInfo.getRegisteredResult(member, file);
+
+					if (identical != null) {
+						break;
+					}
+				}
+
+				if (identical == null) {
+					return false;
+				}
+
+				if (identical) {
+					match = cls;
+					break;
+				}
+			}
+
+			if (match == null) {
+				match = new ArrayList<FileInfo>();
+				known.add(match);
+			}
+
+			match.add(file);
+		}
+
+		for (List<FileInfo> cls : known) {
+			if (cls.size() > 1) {
+				classes.add(cls);
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Remember comparison results so later passes need not read the files again.
+	 * Each file is registered as a duplicate of the first file in its class, and
+	 * the first files of the classes as different from each other, one pair for
+	 * each pair of classes. Files that match no other file are not registered,
+	 * since pairing each with every other would take a number of records that
+	 * grows with the square of the group; a group with such files (rare, as its
+	 * files share their checksums) is read again.
+	 */
+	private static void registerResults(List<List<FileInfo>> classes) {
+		List<FileInfo> firsts = new ArrayList<FileInfo>(classes.size());
+
+		for (List<FileInfo> cls : classes) {
+			FileInfo first = cls.get(0);
+
+			for (int ii = 1; ii < cls.size(); ++ii) {
+				RegisteredDupDiffInfo.registerDuplicateFile(first, cls.get(ii));
+			}
+
+			firsts.add(first);
+		}
+
+		for (int ii = 0; ii < firsts.size(); ++ii) {
+			for (int jj = ii + 1; jj < firsts.size(); ++jj) {
+				RegisteredDupDiffInfo.registerDifferentFile(firsts.get(ii), firsts.get(jj));
+			}
+		}
+	}
+
+	/** A file being compared, and the buffer holding its current block */
+	private static class Member {
+		public final FileInfo file;
+		public final File javafile;
+		public FileChannel channel = null;
+		public ByteBuffer buffer = null;
+
+		public Member(FileInfo file) {
+			this.file = file;
+			this.javafile = file.getJavaFile();
+		}
+
+		/**
+		 * Read a block of the file into the buffer
+		 *
+		 * @return False if the block could not be read completely
+		 */
+		public boolean read(long position, int length, boolean keepOpen) {
+			FileChannel ch = this.channel;
+
+			try {
+				if (ch == null) {
+					ch = new RandomAccessFile(this.javafile, "r").getChannel();
+
+					if (keepOpen) {
+						this.channel = ch;
+					}
+				}
+
+				this.buffer.clear();
+				this.buffer.limit(length);
+
+				while (this.buffer.hasRemaining()) {
+					if (ch.read(this.buffer, position + this.buffer.position()) < 0) {
+						break;
+					}
+				}
+
+				this.buffer.flip();
+
+				return this.buffer.remaining() == length;
+			} catch (IOException e) {
+				return false;
+			} finally {
+				if (!keepOpen) {
+					close(ch);
+				}
+			}
+		}
+
+		public void close() {
+			close(this.channel);
+			this.channel = null;
+		}
+
+		private static void close(FileChannel channel) {
+			try {
+				if (channel != null) {
+					channel.close();
+				}
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	private final List<Member> members = new ArrayList<Member>();
+	private final long filesize;
+	private final int blockSize;
+	private final boolean keepOpen;
+
+	private GroupComparator(List<FileInfo> files) {
+		for (FileInfo file : files) {
+			this.members.add(new Member(file));
+		}
+
+		this.filesize = files.get(0).getSize();
+		this.keepOpen = files.size() <= maxOpenFiles;
+
+		// At least MIN_BLOCK_SIZE - compareGroup passes few enough files that
+		// this stays within maxBufferSpace
+		long blockSize = maxBufferSpace / files.size();
+		blockSize = Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, blockSize));
+		this.blockSize = (int) Math.min(blockSize, Math.max(this.filesize, 1));
+	}
+
+	/**
+	 * Split a group too large to compare in one pass by hashing each block of
+	 * each file in turn, with one buffer. A part small enough is compared;
+	 * blocks grow from MIN_BLOCK_SIZE, so files that differ early are told apart
+	 * with little reading and identical files are not read in tiny pieces.
+	 */
+	private void split(List<List<FileInfo>> classes, List<FileInfo> singles) {
+		List<List<Member>> active = new ArrayList<List<Member>>();
+		active.add(this.members);
+
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(MAX_BLOCK_SIZE, Math.max(this.filesize, 1)));
+		int maxPassFiles = getMaxPassFiles();
+		long position = 0;
+		long bytesread = 0;
+		int blockLength = MIN_BLOCK_SIZE;
+
+		while ((position < this.filesize) && !active.isEmpty()) {
+			int length = (int) Math.min(Math.min(blockLength, buffer.capacity()), this.filesize - position);
+			List<List<Member>> next = new ArrayList<List<Member>>();
+
+			for (List<Member> cls : active) {
+				Map<Long, List<Member>> split = new LinkedHashMap<Long, List<Member>>();
+
+				for (Member member : cls) {
+					member.buffer = buffer;
+
+					boolean read = member.read(position, length, false);
+
+					member.buffer = null;
+
+					if (!read) {
+						// Unreadable, or changed size - not a duplicate
+						singles.add(member.file);
+						continue;
+					}
+
+					bytesread += length;
+
+					XXHash64 hash = new XXHash64();
+					hash.update(buffer.array(), 0, length);
+
+					List<Member> sub = split.get(hash.getValue());
+					if (sub == null) {
+						sub = new ArrayList<Member>();
+						split.put(hash.getValue(), sub);
+					}
+
+					sub.add(member);
+				}
+
+				for (List<Member> sub : split.values()) {
+					if (sub.size() == 1) {
+						singles.add(sub.get(0).file);
+					} else if (sub.size() <= maxPassFiles) {
+						new GroupComparator(getFiles(sub)).compare(classes, singles);
+					} else {
+						next.add(sub);
+					}
+				}
+			}
+
+			active = next;
+			position += length;
+			blockLength = (int) Math.min(MAX_BLOCK_SIZE, 2L * blockLength);
+		}
+
+		groupBytes.mark(bytesread);
+
+		// Every block of these files hashed the same, so they are almost
+		// certainly identical; confirm it against one of them
+		for (List<Member> cls : active) {
+			compareWithFirst(getFiles(cls), classes, singles);
+		}
+	}
+
+	/**
+	 * Compare a large group of files, expected to be identical, with its first
+	 * file in passes small enough to compare. Files that turn out to differ from
+	 * the first file are compared with each other afterwards.
+	 */
+	private static void compareWithFirst(List<FileInfo> files, List<List<FileInfo>> classes, List<FileInfo> singles) {
+		FileInfo first = files.get(0);
+		List<FileInfo> same = new ArrayList<FileInfo>();
+		List<FileInfo> rest = new ArrayList<FileInfo>();
+		int batch = getMaxPassFiles() - 1;
+
+		same.add(first);
+
+		for (int ii = 1; ii < files.size(); ii += batch) {
+			List<FileInfo> pass = new ArrayList<FileInfo>();
+			List<List<FileInfo>> passClasses = new ArrayList<List<FileInfo>>();
+			List<FileInfo> passSingles = new ArrayList<FileInfo>();
+
+			pass.add(first);
+			pass.addAll(files.subList(ii, Math.min(files.size(), ii + batch)));
+
+			new GroupComparator(pass).compare(passClasses, passSingles);
+
+			for (List<FileInfo> cls : passClasses) {
+				if (cls.contains(first)) {
+					same.addAll(cls.subList(1, cls.size()));
+				} else {
+					rest.addAll(cls);
+				}
+			}
+
+			for (FileInfo file : passSingles) {
+				if (file != first) {
+					rest.add(file);
+				}
+			}
+		}
+
+		if (same.size() > 1) {
+			classes.add(same);
+		} else {
+			singles.add(first);
+		}
+
+		if (!rest.isEmpty()) {
+			compareGroup(rest, classes, singles);
+		}
+	}
+
+	private static List<FileInfo> getFiles(List<Member> members) {
+		List<FileInfo> files = new ArrayList<FileInfo>(members.size());
+
+		for (Member member : members) {
+			files.add(member.file);
+		}
+
+		return files;
+	}
+
+	/**
+	 * Read the files in lockstep, splitting them into classes of identical files
+	 *
+	 * @param classes Receives classes of two or more identical files
+	 * @param singles Receives files that match no other file
+	 */
+	private void compare(List<List<FileInfo>> classes, List<FileInfo> singles) {
+		List<List<Member>> active = new ArrayList<List<Member>>();
+		active.add(this.members);
+
+		long position = 0;
+		long bytesread = 0;
+		long start = System.nanoTime();
+
+		try {
+			for (Member member : this.members) {
+				member.buffer = ByteBuffer.allocate(this.blockSize);
+			}
+
+			while ((position < this.filesize) && !active.isEmpty()) {
+				int length = (int) Math.min(this.blockSize, this.filesize - position);
+				List<List<Member>> next = new ArrayList<List<Member>>();
+
+				for (List<Member> cls : active) {
+					Map<ByteBuffer, List<Member>> split = new LinkedHashMap<ByteBuffer, List<Member>>();
+
+					for (Member member : cls) {
+						if (!member.read(position, length, this.keepOpen)) {
+							// Unreadable, or changed size - not a duplicate
+							singles.add(member.file);
+							member.close();
+							continue;
+						}
+
+						bytesread += length;
+
+						List<Member> sub = split.get(member.buffer);
+						if (sub == null) {
+							sub = new ArrayList<Member>();
+							split.put(member.buffer, sub);
+						}
+
+						sub.add(member);
+					}
+
+					for (List<Member> sub : split.values()) {
+						if (sub.size() > 1) {
+							next.add(sub);
+						} else {
+							singles.add(sub.get(0).file);
+							sub.get(0).close();
+						}
+					}
+				}
+
+				active = next;
+				position += length;
+			}
+		} finally {
+			for (Member member : this.members) {
+				member.close();
+				member.buffer = null;
+			}
+		}
+
+		for (List<Member> cls : active) {
+			classes.add(getFiles(cls));
+		}
+
+		groupTime.recordSince(start);
+		groupBytes.mark(bytesread);
+
+		Trace.traceln(Trace.VERBOSE, String.format( //
+				"Group compare: %d files size %d read %d bytes, %d sets of duplicates", //
+				this.members.size(), this.filesize, bytesread, classes.size()));
+	}
+}
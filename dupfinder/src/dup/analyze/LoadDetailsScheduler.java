@@ -0,0 +1,335 @@
+package dup.analyze;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import dup.model.Context;
+import dup.model.FileInfo;
+
+/**
+ * Loads file details (checksums) in the background, for jobs of files queued by
+ * the UI.<br>
+ * The workers only read the files' checksums; they are handed to the listener
+ * when a job finishes, to be set on the files by the thread that disposes them
+ * (the analysis thread), which skips files disposed in the meantime.<br>
+ * Jobs are run by a pool of workers, user jobs before background jobs and
+ * otherwise in the order they were submitted. A file is loaded by one job only:
+ * a file already queued is left to the job that has it, unless the new job
+ * would load it sooner or to more detail, in which case the new job takes it
+ * over and the old one skips it. Jobs can be cancelled while queued or running.
+ * <br>
+ * Progress is kept in atomic counters, so it can be polled at any time without
+ * waiting for the workers.
+ */
+public class LoadDetailsScheduler {
+	/** Number of workers loading details at the same time */
+	public static int workerCount = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+
+	public enum Priority {
+		/** Work the user did not ask for directly (e.g. whole contexts) */
+		BACKGROUND,
+		/** Files the user selected */
+		USER
+	}
+
+	/** Told about progress, on the worker threads */
+	public interface Listener {
+		/** A file's details were loaded */
+		void fileLoaded(FileInfo file);
+
+		/**
+		 * A job finished or was cancelled, having read the checksums of some
+		 * files, which are not set on them yet
+		 */
+		void jobFinished(Job job, Map<FileInfo, ChecksumValues> loaded);
+	}
+
+	private final Listener listener;
+	private final ThreadPoolExecutor executor;
+	/** The job that will load each queued file */
+	private final ConcurrentHashMap<FileInfo, Job> queuedFiles = new ConcurrentHashMap<FileInfo, Job>();
+	/** Orders jobs submitted with the same priority */
+	private final AtomicLong sequence = new AtomicLong();
+
+	/** Jobs queued or running */
+	private final AtomicInteger activeJobs = new AtomicInteger();
+	/** Bytes in the active jobs, and the part of them done (or skipped) */
+	private final AtomicLong totalBytes = new AtomicLong();
+	private final AtomicLong processedBytes = new AtomicLong();
+
+	public LoadDetailsScheduler(Listener listener) {
+		this(listener, workerCount);
+	}
+
+	public LoadDetailsScheduler(Listener listener, int workers) {
+		this.listener = listener;
+
+		this.executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, //
+				new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "LoadDetails-" + count.incrementAndGet());
+						thread.setDaemon(true);
+
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Queue files to load to a level of detail. Files with that detail already,
+	 * or queued by another job that will load as much, are left out. Must be
+	 * called from one thread (the UI thread).
+	 *
+	 * @return The job, or null if there is nothing to load
+	 */
+	public Job submit(Collection<FileInfo> files, DetailLevel detail, Priority priority) {
+		Job job = new Job(detail, priority, this.sequence.incrementAndGet());
+
+		for (FileInfo file : files) {
+			if (file.getDetailLevel().isLessThan(detail) && job.claim(file)) {
+				job.files.add(file);
+				job.totalBytes += file.getSize();
+			}
+		}
+
+		if (job.files.isEmpty()) {
+			return null;
+		}
+
+		job.sizes = new long[job.files.size()];
+
+		for (int ii = 0; ii < job.sizes.length; ++ii) {
+			job.sizes[ii] = job.files.get(ii).getSize();
+		}
+
+		// Starting a new batch of work - progress is measured from here
+		if (this.activeJobs.getAndIncrement() == 0) {
+			this.totalBytes.set(0);
+			this.processedBytes.set(0);
+		}
+
+		this.totalBytes.addAndGet(job.totalBytes);
+		this.executor.execute(job);
+
+		return job;
+	}
+
+	/** Cancel all queued and running jobs */
+	public void cancelAll() {
+		for (Job job : new ArrayList<Job>(this.queuedFiles.values())) {
+			job.cancel();
+		}
+	}
+
+	/** Stop the workers, cancelling any jobs left */
+	public void shutDown() {
+		cancelAll();
+		this.executor.shutdownNow();
+	}
+
+	public int getActiveJobCount() {
+		return this.activeJobs.get();
+	}
+
+	/** Bytes in the jobs queued or running */
+	public long getTotalBytes() {
+		return this.totalBytes.get();
+	}
+
+	/** Bytes of the jobs queued or running that were loaded, skipped or cancelled */
+	public long getProcessedBytes() {
+		return this.processedBytes.get();
+	}
+
+	/** @return Percentage of the active jobs done, or -1 if there are none */
+	public int getPercentDone() {
+		if (this.activeJobs.get() == 0) {
+			return -1;
+		}
+
+		long total = this.totalBytes.get();
+		long done = this.processedBytes.get();
+
+		return (total > 0) ? (int) Math.min(100, done * 100 / total) : 0;
+	}
+
+	/** Files to load to a level of detail */
+	public class Job implements Runnable, Comparable<Job> {
+		private final DetailLevel detail;
+		private final Priority priority;
+		private final long sequence;
+		private final List<FileInfo> files = new ArrayList<FileInfo>();
+		/** The files' sizes, which are gone if a file is disposed while queued */
+		private long[] sizes;
+		private long totalBytes = 0;
+		private volatile boolean cancelled = false;
+		private volatile boolean done = false;
+
+		Job(DetailLevel detail, Priority priority, long sequence) {
+			this.detail = detail;
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		public DetailLevel getDetail() {
+			return this.detail;
+		}
+
+		public Priority getPriority() {
+			return this.priority;
+		}
+
+		public int getFileCount() {
+			return this.files.size();
+		}
+
+		public long getTotalBytes() {
+			return this.totalBytes;
+		}
+
+		public boolean isCancelled() {
+			return this.cancelled;
+		}
+
+		public boolean isDone() {
+			return this.done;
+		}
+
+		/**
+		 * Stop the job. If it is still queued it is removed at once; if it is
+		 * running it stops after the file it is loading.
+		 */
+		public void cancel() {
+			this.cancelled = true;
+
+			if (LoadDetailsScheduler.this.executor.remove(this)) {
+				finish(0, new LinkedHashMap<FileInfo, ChecksumValues>());
+			}
+		}
+
+		/** Highest priority first, then first submitted */
+		public int compareTo(Job other) {
+			int diff = other.priority.compareTo(this.priority);
+
+			return (diff != 0) ? diff : Long.compare(this.sequence, other.sequence);
+		}
+
+		/** Take a file to load, unless a job that will load as much has it */
+		private boolean claim(FileInfo file) {
+			ConcurrentHashMap<FileInfo, Job> queued = LoadDetailsScheduler.this.queuedFiles;
+
+			for (;;) {
+				Job owner = queued.putIfAbsent(file, this);
+
+				if (owner == null) {
+					return true;
+				}
+
+				if (!owner.isOutrankedBy(this)) {
+					return false;
+				}
+
+				if (queued.replace(file, owner, this)) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * Should another job load this job's files instead? It must run no later
+		 * and load no less detail, and run sooner or load more.
+		 */
+		private boolean isOutrankedBy(Job other) {
+			if (this.cancelled) {
+				return true;
+			}
+
+			int priority = other.priority.compareTo(this.priority);
+
+			return (priority >= 0) && !other.detail.isLessThan(this.detail) //
+					&& ((priority > 0) || other.detail.isGreaterThan(this.detail));
+		}
+
+		public void run() {
+			Map<FileInfo, ChecksumValues> loaded = new LinkedHashMap<FileInfo, ChecksumValues>();
+			int ii = 0;
+
+			// Whatever happens, the files left are released and the job counted done
+			try {
+				for (; (ii < this.files.size()) && !this.cancelled; ++ii) {
+					FileInfo file = this.files.get(ii);
+
+					// Skip files another job took over
+					if (LoadDetailsScheduler.this.queuedFiles.get(file) == this) {
+						ChecksumValues checksums = loadDetails(file);
+
+						if (checksums != null) {
+							loaded.put(file, checksums);
+							LoadDetailsScheduler.this.listener.fileLoaded(file);
+						}
+
+						LoadDetailsScheduler.this.queuedFiles.remove(file, this);
+					}
+
+					LoadDetailsScheduler.this.processedBytes.addAndGet(this.sizes[ii]);
+				}
+			} finally {
+				finish(ii, loaded);
+			}
+		}
+
+		/**
+		 * Read a file's checksums, without setting them: the file can be disposed,
+		 * and its row given to another file, while they are read.
+		 */
+		private ChecksumValues loadDetails(FileInfo file) {
+			// Its context was closed, or it was removed, and it was released
+			if (file.isDisposed()) {
+				return null;
+			}
+
+			Context context = file.getContext();
+
+			if (context == null) {
+				return null;
+			}
+
+			return Checksum.getChecksums(file, context, this.detail);
+		}
+
+		/** Release the files not loaded, and count them as done */
+		private void finish(int from, Map<FileInfo, ChecksumValues> loaded) {
+			long skipped = 0;
+
+			for (int ii = from; ii < this.files.size(); ++ii) {
+				FileInfo file = this.files.get(ii);
+
+				LoadDetailsScheduler.this.queuedFiles.remove(file, this);
+				skipped += this.sizes[ii];
+			}
+
+			LoadDetailsScheduler.this.processedBytes.addAndGet(skipped);
+			this.done = true;
+			LoadDetailsScheduler.this.activeJobs.decrementAndGet();
+
+			LoadDetailsScheduler.this.listener.jobFinished(this, loaded);
+		}
+
+		public String toString() {
+			return String.format("%s job #%d: %d files to %s%s", this.priority, this.sequence, //
+					this.files.size(), this.detail, this.cancelled ? " (cancelled)" : "");
+		}
+	}
+}
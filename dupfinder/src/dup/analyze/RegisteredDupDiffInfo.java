@@ -8,6 +8,7 @@ import java.util.Map;
 
 import dup.model.Database;
 import dup.model.FileInfo;
+import dup.model.persist.VerificationCache;
 
 public class RegisteredDupDiffInfo {
 	private static Map<String, RegisteredDupDiffInfo> registeredDupDiffInfo = //
@@ -18,7 +19,9 @@ public class RegisteredDupDiffInfo {
 
 		RegisteredDupDiffInfo info = registeredDupDiffInfo.get(jfile.getAbsolutePath());
 
-		if (info == null) {
+		// A file changed on disk since it was registered starts over
+		if ((info == null) || (info.filesize != file.getSize()) //
+				|| (info.timestamp != file.getLastModified())) {
 			info = new RegisteredDupDiffInfo(file);
 			registeredDupDiffInfo.put(jfile.getAbsolutePath(), info);
 		} else {
@@ -90,6 +93,10 @@ public class RegisteredDupDiffInfo {
 
 		info1.addDuplicates(info2.duplicateFiles);
 		info2.addDuplicates(info1.duplicateFiles);
+
+		if (!Database.skipFileComparison) {
+			VerificationCache.instance().record(fileinfo1, fileinfo2, true);
+		}
 	}
 
 	public static void registerDupDiffInfo(RegisteredDupDiffInfo info) {
@@ -112,6 +119,32 @@ public class RegisteredDupDiffInfo {
 
 		info1.addDifferent(fileinfo2);
 		info2.addDifferent(fileinfo1);
+
+		VerificationCache.instance().record(fileinfo1, fileinfo2, false);
+	}
+
+	/**
+	 * Get the known result of comparing two files, from the verification cache
+	 * (which needs no file access) or the results registered in this session.
+	 *
+	 * @return TRUE if identical, FALSE if different, null if unknown
+	 */
+	public static Boolean getRegisteredResult(FileInfo file, FileInfo other) {
+		Boolean identical = VerificationCache.instance().lookup(file, other);
+
+		if (identical != null) {
+			return identical;
+		}
+
+		if (isRegisteredDuplicateFile(file, other)) {
+			return Boolean.TRUE;
+		}
+
+		if (isRegisteredDifferentFile(file, other)) {
+			return Boolean.FALSE;
+		}
+
+		return null;
 	}
 
 	public static boolean isRegisteredDuplicateFile(FileInfo file, FileInfo other) {
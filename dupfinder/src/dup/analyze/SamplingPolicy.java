@@ -0,0 +1,260 @@
+package dup.analyze;
+
+import java.util.Arrays;
+
+/**
+ * Chooses the parts of a file that are read for its sample checksum.<br>
+ * A policy gives the byte ranges to read from a file of a given size, in order
+ * of offset, not overlapping, the first starting at offset 0 (it also supplies
+ * the file's sample bytes). Sample checksums can only be compared if they were
+ * calculated from the same ranges, so the name of the policy is saved with each
+ * context, and saved sample checksums are discarded when the current policy
+ * reads different ranges for the file's size.<br>
+ * Policy names, as accepted by parse():
+ *
+ * <pre>
+ * percent:P[:N]    one 1 KB block in every 100/P KB, at most N blocks - the
+ *                  original sampling is percent:2
+ * strided:N:S      N chunks of S bytes, evenly spaced from the start of the
+ *                  file to its end
+ * headtail:S       S bytes at the start, middle and end of the file
+ * capped:B:POLICY  the ranges of another policy, thinned to evenly spaced
+ *                  ranges of no more than B bytes in all
+ * </pre>
+ */
+public abstract class SamplingPolicy {
+	/** Size of the blocks read by percent policies */
+	public static final int BLOCK_SIZE = 1024;
+
+	/** The sampling used before policies existed, and by older saved contexts */
+	public static final SamplingPolicy LEGACY = new PercentPolicy(2.0, 0);
+
+	/** The name of the policy, which parse() turns back into the policy */
+	public abstract String getName();
+
+	/**
+	 * Get the ranges to read from a file.
+	 *
+	 * @return The offset and length of each range, in consecutive elements
+	 */
+	public abstract long[] getRanges(long fileSize);
+
+	/** Does another policy read the same ranges from a file of a given size? */
+	public boolean hasSameRanges(SamplingPolicy other, long fileSize) {
+		return getName().equals(other.getName()) //
+				|| Arrays.equals(getRanges(fileSize), other.getRanges(fileSize));
+	}
+
+	public String toString() {
+		return getName();
+	}
+
+	/**
+	 * Create a policy from its name.
+	 *
+	 * @throws IllegalArgumentException If the name is not valid
+	 */
+	public static SamplingPolicy parse(String name) {
+		String[] parts = name.split(":", 3);
+
+		try {
+			if (parts[0].equals("percent") && (parts.length >= 2)) {
+				return new PercentPolicy(Double.parseDouble(parts[1]), //
+						(parts.length > 2) ? Integer.parseInt(parts[2]) : 0);
+			}
+
+			if (parts[0].equals("strided") && (parts.length == 3)) {
+				return new StridedPolicy(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+			}
+
+			if (parts[0].equals("headtail") && (parts.length == 2)) {
+				return new HeadTailPolicy(Integer.parseInt(parts[1]));
+			}
+
+			if (parts[0].equals("capped") && (parts.length == 3)) {
+				return new CappedPolicy(Long.parseLong(parts[1]), parse(parts[2]));
+			}
+		} catch (NumberFormatException e) {
+			// fall through
+		}
+
+		throw new IllegalArgumentException("Invalid sampling policy '" + name + "'");
+	}
+
+	private static String formatNumber(double value) {
+		return (value == Math.rint(value)) ? Long.toString((long) value) : Double.toString(value);
+	}
+
+	/** Range list for a file small enough to read all of */
+	private static long[] wholeFile(long fileSize) {
+		return (fileSize > 0) ? new long[] { 0, fileSize } : new long[0];
+	}
+
+	/** One block in every 100/percent blocks, from the start of the file */
+	public static class PercentPolicy extends SamplingPolicy {
+		private final double percent;
+		/** Largest number of blocks to read (0 for no limit) */
+		private final int maxBlocks;
+		private final long stride;
+
+		public PercentPolicy(double percent, int maxBlocks) {
+			if ((percent <= 0.0) || (maxBlocks < 0)) {
+				throw new IllegalArgumentException("Invalid sampling percentage");
+			}
+
+			this.percent = percent;
+			this.maxBlocks = maxBlocks;
+			this.stride = (long) BLOCK_SIZE * Math.max(1, (int) (100.0 / percent));
+		}
+
+		public String getName() {
+			return "percent:" + formatNumber(this.percent) //
+					+ ((this.maxBlocks > 0) ? ":" + this.maxBlocks : "");
+		}
+
+		public long[] getRanges(long fileSize) {
+			long blocks = (fileSize + this.stride - 1) / this.stride;
+
+			if (this.maxBlocks > 0) {
+				blocks = Math.min(blocks, this.maxBlocks);
+			}
+
+			long[] ranges = new long[(int) blocks * 2];
+
+			for (int ii = 0; ii < blocks; ++ii) {
+				long offset = ii * this.stride;
+
+				ranges[ii * 2] = offset;
+				ranges[ii * 2 + 1] = Math.min(BLOCK_SIZE, fileSize - offset);
+			}
+
+			return ranges;
+		}
+	}
+
+	/** A fixed number of chunks, the first at the start and the last at the end */
+	public static class StridedPolicy extends SamplingPolicy {
+		private final int chunks;
+		private final int chunkSize;
+
+		public StridedPolicy(int chunks, int chunkSize) {
+			if ((chunks <= 0) || (chunkSize <= 0)) {
+				throw new IllegalArgumentException("Invalid sampling chunks");
+			}
+
+			this.chunks = chunks;
+			this.chunkSize = chunkSize;
+		}
+
+		public String getName() {
+			return "strided:" + this.chunks + ":" + this.chunkSize;
+		}
+
+		public long[] getRanges(long fileSize) {
+			if (fileSize <= (long) this.chunks * this.chunkSize) {
+				return wholeFile(fileSize);
+			}
+
+			long[] ranges = new long[this.chunks * 2];
+			long span = fileSize - this.chunkSize;
+
+			for (int ii = 0; ii < this.chunks; ++ii) {
+				ranges[ii * 2] = (this.chunks > 1) ? span / (this.chunks - 1) * ii : 0;
+				ranges[ii * 2 + 1] = this.chunkSize;
+			}
+
+			if (this.chunks > 1) {
+				ranges[ranges.length - 2] = span;
+			}
+
+			return ranges;
+		}
+	}
+
+	/** Chunks at the start, middle and end of the file */
+	public static class HeadTailPolicy extends SamplingPolicy {
+		private final int chunkSize;
+
+		public HeadTailPolicy(int chunkSize) {
+			if (chunkSize <= 0) {
+				throw new IllegalArgumentException("Invalid sampling chunk size");
+			}
+
+			this.chunkSize = chunkSize;
+		}
+
+		public String getName() {
+			return "headtail:" + this.chunkSize;
+		}
+
+		public long[] getRanges(long fileSize) {
+			if (fileSize <= 3L * this.chunkSize) {
+				return wholeFile(fileSize);
+			}
+
+			return new long[] { //
+					0, this.chunkSize, //
+					(fileSize - this.chunkSize) / 2, this.chunkSize, //
+					fileSize - this.chunkSize, this.chunkSize };
+		}
+	}
+
+	/**
+	 * Another policy's ranges, limited to a total number of bytes. If there are
+	 * more, evenly spaced ranges are kept, always including the first; a single
+	 * range that is too large is shortened.
+	 */
+	public static class CappedPolicy extends SamplingPolicy {
+		private final long maxBytes;
+		private final SamplingPolicy base;
+
+		public CappedPolicy(long maxBytes, SamplingPolicy base) {
+			if (maxBytes <= 0) {
+				throw new IllegalArgumentException("Invalid sampling limit");
+			}
+
+			this.maxBytes = maxBytes;
+			this.base = base;
+		}
+
+		public String getName() {
+			return "capped:" + this.maxBytes + ":" + this.base.getName();
+		}
+
+		public long[] getRanges(long fileSize) {
+			long[] ranges = this.base.getRanges(fileSize);
+			int count = ranges.length / 2;
+			long total = 0;
+
+			for (int ii = 0; ii < count; ++ii) {
+				total += ranges[ii * 2 + 1];
+			}
+
+			if (total <= this.maxBytes) {
+				return ranges;
+			}
+
+			for (int keep = (int) Math.max(1, count * this.maxBytes / total);; --keep) {
+				long[] kept = new long[keep * 2];
+				long bytes = 0;
+
+				for (int ii = 0; ii < keep; ++ii) {
+					int index = (int) ((long) ii * count / keep);
+
+					kept[ii * 2] = ranges[index * 2];
+					kept[ii * 2 + 1] = ranges[index * 2 + 1];
+					bytes += kept[ii * 2 + 1];
+				}
+
+				if (keep == 1) {
+					kept[1] = Math.min(kept[1], this.maxBytes);
+					return kept;
+				}
+
+				if (bytes <= this.maxBytes) {
+					return kept;
+				}
+			}
+		}
+	}
+}
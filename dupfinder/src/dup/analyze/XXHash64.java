@@ -0,0 +1,135 @@
+package dup.analyze;
+
+/**
+ * Streaming implementation of the xxHash64 hash function (seed 0).<br>
+ * Much faster than MD5, and strong enough to verify that two files with the
+ * same size and checksums have the same content.
+ */
+public class XXHash64 {
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+	private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+	private long v1 = PRIME1 + PRIME2;
+	private long v2 = PRIME2;
+	private long v3 = 0;
+	private long v4 = -PRIME1;
+
+	/** Bytes that do not yet make up a full 32-byte stripe */
+	private final byte[] pending = new byte[32];
+	private int pendingLength = 0;
+
+	private long totalLength = 0;
+
+	public void update(byte[] data, int offset, int length) {
+		this.totalLength += length;
+
+		if (this.pendingLength > 0) {
+			int n = Math.min(length, 32 - this.pendingLength);
+
+			System.arraycopy(data, offset, this.pending, this.pendingLength, n);
+			this.pendingLength += n;
+			offset += n;
+			length -= n;
+
+			if (this.pendingLength < 32) {
+				return;
+			}
+
+			processStripe(this.pending, 0);
+			this.pendingLength = 0;
+		}
+
+		int end = offset + length;
+
+		for (; offset + 32 <= end; offset += 32) {
+			processStripe(data, offset);
+		}
+
+		this.pendingLength = end - offset;
+		System.arraycopy(data, offset, this.pending, 0, this.pendingLength);
+	}
+
+	/** Get the hash of all data so far */
+	public long getValue() {
+		long h;
+
+		if (this.totalLength >= 32) {
+			h = Long.rotateLeft(this.v1, 1) + Long.rotateLeft(this.v2, 7) //
+					+ Long.rotateLeft(this.v3, 12) + Long.rotateLeft(this.v4, 18);
+
+			h = mergeRound(h, this.v1);
+			h = mergeRound(h, this.v2);
+			h = mergeRound(h, this.v3);
+			h = mergeRound(h, this.v4);
+		} else {
+			h = PRIME5;
+		}
+
+		h += this.totalLength;
+
+		int idx = 0;
+
+		for (; idx + 8 <= this.pendingLength; idx += 8) {
+			h ^= round(0, getLong(this.pending, idx));
+			h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+		}
+
+		if (idx + 4 <= this.pendingLength) {
+			h ^= (getInt(this.pending, idx) & 0xFFFFFFFFL) * PRIME1;
+			h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+			idx += 4;
+		}
+
+		for (; idx < this.pendingLength; ++idx) {
+			h ^= (this.pending[idx] & 0xFFL) * PRIME5;
+			h = Long.rotateLeft(h, 11) * PRIME1;
+		}
+
+		h ^= h >>> 33;
+		h *= PRIME2;
+		h ^= h >>> 29;
+		h *= PRIME3;
+		h ^= h >>> 32;
+
+		return h;
+	}
+
+	private void processStripe(byte[] data, int offset) {
+		this.v1 = round(this.v1, getLong(data, offset));
+		this.v2 = round(this.v2, getLong(data, offset + 8));
+		this.v3 = round(this.v3, getLong(data, offset + 16));
+		this.v4 = round(this.v4, getLong(data, offset + 24));
+	}
+
+	private static long round(long acc, long input) {
+		acc += input * PRIME2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * PRIME1;
+	}
+
+	private static long mergeRound(long acc, long val) {
+		acc ^= round(0, val);
+		return acc * PRIME1 + PRIME4;
+	}
+
+	private static long getLong(byte[] b, int i) {
+		return (b[i] & 0xFFL) //
+				| ((b[i + 1] & 0xFFL) << 8) //
+				| ((b[i + 2] & 0xFFL) << 16) //
+				| ((b[i + 3] & 0xFFL) << 24) //
+				| ((b[i + 4] & 0xFFL) << 32) //
+				| ((b[i + 5] & 0xFFL) << 40) //
+				| ((b[i + 6] & 0xFFL) << 48) //
+				| ((b[i + 7] & 0xFFL) << 56);
+	}
+
+	private static int getInt(byte[] b, int i) {
+		return (b[i] & 0xFF) //
+				| ((b[i + 1] & 0xFF) << 8) //
+				| ((b[i + 2] & 0xFF) << 16) //
+				| ((b[i + 3] & 0xFF) << 24);
+	}
+}
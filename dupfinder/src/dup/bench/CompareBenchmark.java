@@ -0,0 +1,130 @@
+package dup.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import dup.util.FileComparator;
+
+/**
+ * Compare identical files using 1 KB stream reads (as file comparison used to
+ * do) and using FileComparator.<br>
+ * Usage: CompareBenchmark [filesize...]<br>
+ * The files are created in the temp directory and deleted afterwards. Results
+ * for files that fit in the OS cache measure CPU cost, not disk speed.
+ */
+public class CompareBenchmark {
+	private static final int ITERATIONS = 3;
+
+	public static void main(String[] args) throws IOException {
+		List<Long> sizes = new ArrayList<Long>();
+
+		for (String arg : args) {
+			sizes.add(Long.valueOf(arg));
+		}
+
+		if (sizes.isEmpty()) {
+			sizes.add(64L * 1024);
+			sizes.add(1024L * 1024);
+			sizes.add(256L * 1024 * 1024);
+		}
+
+		for (long size : sizes) {
+			File file1 = createFile(size);
+			File file2 = createFile(size);
+
+			try {
+				for (int iter = 0; iter < ITERATIONS; ++iter) {
+					int count = (int) Math.max(1, (64L * 1024 * 1024) / size);
+
+					long start = System.nanoTime();
+					for (int ii = 0; ii < count; ++ii) {
+						if (!compareStreams(file1, file2)) {
+							throw new IllegalStateException("Files differ");
+						}
+					}
+					long streamns = System.nanoTime() - start;
+
+					start = System.nanoTime();
+					for (int ii = 0; ii < count; ++ii) {
+						if (FileComparator.findMismatch(file1, file2) >= 0) {
+							throw new IllegalStateException("Files differ");
+						}
+					}
+					long enginens = System.nanoTime() - start;
+
+					System.out.println(String.format( //
+							"size=%d iteration=%d stream=%.1f MB/s comparator=%.1f MB/s", //
+							size, iter, //
+							getThroughput(size * count, streamns), //
+							getThroughput(size * count, enginens)));
+				}
+			} finally {
+				file1.delete();
+				file2.delete();
+			}
+		}
+	}
+
+	/** Create a file with fixed pseudo-random content */
+	private static File createFile(long size) throws IOException {
+		File file = File.createTempFile("cmpbench", ".dat");
+		Random random = new Random(size);
+		byte[] buffer = new byte[1024 * 1024];
+		random.nextBytes(buffer);
+
+		OutputStream os = new FileOutputStream(file);
+
+		try {
+			for (long written = 0; written < size; written += buffer.length) {
+				os.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+			}
+		} finally {
+			os.close();
+		}
+
+		return file;
+	}
+
+	/** The previous comparison method */
+	private static boolean compareStreams(File file1, File file2) throws IOException {
+		InputStream fis1 = new FileInputStream(file1);
+		InputStream fis2 = new FileInputStream(file2);
+
+		try {
+			byte[] buffer1 = new byte[1024];
+			byte[] buffer2 = new byte[1024];
+
+			for (;;) {
+				int numRead1 = fis1.read(buffer1);
+				int numRead2 = fis2.read(buffer2);
+
+				if (numRead1 != numRead2) {
+					return false;
+				}
+
+				if (numRead1 <= 0) {
+					return true;
+				}
+
+				if (!Arrays.equals(buffer1, buffer2)) {
+					return false;
+				}
+			}
+		} finally {
+			fis1.close();
+			fis2.close();
+		}
+	}
+
+	private static double getThroughput(long bytes, long nanos) {
+		return (bytes / (1024.0 * 1024.0)) / (nanos / 1e9);
+	}
+}
@@ -0,0 +1,118 @@
+package dup.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import dup.analyze.DuplicateInfo2;
+import dup.model.FileInfo;
+import dup.model.FileSizeIndex;
+import dup.model.FolderInfo;
+
+/**
+ * Report the heap used per file for files that are unique by size, and for
+ * duplicate candidates (files that share their size with another file and so
+ * join a same-size group).<br>
+ * Usage: DuplicateMemoryBenchmark [filecount...] [-groupsize N]<br>
+ * Candidates are created in groups of groupsize (default 2) files.
+ */
+public class DuplicateMemoryBenchmark {
+	public static void main(String[] args) {
+		List<Integer> counts = new ArrayList<Integer>();
+		int groupSize = 2;
+
+		for (int ii = 0; ii < args.length; ++ii) {
+			if (args[ii].equals("-groupsize")) {
+				groupSize = Integer.parseInt(args[++ii]);
+			} else {
+				counts.add(Integer.valueOf(args[ii]));
+			}
+		}
+
+		if (counts.isEmpty()) {
+			counts.add(1000000);
+		}
+
+		for (int count : counts) {
+			long unique = measureUnique(count);
+			long candidate = measureCandidates(count, groupSize);
+
+			System.out.println(String.format( //
+					"files=%d unique=%d bytes/file candidate=%d bytes/file (groups of %d)", //
+					count, unique / count, candidate / count, groupSize));
+		}
+	}
+
+	/** Heap used by files with distinct sizes, indexed by size */
+	private static long measureUnique(int count) {
+		long before = usedHeap();
+
+		FolderInfo folder = new FolderInfo((FolderInfo) null, "bench");
+		FileSizeIndex index = new FileSizeIndex();
+		FileInfo[] files = new FileInfo[count];
+
+		for (int ii = 0; ii < count; ++ii) {
+			files[ii] = new FileInfo(folder, "f" + ii, ii + 1, 0L);
+			index.add(files[ii]);
+		}
+
+		long used = usedHeap() - before;
+
+		consume(index.size());
+		dispose(files);
+
+		return used;
+	}
+
+	/** Heap used by files that share their size, in same-size groups */
+	private static long measureCandidates(int count, int groupSize) {
+		long before = usedHeap();
+
+		FolderInfo folder = new FolderInfo((FolderInfo) null, "bench");
+		FileSizeIndex index = new FileSizeIndex();
+		FileInfo[] files = new FileInfo[count];
+		List<DuplicateInfo2> groups = new ArrayList<DuplicateInfo2>();
+		DuplicateInfo2 group = null;
+
+		for (int ii = 0; ii < count; ++ii) {
+			long size = ii / groupSize + 1;
+
+			if ((ii % groupSize) == 0) {
+				group = new DuplicateInfo2(size);
+				groups.add(group);
+			}
+
+			files[ii] = new FileInfo(folder, "f" + ii, size, 0L);
+			index.add(files[ii]);
+			group.addFile(files[ii]);
+		}
+
+		long used = usedHeap() - before;
+
+		consume(index.size() + groups.size());
+		dispose(files);
+
+		return used;
+	}
+
+	private static void dispose(FileInfo[] files) {
+		for (FileInfo file : files) {
+			file.dispose();
+		}
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+
+		for (int ii = 0; ii < 3; ++ii) {
+			System.gc();
+		}
+
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	private static void consume(long value) {
+		if (value == 42) {
+			System.out.println();
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package dup.bench;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import dup.model.FileInfo;
+import dup.model.FolderInfo;
+
+/**
+ * Measure the memory used per file by FileInfo objects with checksums and
+ * sample bytes, on the heap and in direct buffers.<br>
+ * Usage: FileTableBenchmark [filecount...] [-sample N]<br>
+ * Default counts are 1M and 10M files with 1024 sample bytes each; 10M files
+ * needs a large heap (-Xmx16g or so).
+ */
+public class FileTableBenchmark {
+	public static void main(String[] args) {
+		List<Integer> counts = new ArrayList<Integer>();
+		int sampleLength = 1024;
+
+		for (int ii = 0; ii < args.length; ++ii) {
+			if (args[ii].equals("-sample")) {
+				sampleLength = Integer.parseInt(args[++ii]);
+			} else {
+				counts.add(Integer.valueOf(args[ii]));
+			}
+		}
+
+		if (counts.isEmpty()) {
+			counts.add(1000000);
+			counts.add(10000000);
+		}
+
+		for (int count : counts) {
+			long heapBefore = usedHeap();
+			long directBefore = usedDirect();
+			long start = System.currentTimeMillis();
+
+			FileInfo[] files = createFiles(count, sampleLength);
+
+			long ms = System.currentTimeMillis() - start;
+			long heap = usedHeap() - heapBefore;
+			long direct = usedDirect() - directBefore;
+
+			System.out.println(String.format( //
+					"files=%d sample=%d heap=%d MB (%d bytes/file) direct=%d MB (%d bytes/file) create=%d ms", //
+					count, sampleLength, heap >> 20, heap / count, //
+					direct >> 20, direct / count, ms));
+
+			for (FileInfo file : files) {
+				file.dispose();
+			}
+		}
+	}
+
+	/** Create files with checksums and sample bytes, as after a Sample pass */
+	private static FileInfo[] createFiles(int count, int sampleLength) {
+		Random random = new Random(count);
+		FolderInfo folder = new FolderInfo((FolderInfo) null, "bench");
+		FileInfo[] files = new FileInfo[count];
+		byte[] sample = new byte[sampleLength];
+
+		for (int ii = 0; ii < count; ++ii) {
+			long size = (long) Math.pow(2.0, random.nextDouble() * 30.0);
+
+			FileInfo file = new FileInfo(folder, "f" + ii, size, random.nextLong());
+
+			random.nextBytes(sample);
+			file.setPrefixChecksum(random.nextInt() | 1);
+			file.setSampleChecksum(random.nextInt() | 1);
+			file.setSampleBytes(sample, sampleLength);
+
+			files[ii] = file;
+		}
+
+		return files;
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+
+		for (int ii = 0; ii < 3; ++ii) {
+			System.gc();
+		}
+
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	private static long usedDirect() {
+		long used = 0;
+
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if (pool.getName().equals("direct")) {
+				used += pool.getMemoryUsed();
+			}
+		}
+
+		return used;
+	}
+}
@@ -0,0 +1,134 @@
+package dup.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import dup.analyze.GroupComparator;
+import dup.model.Context;
+import dup.model.Database;
+import dup.model.FileInfo;
+import dup.model.persist.Persistence;
+import dup.util.FileUtil;
+
+/**
+ * Times comparing the content of one group of same-size files, including
+ * groups with more files than GroupComparator.maxBufferSpace holds a minimum
+ * block for (16384 at the default 64 MB), which are split by hashing first.<br>
+ * Usage: GroupCompareBenchmark [-files N] [-size N] [-copies N] [-buffer MB]
+ * [-iterations N]
+ *
+ * <pre>
+ * -files N       files in the group (default 20000)
+ * -size N        size of each file (default 8192)
+ * -copies N      identical files per distinct content (default 2)
+ * -buffer MB     GroupComparator.maxBufferSpace (default 64)
+ * -iterations N  timed iterations (default 3, after one untimed)
+ * </pre>
+ *
+ * The files are created in the temp directory and deleted afterwards. They
+ * differ only in their last bytes, so every block must be read to tell them
+ * apart.
+ */
+public class GroupCompareBenchmark {
+	public static void main(String[] args) throws IOException {
+		int fileCount = 20000;
+		int size = 8192;
+		int copies = 2;
+		int iterations = 3;
+
+		for (int ii = 0; ii < args.length; ++ii) {
+			String arg = args[ii];
+
+			if (arg.equals("-files")) {
+				fileCount = Integer.parseInt(args[++ii]);
+			} else if (arg.equals("-size")) {
+				size = Integer.parseInt(args[++ii]);
+			} else if (arg.equals("-copies")) {
+				copies = Integer.parseInt(args[++ii]);
+			} else if (arg.equals("-buffer")) {
+				GroupComparator.maxBufferSpace = Integer.parseInt(args[++ii]) * 1024 * 1024;
+			} else if (arg.equals("-iterations")) {
+				iterations = Integer.parseInt(args[++ii]);
+			} else {
+				System.err.println("Unknown option: " + arg);
+				return;
+			}
+		}
+
+		File root = Files.createTempDirectory("dupgroup").toFile();
+
+		try {
+			createFiles(root, fileCount, Math.max(size, 8), copies);
+
+			Context context = new Context(root.getPath(), "bench");
+			context.setVersion(Persistence.VERSION);
+			Database.instance().addContext(context);
+			FileUtil.ingestContext(context);
+
+			List<FileInfo> files = Arrays.asList(context.getAllFiles().toArray());
+			int expected = (fileCount + copies - 1) / copies;
+			long[] nanos = new long[iterations];
+
+			for (int ii = -1; ii < iterations; ++ii) {
+				List<List<FileInfo>> classes = new ArrayList<List<FileInfo>>();
+				List<FileInfo> singles = new ArrayList<FileInfo>();
+
+				long start = System.nanoTime();
+				GroupComparator.compareGroup(files, classes, singles);
+				long elapsed = System.nanoTime() - start;
+
+				if ((copies > 1) && (classes.size() != expected)) {
+					throw new IllegalStateException("Found " + classes.size() + " sets of duplicates, expected " + expected);
+				}
+
+				if (ii >= 0) {
+					nanos[ii] = elapsed;
+
+					System.out.println(String.format("compare iteration=%d files=%d sets=%d singles=%d ms=%.1f", //
+							ii, files.size(), classes.size(), singles.size(), elapsed / 1e6));
+				}
+			}
+
+			Arrays.sort(nanos);
+
+			System.out.println(String.format("compare files=%d size=%d buffer=%d MB best=%.1f ms median=%.1f ms", //
+					files.size(), size, GroupComparator.maxBufferSpace / (1024 * 1024), //
+					nanos[0] / 1e6, nanos[nanos.length / 2] / 1e6));
+		} finally {
+			for (File file : root.listFiles()) {
+				file.delete();
+			}
+
+			root.delete();
+		}
+	}
+
+	/** Files that are the same except for a content number in the last 8 bytes */
+	private static void createFiles(File root, int fileCount, int size, int copies) throws IOException {
+		byte[] content = new byte[size];
+		new Random(size).nextBytes(content);
+
+		for (int ii = 0; ii < fileCount; ++ii) {
+			long number = ii / copies;
+
+			for (int jj = 0; jj < 8; ++jj) {
+				content[size - 1 - jj] = (byte) (number >>> (8 * jj));
+			}
+
+			OutputStream os = new FileOutputStream(new File(root, String.format("f%06d", ii)));
+
+			try {
+				os.write(content);
+			} finally {
+				os.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package dup.bench;
+
+import java.util.Arrays;
+
+import dup.analyze.DetailLevel;
+import dup.analyze.DuplicateInfo2;
+import dup.model.FileInfo;
+import dup.model.FolderInfo;
+
+/**
+ * Times processing one large group of same-size files at each level of detail,
+ * as for a folder of fixed-size log segments or thumbnails.<br>
+ * Usage: GroupingBenchmark [-files N] [-copies N] [-prefixes N] [-iterations N]
+ *
+ * <pre>
+ * -files N       files in the group (default 100000)
+ * -copies N      identical files per distinct content (default 2)
+ * -prefixes N    distinct prefix checksums (default 1000)
+ * -iterations N  timed iterations (default 5, after one untimed)
+ * </pre>
+ *
+ * The files exist only in memory, with their checksums already set and a size
+ * above FileInfo.COMPARE_THRESHOLD, so nothing is read and the times are for
+ * grouping alone.
+ */
+public class GroupingBenchmark {
+	public static void main(String[] args) {
+		int fileCount = 100000;
+		int copies = 2;
+		int prefixes = 1000;
+		int iterations = 5;
+
+		for (int ii = 0; ii < args.length; ++ii) {
+			String arg = args[ii];
+
+			if (arg.equals("-files")) {
+				fileCount = Integer.parseInt(args[++ii]);
+			} else if (arg.equals("-copies")) {
+				copies = Integer.parseInt(args[++ii]);
+			} else if (arg.equals("-prefixes")) {
+				prefixes = Integer.parseInt(args[++ii]);
+			} else if (arg.equals("-iterations")) {
+				iterations = Integer.parseInt(args[++ii]);
+			} else {
+				System.err.println("Unknown option: " + arg);
+				return;
+			}
+		}
+
+		long size = FileInfo.COMPARE_THRESHOLD + 1;
+		FolderInfo folder = new FolderInfo((FolderInfo) null, "bench");
+		FileInfo[] files = new FileInfo[fileCount];
+		DuplicateInfo2 group = new DuplicateInfo2(size);
+
+		for (int ii = 0; ii < fileCount; ++ii) {
+			int content = ii / copies;
+
+			files[ii] = new FileInfo(folder, "f" + ii, size, 0L);
+			files[ii].setPrefixChecksum(content % prefixes + 1);
+			files[ii].setSampleChecksum(content + 1);
+			files[ii].setFullChecksum(content + 1);
+
+			group.addFile(files[ii]);
+		}
+
+		for (DetailLevel level : new DetailLevel[] { DetailLevel.Prefix, DetailLevel.Sample, DetailLevel.Full }) {
+			long[] nanos = new long[iterations];
+
+			group.processFiles(level);
+
+			for (int ii = 0; ii < iterations; ++ii) {
+				long start = System.nanoTime();
+				group.processFiles(level);
+				nanos[ii] = System.nanoTime() - start;
+			}
+
+			Arrays.sort(nanos);
+
+			System.out.println(String.format("process-%s files=%d groups=%d best=%.1f ms median=%.1f ms", //
+					level, fileCount, group.getDuplicateLists().size(), //
+					nanos[0] / 1e6, nanos[nanos.length / 2] / 1e6));
+		}
+
+		for (FileInfo file : files) {
+			file.dispose();
+		}
+	}
+}
@@ -0,0 +1,441 @@
+package dup.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import dup.analyze.Checksum;
+import dup.analyze.ChecksumPipeline;
+import dup.analyze.DetailLevel;
+import dup.analyze.DuplicateInfo2;
+import dup.analyze.Fingerprint;
+import dup.analyze.RegisteredDupDiffInfo;
+import dup.model.Context;
+import dup.model.Database;
+import dup.model.FileInfo;
+import dup.model.FolderInfo;
+import dup.model.persist.BinaryPersistence;
+import dup.model.persist.ContextLoader;
+import dup.model.persist.Persistence;
+import dup.model.persist.VerificationCache;
+import dup.report.DuplicateReport;
+import dup.report.ReportWriter;
+import dup.util.FileUtil;
+
+/**
+ * Times the hot paths of duplicate detection on a synthetic tree: checksums,
+ * file comparison, ingest, saving and loading a context, and processing
+ * same-size groups.<br>
+ * Usage: HotPathBenchmark [options] [benchmark...]<br>
+ * Benchmarks: checksum compare ingest persist process report tree (default
+ * all)<br>
+ * Options:
+ *
+ * <pre>
+ * -files N        number of files (default 10000)
+ * -perfolder N    files per folder (default 100)
+ * -minsize N      smallest file size (default 1)
+ * -maxsize N      largest file size (default 1 MB)
+ * -dups R         fraction of files that are copies (default 0.1)
+ * -samesize R     fraction of same-size files differing in the last byte (0.1)
+ * -seed N         tree generator seed (default 1)
+ * -warmup N       untimed iterations (default 1)
+ * -iterations N   timed iterations (default 5)
+ * -dir PATH       use (or create) the tree in this folder and keep it
+ * </pre>
+ *
+ * Each benchmark prints one line per timed iteration and a summary line with
+ * the best and median times. Every iteration starts from a newly ingested
+ * context with no comparison results registered, so nothing is cached in the
+ * model; the OS file cache is not flushed, so with a tree that fits in memory
+ * the results measure CPU cost, not disk speed.
+ */
+public class HotPathBenchmark {
+	private static final String[] ALL = { "checksum", "compare", "ingest", "persist", "process", "report", "tree" };
+
+	private int warmup = 1;
+	private int iterations = 5;
+	private File root;
+
+	public static void main(String[] args) throws Exception {
+		TreeGenerator generator = new TreeGenerator();
+		HotPathBenchmark bench = new HotPathBenchmark();
+		List<String> benchmarks = new ArrayList<String>();
+		String dir = null;
+
+		for (int ii = 0; ii < args.length; ++ii) {
+			String arg = args[ii];
+
+			if (arg.equals("-files")) {
+				generator.fileCount = Integer.parseInt(args[++ii]);
+			} else if (arg.equals("-perfolder")) {
+				generator.filesPerFolder = Integer.parseInt(args[++ii]);
+			} else if (arg.equals("-minsize")) {
+				generator.minSize = Long.parseLong(args[++ii]);
+			} else if (arg.equals("-maxsize")) {
+				generator.maxSize = Long.parseLong(args[++ii]);
+			} else if (arg.equals("-dups")) {
+				generator.duplicateRatio = Double.parseDouble(args[++ii]);
+			} else if (arg.equals("-samesize")) {
+				generator.sameSizeRatio = Double.parseDouble(args[++ii]);
+			} else if (arg.equals("-seed")) {
+				generator.seed = Long.parseLong(args[++ii]);
+			} else if (arg.equals("-warmup")) {
+				bench.warmup = Integer.parseInt(args[++ii]);
+			} else if (arg.equals("-iterations")) {
+				bench.iterations = Integer.parseInt(args[++ii]);
+			} else if (arg.equals("-dir")) {
+				dir = args[++ii];
+			} else {
+				benchmarks.add(arg);
+			}
+		}
+
+		if (benchmarks.isEmpty()) {
+			benchmarks.addAll(Arrays.asList(ALL));
+		}
+
+		// Comparisons must read the files every time
+		VerificationCache.enabled = false;
+
+		bench.root = (dir != null) ? new File(dir) : Files.createTempDirectory("dupbench").toFile();
+
+		try {
+			String[] existing = bench.root.list();
+
+			if ((existing == null) || (existing.length == 0)) {
+				long start = System.currentTimeMillis();
+				generator.generate(bench.root);
+
+				System.out.println(String.format("Generated %d files, %d MB in %s (%d ms)", //
+						generator.filesWritten, generator.bytesWritten >> 20, bench.root, //
+						System.currentTimeMillis() - start));
+			}
+
+			for (String name : benchmarks) {
+				bench.run(name);
+			}
+		} finally {
+			if (dir == null) {
+				TreeGenerator.delete(bench.root);
+			}
+		}
+	}
+
+	private void run(String name) throws Exception {
+		DetailLevel[] levels = { DetailLevel.Prefix, DetailLevel.Sample, DetailLevel.Full };
+
+		if (name.equals("checksum")) {
+			for (DetailLevel level : levels) {
+				time("checksum-" + level, new ChecksumOperation(level));
+			}
+		} else if (name.equals("compare")) {
+			time("compare", new CompareOperation());
+		} else if (name.equals("ingest")) {
+			time("ingest", new IngestOperation());
+		} else if (name.equals("persist")) {
+			time("save", new SaveOperation());
+			time("load", new LoadOperation());
+		} else if (name.equals("process")) {
+			for (DetailLevel level : levels) {
+				time("process-" + level, new ProcessOperation(level));
+			}
+		} else if (name.equals("report")) {
+			for (String format : ReportWriter.FORMATS) {
+				time("report-" + format, new ReportOperation(format));
+			}
+		} else if (name.equals("tree")) {
+			time("tree", new TreeStatisticsOperation());
+		} else {
+			System.err.println("Unknown benchmark: " + name);
+		}
+	}
+
+	/** Run warmup and timed iterations of an operation, and report the times */
+	private void time(String name, Operation op) throws Exception {
+		long[] nanos = new long[this.iterations];
+
+		for (int ii = 0; ii < this.warmup; ++ii) {
+			op.setup();
+			op.run();
+			op.teardown();
+		}
+
+		for (int ii = 0; ii < this.iterations; ++ii) {
+			op.setup();
+
+			long start = System.nanoTime();
+			long count = op.run();
+			nanos[ii] = System.nanoTime() - start;
+
+			op.teardown();
+
+			System.out.println(String.format("%s iteration=%d ms=%.1f items=%d items/s=%.0f", //
+					name, ii, nanos[ii] / 1e6, count, count / (nanos[ii] / 1e9)));
+		}
+
+		Arrays.sort(nanos);
+
+		System.out.println(String.format("%s best=%.1f ms median=%.1f ms", //
+				name, nanos[0] / 1e6, nanos[nanos.length / 2] / 1e6));
+	}
+
+	/**
+	 * A timed operation. By default the untimed setup ingests the tree into a new
+	 * context, after discarding the previous Database and registered comparison
+	 * results, so each run starts with nothing cached in the model.
+	 */
+	private abstract class Operation {
+		protected Context context;
+
+		public void setup() throws Exception {
+			Database.instance().shutDown();
+			RegisteredDupDiffInfo.getRegisteredDupDiffInfo().clear();
+
+			this.context = createContext();
+
+			FileUtil.ingestContext(this.context);
+		}
+
+		/** Create a context for the tree, known to the Database so files can find it */
+		protected Context createContext() {
+			Context context = new Context(HotPathBenchmark.this.root.getPath(), "bench");
+
+			context.setVersion(Persistence.VERSION);
+			Database.instance().addContext(context);
+
+			return context;
+		}
+
+		/** @return The number of items processed */
+		public abstract long run() throws Exception;
+
+		public void teardown() {
+			if (this.context != null) {
+				Database.instance().closeContext(this.context);
+				this.context = null;
+			}
+		}
+	}
+
+	private class ChecksumOperation extends Operation {
+		private final DetailLevel level;
+
+		public ChecksumOperation(DetailLevel level) {
+			this.level = level;
+		}
+
+		public long run() {
+			long count = 0;
+
+			for (FileInfo file : this.context.getAllFiles()) {
+				Checksum.getChecksums(file, this.context, this.level);
+				++count;
+			}
+
+			return count;
+		}
+	}
+
+	/** Compare each file with the previous file of the same size */
+	private class CompareOperation extends Operation {
+		public long run() {
+			Map<Long, FileInfo> lastBySize = new HashMap<Long, FileInfo>();
+			long count = 0;
+
+			for (FileInfo file : this.context.getAllFiles()) {
+				FileInfo last = lastBySize.put(file.getSize(), file);
+
+				if ((last != null) && !file.isIgnoredFile()) {
+					Fingerprint.filesAreIdentical(last, file);
+					++count;
+				}
+			}
+
+			return count;
+		}
+	}
+
+	private class IngestOperation extends Operation {
+		public void setup() {
+			Database.instance().shutDown();
+		}
+
+		public long run() {
+			this.context = createContext();
+
+			return FileUtil.ingestContext(this.context);
+		}
+	}
+
+	private class SaveOperation extends Operation {
+		private File file;
+
+		public long run() throws IOException {
+			this.file = File.createTempFile("dupbench", ".db");
+
+			BinaryPersistence.save(this.context, this.file);
+
+			return this.context.getAllFiles().size();
+		}
+
+		public void teardown() {
+			this.file.delete();
+			super.teardown();
+		}
+	}
+
+	private class LoadOperation extends Operation {
+		private File file;
+
+		public void setup() throws Exception {
+			super.setup();
+
+			this.file = File.createTempFile("dupbench", ".db");
+			BinaryPersistence.save(this.context, this.file);
+
+			super.teardown();
+		}
+
+		public long run() {
+			this.context = ContextLoader.loadContextFromFile(this.file);
+
+			return this.context.getAllFiles().size();
+		}
+
+		public void teardown() {
+			this.file.delete();
+			super.teardown();
+		}
+	}
+
+	/**
+	 * Process every same-size group at one level of detail, calculating checksums
+	 * through the pipeline first as Database does. The lower levels are processed
+	 * during setup.
+	 */
+	private class ProcessOperation extends Operation {
+		private final DetailLevel level;
+
+		public ProcessOperation(DetailLevel level) {
+			this.level = level;
+		}
+
+		public void setup() throws Exception {
+			super.setup();
+
+			for (DetailLevel lower : new DetailLevel[] { DetailLevel.Size, DetailLevel.Prefix, DetailLevel.Sample }) {
+				if (lower.isLessThan(this.level)) {
+					processFiles(lower);
+				}
+			}
+		}
+
+		public long run() {
+			return processFiles(this.level);
+		}
+
+		private long processFiles(DetailLevel level) {
+			List<DuplicateInfo2> duplicates = Database.instance().getDuplicates();
+			long count = 0;
+
+			if (ChecksumPipeline.isEnabled()) {
+				for (DetailLevel stage : new DetailLevel[] { DetailLevel.Prefix, DetailLevel.Sample, DetailLevel.Full }) {
+					if (stage.isGreaterThan(level)) {
+						break;
+					}
+
+					List<FileInfo> files = new ArrayList<FileInfo>();
+
+					for (DuplicateInfo2 dupinfo : duplicates) {
+						dupinfo.getFilesNeedingChecksums(stage, files);
+					}
+
+					ChecksumPipeline.calculateChecksums(files, stage);
+				}
+			}
+
+			for (DuplicateInfo2 dupinfo : duplicates) {
+				dupinfo.processFiles(level);
+				count += dupinfo.getDuplicateLists().size();
+			}
+
+			return count;
+		}
+	}
+
+	/** Write the report of a fully analyzed tree, discarding the output */
+	private class ReportOperation extends ProcessOperation {
+		private final String format;
+
+		public ReportOperation(String format) {
+			super(DetailLevel.Full);
+			this.format = format;
+		}
+
+		public void setup() throws Exception {
+			super.setup();
+			super.run();
+		}
+
+		public long run() {
+			ReportWriter writer = ReportWriter.create(this.format, new PrintWriter(new Writer() {
+				public void write(char[] cbuf, int off, int len) {
+				}
+
+				public void flush() {
+				}
+
+				public void close() {
+				}
+			}));
+
+			writer.write(new DuplicateReport(Database.instance()));
+
+			return writer.getGroups();
+		}
+	}
+
+	/**
+	 * Read the statistics of every folder in a fully analyzed tree, as the
+	 * folder tree does when painting, after checking that they are correct.
+	 */
+	private class TreeStatisticsOperation extends ProcessOperation {
+		public TreeStatisticsOperation() {
+			super(DetailLevel.Full);
+		}
+
+		public void setup() throws Exception {
+			super.setup();
+			super.run();
+
+			if (!this.context.getRoot().checkStatistics()) {
+				throw new IllegalStateException("Folder statistics are wrong");
+			}
+		}
+
+		public long run() {
+			List<FolderInfo> folders = new ArrayList<FolderInfo>();
+			long total = 0;
+
+			folders.add(this.context.getRoot());
+
+			for (int ii = 0; ii < folders.size(); ++ii) {
+				FolderInfo folder = folders.get(ii);
+
+				total += folder.getTreeFileCount() + folder.getTreeDupCount() //
+						+ folder.getTreeSize() + folder.getTreeDupSize();
+				folders.addAll(folder.getSubfolders());
+			}
+
+			return (total != 0) ? folders.size() : 0;
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package dup.bench;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dup.analyze.ChecksumValues;
+import dup.analyze.DetailLevel;
+import dup.analyze.LoadDetailsScheduler;
+import dup.analyze.LoadDetailsScheduler.Job;
+import dup.analyze.LoadDetailsScheduler.Priority;
+import dup.metrics.Histogram;
+import dup.metrics.Metrics;
+import dup.model.Context;
+import dup.model.Database;
+import dup.model.FileInfo;
+import dup.model.persist.Persistence;
+import dup.util.FileUtil;
+
+/**
+ * Checks that polling the LoadDetailsScheduler's progress never waits for its
+ * workers.<br>
+ * Usage: ProgressPollingBenchmark [-files N] [-jobs N] [-workers N] [-pollers
+ * N] [-millis N]
+ *
+ * <pre>
+ * -files N    number of files (default 2000)
+ * -jobs N     jobs the files are split into (default 8)
+ * -workers N  scheduler workers (default LoadDetailsScheduler.workerCount)
+ * -pollers N  threads polling progress (default 2)
+ * -millis N   time to poll the idle scheduler (default 500)
+ * </pre>
+ *
+ * Pollers read the progress of an idle scheduler, then of one whose workers are
+ * loading details, with thread contention monitoring on. Polls are expected to
+ * take as long either way, and the pollers never to block or wait on a monitor.
+ * <br>
+ * The jobs are run again with a listener that throws for the first file each
+ * job loads: the jobs must still finish, leaving no active jobs, and processed
+ * bytes equal to the total bytes.
+ */
+public class ProgressPollingBenchmark {
+	public static void main(String[] args) throws Exception {
+		TreeGenerator generator = new TreeGenerator();
+		int jobCount = 8;
+		int workers = LoadDetailsScheduler.workerCount;
+		int pollers = 2;
+		long millis = 500;
+
+		generator.fileCount = 2000;
+
+		for (int ii = 0; ii < args.length; ++ii) {
+			String arg = args[ii];
+
+			if (arg.equals("-files")) {
+				generator.fileCount = Integer.parseInt(args[++ii]);
+			} else if (arg.equals("-jobs")) {
+				jobCount = Integer.parseInt(args[++ii]);
+			} else if (arg.equals("-workers")) {
+				workers = Integer.parseInt(args[++ii]);
+			} else if (arg.equals("-pollers")) {
+				pollers = Integer.parseInt(args[++ii]);
+			} else if (arg.equals("-millis")) {
+				millis = Long.parseLong(args[++ii]);
+			} else {
+				System.err.println("Unknown option: " + arg);
+				return;
+			}
+		}
+
+		File root = Files.createTempDirectory("dupbench").toFile();
+
+		try {
+			generator.generate(root);
+
+			run(root, jobCount, workers, pollers, millis);
+		} finally {
+			TreeGenerator.delete(root);
+		}
+	}
+
+	private static void run(File root, int jobCount, int workers, int pollerCount, long millis) throws Exception {
+		Context context = new Context(root.getPath(), "bench");
+
+		context.setVersion(Persistence.VERSION);
+		Database.instance().addContext(context);
+		FileUtil.ingestContext(context);
+
+		List<FileInfo> files = new ArrayList<FileInfo>();
+
+		for (FileInfo file : context.getAllFiles()) {
+			files.add(file);
+		}
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		if (threads.isThreadContentionMonitoringSupported()) {
+			threads.setThreadContentionMonitoringEnabled(true);
+		}
+
+		boolean passed = true;
+
+		// Polling while the workers load details
+		final CountDownLatch done = new CountDownLatch(jobCount);
+		final LoadDetailsScheduler scheduler = new LoadDetailsScheduler(new LoadDetailsScheduler.Listener() {
+			public void fileLoaded(FileInfo file) {
+			}
+
+			public void jobFinished(Job job, Map<FileInfo, ChecksumValues> loaded) {
+				done.countDown();
+			}
+		}, workers);
+
+		Histogram idle = Metrics.histogram("bench.progress.idle");
+		Histogram busy = Metrics.histogram("bench.progress.busy");
+		Pollers idlePollers = new Pollers(scheduler, idle, pollerCount);
+
+		Thread.sleep(millis);
+		passed &= idlePollers.stop(threads, "idle");
+
+		Pollers busyPollers = new Pollers(scheduler, busy, pollerCount);
+		long start = System.nanoTime();
+
+		submit(scheduler, files, jobCount);
+		done.await();
+
+		long elapsed = System.nanoTime() - start;
+		passed &= busyPollers.stop(threads, "busy");
+
+		System.out.println(String.format("jobs=%d workers=%d files=%d time=%.1f ms", //
+				jobCount, workers, files.size(), elapsed / 1e6));
+		report("idle", idle.snapshot());
+		report("busy", busy.snapshot());
+		passed &= checkBalanced(scheduler, "busy");
+		scheduler.shutDown();
+
+		// Jobs whose listener fails must still finish
+		final AtomicInteger failures = new AtomicInteger();
+		final CountDownLatch failed = new CountDownLatch(jobCount);
+		final LoadDetailsScheduler failing = new LoadDetailsScheduler(new LoadDetailsScheduler.Listener() {
+			public void fileLoaded(FileInfo file) {
+				throw new IllegalStateException("Listener failed for " + file);
+			}
+
+			public void jobFinished(Job job, Map<FileInfo, ChecksumValues> loaded) {
+				failed.countDown();
+			}
+		}, workers);
+
+		Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+
+		Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+			public void uncaughtException(Thread t, Throwable e) {
+				failures.incrementAndGet();
+			}
+		});
+
+		try {
+			submit(failing, files, jobCount);
+
+			if (!failed.await(60, TimeUnit.SECONDS)) {
+				System.out.println("failing listener: jobs did not finish");
+				passed = false;
+			}
+		} finally {
+			Thread.setDefaultUncaughtExceptionHandler(handler);
+		}
+
+		System.out.println(String.format("failing listener: %d of %d jobs failed", failures.get(), jobCount));
+		passed &= checkBalanced(failing, "failing listener");
+		failing.shutDown();
+
+		Database.instance().closeContext(context);
+
+		System.out.println(passed ? "PASSED" : "FAILED");
+	}
+
+	/** Queue the files in jobs of about the same size */
+	private static void submit(LoadDetailsScheduler scheduler, List<FileInfo> files, int jobCount) {
+		for (int ii = 0; ii < jobCount; ++ii) {
+			scheduler.submit(files.subList(ii * files.size() / jobCount, (ii + 1) * files.size() / jobCount), //
+					DetailLevel.Sample, Priority.USER);
+		}
+	}
+
+	private static void report(String phase, Histogram.Snapshot latency) {
+		System.out.println(String.format("%s polls=%d mean=%.2f us p99=%.2f us max=%.1f us", phase, //
+				latency.count, latency.getMean() / 1e3, latency.getPercentile(99) / 1e3, latency.max / 1e3));
+	}
+
+	/** No jobs left, and every byte counted once */
+	private static boolean checkBalanced(LoadDetailsScheduler scheduler, String phase) {
+		// The counters are updated before the listener is told a job finished
+		long deadline = System.currentTimeMillis() + 1000;
+
+		while ((scheduler.getActiveJobCount() > 0) && (System.currentTimeMillis() < deadline)) {
+			Thread.yield();
+		}
+
+		boolean balanced = (scheduler.getActiveJobCount() == 0) //
+				&& (scheduler.getProcessedBytes() == scheduler.getTotalBytes());
+
+		System.out.println(String.format("%s progress: %d of %d bytes, active jobs %d%s", phase, //
+				scheduler.getProcessedBytes(), scheduler.getTotalBytes(), scheduler.getActiveJobCount(), //
+				balanced ? "" : " - NOT BALANCED"));
+
+		return balanced;
+	}
+
+	/** Threads polling progress as fast as they can, as the UI might */
+	private static class Pollers {
+		private final AtomicBoolean stop = new AtomicBoolean();
+		private final List<Thread> threads = new ArrayList<Thread>();
+
+		Pollers(final LoadDetailsScheduler scheduler, final Histogram latency, int count) {
+			for (int ii = 0; ii < count; ++ii) {
+				Thread poller = new Thread("Poller-" + ii) {
+					public void run() {
+						while (!Pollers.this.stop.get()) {
+							long start = System.nanoTime();
+
+							scheduler.getPercentDone();
+							scheduler.getProcessedBytes();
+							latency.recordSince(start);
+						}
+					}
+				};
+
+				poller.setDaemon(true);
+				poller.start();
+				this.threads.add(poller);
+			}
+		}
+
+		/** Stop polling; did any poller block or wait? */
+		boolean stop(ThreadMXBean mxbean, String phase) throws InterruptedException {
+			long blocked = 0;
+			long waited = 0;
+
+			for (Thread thread : this.threads) {
+				ThreadInfo info = mxbean.getThreadInfo(thread.getId());
+
+				if (info != null) {
+					blocked += info.getBlockedCount();
+					waited += info.getWaitedCount();
+				}
+			}
+
+			this.stop.set(true);
+
+			for (Thread thread : this.threads) {
+				thread.join();
+			}
+
+			System.out.println(String.format("%s pollers: blocked %d times, waited %d times", phase, blocked, waited));
+
+			return (blocked == 0) && (waited == 0);
+		}
+	}
+}
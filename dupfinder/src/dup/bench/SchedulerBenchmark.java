@@ -0,0 +1,196 @@
+package dup.bench;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dup.analyze.ChecksumValues;
+import dup.analyze.DetailLevel;
+import dup.analyze.LoadDetailsScheduler;
+import dup.analyze.LoadDetailsScheduler.Job;
+import dup.analyze.LoadDetailsScheduler.Priority;
+import dup.metrics.Histogram;
+import dup.metrics.Metrics;
+import dup.model.Context;
+import dup.model.Database;
+import dup.model.FileInfo;
+import dup.model.persist.Persistence;
+import dup.util.FileUtil;
+
+/**
+ * Loads the details of a synthetic tree through the LoadDetailsScheduler while
+ * other threads poll its progress as fast as they can, as the UI does.<br>
+ * Usage: SchedulerBenchmark [-files N] [-jobs N] [-workers N] [-pollers N]
+ * [-dir PATH]
+ *
+ * <pre>
+ * -files N    number of files (default 4000)
+ * -jobs N     background jobs, each followed by a user job (default 10)
+ * -workers N  scheduler workers (default LoadDetailsScheduler.workerCount)
+ * -pollers N  threads polling progress (default 2)
+ * -dir PATH   use (or create) the tree in this folder and keep it
+ * </pre>
+ *
+ * Background jobs are all submitted first, then user jobs for the same number
+ * of files, then a copy of the first user job (whose files should all be left
+ * out), and the last background job is cancelled. Reports the poll latency,
+ * which does not depend on what the workers are doing, the order the jobs
+ * finished in (jobs already running when the user jobs come in finish first),
+ * and whether the progress counters balance.
+ */
+public class SchedulerBenchmark {
+	public static void main(String[] args) throws Exception {
+		TreeGenerator generator = new TreeGenerator();
+		int jobCount = 10;
+		int workers = LoadDetailsScheduler.workerCount;
+		int pollers = 2;
+		String dir = null;
+
+		generator.fileCount = 4000;
+
+		for (int ii = 0; ii < args.length; ++ii) {
+			String arg = args[ii];
+
+			if (arg.equals("-files")) {
+				generator.fileCount = Integer.parseInt(args[++ii]);
+			} else if (arg.equals("-jobs")) {
+				jobCount = Integer.parseInt(args[++ii]);
+			} else if (arg.equals("-workers")) {
+				workers = Integer.parseInt(args[++ii]);
+			} else if (arg.equals("-pollers")) {
+				pollers = Integer.parseInt(args[++ii]);
+			} else if (arg.equals("-dir")) {
+				dir = args[++ii];
+			} else {
+				System.err.println("Unknown option: " + arg);
+				return;
+			}
+		}
+
+		File root = (dir != null) ? new File(dir) : Files.createTempDirectory("dupbench").toFile();
+
+		try {
+			String[] existing = root.list();
+
+			if ((existing == null) || (existing.length == 0)) {
+				generator.generate(root);
+			}
+
+			run(root, jobCount, workers, pollers);
+		} finally {
+			if (dir == null) {
+				TreeGenerator.delete(root);
+			}
+		}
+	}
+
+	private static void run(File root, int jobCount, int workers, int pollerCount) throws Exception {
+		Context context = new Context(root.getPath(), "bench");
+
+		context.setVersion(Persistence.VERSION);
+		Database.instance().addContext(context);
+		FileUtil.ingestContext(context);
+
+		List<FileInfo> files = new ArrayList<FileInfo>();
+
+		for (FileInfo file : context.getAllFiles()) {
+			files.add(file);
+		}
+		final List<Job> finished = new ArrayList<Job>();
+		final AtomicInteger loadedCount = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(2 * jobCount);
+
+		final LoadDetailsScheduler scheduler = new LoadDetailsScheduler(new LoadDetailsScheduler.Listener() {
+			public void fileLoaded(FileInfo file) {
+				loadedCount.incrementAndGet();
+			}
+
+			public void jobFinished(Job job, Map<FileInfo, ChecksumValues> loaded) {
+				synchronized (finished) {
+					finished.add(job);
+				}
+
+				done.countDown();
+			}
+		}, workers);
+
+		final Histogram polls = Metrics.histogram("bench.progress.poll");
+		final AtomicBoolean stop = new AtomicBoolean();
+		List<Thread> pollers = new ArrayList<Thread>();
+
+		for (int ii = 0; ii < pollerCount; ++ii) {
+			Thread poller = new Thread("Poller-" + ii) {
+				public void run() {
+					while (!stop.get()) {
+						long start = System.nanoTime();
+
+						scheduler.getPercentDone();
+						scheduler.getProcessedBytes();
+						polls.recordSince(start);
+					}
+				}
+			};
+
+			poller.setDaemon(true);
+			poller.start();
+			pollers.add(poller);
+		}
+
+		// Half the files in background jobs, the other half in user jobs
+		int half = files.size() / 2;
+		List<Job> jobs = new ArrayList<Job>();
+		long start = System.nanoTime();
+
+		for (Priority priority : new Priority[] { Priority.BACKGROUND, Priority.USER }) {
+			for (int ii = 0; ii < jobCount; ++ii) {
+				int from = ((priority == Priority.USER) ? half : 0) + ii * half / jobCount;
+				int to = ((priority == Priority.USER) ? half : 0) + (ii + 1) * half / jobCount;
+
+				jobs.add(scheduler.submit(files.subList(from, to), DetailLevel.Sample, priority));
+			}
+		}
+
+		Job duplicate = scheduler.submit(files.subList(half, half + half / jobCount), //
+				DetailLevel.Sample, Priority.USER);
+
+		jobs.get(jobCount - 1).cancel();
+
+		done.await();
+
+		long elapsed = System.nanoTime() - start;
+		stop.set(true);
+
+		for (Thread poller : pollers) {
+			poller.join();
+		}
+
+		Histogram.Snapshot latency = polls.snapshot();
+
+		System.out.println(String.format("jobs=%d workers=%d files=%d loaded=%d time=%.1f ms", //
+				2 * jobCount, workers, files.size(), loadedCount.get(), elapsed / 1e6));
+		System.out.println(String.format("polls=%d mean=%.2f us p99=%.2f us max=%.1f us", //
+				latency.count, latency.getMean() / 1e3, latency.getPercentile(99) / 1e3, latency.max / 1e3));
+
+		// The user jobs were submitted last, but should mostly finish first
+		double[] positions = new double[2];
+
+		for (int ii = 0; ii < finished.size(); ++ii) {
+			positions[finished.get(ii).getPriority().ordinal()] += ii + 1;
+		}
+
+		System.out.println(String.format("mean finishing position of %d jobs: user %.1f, background %.1f", //
+				finished.size(), positions[Priority.USER.ordinal()] / jobCount, //
+				positions[Priority.BACKGROUND.ordinal()] / jobCount));
+		System.out.println("duplicate job: " + ((duplicate == null) ? "left out" : "NOT left out"));
+		System.out.println(String.format("progress: %d of %d bytes, active jobs %d", //
+				scheduler.getProcessedBytes(), scheduler.getTotalBytes(), scheduler.getActiveJobCount()));
+
+		scheduler.shutDown();
+		Database.instance().closeContext(context);
+	}
+}
@@ -0,0 +1,116 @@
+package dup.bench;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import dup.model.Context;
+import dup.model.FileInfo;
+import dup.model.FileSizeIndex;
+import dup.model.FolderInfo;
+
+/**
+ * Compare building a sorted list of files (binary search + insert, as ingest
+ * used to do) with building a FileSizeIndex, then walking the files in size
+ * order.<br>
+ * Usage: SizeIndexBenchmark [filecount...] [-listlimit N]<br>
+ * The sorted list is quadratic, so it is skipped above listlimit files
+ * (default 1M). 10M files needs a large heap (-Xmx6g or so).
+ */
+public class SizeIndexBenchmark {
+	private static final int ITERATIONS = 3;
+
+	public static void main(String[] args) {
+		List<Integer> counts = new ArrayList<Integer>();
+		int listLimit = 1000000;
+
+		for (int ii = 0; ii < args.length; ++ii) {
+			if (args[ii].equals("-listlimit")) {
+				listLimit = Integer.parseInt(args[++ii]);
+			} else {
+				counts.add(Integer.valueOf(args[ii]));
+			}
+		}
+
+		if (counts.isEmpty()) {
+			counts.add(1000000);
+			counts.add(10000000);
+		}
+
+		for (int count : counts) {
+			FileInfo[] files = createFiles(count);
+
+			for (int iter = 0; iter < ITERATIONS; ++iter) {
+				long indexms = timeIndex(files);
+				String listms = (count <= listLimit) ? (timeSortedList(files) + " ms") : "skipped";
+
+				System.out.println(String.format("files=%d iteration=%d index=%d ms sortedlist=%s", //
+						count, iter, indexms, listms));
+			}
+		}
+	}
+
+	/** Create files with a spread of sizes, many of which collide */
+	private static FileInfo[] createFiles(int count) {
+		Random random = new Random(count);
+		FolderInfo folder = new FolderInfo((FolderInfo) null, "bench");
+		FileInfo[] files = new FileInfo[count];
+
+		for (int ii = 0; ii < count; ++ii) {
+			// Log-uniform sizes from 1 byte to about 1 GB
+			long size = (long) Math.pow(2.0, random.nextDouble() * 30.0);
+
+			files[ii] = new FileInfo(folder, "f" + ii, size, 0L);
+		}
+
+		return files;
+	}
+
+	private static long timeIndex(FileInfo[] files) {
+		long start = System.currentTimeMillis();
+
+		FileSizeIndex index = new FileSizeIndex();
+		for (FileInfo file : files) {
+			index.add(file);
+		}
+
+		long total = 0;
+		for (FileInfo file : index) {
+			total += file.getSize();
+		}
+
+		consume(total);
+
+		return System.currentTimeMillis() - start;
+	}
+
+	private static long timeSortedList(FileInfo[] files) {
+		long start = System.currentTimeMillis();
+
+		List<FileInfo> list = new ArrayList<FileInfo>();
+		for (FileInfo file : files) {
+			int idx = Collections.binarySearch(list, file, Context.compareFileSize);
+			if (idx < 0) {
+				idx = -(idx + 1);
+			}
+
+			list.add(idx, file);
+		}
+
+		long total = 0;
+		for (FileInfo file : list) {
+			total += file.getSize();
+		}
+
+		consume(total);
+
+		return System.currentTimeMillis() - start;
+	}
+
+	private static void consume(long value) {
+		if (value == 42) {
+			System.out.println();
+		}
+	}
+}
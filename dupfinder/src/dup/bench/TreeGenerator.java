@@ -0,0 +1,134 @@
+package dup.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Creates a synthetic folder tree for benchmarks.<br>
+ * File sizes are log-uniform between minSize and maxSize. A fraction of the
+ * files (duplicateRatio) are copies of earlier files, and another fraction
+ * (sameSizeRatio) have the size and content of an earlier file except for the
+ * last byte, so they can only be told apart by reading the whole file. The
+ * same settings and seed always produce the same tree.
+ */
+public class TreeGenerator {
+	public int fileCount = 10000;
+	public int filesPerFolder = 100;
+	public long minSize = 1;
+	public long maxSize = 1024 * 1024;
+	public double duplicateRatio = 0.1;
+	public double sameSizeRatio = 0.1;
+	public long seed = 1;
+
+	/** Statistics for the last tree generated */
+	public int filesWritten;
+	public long bytesWritten;
+
+	private static final int BLOCK_SIZE = 1024 * 64;
+
+	/** An original file, which later files may copy */
+	private static class Original {
+		public final long size;
+		public final long contentSeed;
+
+		public Original(long size, long contentSeed) {
+			this.size = size;
+			this.contentSeed = contentSeed;
+		}
+	}
+
+	/** Create the tree under a folder (which is created if necessary) */
+	public void generate(File root) throws IOException {
+		Random random = new Random(this.seed);
+		List<Original> originals = new ArrayList<Original>();
+		byte[] block = new byte[BLOCK_SIZE];
+
+		this.filesWritten = 0;
+		this.bytesWritten = 0;
+
+		for (int ii = 0; ii < this.fileCount; ++ii) {
+			int foldernum = ii / this.filesPerFolder;
+			File folder = new File(root, String.format("p%03d%sd%05d", //
+					foldernum / this.filesPerFolder, File.separator, foldernum));
+
+			if ((ii % this.filesPerFolder) == 0) {
+				folder.mkdirs();
+			}
+
+			double kind = random.nextDouble();
+			Original original;
+			boolean lastByteDiffers = false;
+
+			if (!originals.isEmpty() && (kind < this.duplicateRatio)) {
+				original = originals.get(random.nextInt(originals.size()));
+			} else if (!originals.isEmpty() && (kind < this.duplicateRatio + this.sameSizeRatio)) {
+				original = originals.get(random.nextInt(originals.size()));
+				lastByteDiffers = true;
+			} else {
+				double range = Math.log((double) this.maxSize / this.minSize);
+				long size = (long) (this.minSize * Math.exp(random.nextDouble() * range));
+
+				original = new Original(size, random.nextLong());
+				originals.add(original);
+			}
+
+			writeFile(new File(folder, String.format("f%07d.dat", ii)), original, //
+					lastByteDiffers ? random.nextInt(255) + 1 : 0, block);
+		}
+	}
+
+	/**
+	 * Write the content of a file: blocks of pseudo-random data, each stamped with
+	 * its block number so the content does not repeat.
+	 *
+	 * @param lastByteXor Value XORed with the last byte of the file
+	 */
+	private void writeFile(File file, Original original, int lastByteXor, byte[] block) throws IOException {
+		new Random(original.contentSeed).nextBytes(block);
+
+		OutputStream os = new FileOutputStream(file);
+
+		try {
+			for (long written = 0, blocknum = 0; written < original.size; ++blocknum) {
+				int length = (int) Math.min(BLOCK_SIZE, original.size - written);
+
+				for (int ii = 0; ii < Math.min(8, length); ++ii) {
+					block[ii] = (byte) (blocknum >>> (ii * 8));
+				}
+
+				if ((lastByteXor != 0) && (written + length == original.size)) {
+					block[length - 1] ^= lastByteXor;
+					os.write(block, 0, length);
+					block[length - 1] ^= lastByteXor;
+				} else {
+					os.write(block, 0, length);
+				}
+
+				written += length;
+			}
+		} finally {
+			os.close();
+		}
+
+		++this.filesWritten;
+		this.bytesWritten += original.size;
+	}
+
+	/** Delete a generated tree */
+	public static void delete(File file) {
+		File[] children = file.listFiles();
+
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+
+		file.delete();
+	}
+}
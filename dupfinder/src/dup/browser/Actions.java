@@ -10,7 +10,6 @@ import javax.swing.Icon;
 
 import dup.analyze.DetailLevel;
 import dup.model.Context;
-import dup.model.Database;
 import dup.model.FileInfo;
 import dup.util.Utility;
 
@@ -32,6 +31,7 @@ class Actions {
 		this.showGlobalDupsAction = new ShowGlobalDupsAction();
 		this.loadPrefixChecksumAction = new LoadPrefixChecksumAction();
 		this.loadSampleChecksumAction = new LoadSampleChecksumAction();
+		this.cancelLoadDetailsAction = new CancelLoadDetailsAction();
 	}
 
 	private void openContext() {
@@ -74,6 +74,10 @@ class Actions {
 		this.view.loadDetails(files, detail);
 	}
 
+	private void cancelLoadDetails() {
+		this.view.cancelLoadDetails();
+	}
+
 	private void recycleSelectedFiles(List<FileInfo> files) {
 		this.view.recycleSelectedFiles(files);
 	}
@@ -115,9 +119,7 @@ class Actions {
 		}
 
 		public void actionPerformed(ActionEvent e) {
-			for (Context context : Database.instance().getContexts().toArray(new Context[0])) {
-				closeContext(context);
-			}
+			Actions.this.view.closeAllContexts();
 		}
 	}
 
@@ -131,6 +133,16 @@ class Actions {
 		}
 	}
 
+	class CancelLoadDetailsAction extends AbstractAction {
+		public CancelLoadDetailsAction() {
+			super("CancelLoad", UIUtility.getIcon("imgDelete", "CancelLoad"));
+		}
+
+		public void actionPerformed(ActionEvent e) {
+			cancelLoadDetails();
+		}
+	}
+
 	class SaveAction extends AbstractAction {
 		Object[] selobjs;
 
@@ -350,6 +362,7 @@ class Actions {
 
 	LoadPrefixChecksumAction loadPrefixChecksumAction;
 	LoadSampleChecksumAction loadSampleChecksumAction;
+	CancelLoadDetailsAction cancelLoadDetailsAction;
 
 	RecycleAction recycleAction;
 	RecycleGDUPAction recycleGDUPAction;
@@ -1,70 +1,111 @@
 package dup.browser;
 
-import java.util.ArrayList;
+import java.lang.reflect.InvocationTargetException;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.SwingUtilities;
 
+import dup.analyze.AnalysisService;
+import dup.analyze.ChecksumValues;
 import dup.analyze.DetailLevel;
+import dup.analyze.LoadDetailsScheduler;
+import dup.analyze.LoadDetailsScheduler.Priority;
 import dup.model.Context;
 import dup.model.Database;
 import dup.model.FileInfo;
 import dup.model.FolderInfo;
 
 public class Controller {
-	Thread loadDetailsThread = new Thread() {
-		@Override
-		public void run() {
-			jobSchedulerTask();
+	/** Runs everything that changes the database, off the UI thread */
+	final AnalysisService analysisService = new AnalysisService(Database.instance());
+
+	/** Loads file details for the user's selections, on its own workers */
+	final LoadDetailsScheduler loadDetailsScheduler = new LoadDetailsScheduler(new LoadDetailsScheduler.Listener() {
+		public void fileLoaded(FileInfo file) {
+			Controller.this.browserTreeModel.nodeChanged(file);
+
+			updateProgress();
+		}
+
+		public void jobFinished(LoadDetailsScheduler.Job job, Map<FileInfo, ChecksumValues> loaded) {
+			// The checksums are set, and the view rebuilt, by the analysis
+			if (!loaded.isEmpty()) {
+				Controller.this.analysisService.analyzeFiles(loaded, job.getDetail());
+			}
+
+			updateProgress();
 		}
-	};
+	});
+
+	/** Set while a progress update is waiting for the UI thread */
+	private final AtomicBoolean progressUpdatePending = new AtomicBoolean();
 
 	public Controller() {
-		this.loadDetailsThread.start();
+		// The views read the model on the UI thread, so it is changed there too
+		Database.instance().setModelUpdater(new Database.ModelUpdater() {
+			public void update(Runnable change) {
+				if (SwingUtilities.isEventDispatchThread()) {
+					change.run();
+					return;
+				}
+
+				try {
+					SwingUtilities.invokeAndWait(change);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new CancellationException("Interrupted while updating the model");
+				} catch (InvocationTargetException e) {
+					if (e.getCause() instanceof RuntimeException) {
+						throw (RuntimeException) e.getCause();
+					}
+					if (e.getCause() instanceof Error) {
+						throw (Error) e.getCause();
+					}
+
+					throw new IllegalStateException(e.getCause());
+				}
+			}
+		});
 	}
 
 	public void setView(View view) {
 		this.view = view;
 	}
 
-	private void jobSchedulerTask() {
-		for (;;) {
-			synchronized (this.loadDetailsJobs) {
-				try {
-					if ((this.currJob != null) || this.loadDetailsJobs.isEmpty()) {
-						this.loadDetailsJobs.wait(100);
-					} else {
-						this.currJob = this.loadDetailsJobs.remove(0);
-						this.currJob.run();
-						this.currJob = null;
-
-						updateProgress();
-					}
-				} catch (InterruptedException e) {
-					// go on
-				}
-			}
-		}
+	public void shutDown() {
+		this.loadDetailsScheduler.shutDown();
+		this.analysisService.shutDown();
 	}
 
 	void loadDetails(List<FileInfo> files, DetailLevel detail) {
 		loadDetails(files.toArray(), detail);
 	}
 
+	/**
+	 * Queue the selected files, and their duplicates, to load details. Whole
+	 * contexts are loaded in the background, after files and folders the user
+	 * picked.
+	 */
 	void loadDetails(Object[] objects, DetailLevel detail) {
 		Set<FileInfo> filesToLoad = new HashSet<FileInfo>();
-		long totalBytes = 0;
+		Set<FileInfo> backgroundFiles = new HashSet<FileInfo>();
 
 		for (Object selobj : objects) {
+			Set<FileInfo> files = filesToLoad;
+
 			if (selobj instanceof Context) {
 				Context context = ((Context) selobj);
 
 				selobj = context.getRoot();
 				context.ingest();
+				files = backgroundFiles;
 			}
 
 			if (selobj instanceof FolderInfo) {
@@ -73,29 +114,32 @@ public class Controller {
 				while (iter.hasNext()) {
 					FileInfo file = iter.next();
 
-					totalBytes += addFileAndDuplicatesForLoad( //
-							filesToLoad, file, detail);
+					addFileAndDuplicatesForLoad(files, file, detail);
 				}
 			} else if (selobj instanceof FileInfo) {
 				FileInfo file = (FileInfo) selobj;
 
-				totalBytes += addFileAndDuplicatesForLoad( //
-						filesToLoad, file, detail);
+				addFileAndDuplicatesForLoad(files, file, detail);
 			}
 		}
 
-		if (filesToLoad.isEmpty()) {
-			return;
+		if (!filesToLoad.isEmpty()) {
+			this.loadDetailsScheduler.submit(filesToLoad, detail, Priority.USER);
 		}
 
-		synchronized (Controller.this.loadDetailsJobs) {
-			this.loadDetailsJobs.add(new LoadDetailsJob(filesToLoad, detail, totalBytes));
+		if (!backgroundFiles.isEmpty()) {
+			this.loadDetailsScheduler.submit(backgroundFiles, detail, Priority.BACKGROUND);
 		}
+
+		updateProgress();
 	}
 
-	private long addFileAndDuplicatesForLoad(Collection<FileInfo> filesToLoad, FileInfo file, DetailLevel detail) {
-		int filecount = filesToLoad.size();
+	/** Stop loading details for all selections */
+	void cancelLoadDetails() {
+		this.loadDetailsScheduler.cancelAll();
+	}
 
+	private void addFileAndDuplicatesForLoad(Collection<FileInfo> filesToLoad, FileInfo file, DetailLevel detail) {
 		FileInfo origfile = Database.instance().findFile(file);
 
 		if (//!origfile.isUnique() && 
@@ -114,8 +158,6 @@ public class Controller {
 				filesToLoad.add(dfile);
 			}
 		}
-
-		return (filesToLoad.size() - filecount) * origfile.getSize();
 	}
 
 	private View view;
@@ -123,126 +165,20 @@ public class Controller {
 	FolderTreeModel browserTreeModel;
 	FolderTreeModel duplicateTreeModel;
 
-	private final List<LoadDetailsJob> loadDetailsJobs = new ArrayList<LoadDetailsJob>();
-
-	LoadDetailsJob currJob = null;
-
-	public long currJobBytes() {
-		synchronized (this.loadDetailsJobs) {
-			return (this.currJob != null) ? this.currJob.totalBytes : 0;
-		}
-	}
-
-	public long processedCurJobBytes() {
-		synchronized (this.loadDetailsJobs) {
-			return (this.currJob != null) ? this.currJob.bytesProcessed : 0;
-		}
-	}
-
-	public long totalLoadJobBytes() {
-		long total = 0;
-
-		synchronized (this.loadDetailsJobs) {
-			if (this.currJob != null) {
-				total = this.currJob.totalBytes;
-			}
-
-			for (LoadDetailsJob job : loadDetailsJobs) {
-				total += job.totalBytes;
-			}
-		}
-
-		return total;
-	}
-
-	public long processedLoadJobBytes() {
-		long total = 0;
-
-		synchronized (this.loadDetailsJobs) {
-			if (this.currJob != null) {
-				total = this.currJob.bytesProcessed;
-			}
-
-			for (LoadDetailsJob job : loadDetailsJobs) {
-				total += job.bytesProcessed;
-			}
-		}
-
-		return total;
-	}
-
+	/**
+	 * Show the progress of loading details. Called from any thread; updates are
+	 * coalesced, so the UI thread reads the counters once for many files.
+	 */
 	protected void updateProgress() {
-		int percent = -1;
-
-		if ((this.currJob != null) && this.currJob.showProgress) {
-			long work = currJobBytes();
-			long progress = processedCurJobBytes();
-
-			percent = (int) ((progress * 100) / work);
-		}
-
-		this.view.updateProgress(percent);
-	}
-
-	class LoadDetailsJob implements Runnable {
-		Collection<FileInfo> filesToLoad;
-		DetailLevel detail;
-		long totalBytes;
-		long bytesProcessed = 0;
-		private boolean showProgress = true;
-
-		public LoadDetailsJob(Collection<FileInfo> files, DetailLevel detail, long totalBytes) {
-			this.filesToLoad = files;
-			this.detail = detail;
-			this.totalBytes = totalBytes;
-		}
-
-		public void setShowProgress(boolean yesno) {
-			this.showProgress = yesno;
-		}
-
-		public void run() {
-			Set<Context> changedContexts = new HashSet<Context>();
-
-			for (FileInfo file : this.filesToLoad) {
-				if (loadDetails(file, this.detail)) {
-					changedContexts.add(file.getContext());
-				}
-
-				updateProgress();
-			}
-
-			for (Context context : changedContexts) {
-				context.setDirty();
-			}
-
-			Database.instance().analyzeDuplicates();
-
-			try {
-				SwingUtilities.invokeAndWait(new Runnable() {
-					public void run() {
-						Controller.this.view.rebuildBrowseTree();
-					}
-				});
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
+		if (!this.progressUpdatePending.compareAndSet(false, true)) {
+			return;
 		}
 
-		private boolean loadDetails(FileInfo file, DetailLevel detail) {
-			if (!file.getDetailLevel().isLessThan(detail)) {
-				return false;
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				Controller.this.progressUpdatePending.set(false);
+				Controller.this.view.updateProgress(Controller.this.loadDetailsScheduler.getPercentDone());
 			}
-
-			Context context = file.getContext();
-
-			file.calcChecksums(context, detail);
-			this.bytesProcessed += file.getSize();
-			context.setDirty();
-
-			Controller.this.browserTreeModel.nodeChanged(file);
-
-			return true;
-		}
+		});
 	}
 }
@@ -4,11 +4,14 @@ import java.awt.BorderLayout;
 import java.awt.Container;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.File;
 
 import javax.swing.JFrame;
 import javax.swing.SwingUtilities;
 import javax.swing.WindowConstants;
 
+import dup.metrics.Metrics;
+import dup.metrics.MetricsReporter;
 import dup.model.Database;
 import dup.util.Trace;
 import dup.util.Utility;
@@ -46,6 +49,46 @@ import dup.util.Utility;
 // 
 
 public class DupBrowserApp {
+	/**
+	 * Metrics reporting, set by system properties: dup.metrics.period (report
+	 * interval in ms, 0 for none), dup.metrics.csv (file to append reports to)
+	 * and dup.metrics.json (file to write all metrics to on exit)
+	 */
+	private static MetricsReporter reporter = null;
+
+	private static void startMetrics() {
+		long period = Long.getLong("dup.metrics.period", 0);
+		String csv = System.getProperty("dup.metrics.csv");
+
+		if ((period <= 0) && (csv == null)) {
+			return;
+		}
+
+		try {
+			reporter = new MetricsReporter((period > 0) ? period : 10000, //
+					(csv != null) ? new File(csv) : null);
+			reporter.start();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static void stopMetrics() {
+		if (reporter != null) {
+			reporter.stop();
+		}
+
+		String json = System.getProperty("dup.metrics.json");
+
+		if (json != null) {
+			try {
+				Metrics.writeJson(new File(json));
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
 	private static void createAndShowGUI() {
 		// Force load environment
 		Database db = Database.instance();
@@ -54,7 +97,7 @@ public class DupBrowserApp {
 		frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
 		Container c = frame.getContentPane();
 
-		Controller controller = new Controller();
+		final Controller controller = new Controller();
 		View view = new View(controller);
 
 		c.add(view.getToolBar(), BorderLayout.PAGE_START);
@@ -66,7 +109,9 @@ public class DupBrowserApp {
 
 		frame.addWindowListener(new WindowAdapter() {
 			public void windowClosing(WindowEvent e) {
+				controller.shutDown();
 				Database.instance().shutDown();
+				stopMetrics();
 
 				super.windowClosing(e);
 			}
@@ -83,6 +128,8 @@ public class DupBrowserApp {
 		Trace.traceln(Trace.NORMAL, "Max memory=" //
 				+ Utility.formatSize(Runtime.getRuntime().maxMemory()));
 
+		startMetrics();
+
 		SwingUtilities.invokeLater(new Runnable() {
 			public void run() {
 				createAndShowGUI();
@@ -5,15 +5,20 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.swing.JTree;
+import javax.swing.SwingUtilities;
 import javax.swing.event.TreeModelEvent;
 import javax.swing.event.TreeModelListener;
 import javax.swing.tree.TreeModel;
 import javax.swing.tree.TreePath;
 
+import dup.metrics.Histogram;
+import dup.metrics.Metrics;
 import dup.model.Context;
 import dup.model.Database;
 import dup.model.FileInfo;
@@ -106,6 +111,7 @@ class TreeModelFilter {
 		if (b != yesno) {
 			this.flags = (yesno) ? (this.flags | itemType) : (this.flags & ~itemType);
 
+			this.model.invalidate();
 			this.model.structureChanged();
 		}
 	}
@@ -190,18 +196,82 @@ class TreeModelFilter {
 
 	public void setSelection(Object[] selfiles) {
 		this.selection = (selfiles == null) ? null : new HashSet<Object>(Arrays.asList(selfiles));
+
+		this.model.invalidate();
 	}
 }
 
+/**
+ * Tree of the open contexts, their folders and files, showing the folders and
+ * files that pass a filter.<br>
+ * The tree asks for the children of a node many times for each repaint, so the
+ * visible children of a folder are filtered and sorted once and kept until the
+ * filter or the folder changes, and the number of visible files in each
+ * folder's subtree (which decides whether an empty-looking folder is shown) is
+ * counted once. Everything is discarded when the filter or the tree structure
+ * changes; nodeChanged() discards only the entries of the node's folder and
+ * the folders above it.<br>
+ * The caches are only used on the event dispatch thread.
+ */
 public class FolderTreeModel implements TreeModel {
+	/** Time for the tree to rebuild itself after a structure change */
+	private static final Histogram rebuildTime = Metrics.histogram("treemodel.rebuild.time");
+
+	/** The visible subfolders and files of a folder, in display order */
+	private static class VisibleChildren {
+		public final FolderInfo[] folders;
+		public final FileInfo[] files;
+
+		public VisibleChildren(List<FolderInfo> folders, List<FileInfo> files) {
+			this.folders = folders.toArray(new FolderInfo[folders.size()]);
+			this.files = files.toArray(new FileInfo[files.size()]);
+		}
+
+		public int size() {
+			return this.folders.length + this.files.length;
+		}
+
+		public Object get(int index) {
+			if (index < this.folders.length) {
+				return this.folders[index];
+			}
+
+			index -= this.folders.length;
+
+			return (index < this.files.length) ? this.files[index] : null;
+		}
+
+		public int indexOf(Object child) {
+			Object[] nodes = (child instanceof FolderInfo) ? this.folders : this.files;
+			int base = (child instanceof FolderInfo) ? 0 : this.folders.length;
+
+			for (int ii = 0; ii < nodes.length; ++ii) {
+				if (nodes[ii] == child) {
+					return base + ii;
+				}
+			}
+
+			return -1;
+		}
+	}
+
 	private final JTree tree;
 	private Object root;
 	TreeModelFilter filter;
+	/** The contexts shown under the Database, from the latest analysis results */
+	private List<Context> contexts;
+
+	/** Visible children of the folders the tree has asked about */
+	private final Map<FolderInfo, VisibleChildren> visibleChildren = //
+			new IdentityHashMap<FolderInfo, VisibleChildren>();
+	/** Number of visible files in the subtree of each folder counted so far */
+	private final Map<FolderInfo, Integer> visibleFileCounts = new IdentityHashMap<FolderInfo, Integer>();
 
 	public FolderTreeModel(JTree tree) {
 		this.tree = tree;
 		this.root = Database.instance();
 		this.filter = new TreeModelFilter(this);
+		this.contexts = new ArrayList<Context>(Database.instance().getContexts());
 	}
 
 	public TreeModelFilter getModelFilter() {
@@ -221,13 +291,41 @@ public class FolderTreeModel implements TreeModel {
 		structureChanged();
 	}
 
+	/** Show a new list of contexts (call structureChanged() afterwards) */
+	void setContexts(List<Context> contexts) {
+		this.contexts = contexts;
+		invalidate();
+	}
+
+	/** Discard the visible children of all folders (the filter has changed) */
+	void invalidate() {
+		this.visibleChildren.clear();
+		this.visibleFileCounts.clear();
+	}
+
+	/** Discard the visible children of a folder and the folders above it */
+	private void invalidate(FolderInfo folder) {
+		for (; folder != null; folder = folder.getFolder()) {
+			this.visibleChildren.remove(folder);
+			this.visibleFileCounts.remove(folder);
+		}
+	}
+
 	public void structureChanged() {
+		invalidate();
+
 		if (this.listeners.isEmpty()) {
 			return;
 		}
 
-		TreeModelEvent e = new TreeModelEvent(this.tree, new Object[] { getRoot() });
+		long start = System.nanoTime();
+
+		fireStructureChanged(new TreeModelEvent(this.tree, new Object[] { getRoot() }));
 
+		rebuildTime.recordSince(start);
+	}
+
+	private void fireStructureChanged(TreeModelEvent e) {
 		TreeModelListener[] ll = this.listeners.toArray(new TreeModelListener[0]);
 
 		for (TreeModelListener l : ll) {
@@ -235,7 +333,25 @@ public class FolderTreeModel implements TreeModel {
 		}
 	}
 
-	public void nodeChanged(Object node) {
+	/**
+	 * Tell the tree that a node has changed, which may change whether it (and
+	 * its folder) is visible. May be called from any thread.
+	 */
+	public void nodeChanged(final Object node) {
+		if (!SwingUtilities.isEventDispatchThread()) {
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					nodeChanged(node);
+				}
+			});
+
+			return;
+		}
+
+		if (node instanceof FileObjectInfo) {
+			invalidate(((FileObjectInfo) node).getFolder());
+		}
+
 		if (this.listeners.isEmpty()) {
 			return;
 		}
@@ -246,7 +362,7 @@ public class FolderTreeModel implements TreeModel {
 		if (node instanceof Context) {
 			nodeObjects = new Object[] { node };
 		} else if (node instanceof FileObjectInfo) {
-			nodeObjects = ((FileObjectInfo) node).getPathFromRoot();
+			nodeObjects = getTreePath((FileObjectInfo) node);
 		}
 
 		nodePath = new TreePath(nodeObjects);
@@ -263,6 +379,12 @@ public class FolderTreeModel implements TreeModel {
 		} else {
 			int idx = getIndexOfChild(parentPath.getLastPathComponent(), node);
 
+			if (idx < 0) {
+				// The node is no longer visible
+				fireStructureChanged(new TreeModelEvent(this.tree, parentPath));
+				return;
+			}
+
 			indices = new int[] { idx };
 			nodes = new Object[] { node };
 		}
@@ -280,9 +402,26 @@ public class FolderTreeModel implements TreeModel {
 		}
 	}
 
+	/** The path to a node; the tree shows a context's root folder as the context */
+	private static Object[] getTreePath(FileObjectInfo node) {
+		List<Object> path = new ArrayList<Object>(Arrays.asList(node.getPathFromRoot()));
+
+		for (int ii = 0; ii < path.size(); ++ii) {
+			Object o = path.get(ii);
+
+			if ((o instanceof FolderInfo) && (((FolderInfo) o).getFolder() == null) && (ii > 0) //
+					&& (path.get(ii - 1) instanceof Context)) {
+				path.remove(ii);
+				break;
+			}
+		}
+
+		return path.toArray();
+	}
+
 	public int getChildCount(Object parent) {
 		if (parent instanceof Database) {
-			return getVisibleChildCount(Database.instance());
+			return getVisibleChildCount((Database) parent);
 		}
 
 		if (parent instanceof Context) {
@@ -304,7 +443,7 @@ public class FolderTreeModel implements TreeModel {
 		Object child = "MISSING";
 
 		if (parent instanceof Database) {
-			child = getVisibleChild(Database.instance(), index);
+			child = getVisibleChild((Database) parent, index);
 		} else if (parent instanceof Context) {
 			child = getVisibleChild(((Context) parent).getRoot(), index);
 		} else if (parent instanceof FolderInfo) {
@@ -319,7 +458,7 @@ public class FolderTreeModel implements TreeModel {
 	private int getVisibleChildCount(Database db) {
 		int n = 0;
 
-		n = db.getContexts().size();
+		n = this.contexts.size();
 		// for (Context context : db.getContexts()) {
 		// if (getVisibleChildCount(context) > 0) {
 		// ++n;
@@ -341,7 +480,7 @@ public class FolderTreeModel implements TreeModel {
 	}
 
 	private Object getVisibleChild(Database db, int index) {
-		List<Context> contexts = db.getContexts();
+		List<Context> contexts = this.contexts;
 
 		return (contexts.size() > index) ? contexts.get(index) : null;
 
@@ -361,21 +500,7 @@ public class FolderTreeModel implements TreeModel {
 	}
 
 	private Object getVisibleChild(FolderInfo folder, int index) {
-		Object child = null;
-
-		List<FolderInfo> folders = getVisibleFolders(folder);
-
-		if (folders.size() > index) {
-			child = folders.get(index);
-		} else {
-			index -= folders.size();
-
-			List<FileInfo> files = getVisibleFiles(folder);
-
-			if (files.size() > index) {
-				child = files.get(index);
-			}
-		}
+		Object child = getVisibleChildren(folder).get(index);
 
 		if (child == null) {
 			return "MISSING";
@@ -385,11 +510,24 @@ public class FolderTreeModel implements TreeModel {
 	}
 
 	private int getVisibleFolderCount(FolderInfo folder) {
-		return getVisibleFolders(folder).size();
+		return getVisibleChildren(folder).folders.length;
 	}
 
 	private int getVisibleFileCount(FolderInfo folder) {
-		return getVisibleFiles(folder).size();
+		return getVisibleChildren(folder).files.length;
+	}
+
+	/** Get the visible children of a folder, filtering and sorting them once */
+	private VisibleChildren getVisibleChildren(FolderInfo folder) {
+		VisibleChildren children = this.visibleChildren.get(folder);
+
+		if (children == null) {
+			children = new VisibleChildren(getVisibleFolders(folder), getVisibleFiles(folder));
+
+			this.visibleChildren.put(folder, children);
+		}
+
+		return children;
 	}
 
 	private List<FolderInfo> getVisibleFolders(FolderInfo parent) {
@@ -449,23 +587,31 @@ public class FolderTreeModel implements TreeModel {
 	}
 
 	private boolean isFolderVisible(FolderInfo folder) {
-		if (this.filter.showEmptyFolders()) {
-			return true;
-		}
+		return this.filter.showEmptyFolders() || (getVisibleFileCountInTree(folder) > 0);
+	}
 
-		for (FolderInfo subfolder : folder.getSubfolders()) {
-			if (isFolderVisible(subfolder)) {
-				return true;
+	/** Count the visible files in a folder and its subfolders, once */
+	private int getVisibleFileCountInTree(FolderInfo folder) {
+		Integer count = this.visibleFileCounts.get(folder);
+
+		if (count == null) {
+			int n = 0;
+
+			for (FolderInfo subfolder : folder.getSubfolders()) {
+				n += getVisibleFileCountInTree(subfolder);
 			}
-		}
 
-		for (FileInfo file : folder.getFiles()) {
-			if (isFileVisible(file)) {
-				return true;
+			for (FileInfo file : folder.getFiles()) {
+				if (isFileVisible(file)) {
+					++n;
+				}
 			}
+
+			count = n;
+			this.visibleFileCounts.put(folder, count);
 		}
 
-		return false;
+		return count;
 	}
 
 	private boolean isFileVisible(FileInfo file) {
@@ -473,8 +619,19 @@ public class FolderTreeModel implements TreeModel {
 	}
 
 	public int getIndexOfChild(Object parent, Object child) {
-		// Not implemented
-		return 0;
+		if (parent instanceof Database) {
+			return this.contexts.indexOf(child);
+		}
+
+		if (parent instanceof Context) {
+			parent = ((Context) parent).getRoot();
+		}
+
+		if (parent instanceof FolderInfo) {
+			return getVisibleChildren((FolderInfo) parent).indexOf(child);
+		}
+
+		return -1;
 	}
 
 	public boolean isLeaf(Object node) {
@@ -111,6 +111,8 @@ public class FoldersTreeCellRenderer extends DefaultTreeCellRenderer {
 			return "[P]";
 		case Sample:
 			return "[S]";
+		case Full:
+			return "[F]";
 		case Size:
 			return "[Z]";
 		default:
@@ -5,10 +5,14 @@ import java.awt.Container;
 import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collections;
 import java.util.List;
 
 import javax.swing.JToolBar;
+import javax.swing.SwingUtilities;
 
+import dup.analyze.AnalysisService;
+import dup.analyze.AnalysisSnapshot;
 import dup.analyze.DetailLevel;
 import dup.model.Context;
 import dup.model.Database;
@@ -23,6 +27,16 @@ public class View {
 		this.controller.setView(this);
 
 		this.widgets.createUI();
+
+		this.controller.analysisService.addListener(new AnalysisService.Listener() {
+			public void snapshotPublished(final AnalysisSnapshot snapshot) {
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						showSnapshot(snapshot);
+					}
+				});
+			}
+		});
 	}
 
 	void setDatabaseModel() {
@@ -54,6 +68,28 @@ public class View {
 		this.controller.loadDetails(files, detail);
 	}
 
+	void cancelLoadDetails() {
+		this.controller.cancelLoadDetails();
+	}
+
+	/** Show newly published analysis results (on the UI thread) */
+	void showSnapshot(AnalysisSnapshot snapshot) {
+		// Snapshots may be delivered late; never go back to older results
+		if ((this.snapshot != null) && (snapshot.getSequence() <= this.snapshot.getSequence())) {
+			return;
+		}
+
+		this.snapshot = snapshot;
+
+		this.controller.browserTreeModel.setContexts(snapshot.getContexts());
+		this.controller.duplicateTreeModel.setContexts(snapshot.getContexts());
+		this.widgets.updateStatus(snapshot.toString());
+
+		rebuildBrowseTree();
+
+		this.controller.analysisService.snapshotShown(snapshot);
+	}
+
 	public void rebuildBrowseTree() {
 		this.widgets.saveExpandedState();
 		this.controller.browserTreeModel.structureChanged();
@@ -110,33 +146,28 @@ public class View {
 		File file = this.widgets.openContextDialog();
 
 		if (file != null) {
-			Database.instance().openContext(file.getPath(), file.getName());
-
-			rebuildBrowseTree();
+			this.controller.analysisService.openContext(file.getPath(), file.getName());
 		}
 	}
 
 	void closeContext(Context context) {
-		Database.instance().closeContext(context);
+		this.controller.analysisService.closeContexts(Collections.singletonList(context));
 		this.browseTreeSelection = null;
-
-		rebuildBrowseTree();
 	}
 
 	void closeAllContexts() {
-		for (Context context : Database.instance().getContexts()) {
-			Database.instance().closeContext(context);
-		}
-
+		this.controller.analysisService.closeContexts(getContexts());
 		this.browseTreeSelection = null;
-
-		rebuildBrowseTree();
 	}
 
 	void saveContext(Context context) {
-		Database.instance().saveContext(context);
+		this.controller.analysisService.saveContext(context);
+	}
 
-		rebuildBrowseTree();
+	/** The open contexts, as of the latest analysis results */
+	List<Context> getContexts() {
+		return (this.snapshot != null) ? this.snapshot.getContexts() //
+				: this.controller.analysisService.getSnapshot().getContexts();
 	}
 
 	void recycleSelectedFiles(List<FileInfo> files) {
@@ -250,6 +281,9 @@ public class View {
 	private Widgets widgets;
 	private Controller controller;
 
+	/** The analysis results shown */
+	private AnalysisSnapshot snapshot = null;
+
 	private Object[] browseTreeSelection = null;
 	private Object[] dupTreeSelection = null;
 }
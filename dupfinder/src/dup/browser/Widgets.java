@@ -143,6 +143,10 @@ class Widgets {
 		}
 	}
 
+	public void updateStatus(String status) {
+		this.statusLabel.setText(status);
+	}
+
 	public void createUI() {
 		createToolBar();
 		createStatusBar();
@@ -165,6 +169,8 @@ class Widgets {
 		this.progressBar.setValue(0);
 		this.progressBar.setStringPainted(true);
 
+		this.statusLabel = new JLabel(" ");
+
 		this.statusBar = new JPanel();
 		this.statusBar.setBorder(new BevelBorder(BevelBorder.LOWERED));
 	}
@@ -222,6 +228,7 @@ class Widgets {
 		this.statusBar.setLayout(//
 				new BoxLayout(Widgets.this.statusBar, BoxLayout.X_AXIS));
 
+		this.statusBar.add("Status", this.statusLabel);
 		this.statusBar.add("Progress", this.progressBar);
 	}
 
@@ -273,6 +280,7 @@ class Widgets {
 
 		this.toolBar.add(this.loadPrefixChecksumButton);
 		this.toolBar.add(this.loadSampleChecksumButton);
+		this.toolBar.add(this.actions.cancelLoadDetailsAction).setToolTipText("Stop loading checksums");
 
 		this.toolBar.addSeparator();
 
@@ -479,6 +487,7 @@ class Widgets {
 	JSplitPane detailSplit2;
 
 	JPanel statusBar;
+	JLabel statusLabel;
 	JProgressBar progressBar;
 
 	JToggleButton showEmptyFoldersButton;
@@ -0,0 +1,274 @@
+package dup.cli;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import dup.analyze.Checksum;
+import dup.analyze.ChecksumPipeline;
+import dup.analyze.GroupComparator;
+import dup.analyze.SamplingPolicy;
+import dup.model.Context;
+import dup.model.Database;
+import dup.model.persist.Persistence;
+import dup.report.DuplicateReport;
+import dup.report.ReportWriter;
+import dup.util.FileUtil;
+import dup.util.Trace;
+import dup.util.Utility;
+
+/**
+ * Headless scanner: opens one or more folders as contexts, finds the
+ * duplicate files in and between them, writes the groups of identical files
+ * (most wasted space first) as JSON, JSON Lines or CSV and saves the contexts
+ * for the next scan. Files that are the same file on disk (hard links) are
+ * reported separately, as they take no extra space.<br>
+ * Usage: DupScanner [options] folder...<br>
+ * Options:
+ *
+ * <pre>
+ * --threads N        threads for walking folders and calculating checksums
+ * --max-memory SIZE  memory for file data buffers, e.g. 512m or 2g (the heap
+ *                    itself is limited with -Xmx)
+ * --format F         json (default), jsonl (JSON Lines, one group per line)
+ *                    or csv
+ * --output FILE      write the report to a file (default standard output)
+ * --db DIR           folder for saved contexts (default /tmp/dupdb)
+ * --sampling POLICY  parts of large files read for sample checksums, e.g.
+ *                    strided:16:1048576 (see SamplingPolicy)
+ * --no-save          do not save the contexts
+ * --quiet            no progress messages
+ * </pre>
+ *
+ * Progress messages go to standard error, so the report can be piped. The exit
+ * code is one of the EXIT_ values.
+ */
+public class DupScanner {
+	/** Scan completed */
+	public static final int EXIT_OK = 0;
+	/** Invalid command line */
+	public static final int EXIT_USAGE = 1;
+	/** A folder could not be scanned (the others are still reported) */
+	public static final int EXIT_OPEN_FAILED = 2;
+	/** The report or a context could not be written */
+	public static final int EXIT_IO_ERROR = 3;
+
+	private final List<String> roots = new ArrayList<String>();
+	private String format = "json";
+	private String output = null;
+	private boolean save = true;
+
+	public static void main(String[] args) {
+		System.exit(new DupScanner().run(args));
+	}
+
+	/** Run a scan, returning the exit code */
+	public int run(String[] args) {
+		Trace.out = System.err;
+
+		try {
+			parseArgs(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println("Error! " + e.getMessage());
+			usage();
+			return EXIT_USAGE;
+		}
+
+		Database db = Database.instance();
+		if (db == null) {
+			System.err.println("Error! No folder for saved contexts");
+			return EXIT_IO_ERROR;
+		}
+
+		int status = EXIT_OK;
+		List<Context> contexts = new ArrayList<Context>();
+
+		try {
+			for (String root : this.roots) {
+				File folder = new File(root).getAbsoluteFile();
+				Context context = db.openContext(folder.getPath(), folder.getName());
+
+				if (context == null) {
+					System.err.println("Error! Can't scan '" + root + "'");
+					status = EXIT_OPEN_FAILED;
+				} else {
+					contexts.add(context);
+				}
+			}
+
+			if (!writeReport(db)) {
+				status = EXIT_IO_ERROR;
+			}
+
+			if (this.save) {
+				for (Context context : contexts) {
+					Trace.traceln(Trace.NORMAL, "Saving context " + context.getName());
+
+					if (!Persistence.save(context)) {
+						status = EXIT_IO_ERROR;
+					}
+				}
+			}
+		} finally {
+			db.shutDown();
+		}
+
+		return status;
+	}
+
+	private void parseArgs(String[] args) {
+		for (int ii = 0; ii < args.length; ++ii) {
+			String arg = args[ii];
+
+			if (!arg.startsWith("--")) {
+				this.roots.add(arg);
+			} else if (arg.equals("--no-save")) {
+				this.save = false;
+			} else if (arg.equals("--quiet")) {
+				Trace.traceLevel = Trace.NONE;
+			} else if (arg.equals("--threads")) {
+				setThreads(parseInt(arg, getValue(args, ++ii)));
+			} else if (arg.equals("--max-memory")) {
+				setMaxMemory(parseSize(arg, getValue(args, ++ii)));
+			} else if (arg.equals("--format")) {
+				this.format = getValue(args, ++ii);
+
+				if (!Arrays.asList(ReportWriter.FORMATS).contains(this.format)) {
+					throw new IllegalArgumentException("Unknown format '" + this.format + "'");
+				}
+			} else if (arg.equals("--output")) {
+				this.output = getValue(args, ++ii);
+			} else if (arg.equals("--db")) {
+				FileUtil.dbFolderPath = getValue(args, ++ii);
+			} else if (arg.equals("--sampling")) {
+				Checksum.samplingPolicy = SamplingPolicy.parse(getValue(args, ++ii));
+			} else {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+
+		if (this.roots.isEmpty()) {
+			throw new IllegalArgumentException("No folders to scan");
+		}
+	}
+
+	/** Get the value following an option */
+	private static String getValue(String[] args, int index) {
+		if (index >= args.length) {
+			throw new IllegalArgumentException("Missing value for " + args[index - 1]);
+		}
+
+		return args[index];
+	}
+
+	private static void usage() {
+		System.err.println("Usage: DupScanner [--threads N] [--max-memory SIZE] [--format json|jsonl|csv]");
+		System.err.println("                  [--output FILE] [--db DIR] [--sampling POLICY] [--no-save]");
+		System.err.println("                  [--quiet] folder...");
+	}
+
+	private static int parseInt(String option, String value) {
+		try {
+			int n = Integer.parseInt(value);
+
+			if (n > 0) {
+				return n;
+			}
+		} catch (NumberFormatException e) {
+		}
+
+		throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+	}
+
+	/** Parse a size like 4096, 64k, 512m or 2g */
+	static long parseSize(String option, String value) {
+		String digits = value.toLowerCase();
+		long scale = 1;
+
+		if (digits.endsWith("k")) {
+			scale = 1024;
+		} else if (digits.endsWith("m")) {
+			scale = 1024 * 1024;
+		} else if (digits.endsWith("g")) {
+			scale = 1024 * 1024 * 1024;
+		}
+
+		if (scale > 1) {
+			digits = digits.substring(0, digits.length() - 1);
+		}
+
+		try {
+			long n = Long.parseLong(digits);
+
+			if (n > 0) {
+				return n * scale;
+			}
+		} catch (NumberFormatException e) {
+		}
+
+		throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+	}
+
+	private static void setThreads(int threads) {
+		FileUtil.ingestThreads = threads;
+		ChecksumPipeline.ioThreads = threads;
+		ChecksumPipeline.hashThreads = threads;
+	}
+
+	/**
+	 * Size the file data buffers to fit in a memory budget: half for comparing
+	 * groups of files, and half for checksum batches queued for hashing.
+	 */
+	private static void setMaxMemory(long bytes) {
+		long half = bytes / 2;
+
+		GroupComparator.maxBufferSpace = (int) Math.min(Integer.MAX_VALUE, half);
+
+		long batches = half / ChecksumPipeline.BATCH_SIZE / Math.max(1, ChecksumPipeline.hashThreads);
+		ChecksumPipeline.queueDepth = (int) Math.max(1, Math.min(ChecksumPipeline.queueDepth, batches));
+
+		if (Runtime.getRuntime().maxMemory() > bytes) {
+			Trace.traceln(Trace.NORMAL, "Heap limit is " + Utility.formatSize(Runtime.getRuntime().maxMemory()) //
+					+ "; use -Xmx to limit it to " + Utility.formatSize(bytes));
+		}
+	}
+
+	/** Write the duplicate groups of all open contexts */
+	private boolean writeReport(Database db) {
+		OutputStream os = null;
+
+		try {
+			os = (this.output != null) ? new FileOutputStream(this.output) : System.out;
+
+			PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(os, "UTF-8"), 1024 * 64));
+			ReportWriter writer = ReportWriter.create(this.format, out);
+
+			if (!writer.write(new DuplicateReport(db))) {
+				return false;
+			}
+
+			Trace.traceln(Trace.NORMAL, String.format("Reported %d duplicate groups, %d files, %s wasted", //
+					writer.getGroups(), writer.getFiles(), Utility.formatSize(writer.getWastedBytes())));
+
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			if ((os != null) && (os != System.out)) {
+				try {
+					os.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
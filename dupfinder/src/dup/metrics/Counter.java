@@ -0,0 +1,29 @@
+package dup.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** A count of events, safe to update from any thread */
+public class Counter {
+	private final String name;
+	private final LongAdder count = new LongAdder();
+
+	Counter(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public void increment() {
+		this.count.increment();
+	}
+
+	public void add(long n) {
+		this.count.add(n);
+	}
+
+	public long get() {
+		return this.count.sum();
+	}
+}
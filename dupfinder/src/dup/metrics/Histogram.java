@@ -0,0 +1,177 @@
+package dup.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of latencies in nanoseconds, safe to update from any thread.<br>
+ * Values are counted in log-linear buckets, as HdrHistogram does: each power of
+ * two is split into SUB_BUCKETS buckets, so any value is known to within about
+ * 3% and recording is a few atomic adds, whatever the range of values.
+ */
+public class Histogram {
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKET_COUNT = SUB_BUCKETS * (64 - SUB_BUCKET_BITS + 1);
+
+	private final String name;
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong(0);
+
+	Histogram(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	/** Record a value (negative values count as zero) */
+	public void record(long value) {
+		value = Math.max(0, value);
+
+		this.buckets.incrementAndGet(getIndex(value));
+		this.count.increment();
+		this.sum.add(value);
+
+		for (long current = this.max.get(); value > current; current = this.max.get()) {
+			if (this.max.compareAndSet(current, value)) {
+				break;
+			}
+		}
+	}
+
+	/** Record the time elapsed since a start time from System.nanoTime() */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	public long getCount() {
+		return this.count.sum();
+	}
+
+	/** Copy the current state of the histogram */
+	public Snapshot snapshot() {
+		long[] counts = new long[BUCKET_COUNT];
+
+		for (int ii = 0; ii < BUCKET_COUNT; ++ii) {
+			counts[ii] = this.buckets.get(ii);
+		}
+
+		return new Snapshot(counts, this.count.sum(), this.sum.sum(), this.max.get());
+	}
+
+	/** Bucket for a value */
+	static int getIndex(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int sub = (int) (value >>> shift) - SUB_BUCKETS;
+
+		return SUB_BUCKETS * (shift + 1) + sub;
+	}
+
+	/** Smallest value counted in a bucket */
+	static long getLowestValue(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+
+		int shift = index / SUB_BUCKETS - 1;
+		long sub = index % SUB_BUCKETS;
+
+		return (SUB_BUCKETS + sub) << shift;
+	}
+
+	/** Largest value counted in a bucket */
+	static long getHighestValue(int index) {
+		return (index + 1 < BUCKET_COUNT) ? getLowestValue(index + 1) - 1 : Long.MAX_VALUE;
+	}
+
+	/** The state of a histogram at some time */
+	public static class Snapshot {
+		private final long[] counts;
+		public final long count;
+		public final long sum;
+		/** Largest value recorded since the histogram was created */
+		public final long max;
+
+		Snapshot(long[] counts, long count, long sum, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		/** The values recorded between an earlier snapshot and this one */
+		public Snapshot since(Snapshot earlier) {
+			long[] counts = new long[BUCKET_COUNT];
+
+			for (int ii = 0; ii < BUCKET_COUNT; ++ii) {
+				counts[ii] = this.counts[ii] - earlier.counts[ii];
+			}
+
+			return new Snapshot(counts, this.count - earlier.count, this.sum - earlier.sum, this.max);
+		}
+
+		public long getMean() {
+			return (this.count > 0) ? this.sum / this.count : 0;
+		}
+
+		/**
+		 * Get a percentile of the recorded values
+		 *
+		 * @param percent 0 to 100
+		 * @return The highest value in the bucket holding the percentile (0 if empty)
+		 */
+		public long getPercentile(double percent) {
+			long target = (long) Math.ceil(this.count * Math.min(100.0, percent) / 100.0);
+			long seen = 0;
+
+			if (this.count == 0) {
+				return 0;
+			}
+
+			for (int ii = 0; ii < BUCKET_COUNT; ++ii) {
+				seen += this.counts[ii];
+
+				if ((seen >= target) && (seen > 0)) {
+					return Math.min(getHighestValue(ii), this.max);
+				}
+			}
+
+			return this.max;
+		}
+
+		public String toString() {
+			return String.format("n=%d mean=%s p50=%s p90=%s p99=%s max=%s", //
+					this.count, formatNanos(getMean()), //
+					formatNanos(getPercentile(50)), formatNanos(getPercentile(90)), //
+					formatNanos(getPercentile(99)), formatNanos(this.max));
+		}
+	}
+
+	/** Format a duration for display */
+	static String formatNanos(long nanos) {
+		if (nanos < TimeUnit.MICROSECONDS.toNanos(10)) {
+			return nanos + "ns";
+		}
+
+		if (nanos < TimeUnit.MILLISECONDS.toNanos(10)) {
+			return (nanos / 1000) + "us";
+		}
+
+		if (nanos < TimeUnit.SECONDS.toNanos(10)) {
+			return (nanos / 1000000) + "ms";
+		}
+
+		return (nanos / 1000000000) + "s";
+	}
+}
@@ -0,0 +1,35 @@
+package dup.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts events and the bytes they process, for reporting throughput. Rates
+ * are calculated from snapshots, over the interval between two snapshots.
+ */
+public class Meter {
+	private final String name;
+	private final LongAdder events = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+
+	Meter(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	/** Record an event that processed some number of bytes */
+	public void mark(long nbytes) {
+		this.events.increment();
+		this.bytes.add(nbytes);
+	}
+
+	public long getEvents() {
+		return this.events.sum();
+	}
+
+	public long getBytes() {
+		return this.bytes.sum();
+	}
+}
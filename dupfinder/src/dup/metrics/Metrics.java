@@ -0,0 +1,207 @@
+package dup.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of the counters, histograms and meters that instrument the hot
+ * paths. Metrics are created on first use and live for the whole run; their
+ * values only grow, so a report over some period is the difference between
+ * two snapshots.<br>
+ * Names are dotted, e.g. "checksum.full.time". Histograms ending in ".time"
+ * hold nanoseconds, and meters ending in ".bytes" count bytes.
+ */
+public class Metrics {
+	private static final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+	private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+	private static final ConcurrentMap<String, Meter> meters = new ConcurrentHashMap<String, Meter>();
+
+	/** Get (or create) a counter */
+	public static Counter counter(String name) {
+		Counter counter = counters.get(name);
+
+		if (counter == null) {
+			Counter newCounter = new Counter(name);
+
+			counter = counters.putIfAbsent(name, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+
+		return counter;
+	}
+
+	/** Get (or create) a histogram */
+	public static Histogram histogram(String name) {
+		Histogram histogram = histograms.get(name);
+
+		if (histogram == null) {
+			Histogram newHistogram = new Histogram(name);
+
+			histogram = histograms.putIfAbsent(name, newHistogram);
+			if (histogram == null) {
+				histogram = newHistogram;
+			}
+		}
+
+		return histogram;
+	}
+
+	/** Get (or create) a meter */
+	public static Meter meter(String name) {
+		Meter meter = meters.get(name);
+
+		if (meter == null) {
+			Meter newMeter = new Meter(name);
+
+			meter = meters.putIfAbsent(name, newMeter);
+			if (meter == null) {
+				meter = newMeter;
+			}
+		}
+
+		return meter;
+	}
+
+	/** Copy the current values of all metrics */
+	public static Snapshot snapshot() {
+		Snapshot snapshot = new Snapshot(System.currentTimeMillis(), System.nanoTime());
+
+		for (Counter counter : counters.values()) {
+			snapshot.counters.put(counter.getName(), counter.get());
+		}
+
+		for (Histogram histogram : histograms.values()) {
+			snapshot.histograms.put(histogram.getName(), histogram.snapshot());
+		}
+
+		for (Meter meter : meters.values()) {
+			snapshot.meters.put(meter.getName(), new long[] { meter.getEvents(), meter.getBytes() });
+		}
+
+		return snapshot;
+	}
+
+	/** Write a snapshot of all metrics to a JSON file */
+	public static void writeJson(File file) throws IOException {
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+
+		try {
+			snapshot().writeJson(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/** The values of all metrics at some time, sorted by name */
+	public static class Snapshot {
+		/** Wall clock time of the snapshot */
+		public final long timeMillis;
+		/** System.nanoTime() at the snapshot, for measuring intervals */
+		public final long nanoTime;
+
+		public final Map<String, Long> counters = new TreeMap<String, Long>();
+		public final Map<String, Histogram.Snapshot> histograms = new TreeMap<String, Histogram.Snapshot>();
+		/** Events and bytes for each meter */
+		public final Map<String, long[]> meters = new TreeMap<String, long[]>();
+
+		private Snapshot(long timeMillis, long nanoTime) {
+			this.timeMillis = timeMillis;
+			this.nanoTime = nanoTime;
+		}
+
+		/** The activity between an earlier snapshot and this one */
+		public Snapshot since(Snapshot earlier) {
+			Snapshot delta = new Snapshot(this.timeMillis, this.nanoTime);
+
+			for (Map.Entry<String, Long> entry : this.counters.entrySet()) {
+				Long before = earlier.counters.get(entry.getKey());
+
+				delta.counters.put(entry.getKey(), entry.getValue() - ((before != null) ? before : 0));
+			}
+
+			for (Map.Entry<String, Histogram.Snapshot> entry : this.histograms.entrySet()) {
+				Histogram.Snapshot before = earlier.histograms.get(entry.getKey());
+
+				delta.histograms.put(entry.getKey(), //
+						(before != null) ? entry.getValue().since(before) : entry.getValue());
+			}
+
+			for (Map.Entry<String, long[]> entry : this.meters.entrySet()) {
+				long[] before = earlier.meters.get(entry.getKey());
+				long[] values = entry.getValue();
+
+				delta.meters.put(entry.getKey(), (before != null) //
+						? new long[] { values[0] - before[0], values[1] - before[1] } //
+						: values);
+			}
+
+			return delta;
+		}
+
+		public long getCounter(String name) {
+			Long value = this.counters.get(name);
+
+			return (value != null) ? value : 0;
+		}
+
+		/** Get a histogram, or null if it has not been used */
+		public Histogram.Snapshot getHistogram(String name) {
+			return this.histograms.get(name);
+		}
+
+		/** Get the events and bytes of a meter (zero if it has not been used) */
+		public long[] getMeter(String name) {
+			long[] values = this.meters.get(name);
+
+			return (values != null) ? values : new long[2];
+		}
+
+		public void writeJson(PrintWriter out) {
+			out.println("{");
+			out.println("  \"time\": " + this.timeMillis + ",");
+
+			out.println("  \"counters\": {");
+			String sep = "";
+			for (Map.Entry<String, Long> entry : this.counters.entrySet()) {
+				out.print(sep + "    \"" + entry.getKey() + "\": " + entry.getValue());
+				sep = ",\n";
+			}
+			out.println();
+			out.println("  },");
+
+			out.println("  \"histograms\": {");
+			sep = "";
+			for (Map.Entry<String, Histogram.Snapshot> entry : this.histograms.entrySet()) {
+				Histogram.Snapshot h = entry.getValue();
+
+				out.print(sep + String.format("    \"%s\": { \"count\": %d, \"sum\": %d, \"mean\": %d, " //
+						+ "\"p50\": %d, \"p90\": %d, \"p99\": %d, \"max\": %d }", //
+						entry.getKey(), h.count, h.sum, h.getMean(), //
+						h.getPercentile(50), h.getPercentile(90), h.getPercentile(99), h.max));
+				sep = ",\n";
+			}
+			out.println();
+			out.println("  },");
+
+			out.println("  \"meters\": {");
+			sep = "";
+			for (Map.Entry<String, long[]> entry : this.meters.entrySet()) {
+				out.print(sep + String.format("    \"%s\": { \"events\": %d, \"bytes\": %d }", //
+						entry.getKey(), entry.getValue()[0], entry.getValue()[1]));
+				sep = ",\n";
+			}
+			out.println();
+			out.println("  }");
+			out.println("}");
+		}
+	}
+}
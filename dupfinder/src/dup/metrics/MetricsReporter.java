@@ -0,0 +1,147 @@
+package dup.metrics;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import dup.util.Trace;
+
+/**
+ * Reports the metrics that changed in each period, to the console and
+ * optionally to a CSV file, so each run can be charted.<br>
+ * CSV columns: time (ms), metric, type, count, bytes or sum, rate per second
+ * (events or bytes), mean, p50, p99, max. Times are in nanoseconds.
+ */
+public class MetricsReporter {
+	private static final String CSV_HEADER = "time,metric,type,count,total,rate,mean,p50,p99,max";
+
+	private final long periodMillis;
+	private final PrintWriter csv;
+	private ScheduledExecutorService executor = null;
+	private Metrics.Snapshot last;
+
+	/**
+	 * @param periodMillis Time between reports
+	 * @param csvFile      File to append rows to, or null for console only
+	 */
+	public MetricsReporter(long periodMillis, File csvFile) throws IOException {
+		this.periodMillis = periodMillis;
+
+		if (csvFile != null) {
+			boolean isNew = !csvFile.exists() || (csvFile.length() == 0);
+
+			this.csv = new PrintWriter(new FileWriter(csvFile, true));
+
+			if (isNew) {
+				this.csv.println(CSV_HEADER);
+			}
+		} else {
+			this.csv = null;
+		}
+	}
+
+	public synchronized void start() {
+		if (this.executor != null) {
+			return;
+		}
+
+		this.last = Metrics.snapshot();
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "MetricsReporter");
+				thread.setDaemon(true);
+
+				return thread;
+			}
+		});
+
+		this.executor.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				report();
+			}
+		}, this.periodMillis, this.periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/** Stop reporting, after a final report of anything since the last one */
+	public synchronized void stop() {
+		if (this.executor == null) {
+			return;
+		}
+
+		this.executor.shutdownNow();
+		this.executor = null;
+
+		report();
+
+		if (this.csv != null) {
+			this.csv.close();
+		}
+	}
+
+	/** Report activity since the previous report */
+	public synchronized void report() {
+		Metrics.Snapshot now = Metrics.snapshot();
+		Metrics.Snapshot delta = now.since(this.last);
+		double seconds = Math.max(1, now.nanoTime - this.last.nanoTime) / 1e9;
+
+		this.last = now;
+
+		for (Map.Entry<String, Long> entry : delta.counters.entrySet()) {
+			long count = entry.getValue();
+
+			if (count == 0) {
+				continue;
+			}
+
+			Trace.traceln(Trace.NORMAL, String.format("[metrics] %s %d (%.1f/s)", //
+					entry.getKey(), count, count / seconds));
+			writeRow(now, entry.getKey(), "counter", count, count, count / seconds, 0, 0, 0, 0);
+		}
+
+		for (Map.Entry<String, Histogram.Snapshot> entry : delta.histograms.entrySet()) {
+			Histogram.Snapshot h = entry.getValue();
+
+			if (h.count == 0) {
+				continue;
+			}
+
+			Trace.traceln(Trace.NORMAL, String.format("[metrics] %s %s", entry.getKey(), h.toString()));
+			writeRow(now, entry.getKey(), "histogram", h.count, h.sum, h.count / seconds, //
+					h.getMean(), h.getPercentile(50), h.getPercentile(99), h.max);
+		}
+
+		for (Map.Entry<String, long[]> entry : delta.meters.entrySet()) {
+			long events = entry.getValue()[0];
+			long bytes = entry.getValue()[1];
+
+			if (events == 0) {
+				continue;
+			}
+
+			Trace.traceln(Trace.NORMAL, String.format("[metrics] %s %d events %.1f MB/s", //
+					entry.getKey(), events, (bytes / (1024.0 * 1024.0)) / seconds));
+			writeRow(now, entry.getKey(), "meter", events, bytes, bytes / seconds, 0, 0, 0, 0);
+		}
+
+		if (this.csv != null) {
+			this.csv.flush();
+		}
+	}
+
+	private void writeRow(Metrics.Snapshot snapshot, String name, String type, //
+			long count, long total, double rate, long mean, long p50, long p99, long max) {
+		if (this.csv == null) {
+			return;
+		}
+
+		this.csv.println(String.format(Locale.ROOT, "%d,%s,%s,%d,%d,%.1f,%d,%d,%d,%d", //
+				snapshot.timeMillis, name, type, count, total, rate, mean, p50, p99, max));
+	}
+}
@@ -2,10 +2,12 @@ package dup.model;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 
+import dup.analyze.Checksum;
 import dup.analyze.DetailLevel;
 import dup.analyze.DuplicateChain;
 import dup.util.FileUtil;
@@ -35,6 +37,9 @@ public class Context implements Comparable<Context> {
 	/** Version of the saved data format */
 	private String version;
 
+	/** Name of the sampling policy the sample checksums were calculated with */
+	private String samplingPolicy;
+
 	/** Descriptor of the context root */
 	private FolderInfo rootFolder;
 
@@ -47,8 +52,8 @@ public class Context implements Comparable<Context> {
 	/** Number of files within the context TODO same as allFiles.size()? */
 	private int filecount;
 
-	/** List of files in context, sorted by size */
-	private List<FileInfo> allFiles;
+	/** Files in context, indexed by size */
+	private FileSizeIndex allFiles;
 
 	/** Number of bytes in all files */
 	private long totalsize;
@@ -84,12 +89,13 @@ public class Context implements Comparable<Context> {
 
 		this.persistenceFile = null;
 		this.version = null;
+		this.samplingPolicy = Checksum.samplingPolicy.getName();
 		this.dirty = false;
 		this.detailLevel = DetailLevel.None;
 		this.rootFolderFile = null;
 		this.rootFolder = null;
 
-		this.allFiles = new ArrayList<FileInfo>();
+		this.allFiles = new FileSizeIndex();
 		this.localDuplicates = new ArrayList<DuplicateChain>();
 
 		this.dupcount = 0;
@@ -130,7 +136,7 @@ public class Context implements Comparable<Context> {
 	public void close() {
 		restartAnalysis();
 
-		for (FileInfo f : this.allFiles.toArray(new FileInfo[0])) {
+		for (FileInfo f : this.allFiles.toArray()) {
 			f.dispose();
 		}
 
@@ -146,19 +152,9 @@ public class Context implements Comparable<Context> {
 
 		this.localDuplicates.clear();
 
-		clearDupCount(this.rootFolder);
 		clearDupFileInfo();
 	}
 
-	/** Reset duplicate counters for a subtree */
-	private void clearDupCount(FolderInfo folder) {
-		folder.folderDupCount = 0;
-
-		for (FolderInfo subfolder : folder.getSubfolders()) {
-			clearDupCount(subfolder);
-		}
-	}
-
 	/** Reset duplicate info for all files in this context */
 	private void clearDupFileInfo() {
 		Iterator<FileInfo> iter = this.rootFolder.iterateFiles(true);
@@ -296,58 +292,14 @@ public class Context implements Comparable<Context> {
 
 	/** Build a chain containing same-size files in this context */
 	public DuplicateChain getSameSizeFileChain(FileInfo file) {
-		if (this.allFiles.isEmpty()) {
+		List<FileInfo> samesize = this.allFiles.getFiles(file.getSize());
+		if (samesize.isEmpty()) {
 			return null;
 		}
 
-		int start = 0;
-		int end = this.allFiles.size();
-		int probe = -1;
-
-		for (;;) {
-			int mid = (end + start) / 2;
-
-			if (mid == probe) {
-				++probe;
-			} else {
-				probe = mid;
-			}
-
-			if (probe >= end) {
-				return null;
-			}
-
-			FileInfo probefile = this.allFiles.get(probe);
-
-			long diff = probefile.getSize() - file.getSize();
-			if (diff == 0) {
-				break;
-			}
-
-			if (diff < 0) {
-				start = probe + 1;
-			} else {
-				end = probe;
-			}
-		}
-
-		for (; probe > 0; --probe) {
-			FileInfo probefile = this.allFiles.get(probe - 1);
-
-			if (probefile.getSize() != file.getSize()) {
-				break;
-			}
-		}
-
-		DuplicateChain chain = new DuplicateChain(this.allFiles.get(probe));
-
-		for (; probe < this.allFiles.size(); ++probe) {
-			FileInfo probefile = this.allFiles.get(probe);
-
-			if (probefile.getSize() != file.getSize()) {
-				break;
-			}
+		DuplicateChain chain = new DuplicateChain();
 
+		for (FileInfo probefile : samesize) {
 			chain.addFile(probefile);
 		}
 
@@ -383,16 +335,15 @@ public class Context implements Comparable<Context> {
 		rebuildContextDuplicates();
 
 		dumpDuplicateChains(Trace.NORMAL, "Based on cksum/comparison");
-
-		for (FileInfo file : this.allFiles) {
-			if (!file.isUnique()) {
-				++file.getFolder().folderDupCount;
-			}
-		}
 	}
 
 	public void addFile(FileInfo file) {
-		FileUtil.addFile(this.allFiles, file);
+		this.allFiles.add(file);
+	}
+
+	/** Add a batch of files (while ingesting a context) */
+	public void addFiles(Collection<FileInfo> files) {
+		this.allFiles.addAll(files);
 	}
 
 	/** Put context files with the same size into DuplicateChains */
@@ -406,31 +357,20 @@ public class Context implements Comparable<Context> {
 //
 //		Collections.sort(this.allFiles, compareFileSize);
 
-		for (int ii = 0; ii < this.filecount;) {
-			FileInfo file = this.allFiles.get(ii);
-
-			int lastidx = ii + 1;
-
-			while ((lastidx < this.filecount) //
-					&& (this.allFiles.get(lastidx).getSize() == file.getSize())) {
-				++lastidx;
-			}
-
-			int sscount = lastidx - ii;
+		for (long size : this.allFiles.getSortedSizes()) {
+			List<FileInfo> samesize = this.allFiles.getFiles(size);
 
-			if (sscount == 1) {
+			if (samesize.size() == 1) {
 				++this.localUniqueCount;
 			} else {
 				DuplicateChain newchain = new DuplicateChain();
 
-				for (int di = ii; di < lastidx; ++di) {
-					newchain.addFile(this.allFiles.get(di));
+				for (FileInfo file : samesize) {
+					newchain.addFile(file);
 				}
 
 				this.localDuplicates.add(newchain);
 			}
-
-			ii = lastidx;
 		}
 	}
 
@@ -565,7 +505,16 @@ public class Context implements Comparable<Context> {
 		this.version = version;
 	}
 
-	public List<FileInfo> getAllFiles() {
+	public String getSamplingPolicy() {
+		return this.samplingPolicy;
+	}
+
+	public void setSamplingPolicy(String samplingPolicy) {
+		this.samplingPolicy = samplingPolicy;
+	}
+
+	/** Get the files in this context, indexed by size */
+	public FileSizeIndex getAllFiles() {
 		return this.allFiles;
 	}
 
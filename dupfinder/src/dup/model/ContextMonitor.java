@@ -0,0 +1,312 @@
+package dup.model;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import dup.util.Trace;
+
+/**
+ * Watches the folder of an open context for changes on disk.<br>
+ * Every folder in the tree is registered with a WatchService. Events are
+ * collected by folder until none have arrived for settleMillis (or they have
+ * been arriving for maxDelayMillis), and then the folders are handed to the
+ * listener together, so a burst of changes (a copy, a build) is applied in one
+ * step. If the filesystem cannot be watched, the tree is polled every
+ * pollMillis instead, comparing the names, sizes and modified times of each
+ * folder's entries.
+ */
+public class ContextMonitor {
+	/** Quiet time after the last event before the changes are reported */
+	public static long settleMillis = 500;
+	/** Longest time changes are held while events keep arriving */
+	public static long maxDelayMillis = 5000;
+	/** Interval between scans when polling */
+	public static long pollMillis = 10000;
+	/** Poll even where the filesystem can be watched (e.g. network shares) */
+	public static boolean forcePolling = false;
+
+	/** Told about changes, on the monitor thread */
+	public interface Listener {
+		/** Entries in some folders (which may no longer exist) changed */
+		void foldersChanged(Context context, Set<File> folders);
+	}
+
+	private final Context context;
+	private final Listener listener;
+	private final Path root;
+	private Thread thread = null;
+	private volatile boolean stopped = false;
+	private volatile boolean polling = false;
+
+	private WatchService watcher = null;
+	private final Map<WatchKey, Path> watchedFolders = new HashMap<WatchKey, Path>();
+
+	/** Folders with changes not reported yet, and when the first and last came in */
+	private final Set<File> pending = new LinkedHashSet<File>();
+	private long firstChange = 0;
+	private long lastChange = 0;
+
+	public ContextMonitor(Context context, Listener listener) {
+		this.context = context;
+		this.listener = listener;
+		this.root = context.getRootFile().getAbsoluteFile().toPath();
+	}
+
+	public Context getContext() {
+		return this.context;
+	}
+
+	/** Is the tree being polled, because it cannot be watched? */
+	public boolean isPolling() {
+		return this.polling;
+	}
+
+	public synchronized void start() {
+		if (this.thread != null) {
+			return;
+		}
+
+		this.thread = new Thread("ContextMonitor-" + this.context.getName()) {
+			public void run() {
+				monitor();
+			}
+		};
+
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/** Stop monitoring; changes not reported yet are dropped */
+	public synchronized void stop() {
+		this.stopped = true;
+
+		if (this.thread != null) {
+			this.thread.interrupt();
+		}
+
+		if (this.watcher != null) {
+			try {
+				this.watcher.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void monitor() {
+		try {
+			if (!forcePolling && startWatching()) {
+				watch();
+			} else {
+				this.polling = true;
+
+				Trace.traceln(Trace.NORMAL, "Polling context " + this.context.getName() + " for changes");
+
+				poll();
+			}
+		} catch (InterruptedException e) {
+			// Stopped
+		} catch (ClosedWatchServiceException e) {
+			// Stopped
+		}
+	}
+
+	/** @return False if the tree cannot be watched */
+	private boolean startWatching() {
+		try {
+			WatchService service = this.root.getFileSystem().newWatchService();
+
+			synchronized (this) {
+				if (this.stopped) {
+					service.close();
+					return false;
+				}
+
+				this.watcher = service;
+			}
+
+			registerTree(this.root);
+
+			return true;
+		} catch (UnsupportedOperationException e) {
+			// Fall through to polling
+		} catch (IOException e) {
+			Trace.traceln(Trace.NORMAL, "Cannot watch " + this.root + ": " + e);
+		}
+
+		if (this.watcher != null) {
+			try {
+				this.watcher.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+
+			this.watchedFolders.clear();
+		}
+
+		return false;
+	}
+
+	/** Register a folder and the folders under it */
+	private void registerTree(Path folder) throws IOException {
+		Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				WatchKey key = dir.register(ContextMonitor.this.watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+				ContextMonitor.this.watchedFolders.put(key, dir);
+
+				return FileVisitResult.CONTINUE;
+			}
+
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private void watch() throws InterruptedException {
+		while (!this.stopped) {
+			WatchKey key = this.watcher.poll(this.pending.isEmpty() ? maxDelayMillis : settleMillis, //
+					TimeUnit.MILLISECONDS);
+
+			if (key != null) {
+				Path folder = this.watchedFolders.get(key);
+
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == OVERFLOW) {
+						// Events were lost - look at every folder
+						for (Path watched : this.watchedFolders.values()) {
+							changed(watched);
+						}
+					} else if (folder != null) {
+						changed(folder);
+
+						Path child = folder.resolve((Path) event.context());
+
+						// Changes inside a new folder may have come before it was registered,
+						// but refreshing its parent picks up the whole folder
+						if ((event.kind() == ENTRY_CREATE) && Files.isDirectory(child)) {
+							try {
+								registerTree(child);
+							} catch (IOException e) {
+								// Deleted already
+							}
+						}
+					}
+				}
+
+				// Deleted folders' keys become invalid
+				if (!key.reset()) {
+					this.watchedFolders.remove(key);
+				}
+			}
+
+			long now = System.currentTimeMillis();
+
+			if (!this.pending.isEmpty() && ((now - this.lastChange >= settleMillis) //
+					|| (now - this.firstChange >= maxDelayMillis))) {
+				report();
+			}
+		}
+	}
+
+	private void poll() throws InterruptedException {
+		Map<File, Long> signatures = scan();
+
+		while (!this.stopped) {
+			Thread.sleep(pollMillis);
+
+			Map<File, Long> current = scan();
+
+			for (Map.Entry<File, Long> entry : current.entrySet()) {
+				if (!entry.getValue().equals(signatures.remove(entry.getKey()))) {
+					this.pending.add(entry.getKey());
+				}
+			}
+
+			// Folders that are gone
+			this.pending.addAll(signatures.keySet());
+			signatures = current;
+
+			if (!this.pending.isEmpty() && !this.stopped) {
+				report();
+			}
+		}
+	}
+
+	/** Summarize the entries of every folder in the tree */
+	private Map<File, Long> scan() {
+		Map<File, Long> signatures = new HashMap<File, Long>();
+
+		scan(this.root.toFile(), signatures);
+
+		return signatures;
+	}
+
+	private void scan(File folder, Map<File, Long> signatures) {
+		File[] children = folder.listFiles();
+		if (children == null) {
+			return;
+		}
+
+		// Entries come in no particular order, so combine them with a sum
+		long signature = 0;
+
+		for (File child : children) {
+			if (child.isDirectory()) {
+				signature += 31L * child.getName().hashCode();
+
+				scan(child, signatures);
+			} else {
+				signature += 17L * child.getName().hashCode() //
+						+ 31L * child.length() + child.lastModified();
+			}
+		}
+
+		signatures.put(folder, signature);
+	}
+
+	private void changed(Path folder) {
+		long now = System.currentTimeMillis();
+
+		if (this.pending.isEmpty()) {
+			this.firstChange = now;
+		}
+
+		this.pending.add(folder.toFile());
+		this.lastChange = now;
+	}
+
+	private void report() {
+		Set<File> folders = new LinkedHashSet<File>(this.pending);
+
+		this.pending.clear();
+
+		Trace.traceln(Trace.VERBOSE, "Context " + this.context.getName() + ": " //
+				+ folders.size() + " folders changed");
+
+		try {
+			this.listener.foldersChanged(this.context, folders);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -1,26 +1,49 @@
 package dup.model;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import dup.analyze.Analyzer;
 import dup.analyze.Checksum;
+import dup.analyze.ChecksumPipeline;
+import dup.analyze.ChecksumValues;
 import dup.analyze.DetailLevel;
 import dup.analyze.DupDiffFileInfo;
 import dup.analyze.DuplicateInfo2;
+import dup.analyze.DuplicateTotals;
+import dup.metrics.Histogram;
+import dup.metrics.Metrics;
 import dup.model.persist.ContextLoader;
+import dup.model.persist.ContextReconciler;
 import dup.model.persist.Persistence;
+import dup.model.persist.VerificationCache;
 import dup.util.FileUtil;
+import dup.util.LongHashMap;
 import dup.util.Trace;
 import dup.util.Utility;
 
 public class Database {
 	public static Collection<DupDiffFileInfo> NoFiles = new ArrayList<DupDiffFileInfo>();
 	public static boolean skipFileComparison = false;
+	/**
+	 * Rescan the folder when opening a saved context, reusing saved checksums for
+	 * unchanged files. If false, the saved context is used as is.
+	 */
+	public static boolean reconcileSavedContexts = true;
 
 	public static Database instance() {
 		if (instance == null) {
@@ -38,12 +61,83 @@ public class Database {
 	private static Database instance = null;
 
 	private List<Context> contexts = new ArrayList<Context>();
-	private List<FileInfo> files = new ArrayList<FileInfo>();
-	public final List<DuplicateInfo2> duplicates = new ArrayList<DuplicateInfo2>();
+	/** The open contexts, indexed by Context.id (FileObjectInfo.contextid) */
+	private Context[] contextsById = new Context[16];
+	private final FileSizeIndex files = new FileSizeIndex();
+
+	/** Groups of same-size files (sorted on demand by getDuplicates()) */
+	private final List<DuplicateInfo2> duplicates = new ArrayList<DuplicateInfo2>();
+	private final LongHashMap<DuplicateInfo2> duplicateIndex = new LongHashMap<DuplicateInfo2>();
+	private boolean duplicatesSorted = true;
+	/** Groups of same-size files with files added or removed since they were processed */
+	private final Set<DuplicateInfo2> changedDuplicates = //
+			Collections.newSetFromMap(new IdentityHashMap<DuplicateInfo2, Boolean>());
+	/** Summary of the duplicates in all groups, updated as groups are processed */
+	private final DuplicateTotals totals = new DuplicateTotals();
 
 	/** TODO Flags whether the file model is initialized yet */
 	private boolean modelAvailable = false;
 
+	/** Told as each level of detail is finished while processing changed files */
+	public interface StageListener {
+		void stageCompleted(DetailLevel level);
+	}
+
+	private StageListener stageListener = null;
+
+	/**
+	 * Applies changes to the model that a UI reads: the open contexts and their
+	 * folders, the groups of same-size files and the duplicates of each file. A
+	 * UI sets one that runs each change on its own thread and waits for it;
+	 * reading and comparing the files to work out the changes stays on the
+	 * thread that called the Database.
+	 */
+	public interface ModelUpdater {
+		void update(Runnable change);
+	}
+
+	/** Makes changes on the calling thread */
+	private static final ModelUpdater DIRECT_UPDATER = new ModelUpdater() {
+		public void update(Runnable change) {
+			change.run();
+		}
+	};
+
+	private ModelUpdater modelUpdater = DIRECT_UPDATER;
+
+	/** Contexts closed, not released yet */
+	private Removed removed = new Removed();
+	/** Keep closed contexts and removed files until takeRemoved() instead of releasing them */
+	private boolean deferRelease = false;
+
+	/**
+	 * Contexts closed, whose files' memory (FileTable rows and sample bytes) is
+	 * released later, once nothing shows them
+	 */
+	public static class Removed {
+		private final List<Context> contexts = new ArrayList<Context>();
+		/** Files removed from contexts that are still open */
+		private final List<FileInfo> files = new ArrayList<FileInfo>();
+
+		public boolean isEmpty() {
+			return this.contexts.isEmpty() && this.files.isEmpty();
+		}
+
+		/** Release the memory; the contexts and files must not be used again */
+		public void release() {
+			for (Context context : this.contexts) {
+				context.close();
+			}
+
+			for (FileInfo file : this.files) {
+				file.dispose();
+			}
+
+			this.contexts.clear();
+			this.files.clear();
+		}
+	}
+
 	private Database() {
 		FileUtil.setupDBFolder();
 
@@ -51,14 +145,81 @@ public class Database {
 	}
 
 	// Trivial getters/setters
+	/** Get the open contexts, sorted by name (read-only) */
 	public List<Context> getContexts() {
-		return this.contexts;
+		return Collections.unmodifiableList(this.contexts);
+	}
+
+	/** Get an open context by id, or null if it is not open */
+	public Context getContext(int id) {
+		return ((id > 0) && (id < this.contextsById.length)) ? this.contextsById[id] : null;
+	}
+
+	/** Add a context, in name order, without processing or analyzing its files */
+	public void addContext(Context context) {
+		int idx = 0;
+		for (; idx < this.contexts.size(); ++idx) {
+			Context ctx = this.contexts.get(idx);
+			if (ctx.getName().compareToIgnoreCase(context.getName()) >= 0) {
+				break;
+			}
+		}
+
+		this.contexts.add(idx, context);
+
+		if (context.id >= this.contextsById.length) {
+			this.contextsById = Arrays.copyOf(this.contextsById, //
+					Math.max(context.id + 1, this.contextsById.length * 2));
+		}
+
+		this.contextsById[context.id] = context;
 	}
 
 	public void setModelAvailable(boolean yesno) {
 		this.modelAvailable = yesno;
 	}
 
+	/**
+	 * Keep closed contexts and removed files until takeRemoved() is called, for
+	 * a view that may still be showing them, instead of releasing them at once
+	 */
+	public void setDeferRelease(boolean yesno) {
+		this.deferRelease = yesno;
+	}
+
+	/** Take the contexts closed and files removed since the last call, to release later */
+	public Removed takeRemoved() {
+		Removed taken = this.removed;
+
+		this.removed = new Removed();
+
+		return taken;
+	}
+
+	/** Set the listener for processing stages (null for none) */
+	public void setStageListener(StageListener listener) {
+		this.stageListener = listener;
+	}
+
+	/** Set how changes to the model are applied (null to make them directly) */
+	public void setModelUpdater(ModelUpdater updater) {
+		this.modelUpdater = (updater != null) ? updater : DIRECT_UPDATER;
+	}
+
+	/** Change the model through the model updater */
+	private void update(Runnable change) {
+		this.modelUpdater.update(change);
+	}
+
+	/** Update the global duplicates of the files in some groups of same-size files */
+	private void updateGlobalDuplicates(final Collection<DuplicateInfo2> dupinfos) {
+		update(new Runnable() {
+			public void run() {
+				Analyzer.analyzeGlobalDuplicates(Database.this.contexts, dupinfos);
+			}
+		});
+	}
+
 	// =========================================================
 	// System management
 	// =========================================================
@@ -78,6 +239,10 @@ public class Database {
 			context.close();
 		}
 
+		takeRemoved().release();
+
+		VerificationCache.closeInstance();
+
 		instance = null;
 	}
 
@@ -88,6 +253,7 @@ public class Database {
 		}
 
 		Persistence.loadDatabase();
+		VerificationCache.instance();
 
 		// for (File f : Persistence.getDbFolder().listFiles()) {
 		// if (f.isFile() && f.canRead() && f.getName().endsWith(".db")) {
@@ -103,15 +269,438 @@ public class Database {
 		analyzeDuplicates();
 	}
 
-	/** Close a context */
-	public void closeContext(Context context) {
+	/**
+	 * Close a context, removing its files from the Database. Only the groups of
+	 * same-size files that had files in the context are processed again. The
+	 * context is then released (Context.close()), or kept for takeRemoved() if
+	 * release is deferred.
+	 */
+	public void closeContext(final Context context) {
 		if (this.contexts.contains(context)) {
 			// TODO autosave - saveContext(context);
-			this.contexts.remove(context);
-			analyzeDuplicates();
+			update(new Runnable() {
+				public void run() {
+					removeContext(context);
+				}
+			});
+
+			updateGlobalDuplicates(processChangedFiles());
+
+			this.removed.contexts.add(context);
+
+			if (!this.deferRelease) {
+				takeRemoved().release();
+			}
+		}
+	}
+
+	/** Remove a context and its files from the Database, before its groups are processed */
+	private void removeContext(Context context) {
+		this.contexts.remove(context);
+		this.contextsById[context.id] = null;
+
+		Trace.traceln(Trace.NORMAL, "Closing context " + context.getName());
+
+		List<FileInfo> files = Arrays.asList(context.getAllFiles().toArray());
+
+		// Remove the files from each list they are in with one pass over it
+		Map<DuplicateInfo2, List<FileInfo>> touched = new IdentityHashMap<DuplicateInfo2, List<FileInfo>>();
+
+		for (FileInfo file : files) {
+			DuplicateInfo2 dupinfo = getDuplicateInfo(file);
+
+			if (dupinfo != null) {
+				List<FileInfo> groupFiles = touched.get(dupinfo);
+
+				if (groupFiles == null) {
+					groupFiles = new ArrayList<FileInfo>();
+					touched.put(dupinfo, groupFiles);
+				}
+
+				groupFiles.add(file);
+			}
+		}
+
+		this.files.removeAll(files);
+
+		for (Map.Entry<DuplicateInfo2, List<FileInfo>> entry : touched.entrySet()) {
+			entry.getKey().forgetFiles(entry.getValue());
+			this.changedDuplicates.add(entry.getKey());
+		}
+
+		for (FileInfo file : files) {
+			file.removeFromContextDuplicates();
+			file.dupinfo2 = null;
+		}
+
+		discardLoneGroups(touched.keySet());
+	}
+
+	/** Files left alone with their size no longer need a group */
+	private void discardLoneGroups(Collection<DuplicateInfo2> groups) {
+		// A set, so removing them from the list takes one pass
+		Set<DuplicateInfo2> emptied = //
+				Collections.newSetFromMap(new IdentityHashMap<DuplicateInfo2, Boolean>());
+
+		for (DuplicateInfo2 dupinfo : groups) {
+			if (dupinfo.getFileCount() < 2) {
+				this.duplicateIndex.remove(dupinfo.fileSize());
+				this.changedDuplicates.remove(dupinfo);
+				this.totals.remove(dupinfo);
+
+				for (FileInfo file : this.files.getFiles(dupinfo.fileSize())) {
+					file.removeFromDuplicateChains();
+					file.dupinfo2 = null;
+				}
+
+				emptied.add(dupinfo);
+			}
+		}
+
+		if (!emptied.isEmpty()) {
+			this.duplicates.removeAll(emptied);
 		}
 	}
 
+	/**
+	 * Bring a context up to date with changes on disk in some of its folders.
+	 * Files added, deleted or modified in the folders, and subfolders created or
+	 * deleted, are added to or removed from the Database and the context. A
+	 * modified file is replaced by a new FileInfo, so only it is read again. The
+	 * FileInfos removed are disposed like a closed context's files, at once or
+	 * through takeRemoved() if the UI may still be showing them.
+	 * Only the groups of same-size files that changed are processed again.
+	 *
+	 * @param folders Folders on disk; a folder that no longer exists refreshes
+	 *                the nearest folder above it
+	 * @return The number of files and folders added or removed
+	 */
+	public int refreshFolders(final Context context, Collection<File> folders) {
+		if (!this.contexts.contains(context)) {
+			return 0;
+		}
+
+		Set<FolderInfo> refresh = new LinkedHashSet<FolderInfo>();
+
+		for (File folder : folders) {
+			FolderInfo folderInfo = findFolderOnDisk(context, folder);
+
+			if (folderInfo != null) {
+				refresh.add(folderInfo);
+			}
+		}
+
+		// Read the folders on disk before changing the context to match
+		final List<FolderScan> scans = new ArrayList<FolderScan>();
+
+		for (FolderInfo folder : refresh) {
+			FolderScan scan = scanFolder(context, folder);
+
+			if (scan != null) {
+				scans.add(scan);
+			}
+		}
+
+		final List<FileInfo> added = new ArrayList<FileInfo>();
+		final int[] changes = { 0 };
+
+		update(new Runnable() {
+			public void run() {
+				Set<DuplicateInfo2> touched = //
+						Collections.newSetFromMap(new IdentityHashMap<DuplicateInfo2, Boolean>());
+
+				for (FolderScan scan : scans) {
+					// Skip folders that went away with a folder refreshed before them
+					if (isInTree(context, scan.folder)) {
+						changes[0] += refreshFolder(context, scan, added, touched);
+					} else {
+						scan.dispose();
+					}
+				}
+
+				if (changes[0] > 0) {
+					discardLoneGroups(touched);
+
+					context.getFileCount(true);
+					context.determineDetailLevel();
+					context.setDirty();
+				}
+			}
+		});
+
+		if (changes[0] == 0) {
+			return 0;
+		}
+
+		Trace.traceln(Trace.NORMAL, "Refreshed " + changes[0] + " files in context " + context.getName());
+
+		final List<DuplicateInfo2> changed = processChangedFiles();
+
+		update(new Runnable() {
+			public void run() {
+				for (FileInfo file : added) {
+					linkContextDuplicates(file);
+				}
+
+				Analyzer.analyzeGlobalDuplicates(Database.this.contexts, changed);
+			}
+		});
+
+		if (!this.deferRelease) {
+			takeRemoved().release();
+		}
+
+		return changes[0];
+	}
+
+	/**
+	 * Context duplicates are only gathered when a context is opened, so link a
+	 * file added since then to the files in its context that it duplicates
+	 */
+	private static void linkContextDuplicates(FileInfo file) {
+		List<FileInfo> dups = (file.dupinfo2 != null) ? file.dupinfo2.getDuplicates(file) : null;
+		if (dups == null) {
+			return;
+		}
+
+		for (FileInfo other : dups) {
+			// Linking to one file links to all of its duplicates
+			if ((other != file) && (other.contextid == file.contextid) && file.addFileToDuplicateChain(other)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Find the folder of a context for a folder on disk. If the folder (or one
+	 * above it) no longer exists, or is not in the context yet, the nearest
+	 * folder above it is returned instead.
+	 *
+	 * @return The folder, or null if the folder is not inside the context
+	 */
+	private static FolderInfo findFolderOnDisk(Context context, File folder) {
+		File root = context.getRootFile().getAbsoluteFile();
+		List<String> names = new ArrayList<String>();
+
+		for (File dir = folder.getAbsoluteFile(); !dir.equals(root); dir = dir.getParentFile()) {
+			if (dir.getParentFile() == null) {
+				return null;
+			}
+
+			names.add(0, dir.getName());
+		}
+
+		FolderInfo folderInfo = context.getRoot();
+		File dir = root;
+
+		for (String name : names) {
+			FolderInfo subfolder = folderInfo.getSubfolder(name);
+			dir = new File(dir, name);
+
+			if ((subfolder == null) || !dir.isDirectory()) {
+				break;
+			}
+
+			folderInfo = subfolder;
+		}
+
+		return folderInfo;
+	}
+
+	/** Is a folder (still) part of a context's tree? */
+	private static boolean isInTree(Context context, FolderInfo folder) {
+		for (; folder.getFolder() != null; folder = folder.getFolder()) {
+			if (!folder.getFolder().getSubfolders().contains(folder)) {
+				return false;
+			}
+		}
+
+		return folder == context.getRoot();
+	}
+
+	/** The content of a folder on disk, read before the context is changed to match */
+	private static class FolderScan {
+		final FolderInfo folder;
+		/** Names of the files that have not changed */
+		final List<String> unchanged = new ArrayList<String>();
+		/** Files that are new or changed, not added yet */
+		final List<FileInfo> newFiles = new ArrayList<FileInfo>();
+		/** Names of the subfolders already in the context */
+		final List<String> folders = new ArrayList<String>();
+		/** Subfolders that are new, ingested but not added yet, and their files */
+		final List<FolderInfo> newFolders = new ArrayList<FolderInfo>();
+		final List<FileInfo> newFolderFiles = new ArrayList<FileInfo>();
+		/** Number of files and folders in the new subfolders */
+		int newFolderChanges = 0;
+
+		FolderScan(FolderInfo folder) {
+			this.folder = folder;
+		}
+
+		/** Release the files read, if the folder is not refreshed after all */
+		void dispose() {
+			for (FileInfo file : this.newFiles) {
+				file.dispose();
+			}
+
+			for (FileInfo file : this.newFolderFiles) {
+				file.dispose();
+			}
+		}
+	}
+
+	/** Read the content of a folder on disk, or null if it can't be read */
+	private static FolderScan scanFolder(Context context, FolderInfo folder) {
+		File[] children = folder.getJavaFile(context).listFiles();
+		if (children == null) {
+			return null;
+		}
+
+		FolderScan scan = new FolderScan(folder);
+
+		Map<String, FileInfo> oldFiles = new HashMap<String, FileInfo>();
+		for (FileInfo file : folder.getFiles()) {
+			oldFiles.put(file.getName(), file);
+		}
+
+		Set<String> oldFolders = new HashSet<String>();
+		for (FolderInfo subfolder : folder.getSubfolders()) {
+			oldFolders.add(subfolder.getName());
+		}
+
+		for (File child : children) {
+			BasicFileAttributes attrs;
+
+			try {
+				attrs = Files.readAttributes(child.toPath(), BasicFileAttributes.class);
+			} catch (IOException e) {
+				continue;
+			}
+
+			if (attrs.isDirectory()) {
+				if (oldFolders.contains(child.getName())) {
+					scan.folders.add(child.getName());
+				} else {
+					FolderInfo subfolder = new FolderInfo(folder, child);
+
+					scan.newFolderChanges += FileUtil.ingestFolder(context, subfolder, scan.newFolderFiles) + 1;
+					scan.newFolders.add(subfolder);
+				}
+			} else if (attrs.isRegularFile()) {
+				FileInfo file = oldFiles.get(child.getName());
+
+				if ((file != null) && (file.getSize() == attrs.size()) //
+						&& (file.getLastModified() == attrs.lastModifiedTime().toMillis())) {
+					scan.unchanged.add(child.getName());
+				} else {
+					scan.newFiles.add(FileUtil.createFileInfo(folder, child, attrs));
+				}
+			}
+		}
+
+		return scan;
+	}
+
+	/**
+	 * Update a folder of the context to match the folder on disk
+	 *
+	 * @return The number of files and folders added or removed
+	 */
+	private int refreshFolder(Context context, FolderScan scan, List<FileInfo> added, //
+			Set<DuplicateInfo2> touched) {
+		FolderInfo folder = scan.folder;
+
+		Map<String, FileInfo> oldFiles = new HashMap<String, FileInfo>();
+		for (FileInfo file : folder.getFiles()) {
+			oldFiles.put(file.getName(), file);
+		}
+
+		Map<String, FolderInfo> oldFolders = new HashMap<String, FolderInfo>();
+		for (FolderInfo subfolder : folder.getSubfolders()) {
+			oldFolders.put(subfolder.getName(), subfolder);
+		}
+
+		int changes = scan.newFolderChanges;
+
+		for (String name : scan.folders) {
+			oldFolders.remove(name);
+		}
+
+		for (FolderInfo subfolder : scan.newFolders) {
+			folder.addFolder(subfolder);
+		}
+
+		for (FileInfo file : scan.newFolderFiles) {
+			insertFile(file);
+		}
+
+		context.addFiles(scan.newFolderFiles);
+		added.addAll(scan.newFolderFiles);
+
+		for (String name : scan.unchanged) {
+			oldFiles.remove(name);
+		}
+
+		for (FileInfo newfile : scan.newFiles) {
+			FileInfo file = oldFiles.remove(newfile.getName());
+
+			if (file != null) {
+				removeFile(context, file, touched);
+			}
+
+			folder.addFile(newfile);
+			insertFile(newfile);
+			context.addFile(newfile);
+			added.add(newfile);
+			++changes;
+		}
+
+		// Whatever was not found on disk was deleted
+		for (FileInfo file : oldFiles.values()) {
+			removeFile(context, file, touched);
+			++changes;
+		}
+
+		for (FolderInfo subfolder : oldFolders.values()) {
+			changes += removeFolder(context, subfolder, touched) + 1;
+			folder.removeFolder(subfolder);
+		}
+
+		return changes;
+	}
+
+	/**
+	 * Remove the files in a folder tree that was deleted
+	 *
+	 * @return The number of files removed
+	 */
+	private int removeFolder(Context context, FolderInfo folder, Set<DuplicateInfo2> touched) {
+		int changes = 0;
+
+		for (FolderInfo subfolder : folder.getSubfolders()) {
+			changes += removeFolder(context, subfolder, touched);
+		}
+
+		for (FileInfo file : new ArrayList<FileInfo>(folder.getFiles())) {
+			removeFile(context, file, touched);
+			++changes;
+		}
+
+		return changes;
+	}
+
+	/** Remove a file that is no longer on disk from the Database and its context */
+	private void removeFile(Context context, FileInfo file, Set<DuplicateInfo2> touched) {
+		DuplicateInfo2 dupinfo = removeFile(file);
+
+		if (dupinfo != null) {
+			touched.add(dupinfo);
+		}
+
+		context.removeFile(file);
+		this.removed.files.add(file);
+	}
+
 	/** Persist duplicate information for a context */
 	public void saveContext(Context context) {
 		if (this.contexts.contains(context)) {
@@ -122,95 +711,216 @@ public class Database {
 	}
 
 	/** Add a file (while ingesting a context) */
-	public void addFile(FileInfo file) {
-		int idx = FileUtil.addFile(this.files, file);
+	public void addFile(final FileInfo file) {
+		update(new Runnable() {
+			public void run() {
+				insertFile(file);
+			}
+		});
+	}
 
-		boolean isdup = false;
-		if ((idx > 0) && (this.files.get(idx - 1).getSize() == file.getSize())) {
-			isdup = true;
-		} else if ((idx + 1 < this.files.size()) //
-				&& (this.files.get(idx + 1).getSize() == file.getSize())) {
-			isdup = true;
-		}
+	/** Add a batch of files (while ingesting a context), as one change */
+	public void addFiles(final Collection<FileInfo> newfiles) {
+		update(new Runnable() {
+			public void run() {
+				for (FileInfo file : newfiles) {
+					insertFile(file);
+				}
+			}
+		});
+	}
 
-		if (isdup) {
-			addFileToDuplicates(idx, file);
+	private void insertFile(FileInfo file) {
+		int samesize = this.files.add(file);
+
+		if (samesize > 1) {
+			addFileToDuplicates(file);
 		}
 	}
 
 	public DuplicateInfo2 getDuplicateInfo(FileInfo file) {
-		int idx = Collections.binarySearch(this.duplicates, //
-				new DuplicateInfo2(file.getSize()), //
-				new Comparator<DuplicateInfo2>() {
-					public int compare(DuplicateInfo2 di1, DuplicateInfo2 di2) {
-						long diff = di1.fileSize() - di2.fileSize();
-
-						if (diff < 0) {
-							return -1;
-						} else if (diff == 0) {
-							return 0;
-						} else {
-							return 1;
-						}
-					}
-				});
+		return this.duplicateIndex.get(file.getSize());
+	}
+
+	/** Get the summary of the duplicates found, as of the last processing */
+	public DuplicateTotals getTotals() {
+		return this.totals;
+	}
+
+	/** Get the groups of same-size files, sorted by size */
+	public List<DuplicateInfo2> getDuplicates() {
+		if (!this.duplicatesSorted) {
+			Collections.sort(this.duplicates, new Comparator<DuplicateInfo2>() {
+				public int compare(DuplicateInfo2 d1, DuplicateInfo2 d2) {
+					return Long.compare(d1.fileSize(), d2.fileSize());
+				}
+			});
 
-		return (idx >= 0) ? this.duplicates.get(idx) : null;
+			this.duplicatesSorted = true;
+		}
+
+		return this.duplicates;
 	}
 
 	/** Add file to existing duplicate info database */
-	private void addFileToDuplicates(int idx, FileInfo file) {
-		DuplicateInfo2 dupinfo = getDupinfo(idx, file.getSize());
+	private void addFileToDuplicates(FileInfo file) {
+		DuplicateInfo2 dupinfo = getDupinfo(file.getSize());
+
+		if (file.dupinfo2 != dupinfo) {
+			dupinfo.addFile(file);
+		}
 
-		dupinfo.addFile(file);
+		this.changedDuplicates.add(dupinfo);
 	}
 
-	/** Get or create duplicate info for a given file size */
-	private DuplicateInfo2 getDupinfo(int fileidx, long size) {
-		DuplicateInfo2 dupinfo = new DuplicateInfo2(size);
-
-		int dupidx = Collections.binarySearch(this.duplicates, //
-				dupinfo, //
-				new Comparator<DuplicateInfo2>() {
-					public int compare(DuplicateInfo2 d1, DuplicateInfo2 d2) {
-						long diff = d1.fileSize() - d2.fileSize();
-						if (diff < 0) {
-							return -1;
-						} else if (diff > 0) {
-							return 1;
-						} else {
-							return 0;
-						}
+	/**
+	 * Remove a file (while closing its context)
+	 *
+	 * @return The group of files the same size as the file, or null if none
+	 */
+	private DuplicateInfo2 removeFile(FileInfo file) {
+		DuplicateInfo2 dupinfo = getDuplicateInfo(file);
+
+		this.files.remove(file);
+		file.removeFromDuplicateChains();
+		file.dupinfo2 = null;
+
+		if (dupinfo != null) {
+			this.changedDuplicates.add(dupinfo);
+		}
+
+		return dupinfo;
+	}
+
+	/**
+	 * Process the groups of same-size files that changed since they were last
+	 * processed, through every level of detail. Other groups keep their results.
+	 *
+	 * @return The groups processed, whose global duplicates need updating
+	 */
+	private List<DuplicateInfo2> processChangedFiles() {
+		List<DuplicateInfo2> changed = new ArrayList<DuplicateInfo2>(this.changedDuplicates);
+
+		this.changedDuplicates.clear();
+
+		Collections.sort(changed, new Comparator<DuplicateInfo2>() {
+			public int compare(DuplicateInfo2 d1, DuplicateInfo2 d2) {
+				return Long.compare(d1.fileSize(), d2.fileSize());
+			}
+		});
+
+		Trace.traceln(Trace.NORMAL, String.format("Recomputing %d of %d size groups", //
+				changed.size(), this.duplicates.size()));
+
+		for (DetailLevel level : new DetailLevel[] { DetailLevel.Size, DetailLevel.Prefix, //
+				DetailLevel.Sample, DetailLevel.Full }) {
+			processFiles(changed, level);
+			summarizeDuplicates();
+
+			if (this.stageListener != null) {
+				this.stageListener.stageCompleted(level);
+			}
+		}
+
+		summarizeSameFiles();
+
+		return changed;
+	}
+
+	/**
+	 * Set checksums that were read in the background, then analyze the files
+	 * again. Must be called on the thread that disposes files (the analysis
+	 * thread), so files disposed while their checksums were read are left out,
+	 * rather than writing to rows given to other files.
+	 */
+	public void analyzeFiles(final Map<FileInfo, ChecksumValues> loaded, final DetailLevel detail) {
+		final List<FileInfo> changed = new ArrayList<FileInfo>();
+
+		update(new Runnable() {
+			public void run() {
+				for (Map.Entry<FileInfo, ChecksumValues> entry : loaded.entrySet()) {
+					FileInfo file = entry.getKey();
+
+					// Skip files loaded as far by now, e.g. by another job
+					if (file.isDisposed() || !file.getDetailLevel().isLessThan(detail)) {
+						continue;
 					}
-				});
 
-		if (dupidx >= 0) {
-			dupinfo = this.duplicates.get(dupidx);
-		} else {
-			this.duplicates.add(-dupidx - 1, dupinfo);
+					Context context = file.getContext();
 
-			for (int idx = fileidx - 1; idx > 0; --idx) {
-				FileInfo file = this.files.get(idx);
-				if (file.getSize() != size) {
-					break;
+					if (context == null) {
+						continue;
+					}
+
+					file.setChecksums(entry.getValue());
+					context.setDirty();
+					changed.add(file);
 				}
+			}
+		});
+
+		analyzeFiles(changed);
+	}
+
+	/**
+	 * Analyze the files again after more of their details were loaded. Only the
+	 * groups of same-size files containing them are processed.
+	 */
+	public void analyzeFiles(Collection<FileInfo> changedFiles) {
+		for (FileInfo file : changedFiles) {
+			DuplicateInfo2 dupinfo = getDuplicateInfo(file);
 
-				dupinfo.addFile(file);
+			if (dupinfo != null) {
+				this.changedDuplicates.add(dupinfo);
 			}
+		}
 
-			for (int idx = fileidx + 1; idx < this.files.size(); ++idx) {
-				FileInfo file = this.files.get(idx);
-				if (file.getSize() != size) {
-					break;
-				}
+		if (this.changedDuplicates.isEmpty()) {
+			return;
+		}
+
+		updateGlobalDuplicates(processChangedFiles());
+	}
+
+	/** Get or create duplicate info for a given file size */
+	private DuplicateInfo2 getDupinfo(long size) {
+		DuplicateInfo2 dupinfo = this.duplicateIndex.get(size);
+
+		if (dupinfo == null) {
+			dupinfo = new DuplicateInfo2(size);
 
-				dupinfo.addFile(file);
+			this.duplicateIndex.put(size, dupinfo);
+			this.duplicates.add(dupinfo);
+			this.duplicatesSorted = false;
+
+			// Bring in the file(s) that were alone with this size until now
+			for (FileInfo file : this.files.getFiles(size)) {
+				if (file.dupinfo2 != dupinfo) {
+					dupinfo.addFile(file);
+				}
 			}
 		}
 
 		return dupinfo;
 	}
 
+	private static void reportVerificationCache(Metrics.Snapshot delta) {
+		long hits = delta.getCounter("verify.cache.hits");
+		long lookups = hits + delta.getCounter("verify.cache.misses");
+
+		if (lookups > 0) {
+			Trace.traceln(Trace.NORMAL, String.format("Verification cache: %d of %d lookups hit (%.1f%%)", //
+					hits, lookups, 100.0 * hits / lookups));
+		}
+	}
+
+	/** Number of values recorded in a histogram */
+	private static long getCount(Metrics.Snapshot snapshot, String name) {
+		Histogram.Snapshot histogram = snapshot.getHistogram(name);
+
+		return (histogram != null) ? histogram.count : 0;
+	}
+
 	/**
 	 * Set up a new context for a folder.<br>
 	 * If the folder is already open, return the existing context. <br>
@@ -218,8 +928,7 @@ public class Database {
 	 * The context name is qualified if necessary to make it unique.
 	 */
 	public Context openContext(String folderPath, String contextName) {
-		Checksum.checksumCount = 0;
-		FileUtil.compareCount = 0;
+		Metrics.Snapshot before = Metrics.snapshot();
 
 		// TODO check for context overlap (one context is a subtree of another
 		// in the filesystem)
@@ -236,39 +945,47 @@ public class Database {
 		File savedContext = Persistence.findSavedContext(new File(folderPath));
 		if (savedContext != null) {
 			context = ContextLoader.loadContextFromFile(savedContext);
+
+			if ((context != null) && reconcileSavedContexts && context.getRootFile().isDirectory()) {
+				context = ContextReconciler.reconcile(context);
+			} else if (context != null) {
+				addFiles(Arrays.asList(context.getAllFiles().toArray()));
+			}
 		} else {
 			contextName = getUniqueContextName(contextName);
 			context = ingestNewContext(folderPath, contextName);
 		}
 
 		if (context != null) {
-			int idx = 0;
-			for (; idx < this.contexts.size(); ++idx) {
-				Context ctx = this.contexts.get(idx);
-				if (ctx.getName().compareToIgnoreCase(context.getName()) >= 0) {
-					break;
-				}
-			}
+			final Context opened = context;
 
-			this.contexts.add(idx, context);
+			update(new Runnable() {
+				public void run() {
+					addContext(opened);
+				}
+			});
 
 			Trace.traceln(Trace.NORMAL, "Processing ingested files");
-			processFiles(DetailLevel.Size);
-			summarizeDuplicates();
-			processFiles(DetailLevel.Prefix);
-			summarizeDuplicates();
-			processFiles(DetailLevel.Sample);
-			summarizeDuplicates();
+			List<DuplicateInfo2> changed = processChangedFiles();
 
 			// TODO the following analysis methods are defunct
-			context.analyzeContextDuplicates();
+			update(new Runnable() {
+				public void run() {
+					opened.analyzeContextDuplicates();
+				}
+			});
 
 			Trace.traceln(Trace.NORMAL);
 			Trace.traceln(Trace.NORMAL, "Analyzing global duplicates...");
-			Analyzer.analyzeGlobalDuplicates(this.contexts);
+			updateGlobalDuplicates(changed);
+
+			Metrics.Snapshot delta = Metrics.snapshot().since(before);
 
-			Trace.traceln(Trace.NORMAL, "Checksum calculations: " + Checksum.checksumCount);
-			Trace.traceln(Trace.NORMAL, "File comparisons: " + FileUtil.compareCount);
+			Trace.traceln(Trace.NORMAL, "Checksum calculations: " + delta.getCounter("checksum.calculations"));
+			Trace.traceln(Trace.NORMAL, "File comparisons: " + getCount(delta, "compare.time") //
+					+ " files, " + getCount(delta, "compare.group.time") + " groups");
+			Checksum.reportFullChecksums(delta);
+			reportVerificationCache(delta);
 
 			long diff = (System.currentTimeMillis() - start + 500) / 1000;
 			Trace.traceln(Trace.NORMAL, "Elapsed time for open = " + diff + " seconds");
@@ -283,34 +1000,39 @@ public class Database {
 	}
 
 	private void summarizeDuplicates() {
-		int numchains = 0;
-		int numfiles = 0;
-		int longchain = 0;
-
-		for (DuplicateInfo2 dupinfo : this.duplicates) {
-			for (List<FileInfo> dups : dupinfo.getDuplicateLists()) {
-				++numchains;
-				numfiles += dups.size();
-				if (dups.size() > longchain) {
-					longchain = dups.size();
-				}
-			}
-		}
-
 		Trace.traceln(Trace.NORMAL, String.format(//
-				"%d files in %d chains (long %d)", numfiles, numchains, longchain));
+				"%d files in %d chains (long %d)", this.totals.getFileCount(), //
+				this.totals.getGroupCount(), this.totals.getLongestGroup()));
+	}
+
+	/** Report the files skipped because they are links to other files */
+	private void summarizeSameFiles() {
+		if (this.totals.getSameFileCount() > 0) {
+			Trace.traceln(Trace.NORMAL, String.format( //
+					"%d links to %d files not compared (%s)", this.totals.getLinkCount(), //
+					this.totals.getSameFileCount(), Utility.formatSize(this.totals.getLinkBytes())));
+		}
 	}
 
-	/** Perform analysis on each group of same-size files */
-	private void processFiles(DetailLevel level) {
-		int nn = this.duplicates.size();
+	/**
+	 * Perform analysis on some groups of same-size files. The files are read and
+	 * compared first, then the groups are changed in one step.
+	 */
+	private void processFiles(final List<DuplicateInfo2> duplicates, DetailLevel level) {
+		int nn = duplicates.size();
 
 		Trace.traceln(Trace.NORMAL, String.format( //
 				"Processing chains %d detail %s", //
 				nn, level.toString()));
 
+		if (ChecksumPipeline.isEnabled()) {
+			calculateChecksums(duplicates, level);
+		}
+
+		final List<DuplicateInfo2.Results> results = new ArrayList<DuplicateInfo2.Results>(nn);
+
 		for (int ii = 0; ii < nn; ++ii) {
-			DuplicateInfo2 dupinfo = this.duplicates.get(ii);
+			DuplicateInfo2 dupinfo = duplicates.get(ii);
 
 			if ((nn < 100) || ((ii % (nn / 100)) == 0)) {
 				Trace.trace(Trace.NORMAL, ".");
@@ -320,21 +1042,48 @@ public class Database {
 				// Trace.trace(Trace.NORMAL, ".");
 			}
 
-			dupinfo.processFiles(level);
+			results.add(dupinfo.findDuplicates(level));
 		}
 
+		update(new Runnable() {
+			public void run() {
+				for (int ii = 0; ii < duplicates.size(); ++ii) {
+					DuplicateInfo2 dupinfo = duplicates.get(ii);
+
+					dupinfo.setResults(results.get(ii));
+					Database.this.totals.recount(dupinfo);
+				}
+			}
+		});
+
 		Trace.traceln(Trace.NORMAL);
 	}
 
-	/** Find an existing context with a particular root folder */
-	public Context getContextForRoot(FolderInfo root) {
-		for (Context context : this.contexts) {
-			if (context.getRoot() == root) {
-				return context;
+	/**
+	 * Calculate ahead of time, using the checksum pipeline, the checksums that
+	 * processing the duplicate info would calculate one file at a time.
+	 */
+	private void calculateChecksums(List<DuplicateInfo2> duplicates, DetailLevel level) {
+		for (DetailLevel stage : new DetailLevel[] { DetailLevel.Prefix, DetailLevel.Sample, DetailLevel.Full }) {
+			if (stage.isGreaterThan(level)) {
+				break;
 			}
+
+			List<FileInfo> files = new ArrayList<FileInfo>();
+
+			for (DuplicateInfo2 dupinfo : duplicates) {
+				dupinfo.getFilesNeedingChecksums(stage, files);
+			}
+
+			ChecksumPipeline.calculateChecksums(files, stage);
 		}
+	}
 
-		return null;
+	/** Find an existing context with a particular root folder */
+	public Context getContextForRoot(FolderInfo root) {
+		Context context = getContext(root.contextid);
+
+		return ((context != null) && (context.getRoot() == root)) ? context : null;
 	}
 
 	/** Find an existing context pointing at a given folder on disk */
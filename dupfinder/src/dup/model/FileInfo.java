@@ -2,7 +2,6 @@ package dup.model;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -14,13 +13,23 @@ import dup.analyze.DuplicateInfo;
 import dup.analyze.DuplicateInfo2;
 import dup.analyze.Fingerprint;
 
-/** Class representing a file object */
+/**
+ * Class representing a file object.<br>
+ * The size, timestamp and checksums of the file are kept in a FileTable row,
+ * allocated when the FileInfo is created. dispose() releases the row, which
+ * may then be given to a new file, so a disposed FileInfo must not be used
+ * again; its accessors throw IllegalStateException rather than read another
+ * file's data. A file is disposed when it is removed from its context, or when
+ * the context is closed, so code that keeps files beyond that (e.g. the
+ * analysis results shown in the UI) must check isDisposed() first.
+ */
 public class FileInfo extends FileObjectInfo {
 	public static final Collection<FileInfo> NoFiles = Collections.unmodifiableCollection(new ArrayList<FileInfo>());
 
-	private long filesize;
-	private long timestamp;
-	public final ChecksumValues checksums;
+	private static final FileTable table = FileTable.instance();
+
+	/** Row holding the size, timestamp and checksums of this file in the FileTable */
+	private int row;
 	/**
 	 * True if the uniqueness of this file has been confirmed. If the file belongs
 	 * to a list of duplicates, it has been compared fully to other confirmed files
@@ -29,19 +38,22 @@ public class FileInfo extends FileObjectInfo {
 	 * TODO perhaps this is not any better/different than detailLevel == MAX.
 	 */
 	public boolean confirmed;
+	/** How this file is counted in its folder's statistics (FolderInfo.COUNTED etc.) */
+	byte folderState = 0;
 
 	public DuplicateInfo2 dupinfo2;
+	/**
+	 * Duplicate chains of this file. Most files are unique by size, so this is
+	 * only created when the file is linked to another file of the same size.
+	 */
 	private DuplicateInfo dupinfo;
 
 	public FileInfo(FolderInfo folder, String name, long size, long modified) {
 		super(folder, name);
 
-		this.filesize = size;
-		this.timestamp = modified;
-		// TODO this should be null if no same-size files exist?
-		this.checksums = new ChecksumValues();
+		this.row = table.allocate(size, modified);
 		this.dupinfo2 = null;
-		this.dupinfo = new DuplicateInfo(this);
+		this.dupinfo = null;
 		this.confirmed = false;
 	}
 
@@ -52,9 +64,9 @@ public class FileInfo extends FileObjectInfo {
 	public FileInfo(FolderInfo folder, FileInfo file) {
 		super(folder, file.getName());
 
-		this.timestamp = file.timestamp;
-		this.filesize = file.filesize;
-		this.checksums = file.checksums;
+		this.row = table.allocate(file.getSize(), file.getLastModified());
+		setChecksums(file.getChecksums());
+		table.copyFileKey(file.row(), this.row);
 
 		// TODO bad alias here, copy instead
 		this.dupinfo2 = file.dupinfo2;
@@ -111,15 +123,16 @@ public class FileInfo extends FileObjectInfo {
 			return false;
 		}
 
-		boolean compareFiles = shouldCompareFile() && !level.isLessThan(DetailLevel.MAX);
+		boolean compareFiles = shouldCompareFile() && !level.isLessThan(DetailLevel.Sample);
 		return !compareFiles //
 				|| Fingerprint.filesAreIdentical(this, other);
 	}
 
-	private static final long COMPARE_THRESHOLD = 1024 * 1024 * 16;
+	/** Files larger than this are verified by full checksum, not by comparison */
+	public static final long COMPARE_THRESHOLD = 1024 * 1024 * 16;
 
 	private boolean shouldCompareFile() {
-		return this.filesize <= COMPARE_THRESHOLD;
+		return getSize() <= COMPARE_THRESHOLD;
 	}
 
 	public boolean checksumsMatch(FileInfo other) {
@@ -143,22 +156,24 @@ public class FileInfo extends FileObjectInfo {
 		}
 
 		if (!level.isLessThan(DetailLevel.Sample)) {
-			if (!ChecksumValues.isIdentical(this.getSampleBytes(true), other.getSampleBytes(true)) //
+			if (!sampleBytesMatch(other) //
 					|| !ChecksumValues.isIdentical(this.getSampleChecksum(true), other.getSampleChecksum(true))) {
 				return false;
 			}
 		}
 
-		// TODO if (ChecksumValues.isIdentical(this.getFullChecksum(context),
-		// other.getFullChecksum(otherContext))) {
-		// return true;
-		// }
+		if (!level.isLessThan(DetailLevel.Full) && !shouldCompareFile()) {
+			if (!ChecksumValues.isIdentical(this.getFullChecksum(true), other.getFullChecksum(true))) {
+				return false;
+			}
+		}
 
 		return true; // isVerifiedEqual(context, otherContext,
 						// other.getDupinfo());
 	}
 
-	private boolean isIgnoredFile() {
+	/** Files we never checksum or report as duplicates */
+	public boolean isIgnoredFile() {
 		if (getSize() == 0) {
 			return true;
 		}
@@ -173,13 +188,25 @@ public class FileInfo extends FileObjectInfo {
 	}
 
 	public void clearDuplicateInfoForRestart() {
-		this.dupinfo.prepareForReanalysis();
+		if (this.dupinfo != null) {
+			this.dupinfo.prepareForReanalysis();
+		}
 	}
 
 	public void dispose() {
-		this.dupinfo.dispose();
-		this.dupinfo = null;
+		if (this.dupinfo != null) {
+			this.dupinfo.dispose();
+			this.dupinfo = null;
+		}
+
+		duplicatesChanged();
+
 		this.dupinfo2 = null;
+
+		if (this.row >= 0) {
+			table.release(this.row);
+			this.row = -1;
+		}
 	}
 
 	/**
@@ -193,23 +220,46 @@ public class FileInfo extends FileObjectInfo {
 		return getDupinfo().addFileToDuplicateChain(other.getDupinfo());
 	}
 
+	/**
+	 * Update the statistics of the folders above this file after its context or
+	 * global duplicates change.
+	 */
+	public void duplicatesChanged() {
+		if (this.folderState != 0) {
+			getFolder().fileChanged(this);
+		}
+	}
+
 	public void removeFromDuplicateChains() {
-		getDupinfo().removeFromDuplicateChains();
 		DuplicateInfo2 dupinfo = Database.instance().getDuplicateInfo(this);
 		if (dupinfo != null) {
 			dupinfo.forgetFile(this);
 		}
+
+		removeFromContextDuplicates();
+	}
+
+	/** Unlink from the duplicates in this file's context (its size group is left alone) */
+	public void removeFromContextDuplicates() {
+		if (this.dupinfo != null) {
+			this.dupinfo.removeFromDuplicateChains();
+		}
 	}
 
 	public long getLastModified() {
-		return this.timestamp;
+		return table.getTimestamp(row());
 	}
 
 	public long getSize() {
-		return this.filesize;
+		return table.getSize(row());
 	}
 
+	/** Get the duplicate chains of this file, creating them if necessary */
 	public DuplicateInfo getDupinfo() {
+		if (this.dupinfo == null) {
+			this.dupinfo = new DuplicateInfo(this);
+		}
+
 		return this.dupinfo;
 	}
 
@@ -218,6 +268,10 @@ public class FileInfo extends FileObjectInfo {
 	 * If there are no duplicates, return empty collection
 	 */
 	public Collection<FileInfo> getContextDuplicates() {
+		if (this.dupinfo == null) {
+			return FileInfo.NoFiles;
+		}
+
 		List<FileInfo> dups = getAllDuplicates();
 		if (dups == null) {
 			return FileInfo.NoFiles;
@@ -235,7 +289,7 @@ public class FileInfo extends FileObjectInfo {
 			cdups.add(this);
 		}
 
-		Collection<FileInfo> cdups2 = getDupinfo().getContextDuplicates();
+		Collection<FileInfo> cdups2 = this.dupinfo.getContextDuplicates();
 		return cdups2;
 	}
 
@@ -243,11 +297,21 @@ public class FileInfo extends FileObjectInfo {
 		getDupinfo().setGlobalDuplicates(dups);
 	}
 
+	public void clearGlobalDuplicates() {
+		if (this.dupinfo != null) {
+			this.dupinfo.clearGlobalDuplicates();
+		}
+	}
+
 	/**
 	 * Return global duplicates of a file (including the file itself) <br>
 	 * If there are no duplicates, return empty collection
 	 */
 	public Collection<FileInfo> getGlobalDuplicates() {
+		if (this.dupinfo == null) {
+			return FileInfo.NoFiles;
+		}
+
 		List<FileInfo> dups = getAllDuplicates();
 		if (dups == null) {
 			return FileInfo.NoFiles;
@@ -266,7 +330,7 @@ public class FileInfo extends FileObjectInfo {
 		}
 
 		// TODO figure out exactly what this is - return cdups;
-		Collection<FileInfo> cdups2 = getDupinfo().getGlobalDuplicates();
+		Collection<FileInfo> cdups2 = this.dupinfo.getGlobalDuplicates();
 		return cdups2;
 	}
 
@@ -281,31 +345,46 @@ public class FileInfo extends FileObjectInfo {
 	}
 
 	public boolean hasContextDuplicates() {
-		return getDupinfo().hasContextDuplicates();
+		return (this.dupinfo != null) && this.dupinfo.hasContextDuplicates();
 	}
 
 	public boolean hasGlobalDuplicates() {
-		return getDupinfo().hasGlobalDuplicates();
+		return (this.dupinfo != null) && this.dupinfo.hasGlobalDuplicates();
 	}
 
 	public int getNumContextDuplicates() {
-		return getDupinfo().getNumContextDuplicates();
+		return (this.dupinfo != null) ? this.dupinfo.getNumContextDuplicates() : 0;
 	}
 
 	public int getNumGlobalDuplicates() {
-		return getDupinfo().getNumGlobalDuplicates();
+		return (this.dupinfo != null) ? this.dupinfo.getNumGlobalDuplicates() : 0;
 	}
 
 	public String toString() {
+		if (isDisposed()) {
+			return String.format("File[%s] disposed", getName());
+		}
+
 		String ctxname = (getContext() != null) ? getContext().getName() : "N/A";
 		return String.format("File[%s] cx='%s' sz=%d det=%s %s", //
 				getName(), ctxname, getSize(), //
 				getDetailLevel().toString(), //
-				this.checksums.toString());
+				getChecksums().toString());
 	}
 
 	public DetailLevel getDetailLevel() {
-		DetailLevel level = this.checksums.getDetailLevel();
+		DetailLevel level;
+
+		if (table.getFull(row()) != ChecksumValues.CKSUM_UNDEFINED) {
+			level = DetailLevel.Full;
+		} else if (table.getSample(row()) != ChecksumValues.CKSUM_UNDEFINED) {
+			level = DetailLevel.Sample;
+		} else if (table.hasSampleBytes(row()) //
+				&& (table.getPrefix(row()) != ChecksumValues.CKSUM_UNDEFINED)) {
+			level = DetailLevel.Prefix;
+		} else {
+			level = DetailLevel.Size;
+		}
 
 		if (level == DetailLevel.Size) {
 			return (getSize() >= 0) ? DetailLevel.Size : DetailLevel.None;
@@ -327,33 +406,112 @@ public class FileInfo extends FileObjectInfo {
 	}
 
 	public int getPrefixChecksum(boolean calc) {
-		if (calc && ((this.checksums == null) || (this.checksums.prefix == 0))) {
+		if (calc && (table.getPrefix(row()) == 0)) {
 			Fingerprint.calculatePrefixChecksum(this);
 		}
 
-		return this.checksums.prefix;
+		return table.getPrefix(row());
 	}
 
 	public void setSampleChecksum(int value) {
-		this.checksums.sample = value;
+		table.setSample(row(), value);
 	}
 
 	public int getSampleChecksum(boolean calc) {
-		if (calc && (this.checksums.sample == 0)) {
+		if (calc && (table.getSample(row()) == 0)) {
 			Fingerprint.calculateSampleChecksum(this);
 		}
 
-		return this.checksums.sample;
+		return table.getSample(row());
+	}
+
+	public long getFullChecksum() {
+		return getFullChecksum(false);
+	}
+
+	public long getFullChecksum(boolean calc) {
+		if (calc && (table.getFull(row()) == 0)) {
+			Fingerprint.calculateFullChecksum(this);
+		}
+
+		return table.getFull(row());
+	}
+
+	public void setFullChecksum(long value) {
+		table.setFull(row(), value);
+	}
+
+	/** Get a copy of the checksums of this file */
+	public ChecksumValues getChecksums() {
+		ChecksumValues checksums = new ChecksumValues();
+
+		checksums.prefix = table.getPrefix(row());
+		checksums.sample = table.getSample(row());
+		checksums.full = table.getFull(row());
+		checksums.sampleBytes = table.getSampleBytes(row());
+
+		return checksums;
 	}
 
 	public void setChecksums(ChecksumValues checksums) {
-		if (!this.checksums.equals(checksums)) {
-			this.checksums.setValues(checksums);
+		table.setPrefix(row(), checksums.prefix);
+		table.setSample(row(), checksums.sample);
+		table.setFull(row(), checksums.full);
+
+		if (checksums.sampleBytes != null) {
+			table.setSampleBytes(row(), checksums.sampleBytes, checksums.sampleBytes.length);
+		} else {
+			table.setSampleBytes(row(), null, 0);
+		}
+	}
+
+	/** Record the file key (device and inode) of the file on disk */
+	public void setFileKey(long device, long inode) {
+		table.setFileKey(row(), device, inode);
+	}
+
+	/**
+	 * Record the file key of a file on a file system without device and inode
+	 * numbers. It is only used to tell whether two files are the same.
+	 */
+	public void setFileKey(Object key) {
+		table.setFileKey(row(), key);
+	}
+
+	/** Has dispose() released this file's row (so it must not be used)? */
+	public boolean isDisposed() {
+		return this.row < 0;
+	}
+
+	/** Get the row of this file in the FileTable, which it must still own */
+	private int row() {
+		int row = this.row;
+
+		if (row < 0) {
+			throw new IllegalStateException("File used after dispose: " + getName());
 		}
+
+		return row;
+	}
+
+	public boolean hasFileKey() {
+		return table.hasFileKey(row());
+	}
+
+	public long getInode() {
+		return table.getInode(row());
+	}
+
+	/**
+	 * Is this the same file on disk as another one, e.g. a hard link to it or a
+	 * view of it through a bind mount?
+	 */
+	public boolean isSameFile(FileInfo other) {
+		return (this.row >= 0) && (other.row >= 0) && table.isSameFile(this.row, other.row);
 	}
 
 	public void setPrefixChecksum(int value) {
-		this.checksums.prefix = value;
+		table.setPrefix(row(), value);
 	}
 
 	public byte[] getSampleBytes() {
@@ -361,20 +519,39 @@ public class FileInfo extends FileObjectInfo {
 	}
 
 	public byte[] getSampleBytes(boolean calc) {
-		if (calc && (getContext() != null) && (this.checksums.sampleBytes == null)) {
+		if (calc && (getContext() != null) && !table.hasSampleBytes(row())) {
 			Fingerprint.loadSampleBytes(this);
 		}
 
-		return this.checksums.sampleBytes;
+		return table.getSampleBytes(row());
+	}
+
+	public boolean hasSampleBytes() {
+		return table.hasSampleBytes(row());
 	}
 
 	public void setSampleBytes(byte[] bytes, int length) {
 		// getDupinfo().setSampleBytes(bytes, length);
-		this.checksums.sampleBytes = Arrays.copyOf(bytes, length);
+		table.setSampleBytes(row(), bytes, length);
+	}
+
+	/**
+	 * Compare sample bytes with another file without copying them, loading them
+	 * first if necessary. Files without sample bytes match anything.
+	 */
+	public boolean sampleBytesMatch(FileInfo other) {
+		if ((getContext() != null) && !hasSampleBytes()) {
+			Fingerprint.loadSampleBytes(this);
+		}
+		if ((other.getContext() != null) && !other.hasSampleBytes()) {
+			Fingerprint.loadSampleBytes(other);
+		}
+
+		return table.sampleBytesMatch(row(), other.row());
 	}
 
 	public boolean hasDuplicatesInFolder() {
-		return getDupinfo().hasDuplicatesInFolder();
+		return (this.dupinfo != null) && this.dupinfo.hasDuplicatesInFolder();
 	}
 
 	// public boolean matchesFileOnDisk(Context context)
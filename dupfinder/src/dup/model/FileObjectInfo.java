@@ -67,9 +67,12 @@ public abstract class FileObjectInfo {
 		return (FolderInfo) this;
 	}
 
-	/** Get the Context object representing the top folder for this object */
+	/**
+	 * Get the Context object representing the top folder for this object, if it
+	 * is open in the Database
+	 */
 	public Context getContext() {
-		return Database.instance().getContextForRoot(getRootFolder());
+		return Database.instance().getContext(this.contextid);
 	}
 
 	/**
@@ -78,7 +81,7 @@ public abstract class FileObjectInfo {
 	 * Context is located and returned, if it exists.
 	 */
 	public Context getDatabaseContext() {
-		Context exact = Database.instance().getContextForRoot(getRootFolder());
+		Context exact = getContext();
 		if (exact != null) {
 			return exact;
 		}
@@ -0,0 +1,241 @@
+package dup.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import dup.util.LongHashMap;
+
+/**
+ * Index of files grouped by size.<br>
+ * Adding a file is O(1) (a hash lookup on the size), instead of an insertion
+ * into a sorted list. The sorted array of distinct sizes is built on demand and
+ * kept until the set of sizes changes, so walking the files in size order after
+ * ingesting costs one sort.
+ */
+public class FileSizeIndex implements Iterable<FileInfo> {
+	/** Size to bucket - a FileInfo if unique, otherwise a List of FileInfo */
+	private final LongHashMap<Object> buckets = new LongHashMap<Object>();
+
+	/** Distinct sizes in ascending order (null if not yet built) */
+	private long[] sortedSizes = null;
+
+	/** Number of files in the index */
+	private int filecount = 0;
+
+	/**
+	 * Add a file to the index
+	 *
+	 * @return The number of files with this size (including this one)
+	 */
+	@SuppressWarnings("unchecked")
+	public int add(FileInfo file) {
+		long size = file.getSize();
+		Object bucket = this.buckets.get(size);
+
+		++this.filecount;
+
+		if (bucket == null) {
+			this.buckets.put(size, file);
+			this.sortedSizes = null;
+
+			return 1;
+		}
+
+		List<FileInfo> files;
+
+		if (bucket instanceof FileInfo) {
+			files = new ArrayList<FileInfo>(2);
+			files.add((FileInfo) bucket);
+
+			this.buckets.put(size, files);
+		} else {
+			files = (List<FileInfo>) bucket;
+		}
+
+		files.add(file);
+
+		return files.size();
+	}
+
+	/** Add a batch of files to the index */
+	public void addAll(Collection<FileInfo> files) {
+		for (FileInfo file : files) {
+			add(file);
+		}
+	}
+
+	/**
+	 * Remove a file from the index
+	 *
+	 * @return True if the file was present
+	 */
+	@SuppressWarnings("unchecked")
+	public boolean remove(FileInfo file) {
+		long size = file.getSize();
+		Object bucket = this.buckets.get(size);
+
+		if (bucket == file) {
+			this.buckets.remove(size);
+			this.sortedSizes = null;
+		} else if ((bucket instanceof List) && ((List<FileInfo>) bucket).remove(file)) {
+			List<FileInfo> files = (List<FileInfo>) bucket;
+
+			if (files.size() == 1) {
+				this.buckets.put(size, files.get(0));
+			}
+		} else {
+			return false;
+		}
+
+		--this.filecount;
+
+		return true;
+	}
+
+	/**
+	 * Remove a batch of files (e.g. a context's) from the index. Each bucket
+	 * they are in is filtered once, instead of once per file.
+	 *
+	 * @return The number of files that were present
+	 */
+	@SuppressWarnings("unchecked")
+	public int removeAll(Collection<FileInfo> files) {
+		Set<FileInfo> departing = Collections.newSetFromMap(new IdentityHashMap<FileInfo, Boolean>());
+		departing.addAll(files);
+
+		LongHashMap<Boolean> filtered = new LongHashMap<Boolean>();
+		int count = this.filecount;
+
+		for (FileInfo file : files) {
+			long size = file.getSize();
+			Object bucket = this.buckets.get(size);
+
+			if (bucket == file) {
+				this.buckets.remove(size);
+				this.sortedSizes = null;
+
+				--this.filecount;
+			} else if ((bucket instanceof List) && (filtered.put(size, Boolean.TRUE) == null)) {
+				List<FileInfo> bucketFiles = (List<FileInfo>) bucket;
+				int before = bucketFiles.size();
+
+				bucketFiles.removeAll(departing);
+
+				this.filecount -= before - bucketFiles.size();
+
+				if (bucketFiles.isEmpty()) {
+					this.buckets.remove(size);
+					this.sortedSizes = null;
+				} else if (bucketFiles.size() == 1) {
+					this.buckets.put(size, bucketFiles.get(0));
+				}
+			}
+		}
+
+		return count - this.filecount;
+	}
+
+	/** Get the files with a given size (empty if none) */
+	@SuppressWarnings("unchecked")
+	public List<FileInfo> getFiles(long size) {
+		Object bucket = this.buckets.get(size);
+
+		if (bucket == null) {
+			return Collections.emptyList();
+		}
+
+		return (bucket instanceof FileInfo) //
+				? Collections.singletonList((FileInfo) bucket) //
+				: Collections.unmodifiableList((List<FileInfo>) bucket);
+	}
+
+	/** Get the number of files with a given size */
+	@SuppressWarnings("unchecked")
+	public int getFileCount(long size) {
+		Object bucket = this.buckets.get(size);
+
+		if (bucket == null) {
+			return 0;
+		}
+
+		return (bucket instanceof FileInfo) ? 1 : ((List<FileInfo>) bucket).size();
+	}
+
+	/** Get the distinct file sizes in ascending order (do not modify) */
+	public long[] getSortedSizes() {
+		if (this.sortedSizes == null) {
+			long[] sizes = this.buckets.keys();
+			Arrays.sort(sizes);
+
+			this.sortedSizes = sizes;
+		}
+
+		return this.sortedSizes;
+	}
+
+	/** Get the number of files in the index */
+	public int size() {
+		return this.filecount;
+	}
+
+	public boolean isEmpty() {
+		return this.filecount == 0;
+	}
+
+	/** Iterate over all files in ascending order of size */
+	public Iterator<FileInfo> iterator() {
+		return new SizeOrderIterator();
+	}
+
+	/** Get all files as an array, in ascending order of size */
+	public FileInfo[] toArray() {
+		FileInfo[] files = new FileInfo[this.filecount];
+		int idx = 0;
+
+		for (FileInfo file : this) {
+			files[idx++] = file;
+		}
+
+		return files;
+	}
+
+	/** Iterates over the buckets in size order */
+	private class SizeOrderIterator implements Iterator<FileInfo> {
+		private final long[] sizes = getSortedSizes();
+		private int sizeidx = 0;
+		private List<FileInfo> bucket = Collections.emptyList();
+		private int fileidx = 0;
+
+		public boolean hasNext() {
+			while (this.fileidx >= this.bucket.size()) {
+				if (this.sizeidx >= this.sizes.length) {
+					return false;
+				}
+
+				this.bucket = getFiles(this.sizes[this.sizeidx++]);
+				this.fileidx = 0;
+			}
+
+			return true;
+		}
+
+		public FileInfo next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			return this.bucket.get(this.fileidx++);
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,425 @@
+package dup.model;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import dup.analyze.ChecksumValues;
+import dup.util.LongHashMap;
+
+/**
+ * Column storage for the per-file data behind FileInfo objects.<br>
+ * Each file is a row, identified by an int. Sizes, timestamps and checksums are
+ * held in pages of primitive arrays, and sample bytes in slots of off-heap
+ * memory, so a file costs about 50 bytes of heap here plus its FileInfo
+ * object, instead of a ChecksumValues object and a sample byte array.<br>
+ * Pages are never moved once created, so a row can be read and written without
+ * locking by any thread that has been handed the row; only allocating and
+ * releasing rows and sample slots are synchronized.
+ */
+public class FileTable {
+	private static final FileTable instance = new FileTable();
+
+	public static FileTable instance() {
+		return instance;
+	}
+
+	private static final int PAGE_BITS = 16;
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+	/** Largest number of sample bytes kept for a file */
+	public static final int MAX_SAMPLE_LENGTH = ChecksumValues.PREFIX_LENGTH;
+	/** Sample bytes are stored in units of this many bytes */
+	private static final int UNIT = 8;
+	/** Size of each off-heap chunk holding sample bytes (16 MB) */
+	private static final int CHUNK_SIZE = 1 << 24;
+	private static final int UNITS_PER_CHUNK = CHUNK_SIZE / UNIT;
+
+	/** Marks a row with no sample bytes */
+	private static final int NO_SLOT = -1;
+
+	private volatile long[][] sizes = new long[0][];
+	private volatile long[][] timestamps = new long[0][];
+	private volatile long[][] fulls = new long[0][];
+	private volatile int[][] prefixes = new int[0][];
+	private volatile int[][] samples = new int[0][];
+	/** Location of the sample bytes of each row, in units (NO_SLOT if none) */
+	private volatile int[][] sampleSlots = new int[0][];
+	/** Number of sample bytes stored for each row */
+	private volatile short[][] sampleLengths = new short[0][];
+	/**
+	 * File key (device and inode) of each row. The device is stored as a number
+	 * in the device table, plus one, so zero means the key is unknown.
+	 */
+	private volatile int[][] devices = new int[0][];
+	private volatile long[][] inodes = new long[0][];
+
+	/** Numbers of the distinct devices seen in file keys */
+	private final LongHashMap<Integer> deviceNumbers = new LongHashMap<Integer>();
+	/**
+	 * File keys of rows on file systems without device and inode numbers, by
+	 * row. These are compared with equals().
+	 */
+	private final Map<Integer, Object> otherKeys = new HashMap<Integer, Object>();
+	private volatile boolean hasOtherKeys = false;
+
+	private int rowCount = 0;
+	private int[] freeRows = new int[16];
+	private int freeRowCount = 0;
+
+	private volatile ByteBuffer[] sampleChunks = new ByteBuffer[0];
+	/** Next free unit in the last chunk */
+	private int nextUnit = 0;
+	/** Released slots, by size in units */
+	private final int[][] freeSlots = new int[MAX_SAMPLE_LENGTH / UNIT + 1][];
+	private final int[] freeSlotCounts = new int[MAX_SAMPLE_LENGTH / UNIT + 1];
+
+	/** Allocate a row for a new file */
+	public synchronized int allocate(long size, long timestamp) {
+		int row;
+
+		if (this.freeRowCount > 0) {
+			row = this.freeRows[--this.freeRowCount];
+		} else {
+			row = this.rowCount++;
+
+			if ((row & PAGE_MASK) == 0) {
+				addPage();
+			}
+		}
+
+		int page = row >>> PAGE_BITS;
+		int idx = row & PAGE_MASK;
+
+		this.sizes[page][idx] = size;
+		this.timestamps[page][idx] = timestamp;
+		this.fulls[page][idx] = 0;
+		this.prefixes[page][idx] = 0;
+		this.samples[page][idx] = 0;
+		this.sampleSlots[page][idx] = NO_SLOT;
+		this.sampleLengths[page][idx] = 0;
+		this.devices[page][idx] = 0;
+		this.inodes[page][idx] = 0;
+
+		return row;
+	}
+
+	/** Release a row (and its sample bytes) for reuse */
+	public synchronized void release(int row) {
+		clearSampleBytes(row);
+
+		if (this.hasOtherKeys) {
+			this.otherKeys.remove(row);
+		}
+
+		if (this.freeRowCount == this.freeRows.length) {
+			this.freeRows = Arrays.copyOf(this.freeRows, this.freeRowCount * 2);
+		}
+
+		this.freeRows[this.freeRowCount++] = row;
+	}
+
+	/** Get the number of rows in use */
+	public synchronized int size() {
+		return this.rowCount - this.freeRowCount;
+	}
+
+	/** Get the number of bytes of off-heap memory used for sample bytes */
+	public synchronized long getSampleMemory() {
+		return (long) this.sampleChunks.length * CHUNK_SIZE;
+	}
+
+	private void addPage() {
+		int npages = this.sizes.length + 1;
+
+		long[][] newSizes = Arrays.copyOf(this.sizes, npages);
+		long[][] newTimestamps = Arrays.copyOf(this.timestamps, npages);
+		long[][] newFulls = Arrays.copyOf(this.fulls, npages);
+		int[][] newPrefixes = Arrays.copyOf(this.prefixes, npages);
+		int[][] newSamples = Arrays.copyOf(this.samples, npages);
+		int[][] newSampleSlots = Arrays.copyOf(this.sampleSlots, npages);
+		short[][] newSampleLengths = Arrays.copyOf(this.sampleLengths, npages);
+		int[][] newDevices = Arrays.copyOf(this.devices, npages);
+		long[][] newInodes = Arrays.copyOf(this.inodes, npages);
+
+		newSizes[npages - 1] = new long[PAGE_SIZE];
+		newTimestamps[npages - 1] = new long[PAGE_SIZE];
+		newFulls[npages - 1] = new long[PAGE_SIZE];
+		newPrefixes[npages - 1] = new int[PAGE_SIZE];
+		newSamples[npages - 1] = new int[PAGE_SIZE];
+		newSampleSlots[npages - 1] = new int[PAGE_SIZE];
+		newSampleLengths[npages - 1] = new short[PAGE_SIZE];
+		newDevices[npages - 1] = new int[PAGE_SIZE];
+		newInodes[npages - 1] = new long[PAGE_SIZE];
+
+		this.sizes = newSizes;
+		this.timestamps = newTimestamps;
+		this.fulls = newFulls;
+		this.prefixes = newPrefixes;
+		this.samples = newSamples;
+		this.sampleSlots = newSampleSlots;
+		this.sampleLengths = newSampleLengths;
+		this.devices = newDevices;
+		this.inodes = newInodes;
+	}
+
+	public long getSize(int row) {
+		return this.sizes[row >>> PAGE_BITS][row & PAGE_MASK];
+	}
+
+	public long getTimestamp(int row) {
+		return this.timestamps[row >>> PAGE_BITS][row & PAGE_MASK];
+	}
+
+	public int getPrefix(int row) {
+		return this.prefixes[row >>> PAGE_BITS][row & PAGE_MASK];
+	}
+
+	public void setPrefix(int row, int value) {
+		this.prefixes[row >>> PAGE_BITS][row & PAGE_MASK] = value;
+	}
+
+	public int getSample(int row) {
+		return this.samples[row >>> PAGE_BITS][row & PAGE_MASK];
+	}
+
+	public void setSample(int row, int value) {
+		this.samples[row >>> PAGE_BITS][row & PAGE_MASK] = value;
+	}
+
+	public long getFull(int row) {
+		return this.fulls[row >>> PAGE_BITS][row & PAGE_MASK];
+	}
+
+	public void setFull(int row, long value) {
+		this.fulls[row >>> PAGE_BITS][row & PAGE_MASK] = value;
+	}
+
+	/** Record the device and inode of the file in a row */
+	public void setFileKey(int row, long device, long inode) {
+		int number = getDeviceNumber(device);
+
+		this.inodes[row >>> PAGE_BITS][row & PAGE_MASK] = inode;
+		this.devices[row >>> PAGE_BITS][row & PAGE_MASK] = number + 1;
+	}
+
+	/**
+	 * Record the file key of a row on a file system that has no device and inode
+	 * numbers (see BasicFileAttributes.fileKey())
+	 */
+	public synchronized void setFileKey(int row, Object key) {
+		this.otherKeys.put(row, key);
+		this.hasOtherKeys = true;
+	}
+
+	public void copyFileKey(int fromRow, int toRow) {
+		this.inodes[toRow >>> PAGE_BITS][toRow & PAGE_MASK] = getInode(fromRow);
+		this.devices[toRow >>> PAGE_BITS][toRow & PAGE_MASK] = this.devices[fromRow >>> PAGE_BITS][fromRow & PAGE_MASK];
+
+		if (this.hasOtherKeys) {
+			synchronized (this) {
+				Object key = this.otherKeys.get(fromRow);
+
+				if (key != null) {
+					this.otherKeys.put(toRow, key);
+				}
+			}
+		}
+	}
+
+	public boolean hasFileKey(int row) {
+		return this.devices[row >>> PAGE_BITS][row & PAGE_MASK] != 0;
+	}
+
+	public long getInode(int row) {
+		return this.inodes[row >>> PAGE_BITS][row & PAGE_MASK];
+	}
+
+	/**
+	 * Are two rows known to be the same file on disk (same device and inode, or
+	 * equal file keys)?
+	 */
+	public boolean isSameFile(int row1, int row2) {
+		int device = this.devices[row1 >>> PAGE_BITS][row1 & PAGE_MASK];
+
+		if (device != 0) {
+			return (device == this.devices[row2 >>> PAGE_BITS][row2 & PAGE_MASK]) //
+					&& (getInode(row1) == getInode(row2));
+		}
+
+		if (!this.hasOtherKeys) {
+			return false;
+		}
+
+		synchronized (this) {
+			Object key = this.otherKeys.get(row1);
+
+			return (key != null) && key.equals(this.otherKeys.get(row2));
+		}
+	}
+
+	private synchronized int getDeviceNumber(long device) {
+		Integer number = this.deviceNumbers.get(device);
+
+		if (number == null) {
+			number = this.deviceNumbers.size();
+			this.deviceNumbers.put(device, number);
+		}
+
+		return number;
+	}
+
+	public boolean hasSampleBytes(int row) {
+		return this.sampleSlots[row >>> PAGE_BITS][row & PAGE_MASK] != NO_SLOT;
+	}
+
+	/** Get a copy of the sample bytes for a row (null if none) */
+	public byte[] getSampleBytes(int row) {
+		int slot = this.sampleSlots[row >>> PAGE_BITS][row & PAGE_MASK];
+		if (slot == NO_SLOT) {
+			return null;
+		}
+
+		byte[] bytes = new byte[this.sampleLengths[row >>> PAGE_BITS][row & PAGE_MASK]];
+		ByteBuffer chunk = getChunk(slot);
+
+		for (int ii = 0, pos = getSlotOffset(slot); ii < bytes.length; ++ii, ++pos) {
+			bytes[ii] = chunk.get(pos);
+		}
+
+		return bytes;
+	}
+
+	/** Store sample bytes for a row (at most MAX_SAMPLE_LENGTH are kept) */
+	public void setSampleBytes(int row, byte[] bytes, int length) {
+		if (bytes == null) {
+			synchronized (this) {
+				clearSampleBytes(row);
+			}
+
+			return;
+		}
+
+		length = Math.min(length, MAX_SAMPLE_LENGTH);
+
+		int page = row >>> PAGE_BITS;
+		int idx = row & PAGE_MASK;
+		int slot = this.sampleSlots[page][idx];
+
+		if ((slot == NO_SLOT) || (getUnits(this.sampleLengths[page][idx]) != getUnits(length))) {
+			synchronized (this) {
+				clearSampleBytes(row);
+				slot = allocateSlot(getUnits(length));
+			}
+
+			this.sampleSlots[page][idx] = slot;
+		}
+
+		ByteBuffer chunk = getChunk(slot);
+
+		for (int ii = 0, pos = getSlotOffset(slot); ii < length; ++ii, ++pos) {
+			chunk.put(pos, bytes[ii]);
+		}
+
+		this.sampleLengths[page][idx] = (short) length;
+	}
+
+	/**
+	 * Compare the sample bytes of two rows. Rows without sample bytes are
+	 * compatible with anything.
+	 */
+	public boolean sampleBytesMatch(int row1, int row2) {
+		int slot1 = this.sampleSlots[row1 >>> PAGE_BITS][row1 & PAGE_MASK];
+		int slot2 = this.sampleSlots[row2 >>> PAGE_BITS][row2 & PAGE_MASK];
+
+		if ((slot1 == NO_SLOT) || (slot2 == NO_SLOT)) {
+			return true;
+		}
+
+		int length = this.sampleLengths[row1 >>> PAGE_BITS][row1 & PAGE_MASK];
+		if (length != this.sampleLengths[row2 >>> PAGE_BITS][row2 & PAGE_MASK]) {
+			return false;
+		}
+
+		ByteBuffer chunk1 = getChunk(slot1);
+		ByteBuffer chunk2 = getChunk(slot2);
+		int pos1 = getSlotOffset(slot1);
+		int pos2 = getSlotOffset(slot2);
+
+		int ii = 0;
+		for (; ii + 8 <= length; ii += 8) {
+			if (chunk1.getLong(pos1 + ii) != chunk2.getLong(pos2 + ii)) {
+				return false;
+			}
+		}
+
+		for (; ii < length; ++ii) {
+			if (chunk1.get(pos1 + ii) != chunk2.get(pos2 + ii)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private void clearSampleBytes(int row) {
+		int page = row >>> PAGE_BITS;
+		int idx = row & PAGE_MASK;
+		int slot = this.sampleSlots[page][idx];
+
+		if (slot != NO_SLOT) {
+			int units = getUnits(this.sampleLengths[page][idx]);
+			int[] free = this.freeSlots[units];
+
+			if (free == null) {
+				free = this.freeSlots[units] = new int[16];
+			} else if (this.freeSlotCounts[units] == free.length) {
+				free = this.freeSlots[units] = Arrays.copyOf(free, free.length * 2);
+			}
+
+			free[this.freeSlotCounts[units]++] = slot;
+			this.sampleSlots[page][idx] = NO_SLOT;
+			this.sampleLengths[page][idx] = 0;
+		}
+	}
+
+	/**
+	 * Allocate space for sample bytes, reusing a released slot of the same size
+	 * if there is one.
+	 *
+	 * @return The first unit of the slot
+	 */
+	private int allocateSlot(int units) {
+		if (this.freeSlotCounts[units] > 0) {
+			return this.freeSlots[units][--this.freeSlotCounts[units]];
+		}
+
+		if ((this.sampleChunks.length == 0) || (this.nextUnit + units > UNITS_PER_CHUNK)) {
+			ByteBuffer[] chunks = Arrays.copyOf(this.sampleChunks, this.sampleChunks.length + 1);
+			chunks[chunks.length - 1] = ByteBuffer.allocateDirect(CHUNK_SIZE);
+
+			this.sampleChunks = chunks;
+			this.nextUnit = 0;
+		}
+
+		int slot = (this.sampleChunks.length - 1) * UNITS_PER_CHUNK + this.nextUnit;
+		this.nextUnit += units;
+
+		return slot;
+	}
+
+	/** Number of units needed to hold some number of bytes (at least one) */
+	private static int getUnits(int length) {
+		return Math.max(1, (length + UNIT - 1) / UNIT);
+	}
+
+	private ByteBuffer getChunk(int slot) {
+		return this.sampleChunks[slot / UNITS_PER_CHUNK];
+	}
+
+	private static int getSlotOffset(int slot) {
+		return (slot % UNITS_PER_CHUNK) * UNIT;
+	}
+}
@@ -2,6 +2,7 @@ package dup.model;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -10,15 +11,49 @@ import java.util.Set;
 import java.util.StringTokenizer;
 
 import dup.analyze.DetailLevel;
-
+import dup.util.Trace;
+
+/**
+ * A folder in a context, with statistics for the folder and the subtree under
+ * it.<br>
+ * The statistics are kept up to date as files are added and removed and as
+ * their duplicates change (FileInfo.duplicatesChanged()), by applying the
+ * change to the folder and each folder above it, so reading them takes constant
+ * time. A subfolder's totals are added to its parent when it is added, and
+ * changes only travel up through folders that have been added to their parent,
+ * so a subtree can be built on its own thread and then attached.
+ * checkStatistics() recalculates everything to verify this.
+ */
 public class FolderInfo extends FileObjectInfo {
+	/** FileInfo.folderState bits: the file is counted in its folder */
+	static final byte COUNTED = 0x01;
+	/** The file is counted as non-unique */
+	static final byte DUPLICATE = 0x02;
+	/** The file is counted as having global duplicates */
+	static final byte GLOBAL = 0x04;
+
 	private final List<FolderInfo> folders = new ArrayList<FolderInfo>();
 	private final List<FileInfo> files = new ArrayList<FileInfo>();
 
+	/** This folder has been added to its parent, which counts its subtree */
+	private boolean attached = false;
+
+	/** Sum of the sizes of the files in this folder */
+	private long folderSize = 0L;
 	/** Count of non-unique files in this folder */
-	public int folderDupCount = 0;
-	/** Count of non-local, non-unique files in this folder */
-	public int globalDupCount = 0;
+	private int folderDupCount = 0;
+	/** Sum of the sizes of non-unique files in this folder */
+	private long folderDupSize = 0L;
+	/** Count of files in this folder with duplicates in other contexts */
+	private int globalDupCount = 0;
+
+	/** Totals for this folder and the folders under it */
+	private int treeFolderCount = 1;
+	private int treeFileCount = 0;
+	private long treeSize = 0L;
+	private int treeDupCount = 0;
+	private long treeDupSize = 0L;
+	private int treeGlobalDupCount = 0;
 
 	public FolderInfo(FolderInfo folder, File file) {
 		super(folder, file);
@@ -33,21 +68,147 @@ public class FolderInfo extends FileObjectInfo {
 	}
 
 	public void addFolder(FolderInfo folder) {
-		assert (folder != null) && (folder.getFolder() == this);
+		assert (folder != null) && (folder.getFolder() == this) && !folder.attached;
 
 		this.folders.add(folder);
+		folder.attached = true;
+
+		addToTree(folder.treeFolderCount, folder.treeFileCount, folder.treeSize, //
+				folder.treeDupCount, folder.treeDupSize, folder.treeGlobalDupCount);
+	}
+
+	/** Detach a subfolder, taking its subtree out of this folder's totals */
+	public void removeFolder(FolderInfo folder) {
+		if (this.folders.remove(folder)) {
+			addToTree(-folder.treeFolderCount, -folder.treeFileCount, -folder.treeSize, //
+					-folder.treeDupCount, -folder.treeDupSize, -folder.treeGlobalDupCount);
+
+			folder.attached = false;
+		}
 	}
 
 	public void addFile(FileInfo file) {
 		this.files.add(file);
 		// TODO dirty context, analyzeDuplicates, etc
+
+		byte state = getFileState(file);
+
+		updateStatistics(file, (byte) 0, state);
+		file.folderState = state;
 	}
 
 	public void removeFile(FileInfo file) {
-		this.files.remove(file);
+		if (this.files.remove(file)) {
+			updateStatistics(file, file.folderState, (byte) 0);
+			file.folderState = 0;
+		}
 		// TODO dirty context, analyzeDuplicates, etc
 	}
 
+	/** Update the statistics for a file in this folder whose duplicates changed */
+	void fileChanged(FileInfo file) {
+		byte state = getFileState(file);
+
+		if (state != file.folderState) {
+			updateStatistics(file, file.folderState, state);
+			file.folderState = state;
+		}
+	}
+
+	/** How a file is counted in the statistics */
+	private static byte getFileState(FileInfo file) {
+		return (byte) (COUNTED //
+				| (file.isUnique() ? 0 : DUPLICATE) //
+				| (file.hasGlobalDuplicates() ? GLOBAL : 0));
+	}
+
+	/** Apply the change in how a file is counted to this folder and the tree */
+	private void updateStatistics(FileInfo file, byte oldState, byte newState) {
+		long size = file.getSize();
+		int files = delta(oldState, newState, COUNTED);
+		int dups = delta(oldState, newState, DUPLICATE);
+		int globals = delta(oldState, newState, GLOBAL);
+
+		this.folderSize += files * size;
+		this.folderDupCount += dups;
+		this.folderDupSize += dups * size;
+		this.globalDupCount += globals;
+
+		addToTree(0, files, files * size, dups, dups * size, globals);
+	}
+
+	/** -1, 0 or 1 as a state bit is cleared, unchanged or set */
+	private static int delta(byte oldState, byte newState, byte bit) {
+		return ((newState & bit) != 0 ? 1 : 0) - ((oldState & bit) != 0 ? 1 : 0);
+	}
+
+	/** Add to the totals of this folder and the attached folders above it */
+	private void addToTree(int folders, int files, long size, int dups, long dupsize, int globals) {
+		for (FolderInfo folder = this; folder != null; folder = (folder.attached) ? folder.getFolder() : null) {
+			folder.treeFolderCount += folders;
+			folder.treeFileCount += files;
+			folder.treeSize += size;
+			folder.treeDupCount += dups;
+			folder.treeDupSize += dupsize;
+			folder.treeGlobalDupCount += globals;
+		}
+	}
+
+	/**
+	 * Recalculate the statistics of this folder and the folders under it from
+	 * their files, and report any that differ from the maintained values.
+	 *
+	 * @return True if all are correct
+	 */
+	public boolean checkStatistics() {
+		return checkStatistics(new long[6]);
+	}
+
+	/**
+	 * @param totals Receives the recalculated totals for this subtree: folders,
+	 *               files, size, non-unique files, their size, global duplicates
+	 */
+	private boolean checkStatistics(long[] totals) {
+		boolean ok = true;
+		long[] folder = new long[4];
+
+		for (FileInfo file : this.files) {
+			boolean dup = !file.isUnique();
+			boolean global = file.hasGlobalDuplicates();
+
+			folder[0] += file.getSize();
+			folder[1] += (dup) ? 1 : 0;
+			folder[2] += (dup) ? file.getSize() : 0;
+			folder[3] += (global) ? 1 : 0;
+		}
+
+		long[] tree = { 1, this.files.size(), folder[0], folder[1], folder[2], folder[3] };
+
+		for (FolderInfo subfolder : this.folders) {
+			ok &= subfolder.checkStatistics(totals);
+
+			for (int ii = 0; ii < tree.length; ++ii) {
+				tree[ii] += totals[ii];
+			}
+		}
+
+		long[] expected = { folder[0], folder[1], folder[2], folder[3], //
+				tree[0], tree[1], tree[2], tree[3], tree[4], tree[5] };
+		long[] actual = { this.folderSize, this.folderDupCount, this.folderDupSize, this.globalDupCount, //
+				this.treeFolderCount, this.treeFileCount, this.treeSize, //
+				this.treeDupCount, this.treeDupSize, this.treeGlobalDupCount };
+
+		if (!Arrays.equals(expected, actual)) {
+			Trace.traceln(Trace.NORMAL, "Statistics for " + getRelativeName() + " are " //
+					+ Arrays.toString(actual) + " expected " + Arrays.toString(expected));
+			ok = false;
+		}
+
+		System.arraycopy(tree, 0, totals, 0, tree.length);
+
+		return ok;
+	}
+
 	/** Get child folder with a given name */
 	public final FolderInfo getSubfolder(String name) {
 		for (FolderInfo folder : this.folders) {
@@ -60,14 +221,8 @@ public class FolderInfo extends FileObjectInfo {
 	}
 
 	/** Count all folders under this folder (including this one) */
-	private int getTreeFolderCount() {
-		int count = 1;
-
-		for (FolderInfo folder : this.folders) {
-			count += folder.getTreeFolderCount();
-		}
-
-		return count;
+	public int getTreeFolderCount() {
+		return this.treeFolderCount;
 	}
 
 	/** Count files in this folder */
@@ -77,13 +232,7 @@ public class FolderInfo extends FileObjectInfo {
 
 	/** Count all files under this folder */
 	public int getTreeFileCount() {
-		int count = this.files.size();
-
-		for (FolderInfo folder : this.folders) {
-			count += folder.getTreeFileCount();
-		}
-
-		return count;
+		return this.treeFileCount;
 	}
 
 	/** Get the total size of this folder's subtree */
@@ -93,100 +242,42 @@ public class FolderInfo extends FileObjectInfo {
 
 	/** Get the sum of the size of all files under this folder */
 	public long getTreeSize() {
-		long tot = getFolderSize();
-
-		for (FolderInfo folder : this.folders) {
-			long subtot = folder.getTreeSize();
-			tot += subtot;
-		}
-
-		return tot;
+		return this.treeSize;
 	}
 
 	/** Get the sum of the sizes of all files in this folder */
 	public long getFolderSize() {
-		long tot = 0L;
-
-		for (FileInfo file : this.files) {
-			tot += file.getSize();
-		}
-
-		return tot;
+		return this.folderSize;
 	}
 
 	/** Get the sum of the sizes of non-unique files in this folder */
 	public long getFolderDupSize() {
-		long tot = 0L;
-
-		for (FileInfo file : this.files) {
-			if (!file.isUnique()) {
-				tot += file.getSize();
-			}
-		}
-
-		return tot;
+		return this.folderDupSize;
 	}
 
 	/** Get the sum of the sizes of all non-unique files under this folder */
-	private long getTreeDupSize() {
-		long tot = getFolderDupSize();
-
-		for (FolderInfo folder : this.folders) {
-			long subtot = folder.getTreeDupSize();
-			tot += subtot;
-		}
-
-		return tot;
+	public long getTreeDupSize() {
+		return this.treeDupSize;
 	}
 
 	/** Count the number of non-unique files in this folder */
 	public int getDupCount() {
-		int dupcount = 0;
-
-		for (FileInfo file : this.files) {
-			if (!file.isUnique()) {
-				++dupcount;
-			}
-		}
-
-		return dupcount;
+		return this.folderDupCount;
 	}
 
-	private int getGlobalDupCount() {
+	/** Count the files in this folder with duplicates in other contexts */
+	public int getGlobalDupCount() {
 		return this.globalDupCount;
 	}
 
-	/** Count the number of context duplicates under this folder */
-	private int getTreeLocalDupCount() {
-		int count = this.folderDupCount;
-
-		for (FolderInfo folder : this.folders) {
-			count += folder.getTreeLocalDupCount();
-		}
-
-		return count;
-	}
-
 	/** Count the total number of non-unique files under this folder */
 	public int getTreeDupCount() {
-		int dupcount = getDupCount();
-
-		for (FolderInfo folder : this.folders) {
-			dupcount += folder.getTreeDupCount();
-		}
-
-		return dupcount;
+		return this.treeDupCount;
 	}
 
 	/** Get the total count of global duplicates under this folder */
-	private int getTreeGlobalDupCount() {
-		int count = getGlobalDupCount();
-
-		for (FolderInfo folder : this.folders) {
-			count += folder.getTreeGlobalDupCount();
-		}
-
-		return count;
+	public int getTreeGlobalDupCount() {
+		return this.treeGlobalDupCount;
 	}
 
 	/** Get percentage of non-unique files in this folder */
@@ -201,19 +292,7 @@ public class FolderInfo extends FileObjectInfo {
 
 	/** Get whether all files in this sub-tree are non-unique */
 	private boolean isAllTreeDups() {
-		if (!isAllDups()) {
-			return false;
-		}
-
-		for (FolderInfo folder : this.folders) {
-			if (!folder.isAllDups()) {
-				// TODO testing
-				folder.isAllDups();
-				return false;
-			}
-		}
-
-		return true;
+		return this.treeDupCount == this.treeFileCount;
 	}
 
 	/** Get all folders in the sub-tree under this folder */
@@ -0,0 +1,377 @@
+package dup.model.persist;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import dup.analyze.ChecksumValues;
+import dup.analyze.DetailLevel;
+import dup.analyze.SamplingPolicy;
+import dup.metrics.Histogram;
+import dup.metrics.Meter;
+import dup.metrics.Metrics;
+import dup.model.Context;
+import dup.model.FileInfo;
+import dup.model.FolderInfo;
+
+/**
+ * Binary format for saved contexts.<br>
+ * Layout (all values big-endian):
+ *
+ * <pre>
+ * header   magic (8 bytes), format version (int), section sizes:
+ *          string count (int), folder count (int), file count (int),
+ *          sample blob size (long)
+ * strings  length (int) + UTF-8 bytes for each string; the first four are
+ *          the context location, name, data version and sampling policy (the
+ *          policy is missing in format 1, which always used the legacy one)
+ * folders  parent index (int), name string (int) - the root folder is 0 and
+ *          every folder follows its parent
+ * files    fixed-width records of RECORD_SIZE bytes, grouped by folder
+ * samples  sample bytes for all files, referenced by offset and length
+ * </pre>
+ *
+ * Names are stored once in the string table and shared when loaded. The file is
+ * read through memory-mapped buffers, so loading does no parsing and allocates
+ * little besides the model objects themselves.
+ */
+public class BinaryPersistence {
+	/** "DUPDBIN1" */
+	private static final long MAGIC = 0x44555044_42494E31L;
+	private static final int FORMAT_VERSION = 2;
+	/** Oldest format version that can be loaded */
+	private static final int MIN_FORMAT_VERSION = 1;
+
+	private static final int HEADER_SIZE = 8 + 4 + 4 + 4 + 4 + 8;
+
+	/**
+	 * File record: folder (int), name (int), size (long), modified (long), prefix
+	 * (int), sample (int), full (long), sample bytes offset (long), sample bytes
+	 * length (int, -1 if none)
+	 */
+	private static final int RECORD_SIZE = 4 + 4 + 8 + 8 + 4 + 4 + 8 + 8 + 4;
+
+	/** Sample blob is mapped in windows of this size (plus the largest sample) */
+	private static final long BLOB_WINDOW_SIZE = 1024 * 1024 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final Histogram saveTime = Metrics.histogram("persist.save.time");
+	private static final Meter saveBytes = Metrics.meter("persist.save.bytes");
+
+	private static boolean isSupportedVersion(int version) {
+		return (version >= MIN_FORMAT_VERSION) && (version <= FORMAT_VERSION);
+	}
+
+	/** Is a saved context file in the binary format? */
+	public static boolean isBinaryFile(File file) {
+		DataInputStream in = null;
+
+		try {
+			if (file.length() < HEADER_SIZE) {
+				return false;
+			}
+
+			in = new DataInputStream(new FileInputStream(file));
+
+			return in.readLong() == MAGIC;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			close(in);
+		}
+	}
+
+	/** Read the location of the context in a saved context file */
+	public static File readLocation(File file) {
+		DataInputStream in = null;
+
+		try {
+			in = new DataInputStream(new FileInputStream(file));
+
+			if ((in.readLong() != MAGIC) || !isSupportedVersion(in.readInt())) {
+				return null;
+			}
+
+			in.skipBytes(HEADER_SIZE - 12);
+
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+
+			return new File(new String(bytes, UTF8));
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			close(in);
+		}
+
+		return null;
+	}
+
+	/** Write a context to a file */
+	public static void save(Context context, File file) throws IOException {
+		long start = System.nanoTime();
+		List<FolderInfo> folders = new ArrayList<FolderInfo>();
+		List<Integer> parents = new ArrayList<Integer>();
+		collectFolders(context.getRoot(), -1, folders, parents);
+
+		List<String> strings = new ArrayList<String>();
+		Map<String, Integer> stringIndex = new HashMap<String, Integer>();
+
+		strings.add(context.getRootFile().getAbsolutePath());
+		strings.add(context.getName());
+		strings.add(context.getVersion());
+		strings.add(context.getSamplingPolicy());
+
+		int filecount = 0;
+		long blobsize = 0;
+
+		for (FolderInfo folder : folders) {
+			addString(folder.getName(), strings, stringIndex);
+
+			for (FileInfo finfo : folder.getFiles()) {
+				addString(finfo.getName(), strings, stringIndex);
+
+				++filecount;
+				blobsize += getSampleLength(finfo);
+			}
+		}
+
+		DataOutputStream out = new DataOutputStream( //
+				new BufferedOutputStream(new FileOutputStream(file), 1024 * 64));
+
+		try {
+			out.writeLong(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(strings.size());
+			out.writeInt(folders.size());
+			out.writeInt(filecount);
+			out.writeLong(blobsize);
+
+			for (String s : strings) {
+				byte[] bytes = s.getBytes(UTF8);
+
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+
+			for (int ii = 0; ii < folders.size(); ++ii) {
+				out.writeInt(parents.get(ii));
+				out.writeInt(stringIndex.get(folders.get(ii).getName()));
+			}
+
+			long offset = 0;
+
+			for (int ii = 0; ii < folders.size(); ++ii) {
+				for (FileInfo finfo : folders.get(ii).getFiles()) {
+					int sampleLength = getSampleLength(finfo);
+
+					out.writeInt(ii);
+					out.writeInt(stringIndex.get(finfo.getName()));
+					out.writeLong(finfo.getSize());
+					out.writeLong(finfo.getLastModified());
+					out.writeInt(finfo.getPrefixChecksum());
+					out.writeInt(finfo.getSampleChecksum());
+					out.writeLong(finfo.getFullChecksum());
+					out.writeLong(offset);
+					out.writeInt(finfo.hasSampleBytes() ? sampleLength : -1);
+
+					offset += sampleLength;
+				}
+			}
+
+			for (FolderInfo folder : folders) {
+				for (FileInfo finfo : folder.getFiles()) {
+					byte[] sampleBytes = finfo.getSampleBytes();
+
+					if (sampleBytes != null) {
+						out.write(sampleBytes, 0, Math.min(sampleBytes.length, ChecksumValues.PREFIX_LENGTH));
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+
+		saveTime.recordSince(start);
+		saveBytes.mark(file.length());
+
+		context.setDirty(false);
+	}
+
+	/** Load a context from a file */
+	public static Context load(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			FileChannel channel = raf.getChannel();
+
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+
+			if (header.getLong() != MAGIC) {
+				throw new IOException("Not a binary context file: " + file);
+			}
+
+			int version = header.getInt();
+			if (!isSupportedVersion(version)) {
+				throw new IOException("Binary context file version mismatch: " + version //
+						+ " Expected: " + FORMAT_VERSION);
+			}
+
+			int stringCount = header.getInt();
+			int folderCount = header.getInt();
+			int fileCount = header.getInt();
+			long blobsize = header.getLong();
+
+			long blobStart = channel.size() - blobsize;
+			if (blobStart > Integer.MAX_VALUE) {
+				throw new IOException("Context file too large: " + file);
+			}
+
+			ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, blobStart);
+			data.position(HEADER_SIZE);
+
+			String[] strings = new String[stringCount];
+			for (int ii = 0; ii < stringCount; ++ii) {
+				byte[] bytes = new byte[data.getInt()];
+				data.get(bytes);
+
+				strings[ii] = new String(bytes, UTF8);
+			}
+
+			if (!strings[2].equals(Persistence.VERSION)) {
+				throw new IOException("Data file version mismatch: " + strings[2] //
+						+ " Expected: " + Persistence.VERSION);
+			}
+
+			Context context = new Context(strings[0], strings[1]);
+			context.setVersion(strings[2]);
+			context.setSamplingPolicy((version >= 2) ? strings[3] : SamplingPolicy.LEGACY.getName());
+			context.setDetailLevel(DetailLevel.MAX);
+
+			FolderInfo[] folders = new FolderInfo[folderCount];
+			folders[0] = context.getRoot();
+			data.position(data.position() + 8);
+
+			for (int ii = 1; ii < folderCount; ++ii) {
+				FolderInfo parent = folders[data.getInt()];
+
+				folders[ii] = new FolderInfo(parent, strings[data.getInt()]);
+				parent.addFolder(folders[ii]);
+			}
+
+			if (data.remaining() != (long) fileCount * RECORD_SIZE) {
+				throw new IOException("Context file is damaged: " + file);
+			}
+
+			List<ByteBuffer> blobWindows = mapBlob(channel, blobStart, blobsize);
+			List<FileInfo> files = new ArrayList<FileInfo>(fileCount);
+			byte[] sampleBuffer = new byte[ChecksumValues.PREFIX_LENGTH];
+
+			for (int ii = 0; ii < fileCount; ++ii) {
+				FolderInfo folder = folders[data.getInt()];
+				String name = strings[data.getInt()];
+				long size = data.getLong();
+				long modified = data.getLong();
+
+				FileInfo finfo = new FileInfo(folder, name, size, modified);
+
+				finfo.setPrefixChecksum(data.getInt());
+				finfo.setSampleChecksum(data.getInt());
+				finfo.setFullChecksum(data.getLong());
+
+				long offset = data.getLong();
+				int length = data.getInt();
+
+				if (length >= 0) {
+					ByteBuffer window = blobWindows.get((int) (offset / BLOB_WINDOW_SIZE));
+
+					window.position((int) (offset % BLOB_WINDOW_SIZE));
+					window.get(sampleBuffer, 0, length);
+
+					finfo.setSampleBytes(sampleBuffer, length);
+				}
+
+				folder.addFile(finfo);
+				files.add(finfo);
+
+				if (finfo.getDetailLevel().isLessThan(context.getDetailLevel())) {
+					context.setDetailLevel(finfo.getDetailLevel());
+				}
+			}
+
+			context.addFiles(files);
+			context.determineCurrentFileCount();
+
+			return context;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Map the sample blob in windows. Each window overlaps the next by the
+	 * largest sample, so no sample crosses the end of a window.
+	 */
+	private static List<ByteBuffer> mapBlob(FileChannel channel, long blobStart, long blobsize) //
+			throws IOException {
+		List<ByteBuffer> windows = new ArrayList<ByteBuffer>();
+
+		for (long offset = 0; offset < blobsize; offset += BLOB_WINDOW_SIZE) {
+			long length = Math.min(BLOB_WINDOW_SIZE + ChecksumValues.PREFIX_LENGTH, blobsize - offset);
+
+			windows.add(channel.map(FileChannel.MapMode.READ_ONLY, blobStart + offset, length));
+		}
+
+		return windows;
+	}
+
+	/** Gather folders in the order they are saved (parents before children) */
+	private static void collectFolders(FolderInfo folder, int parent, //
+			List<FolderInfo> folders, List<Integer> parents) {
+		int index = folders.size();
+
+		folders.add(folder);
+		parents.add(parent);
+
+		for (FolderInfo subfolder : folder.getSubfolders()) {
+			collectFolders(subfolder, index, folders, parents);
+		}
+	}
+
+	private static void addString(String s, List<String> strings, Map<String, Integer> stringIndex) {
+		if (!stringIndex.containsKey(s)) {
+			stringIndex.put(s, strings.size());
+			strings.add(s);
+		}
+	}
+
+	/** Number of sample bytes saved for a file (at most PREFIX_LENGTH) */
+	private static int getSampleLength(FileInfo finfo) {
+		byte[] sampleBytes = finfo.getSampleBytes();
+
+		return (sampleBytes != null) ? Math.min(sampleBytes.length, ChecksumValues.PREFIX_LENGTH) : 0;
+	}
+
+	private static void close(DataInputStream in) {
+		try {
+			if (in != null) {
+				in.close();
+			}
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+}
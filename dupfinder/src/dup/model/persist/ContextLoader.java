@@ -6,15 +6,133 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
+import dup.analyze.Checksum;
+import dup.analyze.ChecksumValues;
 import dup.analyze.DetailLevel;
+import dup.analyze.SamplingPolicy;
+import dup.metrics.Histogram;
+import dup.metrics.Meter;
+import dup.metrics.Metrics;
 import dup.model.Context;
 import dup.model.FileInfo;
 import dup.model.FolderInfo;
+import dup.util.Trace;
 
 /** Functions to create/reload a persisted context */
 public class ContextLoader {
+	/** Rewrite saved contexts in the old text format in the binary format */
+	public static boolean convertTextFiles = true;
+
+	private static final Histogram loadTime = Metrics.histogram("persist.load.time");
+	private static final Meter loadBytes = Metrics.meter("persist.load.bytes");
+
 	public static Context loadContextFromFile(File file) {
+		long start = System.nanoTime();
+		Context context = null;
+
+		if (BinaryPersistence.isBinaryFile(file)) {
+			try {
+				context = BinaryPersistence.load(file);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		} else {
+			context = loadTextContextFromFile(file);
+		}
+
+		loadTime.recordSince(start);
+		loadBytes.mark(file.length());
+
+		if (context != null) {
+			discardStaleSampleChecksums(context);
+		}
+
+		if ((context != null) && convertTextFiles && !BinaryPersistence.isBinaryFile(file) //
+				&& Persistence.VERSION.equals(context.getVersion())) {
+			convertToBinary(context, file);
+		}
+
+		return context;
+	}
+
+	/**
+	 * Discard saved sample checksums that the current sampling policy would
+	 * calculate from different parts of the file, so they are calculated again
+	 * when needed. Files small enough that every policy reads all of them keep
+	 * their checksums.
+	 */
+	private static void discardStaleSampleChecksums(Context context) {
+		SamplingPolicy current = Checksum.samplingPolicy;
+
+		if (current.getName().equals(context.getSamplingPolicy())) {
+			return;
+		}
+
+		SamplingPolicy saved = null;
+		int discarded = 0;
+
+		try {
+			saved = SamplingPolicy.parse(context.getSamplingPolicy());
+		} catch (IllegalArgumentException e) {
+			Trace.traceln(Trace.NORMAL, e.getMessage());
+		}
+
+		for (FileInfo file : context.getAllFiles()) {
+			if ((file.getSampleChecksum() != ChecksumValues.CKSUM_UNDEFINED) //
+					&& ((saved == null) || !current.hasSameRanges(saved, file.getSize()))) {
+				file.setSampleChecksum(ChecksumValues.CKSUM_UNDEFINED);
+				++discarded;
+			}
+		}
+
+		Trace.traceln(Trace.NORMAL, String.format("Sampling policy changed from %s to %s: discarded %d sample checksums", //
+				context.getSamplingPolicy(), current, discarded));
+
+		context.setSamplingPolicy(current.getName());
+
+		if (discarded > 0) {
+			context.setDirty();
+		}
+	}
+
+	/** Replace a text format saved context with the binary format */
+	private static void convertToBinary(Context context, File file) {
+		try {
+			replaceSavedContext(context, file);
+
+			Trace.traceln(Trace.NORMAL, "Converted saved context " + file.getName() + " to binary format");
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Save a context in the binary format over an existing file. The new file is
+	 * written alongside and then moved into place, so a failed save leaves the
+	 * old one intact.
+	 */
+	static void replaceSavedContext(Context context, File file) throws IOException {
+		File tmpfile = new File(file.getPath() + ".tmp");
+
+		try {
+			BinaryPersistence.save(context, tmpfile);
+
+			try {
+				Files.move(tmpfile.toPath(), file.toPath(), //
+						StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmpfile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			tmpfile.delete();
+		}
+	}
+
+	private static Context loadTextContextFromFile(File file) {
 		FileInputStream fstream = null;
 		DataInputStream in = null;
 		BufferedReader br = null;
@@ -45,6 +163,7 @@ public class ContextLoader {
 			}
 
 			context.setVersion(v);
+			context.setSamplingPolicy(SamplingPolicy.LEGACY.getName());
 
 			String line = br.readLine();
 
@@ -77,6 +196,10 @@ public class ContextLoader {
 	}
 
 	public static File extractLocationFromSavedContext(File savedContext) {
+		if (BinaryPersistence.isBinaryFile(savedContext)) {
+			return BinaryPersistence.readLocation(savedContext);
+		}
+
 		FileInputStream fstream = null;
 		DataInputStream in = null;
 		BufferedReader br = null;
@@ -0,0 +1,99 @@
+package dup.model.persist;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import dup.model.Context;
+import dup.model.FileInfo;
+import dup.model.FolderInfo;
+import dup.util.FileUtil;
+import dup.util.Trace;
+
+/**
+ * Brings a saved context up to date with the filesystem.<br>
+ * The context folder is walked again, and each file is matched with the saved
+ * file at the same relative path. If the size and modified time are unchanged,
+ * the saved checksums are reused, so only new and changed files need to be read.
+ * Files that no longer exist are simply not part of the new context.
+ */
+public class ContextReconciler {
+	/** Counts of differences between the saved context and the filesystem */
+	private int unchanged = 0;
+	private int changed = 0;
+	private int added = 0;
+	private int deleted = 0;
+
+	/**
+	 * Ingest the folder of a saved context, reusing the saved checksums of files
+	 * that have not changed.
+	 *
+	 * @param saved The context as loaded from storage (discarded afterwards)
+	 * @return The new context
+	 */
+	public static Context reconcile(Context saved) {
+		Context context = new Context(saved.getRootFile().getPath(), saved.getName());
+		context.setVersion(Persistence.VERSION);
+
+		FileUtil.ingestContext(context);
+
+		ContextReconciler reconciler = new ContextReconciler();
+		reconciler.reconcileFolder(context.getRoot(), saved.getRoot());
+
+		// The saved files are no longer needed; free their rows in the file table
+		for (FileInfo file : saved.getAllFiles()) {
+			file.dispose();
+		}
+
+		context.determineDetailLevel();
+		context.setDirty(reconciler.changed + reconciler.added + reconciler.deleted > 0);
+
+		Trace.traceln(Trace.NORMAL, String.format( //
+				"Reconciled %s: %d unchanged, %d changed, %d new, %d deleted", //
+				context.getName(), reconciler.unchanged, reconciler.changed, //
+				reconciler.added, reconciler.deleted));
+
+		return context;
+	}
+
+	private void reconcileFolder(FolderInfo folder, FolderInfo saved) {
+		Map<String, FileInfo> savedFiles = new HashMap<String, FileInfo>();
+		for (FileInfo file : saved.getFiles()) {
+			savedFiles.put(file.getName(), file);
+		}
+
+		for (FileInfo file : folder.getFiles()) {
+			FileInfo savedFile = savedFiles.remove(file.getName());
+
+			if (savedFile == null) {
+				++this.added;
+			} else if ((savedFile.getSize() == file.getSize()) //
+					&& (savedFile.getLastModified() == file.getLastModified())) {
+				file.setChecksums(savedFile.getChecksums());
+				++this.unchanged;
+			} else {
+				++this.changed;
+			}
+		}
+
+		this.deleted += savedFiles.size();
+
+		Map<String, FolderInfo> savedFolders = new HashMap<String, FolderInfo>();
+		for (FolderInfo subfolder : saved.getSubfolders()) {
+			savedFolders.put(subfolder.getName(), subfolder);
+		}
+
+		for (FolderInfo subfolder : folder.getSubfolders()) {
+			FolderInfo savedFolder = savedFolders.remove(subfolder.getName());
+
+			if (savedFolder != null) {
+				reconcileFolder(subfolder, savedFolder);
+			} else {
+				this.added += subfolder.getTreeFileCount();
+			}
+		}
+
+		for (FolderInfo savedFolder : savedFolders.values()) {
+			this.deleted += savedFolder.getTreeFileCount();
+		}
+	}
+}
@@ -7,7 +7,6 @@ import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintStream;
 import java.nio.file.Path;
 
 import dup.analyze.DupDiffFileInfo;
@@ -237,19 +236,29 @@ public class Persistence {
 		return new DupDiffFileInfo(filename, timestamp);
 	}
 
-	public static void save(Context context) {
-		PrintStream ps = null;
+	/**
+	 * Save a context, replacing the file it was saved in before if there is one.
+	 *
+	 * @return True if the context was saved
+	 */
+	public static boolean save(Context context) {
 		try {
-			File dbfile = File.createTempFile(context.getName(), ".db", dbfolder);
+			File dbfile = findSavedContext(context.getRootFile().getAbsoluteFile());
+
+			if (dbfile == null) {
+				// Temp file names need a prefix of at least three characters
+				String prefix = (context.getName() + "___").substring(0, Math.max(3, context.getName().length()));
 
-			ps = new PrintStream(dbfile);
-			Persistence.save(context, ps);
+				dbfile = File.createTempFile(prefix, ".db", dbfolder);
+				BinaryPersistence.save(context, dbfile);
+			} else {
+				ContextLoader.replaceSavedContext(context, dbfile);
+			}
+
+			return true;
 		} catch (Exception e) {
 			e.printStackTrace();
-		} finally {
-			if (ps != null) {
-				ps.close();
-			}
+			return false;
 		}
 	}
 
@@ -322,84 +331,6 @@ public class Persistence {
 //		db.setDirty(false);
 //	}
 
-	private static void save(Context context, PrintStream ps) {
-		File rootFile = context.getRootFile();
-
-		ps.println("Location:" + encodeString(rootFile.getAbsolutePath()));
-		ps.println("Context:" + encodeString(context.getName()));
-		ps.println("Version:" + context.getVersion());
-
-		FolderInfo folder = context.getRoot();
-		saveFolder(folder, ps);
-
-		context.setDirty(false);
-	}
-
-	private static void saveFolder(FolderInfo folder, PrintStream ps) {
-		ps.println("Folder:" + encodeString(folder.getRelativeName()));
-
-		for (FileInfo file : folder.getFiles()) {
-			ps.println("File:" + encodeString(file.getName()) //
-					+ " " + hexString(file.getSize()) //
-					+ " " + hexString(file.getLastModified()) //
-					+ " " + hexString(file.getPrefixChecksum()) //
-					+ " " + hexString(file.getSampleChecksum()));
-
-			// Note that for verified dups/diffs, we know that the checksums and
-			// sizes are the same. All that we need to save is the modified date
-			// and (absolute) file location.
-			// If the file moves or the modified date changes, we will consider
-			// the validation to be voided and we will need to compare the files
-			// again.
-//			for (FileInfo vdup : file.getDupinfo().getVerifiedDuplicates()) {
-//				if (vdup == file) {
-//					continue;
-//				}
-//
-//				ps.println("VDup:" //
-//						+ " " + hexString(file.getLastModified()) //
-//						+ " " + encodeString(vdup.getFullName()));
-//
-//			}
-//
-//			for (FileInfo vdup : file.getDupinfo().getVerifiedDifferentFiles()) {
-//				ps.println("VDiff:" //
-//						+ " " + hexString(file.getLastModified()) //
-//						+ " " + encodeString(vdup.getFullName()));
-//
-//			}
-		}
-
-		for (FolderInfo subfolder : folder.getSubfolders()) {
-			saveFolder(subfolder, ps);
-		}
-	}
-
-	private static String hexString(Integer value) {
-		return String.format("%1$08X", value);
-	}
-
-	private static String hexString(Long value) {
-		return String.format("%1$016X", value);
-	}
-
-	private static String encodeString(String s) {
-		StringBuilder sb = new StringBuilder(s);
-
-		for (int ii = 0; ii < sb.length(); ++ii) {
-			Integer c = new Integer(sb.charAt(ii));
-
-			if ((c <= 0x20) || (c > 0x7F) || (c == ENCODE_SENTINEL)) {
-				sb.setCharAt(ii, ENCODE_SENTINEL);
-				++ii;
-
-				sb.insert(ii, String.format("%1$x;", c));
-			}
-		}
-
-		return sb.toString();
-	}
-
 	/**
 	 * Parse an input line starting with a identifying string.
 	 * 
@@ -449,6 +380,11 @@ public class Persistence {
 		space = data.indexOf(" ");
 		if (space > 0) {
 			finfo.setSampleChecksum(parseIntHex(data.substring(0, space)));
+			data.delete(0, space + 1);
+
+			// Full checksum is present only if it was calculated
+			space = data.indexOf(" ");
+			finfo.setFullChecksum(parseLongHex((space > 0) ? data.substring(0, space) : data.toString()));
 		} else {
 			finfo.setSampleChecksum(parseIntHex(data.toString()));
 		}
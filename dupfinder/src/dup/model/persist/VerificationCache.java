@@ -0,0 +1,433 @@
+package dup.model.persist;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import dup.analyze.XXHash64;
+import dup.metrics.Counter;
+import dup.metrics.Metrics;
+import dup.model.FileInfo;
+import dup.util.LongHashMap;
+import dup.util.Trace;
+
+/**
+ * Durable record of file comparison results, so files verified identical or
+ * different are not read again after a restart.<br>
+ * Each file is identified by a 64-bit hash of its path, size and modification
+ * time, so a file that changes no longer matches its old results. A result is
+ * kept for the pair of file hashes.<br>
+ * Results are appended to a log in the database folder. They are buffered and
+ * written after each group of files compared, every flushMillis, and on close,
+ * so a crash loses at most a few seconds of results:
+ *
+ * <pre>
+ * header   magic (8 bytes), format version (int)
+ * records  file hash (long), other file hash (long), day last used (int),
+ *          identical (byte) - the lower file hash first
+ * </pre>
+ *
+ * The whole log is loaded at startup through a memory-mapped buffer, later
+ * records replacing earlier ones for the same pair. When the log holds too many
+ * replaced records, or results not used for maxAgeDays, it is rewritten with
+ * only the current results.
+ */
+public class VerificationCache {
+	/** Use the cache (if false, nothing is loaded, looked up or saved) */
+	public static boolean enabled = true;
+	/** Results not used for this many days are dropped when compacting */
+	public static int maxAgeDays = 365;
+	/** Longest time a result waits in the buffer before it is written */
+	public static long flushMillis = 2000;
+
+	/** "DUPVLOG1" */
+	private static final long MAGIC = 0x44555056_4C4F4731L;
+	/** 2: file hashes no longer include a checksum */
+	private static final int FORMAT_VERSION = 2;
+
+	private static final int HEADER_SIZE = 8 + 4;
+	private static final int RECORD_SIZE = 8 + 8 + 4 + 1;
+
+	private static final String LOG_NAME = "verified.log";
+	private static final long MILLIS_PER_DAY = 1000L * 60 * 60 * 24;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final Counter hits = Metrics.counter("verify.cache.hits");
+	private static final Counter misses = Metrics.counter("verify.cache.misses");
+
+	private static VerificationCache instance = null;
+
+	/** Get the cache, loading it the first time */
+	public static synchronized VerificationCache instance() {
+		if (instance == null) {
+			instance = new VerificationCache(Persistence.getDbFolder());
+			instance.load();
+		}
+
+		return instance;
+	}
+
+	/** Write outstanding results and release the cache, if it was loaded */
+	public static synchronized void closeInstance() {
+		if (instance != null) {
+			instance.close();
+			instance = null;
+		}
+	}
+
+	/** A comparison result */
+	private static class Entry {
+		public final long hash1;
+		public final long hash2;
+		public int day;
+		public boolean identical;
+
+		public Entry(long hash1, long hash2, int day, boolean identical) {
+			this.hash1 = hash1;
+			this.hash2 = hash2;
+			this.day = day;
+			this.identical = identical;
+		}
+
+		public boolean matches(long hash1, long hash2) {
+			return (this.hash1 == Math.min(hash1, hash2)) && (this.hash2 == Math.max(hash1, hash2));
+		}
+	}
+
+	private final File logfile;
+	private final LongHashMap<Entry> entries = new LongHashMap<Entry>();
+	private final int today = (int) (System.currentTimeMillis() / MILLIS_PER_DAY);
+
+	/** Number of records in the log, including replaced ones */
+	private long records = 0;
+	/** Number of entries whose day last used changed since they were logged */
+	private int refreshed = 0;
+	private DataOutputStream out = null;
+	/** Writes buffered results while the log is open */
+	private ScheduledExecutorService flusher = null;
+
+	private VerificationCache(File dbfolder) {
+		this.logfile = (enabled && (dbfolder != null)) ? new File(dbfolder, LOG_NAME) : null;
+	}
+
+	/** Number of pairs with a known result */
+	public synchronized int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Look up the result of comparing two files.
+	 *
+	 * @return TRUE if identical, FALSE if different, null if unknown
+	 */
+	public synchronized Boolean lookup(FileInfo file1, FileInfo file2) {
+		if (this.logfile == null) {
+			return null;
+		}
+
+		long hash1 = getFileHash(file1);
+		long hash2 = getFileHash(file2);
+		Entry entry = this.entries.get(getPairKey(hash1, hash2));
+
+		if ((entry == null) || !entry.matches(hash1, hash2)) {
+			misses.increment();
+			return null;
+		}
+
+		hits.increment();
+		touch(entry);
+
+		return entry.identical;
+	}
+
+	/** Remember the result of comparing two files */
+	public synchronized void record(FileInfo file1, FileInfo file2, boolean identical) {
+		if (this.logfile == null) {
+			return;
+		}
+
+		long hash1 = getFileHash(file1);
+		long hash2 = getFileHash(file2);
+		long key = getPairKey(hash1, hash2);
+		Entry entry = this.entries.get(key);
+
+		if ((entry != null) && entry.matches(hash1, hash2) && (entry.identical == identical)) {
+			touch(entry);
+			return;
+		}
+
+		entry = new Entry(Math.min(hash1, hash2), Math.max(hash1, hash2), this.today, identical);
+		this.entries.put(key, entry);
+
+		try {
+			if (this.out == null) {
+				this.out = openLog();
+				startFlusher();
+			}
+
+			writeRecord(this.out, entry);
+			++this.records;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/** Write buffered results to the log */
+	public synchronized void flush() {
+		if (this.out != null) {
+			try {
+				this.out.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/** Flush every flushMillis, so results found during a long comparison are kept */
+	private void startFlusher() {
+		if (this.flusher != null) {
+			return;
+		}
+
+		this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "VerificationCache");
+				thread.setDaemon(true);
+
+				return thread;
+			}
+		});
+
+		this.flusher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				flush();
+			}
+		}, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void touch(Entry entry) {
+		if (entry.day != this.today) {
+			entry.day = this.today;
+			++this.refreshed;
+		}
+	}
+
+	/** Bulk load the log */
+	private void load() {
+		if ((this.logfile == null) || !this.logfile.isFile()) {
+			return;
+		}
+
+		RandomAccessFile raf = null;
+		boolean damaged = false;
+		int expired = 0;
+
+		try {
+			raf = new RandomAccessFile(this.logfile, "r");
+			FileChannel channel = raf.getChannel();
+			long length = channel.size();
+
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException("Verification log too large: " + this.logfile);
+			}
+
+			ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+
+			if ((length < HEADER_SIZE) || (data.getLong() != MAGIC)) {
+				throw new IOException("Not a verification log: " + this.logfile);
+			}
+
+			if (data.getInt() != FORMAT_VERSION) {
+				// Its file hashes are computed differently, so none would match
+				Trace.traceln(Trace.NORMAL, "Discarding verification log from another version");
+				data.position(data.limit());
+				damaged = true;
+			}
+
+			// A partial record at the end is left by an interrupted write
+			damaged = damaged || (((length - HEADER_SIZE) % RECORD_SIZE) != 0);
+
+			while (data.remaining() >= RECORD_SIZE) {
+				long hash1 = data.getLong();
+				long hash2 = data.getLong();
+				int day = data.getInt();
+				boolean identical = data.get() != 0;
+
+				++this.records;
+
+				if (day < this.today - maxAgeDays) {
+					++expired;
+					continue;
+				}
+
+				this.entries.put(getPairKey(hash1, hash2), new Entry(hash1, hash2, day, identical));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			damaged = true;
+		} finally {
+			close(raf);
+		}
+
+		Trace.traceln(Trace.NORMAL, String.format("Loaded %d verified file pairs (%d records, %d expired)", //
+				this.entries.size(), this.records, expired));
+
+		if (damaged || needsCompaction()) {
+			compact();
+		}
+	}
+
+	/** Are more than half of the records in the log replaced or expired? */
+	private boolean needsCompaction() {
+		return (this.records > 2 * this.entries.size()) //
+				|| (this.refreshed > this.entries.size() / 2);
+	}
+
+	/** Write outstanding results, compacting the log if worthwhile */
+	public synchronized void close() {
+		if (this.flusher != null) {
+			this.flusher.shutdownNow();
+			this.flusher = null;
+		}
+
+		if (this.out != null) {
+			try {
+				this.out.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+
+			this.out = null;
+		}
+
+		if ((this.logfile != null) && (this.records > 0) && needsCompaction()) {
+			compact();
+		}
+	}
+
+	/**
+	 * Rewrite the log with only the current results. The new log is written
+	 * alongside and then moved into place, so a failure leaves the old one.
+	 */
+	private void compact() {
+		File tmpfile = new File(this.logfile.getPath() + ".tmp");
+
+		try {
+			if (this.out != null) {
+				this.out.close();
+				this.out = null;
+			}
+
+			DataOutputStream tmp = new DataOutputStream( //
+					new BufferedOutputStream(new FileOutputStream(tmpfile), 1024 * 64));
+			long written = 0;
+
+			try {
+				tmp.writeLong(MAGIC);
+				tmp.writeInt(FORMAT_VERSION);
+
+				for (long key : this.entries.keys()) {
+					Entry entry = this.entries.get(key);
+
+					if (entry.day < this.today - maxAgeDays) {
+						this.entries.remove(key);
+					} else {
+						writeRecord(tmp, entry);
+						++written;
+					}
+				}
+			} finally {
+				tmp.close();
+			}
+
+			try {
+				Files.move(tmpfile.toPath(), this.logfile.toPath(), //
+						StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmpfile.toPath(), this.logfile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+
+			Trace.traceln(Trace.VERBOSE, "Compacted verification log from " + this.records //
+					+ " to " + written + " records");
+
+			this.records = written;
+			this.refreshed = 0;
+		} catch (IOException e) {
+			e.printStackTrace();
+			tmpfile.delete();
+		}
+	}
+
+	/** Open the log for appending, creating it if necessary */
+	private DataOutputStream openLog() throws IOException {
+		boolean isNew = !this.logfile.exists() || (this.logfile.length() < HEADER_SIZE);
+
+		DataOutputStream dos = new DataOutputStream( //
+				new BufferedOutputStream(new FileOutputStream(this.logfile, !isNew), 1024 * 64));
+
+		if (isNew) {
+			dos.writeLong(MAGIC);
+			dos.writeInt(FORMAT_VERSION);
+			this.records = 0;
+		}
+
+		return dos;
+	}
+
+	private static void writeRecord(DataOutputStream dos, Entry entry) throws IOException {
+		dos.writeLong(entry.hash1);
+		dos.writeLong(entry.hash2);
+		dos.writeInt(entry.day);
+		dos.writeByte(entry.identical ? 1 : 0);
+	}
+
+	/**
+	 * Hash the identity of a file: path, size and modification time. Checksums
+	 * are left out, since which of them are calculated varies from pass to pass.
+	 */
+	static long getFileHash(FileInfo file) {
+		byte[] path = file.getJavaFile().getAbsolutePath().getBytes(UTF8);
+		ByteBuffer attributes = ByteBuffer.allocate(8 + 8);
+
+		attributes.putLong(file.getSize());
+		attributes.putLong(file.getLastModified());
+
+		XXHash64 hash = new XXHash64();
+		hash.update(path, 0, path.length);
+		hash.update(attributes.array(), 0, attributes.capacity());
+
+		return hash.getValue();
+	}
+
+	/** Map key for a pair of files, whichever order they are given in */
+	private static long getPairKey(long hash1, long hash2) {
+		long lo = Math.min(hash1, hash2);
+		long hi = Math.max(hash1, hash2);
+
+		return lo ^ Long.rotateLeft(hi * 0x9E3779B97F4A7C15L, 31);
+	}
+
+	private static void close(RandomAccessFile raf) {
+		try {
+			if (raf != null) {
+				raf.close();
+			}
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+}
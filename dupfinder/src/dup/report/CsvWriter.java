@@ -0,0 +1,40 @@
+package dup.report;
+
+import java.io.PrintWriter;
+
+import dup.model.FileInfo;
+
+/**
+ * CSV with one row per file: group number, type ("duplicate" or "samefile"),
+ * file size, path
+ */
+public class CsvWriter extends ReportWriter {
+	private int group = 0;
+
+	public CsvWriter(PrintWriter out) {
+		super(out);
+	}
+
+	protected void begin(DuplicateReport report) {
+		this.out.println("group,type,size,path");
+	}
+
+	protected void writeGroup(DuplicateGroup group) {
+		++this.group;
+
+		for (FileInfo file : group.getFiles()) {
+			this.out.print(this.group + "," + group.getType() + "," + group.getFileSize() + ",");
+			this.out.println(csvField(file.getFullName()));
+		}
+	}
+
+	/** Quote a CSV field if necessary */
+	static String csvField(String s) {
+		if ((s.indexOf(',') < 0) && (s.indexOf('"') < 0) //
+				&& (s.indexOf('\n') < 0) && (s.indexOf('\r') < 0)) {
+			return s;
+		}
+
+		return "\"" + s.replace("\"", "\"\"") + "\"";
+	}
+}
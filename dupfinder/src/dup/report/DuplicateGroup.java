@@ -0,0 +1,56 @@
+package dup.report;
+
+import java.util.List;
+
+import dup.model.FileInfo;
+
+/**
+ * A group of files reported together: files that are identical, or files that
+ * are the same file on disk (hard links), which take no extra space.<br>
+ * The file list is a read-only view of the model.
+ */
+public class DuplicateGroup {
+	public static final String DUPLICATE = "duplicate";
+	public static final String SAME_FILE = "samefile";
+
+	private final String type;
+	private final long fileSize;
+	private final List<FileInfo> files;
+
+	DuplicateGroup(String type, long fileSize, List<FileInfo> files) {
+		this.type = type;
+		this.fileSize = fileSize;
+		this.files = files;
+	}
+
+	/** DUPLICATE or SAME_FILE */
+	public String getType() {
+		return this.type;
+	}
+
+	public boolean isSameFile() {
+		return this.type == SAME_FILE;
+	}
+
+	public long getFileSize() {
+		return this.fileSize;
+	}
+
+	public List<FileInfo> getFiles() {
+		return this.files;
+	}
+
+	/** Space that removing all but one of the files would free */
+	public long getWastedBytes() {
+		return isSameFile() ? 0 : getWastedBytes(this.fileSize, this.files.size());
+	}
+
+	static long getWastedBytes(long fileSize, int fileCount) {
+		return fileSize * (fileCount - 1);
+	}
+
+	public String toString() {
+		return String.format("%s size=%d files=%d wasted=%d", //
+				this.type, this.fileSize, this.files.size(), getWastedBytes());
+	}
+}
@@ -0,0 +1,198 @@
+package dup.report;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import dup.analyze.DuplicateInfo2;
+import dup.model.Context;
+import dup.model.Database;
+import dup.model.FileInfo;
+
+/**
+ * The duplicate files found in the open contexts, as a sequence of groups that
+ * is produced as it is read rather than collected up front.<br>
+ * Duplicate groups come in order of descending wasted bytes (ties by larger
+ * file size first). The groups of each file size are merged through a priority
+ * queue holding one small cursor per file size that has duplicates; the
+ * cursor finds its next largest group by scanning the model's lists, so no
+ * group or file list is copied and memory does not grow with the number of
+ * groups reported.<br>
+ * The model must not change (no contexts opened, closed or analyzed) while a
+ * report is being read.
+ */
+public class DuplicateReport implements Iterable<DuplicateGroup> {
+	private final Database db;
+
+	public DuplicateReport(Database db) {
+		this.db = db;
+	}
+
+	public List<Context> getContexts() {
+		return this.db.getContexts();
+	}
+
+	/** The groups of identical files, most wasted bytes first */
+	public Iterator<DuplicateGroup> iterator() {
+		return new DuplicateIterator(this.db.getDuplicates());
+	}
+
+	/** The groups of identical files, most wasted bytes first */
+	public Stream<DuplicateGroup> stream() {
+		return toStream(iterator());
+	}
+
+	/** The groups of files that are the same file on disk, by file size */
+	public Iterator<DuplicateGroup> sameFileIterator() {
+		return new SameFileIterator(this.db.getDuplicates());
+	}
+
+	/** The groups of files that are the same file on disk, by file size */
+	public Stream<DuplicateGroup> sameFileStream() {
+		return toStream(sameFileIterator());
+	}
+
+	private static Stream<DuplicateGroup> toStream(Iterator<DuplicateGroup> iter) {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iter, //
+				Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+
+	/** Position in the duplicate lists of one file size */
+	private static class Cursor {
+		public final DuplicateInfo2 dupinfo;
+		/** Number of files in the groups being reported */
+		public int fileCount;
+		public long wasted;
+
+		public Cursor(DuplicateInfo2 dupinfo) {
+			this.dupinfo = dupinfo;
+		}
+
+		/**
+		 * Move on to the largest groups with fewer than some number of files.
+		 *
+		 * @return False if there are none
+		 */
+		public boolean advance(int belowCount) {
+			int count = 0;
+
+			for (List<FileInfo> dups : this.dupinfo.getDuplicateLists()) {
+				if ((dups.size() < belowCount) && (dups.size() > count)) {
+					count = dups.size();
+				}
+			}
+
+			this.fileCount = count;
+			this.wasted = DuplicateGroup.getWastedBytes(this.dupinfo.fileSize(), count);
+
+			return count >= 2;
+		}
+	}
+
+	private static final Comparator<Cursor> MOST_WASTED_FIRST = new Comparator<Cursor>() {
+		public int compare(Cursor c1, Cursor c2) {
+			int diff = Long.compare(c2.wasted, c1.wasted);
+
+			return (diff != 0) ? diff : Long.compare(c2.dupinfo.fileSize(), c1.dupinfo.fileSize());
+		}
+	};
+
+	/**
+	 * Merges the groups of all file sizes. The cursor at the head of the queue
+	 * reports all of its groups with the current number of files (they waste the
+	 * same space), then goes back in the queue for its next smaller groups.
+	 */
+	private static class DuplicateIterator implements Iterator<DuplicateGroup> {
+		private final PriorityQueue<Cursor> queue;
+		private Cursor current = null;
+		private Iterator<List<FileInfo>> lists = null;
+		private DuplicateGroup next = null;
+
+		public DuplicateIterator(Collection<DuplicateInfo2> duplicates) {
+			this.queue = new PriorityQueue<Cursor>(Math.max(1, duplicates.size()), MOST_WASTED_FIRST);
+
+			for (DuplicateInfo2 dupinfo : duplicates) {
+				Cursor cursor = new Cursor(dupinfo);
+
+				if (cursor.advance(Integer.MAX_VALUE)) {
+					this.queue.add(cursor);
+				}
+			}
+		}
+
+		public boolean hasNext() {
+			while (this.next == null) {
+				if ((this.lists == null) || !this.lists.hasNext()) {
+					if ((this.current != null) && this.current.advance(this.current.fileCount)) {
+						this.queue.add(this.current);
+					}
+
+					this.current = this.queue.poll();
+					if (this.current == null) {
+						return false;
+					}
+
+					this.lists = this.current.dupinfo.getDuplicateLists().iterator();
+				}
+
+				List<FileInfo> dups = this.lists.next();
+
+				if (dups.size() == this.current.fileCount) {
+					this.next = new DuplicateGroup(DuplicateGroup.DUPLICATE, //
+							this.current.dupinfo.fileSize(), dups);
+				}
+			}
+
+			return true;
+		}
+
+		public DuplicateGroup next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			DuplicateGroup group = this.next;
+			this.next = null;
+
+			return group;
+		}
+	}
+
+	private static class SameFileIterator implements Iterator<DuplicateGroup> {
+		private final Iterator<DuplicateInfo2> dupinfos;
+		private DuplicateInfo2 dupinfo = null;
+		private Iterator<List<FileInfo>> lists = null;
+
+		public SameFileIterator(Collection<DuplicateInfo2> duplicates) {
+			this.dupinfos = duplicates.iterator();
+		}
+
+		public boolean hasNext() {
+			while ((this.lists == null) || !this.lists.hasNext()) {
+				if (!this.dupinfos.hasNext()) {
+					return false;
+				}
+
+				this.dupinfo = this.dupinfos.next();
+				this.lists = this.dupinfo.getSameFileLists().iterator();
+			}
+
+			return true;
+		}
+
+		public DuplicateGroup next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			return new DuplicateGroup(DuplicateGroup.SAME_FILE, this.dupinfo.fileSize(), this.lists.next());
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package dup.report;
+
+import java.io.PrintWriter;
+
+/**
+ * JSON Lines: one object per group, each on its own line
+ *
+ * <pre>
+ * {"type": "duplicate", "size": 4096, "wasted": 4096, "files": [ "/a/x", "/b/x" ]}
+ * </pre>
+ */
+public class JsonLinesWriter extends ReportWriter {
+	public JsonLinesWriter(PrintWriter out) {
+		super(out);
+	}
+
+	protected void writeGroup(DuplicateGroup group) {
+		this.out.print("{\"type\": \"" + group.getType() + "\", \"size\": " + group.getFileSize() //
+				+ ", \"wasted\": " + group.getWastedBytes() + ", \"files\": ");
+		writeFiles(group);
+		this.out.println('}');
+	}
+}
@@ -0,0 +1,65 @@
+package dup.report;
+
+import java.io.PrintWriter;
+
+import dup.model.Context;
+
+/**
+ * A single JSON document: the contexts, the duplicate groups, the groups of
+ * files that are the same file on disk, and totals. The groups are written as
+ * they are read, so the document is never held in memory.
+ */
+public class JsonWriter extends ReportWriter {
+	private String sep = "";
+
+	public JsonWriter(PrintWriter out) {
+		super(out);
+	}
+
+	protected void begin(DuplicateReport report) {
+		this.out.println("{");
+		this.out.println("  \"contexts\": [");
+
+		String contextsep = "";
+		for (Context context : report.getContexts()) {
+			this.out.print(contextsep + "    { \"name\": ");
+			writeString(context.getName());
+			this.out.print(", \"root\": ");
+			writeString(context.getRootFile().getPath());
+			this.out.print(", \"files\": " + context.getAllFiles().size() + " }");
+			contextsep = ",\n";
+		}
+		this.out.println();
+		this.out.println("  ],");
+		this.out.println("  \"groups\": [");
+	}
+
+	protected void beginSameFiles() {
+		this.out.println();
+		this.out.println("  ],");
+		this.out.println("  \"sameFiles\": [");
+		this.sep = "";
+	}
+
+	protected void writeGroup(DuplicateGroup group) {
+		this.out.print(this.sep + "    { \"size\": " + group.getFileSize());
+
+		if (!group.isSameFile()) {
+			this.out.print(", \"wasted\": " + group.getWastedBytes());
+		}
+
+		this.out.print(", \"files\": ");
+		writeFiles(group);
+		this.out.print(" }");
+		this.sep = ",\n";
+	}
+
+	protected void end() {
+		this.out.println();
+		this.out.println("  ],");
+		this.out.println("  \"duplicateGroups\": " + this.groups + ",");
+		this.out.println("  \"duplicateFiles\": " + this.files + ",");
+		this.out.println("  \"wastedBytes\": " + this.wastedBytes);
+		this.out.println("}");
+	}
+}
@@ -0,0 +1,136 @@
+package dup.report;
+
+import java.io.PrintWriter;
+import java.util.Iterator;
+
+import dup.model.FileInfo;
+
+/**
+ * Writes a duplicate report as it is read, one group at a time, so only the
+ * group being written is held in memory. Duplicate groups come first, most
+ * wasted bytes first, then the groups of files that are the same file on disk.
+ */
+public abstract class ReportWriter {
+	/** Names of the formats supported by create() */
+	public static final String[] FORMATS = { "json", "jsonl", "csv" };
+
+	protected final PrintWriter out;
+
+	/** Totals for the duplicate groups written so far */
+	protected long groups = 0;
+	protected long files = 0;
+	protected long wastedBytes = 0;
+
+	protected ReportWriter(PrintWriter out) {
+		this.out = out;
+	}
+
+	/**
+	 * Create a writer for a report format
+	 *
+	 * @throws IllegalArgumentException If the format is unknown
+	 */
+	public static ReportWriter create(String format, PrintWriter out) {
+		if (format.equals("json")) {
+			return new JsonWriter(out);
+		}
+
+		if (format.equals("jsonl")) {
+			return new JsonLinesWriter(out);
+		}
+
+		if (format.equals("csv")) {
+			return new CsvWriter(out);
+		}
+
+		throw new IllegalArgumentException("Unknown format '" + format + "'");
+	}
+
+	/**
+	 * Write a whole report and flush the output
+	 *
+	 * @return False if the output could not be written
+	 */
+	public boolean write(DuplicateReport report) {
+		begin(report);
+
+		for (DuplicateGroup group : report) {
+			writeGroup(group);
+
+			++this.groups;
+			this.files += group.getFiles().size();
+			this.wastedBytes += group.getWastedBytes();
+		}
+
+		beginSameFiles();
+
+		for (Iterator<DuplicateGroup> iter = report.sameFileIterator(); iter.hasNext();) {
+			writeGroup(iter.next());
+		}
+
+		end();
+
+		this.out.flush();
+
+		return !this.out.checkError();
+	}
+
+	public long getGroups() {
+		return this.groups;
+	}
+
+	public long getFiles() {
+		return this.files;
+	}
+
+	public long getWastedBytes() {
+		return this.wastedBytes;
+	}
+
+	protected void begin(DuplicateReport report) {
+	}
+
+	/** Called before the first group of files that are the same file on disk */
+	protected void beginSameFiles() {
+	}
+
+	protected abstract void writeGroup(DuplicateGroup group);
+
+	protected void end() {
+	}
+
+	/** Write a JSON string */
+	protected void writeString(String s) {
+		this.out.print('"');
+
+		for (int ii = 0; ii < s.length(); ++ii) {
+			char ch = s.charAt(ii);
+
+			if ((ch == '"') || (ch == '\\')) {
+				this.out.print('\\');
+				this.out.print(ch);
+			} else if (ch < ' ') {
+				this.out.print(String.format("\\u%04x", (int) ch));
+			} else {
+				this.out.print(ch);
+			}
+		}
+
+		this.out.print('"');
+	}
+
+	/** Write the files of a group as a JSON array of paths */
+	protected void writeFiles(DuplicateGroup group) {
+		String sep = " ";
+
+		this.out.print('[');
+
+		for (FileInfo file : group.getFiles()) {
+			this.out.print(sep);
+			writeString(file.getFullName());
+			sep = ", ";
+		}
+
+		this.out.print(" ]");
+	}
+}
@@ -0,0 +1,288 @@
+package dup.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import dup.metrics.Histogram;
+import dup.metrics.Meter;
+import dup.metrics.Metrics;
+
+/**
+ * Compares the content of two files.<br>
+ * Large files are compared through memory-mapped windows, so the data is never
+ * copied into the Java heap. Smaller files are read into direct buffers whose
+ * size depends on the file size. In both cases the buffers are compared eight
+ * bytes at a time.<br>
+ * Each pair of windows is unmapped as soon as it has been compared, rather than
+ * left mapped until the garbage collector finds it, which might not happen
+ * before the address space or the mapping limit runs out. If this JVM offers no
+ * way to unmap a buffer, all files are compared with buffered reads instead.<br>
+ * A mapped file that is truncated during the compare makes the JVM raise
+ * InternalError; that is reported as an IOException, like any other file that
+ * could not be read.
+ */
+public class FileComparator {
+	/** Files at least this large are compared using memory-mapped windows */
+	public static long mapThreshold = 1024 * 1024 * 4;
+
+	/** Size of each memory-mapped window */
+	private static final long MAP_WINDOW_SIZE = 1024 * 1024 * 64;
+
+	/** Smallest and largest read buffer for files that are not mapped */
+	private static final int MIN_BLOCK_SIZE = 1024 * 4;
+	private static final int MAX_BLOCK_SIZE = 1024 * 1024;
+
+	/** Time for each comparison, and bytes compared in each file */
+	private static final Histogram compareTime = Metrics.histogram("compare.time");
+	private static final Meter compareBytes = Metrics.meter("compare.bytes");
+
+	/** Unsafe.invokeCleaner (Java 9 and later) and its Unsafe, or null */
+	private static final Method invokeCleaner;
+	private static final Object unsafe;
+
+	/** False if buffers can't be unmapped, so large files are not mapped */
+	private static volatile boolean canUnmap;
+
+	static {
+		Method method = null;
+		Object instance = null;
+
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+
+			method = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			instance = field.get(null);
+		} catch (Exception e) {
+			// Java 8 - use the buffer's cleaner
+			method = null;
+		}
+
+		invokeCleaner = method;
+		unsafe = instance;
+
+		canUnmap = unmap(ByteBuffer.allocateDirect(1));
+
+		if (!canUnmap) {
+			Trace.traceln(Trace.NORMAL, "Can't unmap buffers; comparing large files with buffered reads");
+		}
+	}
+
+	/** Read buffers for each thread (allocating direct buffers is expensive) */
+	private static final ThreadLocal<ByteBuffer[]> buffers = new ThreadLocal<ByteBuffer[]>() {
+		protected ByteBuffer[] initialValue() {
+			return new ByteBuffer[] { //
+					ByteBuffer.allocateDirect(MAX_BLOCK_SIZE), //
+					ByteBuffer.allocateDirect(MAX_BLOCK_SIZE) };
+		}
+	};
+
+	/**
+	 * Compare the content of two files
+	 *
+	 * @return The offset of the first difference, or -1 if the files are identical
+	 */
+	public static long findMismatch(File file1, File file2) throws IOException {
+		RandomAccessFile raf1 = null;
+		RandomAccessFile raf2 = null;
+		long start = System.nanoTime();
+		long compared = 0;
+
+		try {
+			raf1 = new RandomAccessFile(file1, "r");
+			raf2 = new RandomAccessFile(file2, "r");
+
+			FileChannel channel1 = raf1.getChannel();
+			FileChannel channel2 = raf2.getChannel();
+
+			long size = channel1.size();
+
+			if (channel2.size() != size) {
+				return Math.min(size, channel2.size());
+			}
+
+			long mismatch;
+
+			if ((size >= mapThreshold) && canUnmap) {
+				try {
+					mismatch = findMismatchMapped(channel1, channel2, size);
+				} catch (InternalError e) {
+					// The JVM's report of a fault reading a mapped page
+					throw new IOException("File changed while comparing " + file1 + " to " + file2, e);
+				}
+			} else {
+				mismatch = findMismatchBuffered(channel1, channel2, size);
+			}
+
+			compared = (mismatch < 0) ? size : mismatch;
+
+			return mismatch;
+		} finally {
+			compareTime.recordSince(start);
+			compareBytes.mark(compared);
+
+			if (raf1 != null) {
+				raf1.close();
+			}
+			if (raf2 != null) {
+				raf2.close();
+			}
+		}
+	}
+
+	/** Compare two files of the same size through memory-mapped windows */
+	private static long findMismatchMapped(FileChannel channel1, FileChannel channel2, long size) //
+			throws IOException {
+		for (long offset = 0; offset < size; offset += MAP_WINDOW_SIZE) {
+			int length = (int) Math.min(MAP_WINDOW_SIZE, size - offset);
+
+			ByteBuffer window1 = channel1.map(FileChannel.MapMode.READ_ONLY, offset, length);
+			ByteBuffer window2 = null;
+			int mismatch;
+
+			try {
+				window2 = channel2.map(FileChannel.MapMode.READ_ONLY, offset, length);
+				mismatch = findMismatch(window1, window2, length);
+			} finally {
+				if (!unmap(window1) | !unmap(window2)) {
+					disableMapping();
+				}
+			}
+
+			if (mismatch >= 0) {
+				return offset + mismatch;
+			}
+		}
+
+		return -1;
+	}
+
+	/** Compare later files with buffered reads, after a buffer couldn't be unmapped */
+	private static synchronized void disableMapping() {
+		if (canUnmap) {
+			canUnmap = false;
+			Trace.traceln(Trace.NORMAL, "Can't unmap buffers; comparing large files with buffered reads");
+		}
+	}
+
+	/**
+	 * Release a mapped buffer now. It must not be used afterwards.
+	 *
+	 * @return False if the JVM offers no way to do this, leaving the buffer to the
+	 *         garbage collector
+	 */
+	private static boolean unmap(ByteBuffer buffer) {
+		if (buffer == null) {
+			return true;
+		}
+
+		try {
+			if (invokeCleaner != null) {
+				invokeCleaner.invoke(unsafe, buffer);
+			} else {
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+
+				Object cleaner = cleanerMethod.invoke(buffer);
+				if (cleaner != null) {
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+				}
+			}
+
+			return true;
+		} catch (Exception e) {
+			// Left for the garbage collector
+			return false;
+		}
+	}
+
+	/** Compare two files of the same size by reading blocks into buffers */
+	private static long findMismatchBuffered(FileChannel channel1, FileChannel channel2, long size) //
+			throws IOException {
+		ByteBuffer[] bufs = buffers.get();
+		ByteBuffer buffer1 = bufs[0];
+		ByteBuffer buffer2 = bufs[1];
+
+		int blockSize = getBlockSize(size);
+
+		for (long offset = 0; offset < size; offset += blockSize) {
+			int length = (int) Math.min(blockSize, size - offset);
+
+			int read1 = readBlock(channel1, buffer1, length);
+			int read2 = readBlock(channel2, buffer2, length);
+
+			int mismatch = findMismatch(buffer1, buffer2, Math.min(read1, read2));
+			if (mismatch >= 0) {
+				return offset + mismatch;
+			}
+
+			// The file changed size while we were reading it
+			if ((read1 != length) || (read2 != length)) {
+				return offset + Math.min(read1, read2);
+			}
+		}
+
+		return -1;
+	}
+
+	/** Choose a read size for a file - small files are read in one block */
+	private static int getBlockSize(long size) {
+		if (size >= MAX_BLOCK_SIZE) {
+			return MAX_BLOCK_SIZE;
+		}
+
+		int blockSize = MIN_BLOCK_SIZE;
+		while (blockSize < size) {
+			blockSize <<= 1;
+		}
+
+		return blockSize;
+	}
+
+	/**
+	 * Read up to length bytes into a buffer
+	 *
+	 * @return The number of bytes read (less than length only at end of file)
+	 */
+	private static int readBlock(FileChannel channel, ByteBuffer buffer, int length) throws IOException {
+		buffer.clear();
+		buffer.limit(length);
+
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				break;
+			}
+		}
+
+		return buffer.position();
+	}
+
+	/**
+	 * Compare the first length bytes of two buffers
+	 *
+	 * @return The index of the first difference, or -1 if they are equal
+	 */
+	private static int findMismatch(ByteBuffer buffer1, ByteBuffer buffer2, int length) {
+		int ii = 0;
+
+		for (; ii + 8 <= length; ii += 8) {
+			if (buffer1.getLong(ii) != buffer2.getLong(ii)) {
+				break;
+			}
+		}
+
+		for (; ii < length; ++ii) {
+			if (buffer1.get(ii) != buffer2.get(ii)) {
+				return ii;
+			}
+		}
+
+		return -1;
+	}
+}
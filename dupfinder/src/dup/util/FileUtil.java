@@ -1,21 +1,24 @@
 package dup.util;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import dup.analyze.Checksum;
 import dup.analyze.ChecksumValues;
 import dup.analyze.DetailLevel;
+import dup.metrics.Counter;
+import dup.metrics.Histogram;
+import dup.metrics.Metrics;
 import dup.model.Context;
 import dup.model.Database;
 import dup.model.FileInfo;
@@ -25,6 +28,11 @@ import dup.model.persist.Persistence;
 public class FileUtil {
 	private static final LinkOption[] NO_LINK_OPTIONS = new LinkOption[0];
 
+	/** Number of worker threads used to walk a context tree (1 = serial walk) */
+	public static int ingestThreads = Runtime.getRuntime().availableProcessors();
+	/** Folder for saved contexts (null for the default, /tmp/dupdb) */
+	public static String dbFolderPath = null;
+
 	public static boolean createHardLink(String original, String newlink) {
 		FileSystem fs = FileSystems.getDefault();
 
@@ -68,6 +76,18 @@ public class FileUtil {
 
 	// Verify/Create disk folder to hold persisted DB info
 	public static void setupDBFolder() {
+		if (dbFolderPath != null) {
+			File folder = new File(dbFolderPath);
+
+			if (folder.isDirectory() || folder.mkdirs()) {
+				Persistence.setFolderPath(folder.toPath());
+			} else {
+				System.err.println("Error! Can't create database folder '" + dbFolderPath + "'");
+			}
+
+			return;
+		}
+
 		try {
 			String root = "c:/";
 
@@ -124,7 +144,13 @@ public class FileUtil {
 
 		loadCounter = 0;
 
-		int fileCount = ingestTree(context, folder);
+		long start = System.nanoTime();
+		int fileCount = (ingestThreads > 1) //
+				? ingestTreeParallel(context, folder) //
+				: ingestTreeSerial(context, folder);
+
+		ingestTime.recordSince(start);
+		ingestFiles.add(fileCount);
 		Trace.traceln(Trace.NORMAL);
 
 		context.determineDetailLevel();
@@ -144,32 +170,26 @@ public class FileUtil {
 
 	private static int loadCounter = 0;
 
-	public static int addFile(List<FileInfo> files, FileInfo file) {
-		int idx = Collections.binarySearch(files, file, //
-				new Comparator<FileInfo>() {
-					public int compare(FileInfo f1, FileInfo f2) {
-						long diff = f1.getSize() - f2.getSize();
-
-						if (diff < 0) {
-							return -1;
-						} else if (diff == 0) {
-							return 0;
-						} else {
-							return 1;
-						}
-					}
-				});
-
-		if (idx < 0) {
-			idx = -(idx + 1);
-		}
+	/** Time to walk each context tree, and the number of files found */
+	private static final Histogram ingestTime = Metrics.histogram("ingest.time");
+	private static final Counter ingestFiles = Metrics.counter("ingest.files");
+
+	/**
+	 * Walk a context tree on this thread, then add all of the files to the
+	 * Database and Context in one step
+	 */
+	private static int ingestTreeSerial(Context context, FolderInfo folder) {
+		List<FileInfo> files = new ArrayList<FileInfo>();
 
-		files.add(idx, file);
+		ingestTree(context, folder, files);
 
-		return idx;
+		Database.instance().addFiles(files);
+		context.addFiles(files);
+
+		return folder.getTreeFileCount();
 	}
 
-	private static int ingestTree(Context context, FolderInfo folder) {
+	private static int ingestTree(Context context, FolderInfo folder, List<FileInfo> files) {
 		if (folder == null) {
 			return 0;
 		}
@@ -181,18 +201,25 @@ public class FileUtil {
 		}
 
 		for (File child : children) {
-			if (child.isDirectory()) {
+			BasicFileAttributes attrs;
+
+			try {
+				attrs = Files.readAttributes(child.toPath(), BasicFileAttributes.class);
+			} catch (IOException e) {
+				continue;
+			}
+
+			if (attrs.isDirectory()) {
 				FolderInfo childInfo = new FolderInfo(folder, child);
 
-				ingestTree(context, childInfo);
+				ingestTree(context, childInfo, files);
 
 				folder.addFolder(childInfo);
-			} else if (child.isFile()) {
-				FileInfo fileInfo = new FileInfo(folder, child);
+			} else if (attrs.isRegularFile()) {
+				FileInfo fileInfo = createFileInfo(folder, child, attrs);
 
 				folder.addFile(fileInfo);
-				Database.instance().addFile(fileInfo);
-				context.addFile(fileInfo);
+				files.add(fileInfo);
 
 				if ((++loadCounter % 1000) == 0) {
 					Trace.trace(Trace.NORMAL, ".");
@@ -206,6 +233,73 @@ public class FileUtil {
 		return folder.getTreeFileCount();
 	}
 
+	/**
+	 * Ingest a folder found in a context after the context was built, gathering
+	 * its files. The caller adds the files to the Database and Context, and the
+	 * folder to its parent.
+	 *
+	 * @return The number of files in the folder tree
+	 */
+	public static int ingestFolder(Context context, FolderInfo folder, List<FileInfo> files) {
+		return ingestTree(context, folder, files);
+	}
+
+	/** Create the FileInfo for a file on disk, from its attributes */
+	public static FileInfo createFileInfo(FolderInfo folder, File file, BasicFileAttributes attrs) {
+		FileInfo fileInfo = new FileInfo(folder, file.getName(), //
+				attrs.size(), attrs.lastModifiedTime().toMillis());
+		setFileKey(fileInfo, file.toPath(), attrs);
+
+		return fileInfo;
+	}
+
+	/**
+	 * Record the device and inode of a file, from the "unix" attribute view where
+	 * the file system supports it. Elsewhere the file key from its attributes is
+	 * kept as it is, if there is one (there is none on Windows).
+	 */
+	static void setFileKey(FileInfo file, Path path, BasicFileAttributes attrs) {
+		Object key = attrs.fileKey();
+		if (key == null) {
+			return;
+		}
+
+		if (path.getFileSystem().supportedFileAttributeViews().contains("unix")) {
+			try {
+				Map<String, Object> unix = Files.readAttributes(path, "unix:dev,ino", NO_LINK_OPTIONS);
+				Object device = unix.get("dev");
+				Object inode = unix.get("ino");
+
+				if ((device instanceof Long) && (inode instanceof Long)) {
+					file.setFileKey((Long) device, (Long) inode);
+					return;
+				}
+			} catch (IOException | UnsupportedOperationException e) {
+				// Keep the file key instead
+			}
+		}
+
+		file.setFileKey(key);
+	}
+
+	/**
+	 * Walk a context tree with a pool of worker threads, then add all of the files
+	 * to the Database and Context in one step.
+	 */
+	private static int ingestTreeParallel(Context context, FolderInfo folder) {
+		File absFile = new File(context.getRootFile(), folder.getRelativeName());
+		if (!absFile.isDirectory()) {
+			return 0;
+		}
+
+		List<FileInfo> files = IngestTask.ingest(folder, absFile.toPath(), ingestThreads);
+
+		Database.instance().addFiles(files);
+		context.addFiles(files);
+
+		return folder.getTreeFileCount();
+	}
+
 	private static int ingestFileDetails(Context context, DetailLevel detail) {
 		if (!detail.isGreaterThan(context.getDetailLevel())) {
 			return 0;
@@ -230,8 +324,6 @@ public class FileUtil {
 		return filecount;
 	}
 
-	public static int compareCount = 0;
-
 	public static boolean compareContents(FileInfo file1, FileInfo file2) {
 		Context context1 = file1.getContext();
 		Context context2 = file2.getContext();
@@ -240,8 +332,6 @@ public class FileUtil {
 			return true;
 		}
 
-		FileInputStream is1 = null;
-		FileInputStream is2 = null;
 		long bytesread = 0;
 
 		try {
@@ -254,42 +344,13 @@ public class FileUtil {
 				return true;
 			}
 
-			++compareCount;
-
-			is1 = new FileInputStream(jf1);
-			is2 = new FileInputStream(jf2);
+			long mismatch = FileComparator.findMismatch(jf1, jf2);
+			bytesread = (mismatch < 0) ? file1.getSize() : mismatch;
 
-			byte[] buffer1 = new byte[4096];
-			byte[] buffer2 = new byte[4096];
-
-			for (;;) {
-				int len1 = is1.read(buffer1);
-				if (len1 <= 0) {
-					return true;
-				}
-
-				bytesread += len1;
-
-				int len2 = is2.read(buffer2);
-
-				if ((len1 != len2) //
-						|| !Arrays.equals(buffer1, buffer2)) {
-					return false;
-				}
-			}
+			return mismatch < 0;
 		} catch (Exception e) {
 			e.printStackTrace();
 		} finally {
-			try {
-				is1.close();
-			} catch (Exception e) {
-			}
-			try {
-				is2.close();
-
-			} catch (Exception e) {
-			}
-
 			Trace.traceln(Trace.VERBOSE, "CompareFiles: " //
 					+ file1.getName() + " to " + file2.getName() //
 					+ " Read " + bytesread + " of " + file1.getSize() + " bytes.");
@@ -0,0 +1,127 @@
+package dup.util;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dup.model.FileInfo;
+import dup.model.FolderInfo;
+
+/**
+ * Fork/join task that walks one folder of a context tree. Subfolders are walked
+ * by forked subtasks, so the tree is ingested by a pool of worker threads.<br>
+ * Each task is the only writer of its own FolderInfo. A subfolder is attached
+ * to its parent only after its subtree is complete, so no locking is needed
+ * while the tree is being built.
+ */
+class IngestTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Walk a folder tree using a pool of worker threads.
+	 *
+	 * @param folder  The (empty) folder to populate
+	 * @param dir     The corresponding directory on disk
+	 * @param threads The number of worker threads
+	 * @return All files found
+	 */
+	public static List<FileInfo> ingest(FolderInfo folder, Path dir, int threads) {
+		Shared shared = new Shared();
+		ForkJoinPool pool = new ForkJoinPool(threads);
+
+		try {
+			pool.invoke(new IngestTask(shared, folder, dir));
+		} finally {
+			pool.shutdown();
+		}
+
+		int count = 0;
+		for (List<FileInfo> batch : shared.batches) {
+			count += batch.size();
+		}
+
+		List<FileInfo> files = new ArrayList<FileInfo>(count);
+		for (List<FileInfo> batch : shared.batches) {
+			files.addAll(batch);
+		}
+
+		return files;
+	}
+
+	/** State shared by all tasks walking a tree */
+	private static class Shared {
+		/** The files found in each folder */
+		public final Queue<List<FileInfo>> batches = new ConcurrentLinkedQueue<List<FileInfo>>();
+		/** Number of files found so far (for progress tracing) */
+		public final AtomicInteger loadCounter = new AtomicInteger();
+	}
+
+	private final Shared shared;
+	private final FolderInfo folder;
+	private final Path dir;
+
+	private IngestTask(Shared shared, FolderInfo folder, Path dir) {
+		this.shared = shared;
+		this.folder = folder;
+		this.dir = dir;
+	}
+
+	@Override
+	protected void compute() {
+		List<FileInfo> files = new ArrayList<FileInfo>();
+		List<IngestTask> subtasks = new ArrayList<IngestTask>();
+
+		try (DirectoryStream<Path> children = Files.newDirectoryStream(this.dir)) {
+			for (Path child : children) {
+				BasicFileAttributes attrs;
+
+				try {
+					attrs = Files.readAttributes(child, BasicFileAttributes.class);
+				} catch (IOException e) {
+					continue;
+				}
+
+				String name = child.getFileName().toString();
+
+				if (attrs.isDirectory()) {
+					FolderInfo childInfo = new FolderInfo(this.folder, name);
+
+					subtasks.add(new IngestTask(this.shared, childInfo, child));
+				} else if (attrs.isRegularFile()) {
+					FileInfo fileInfo = new FileInfo(this.folder, name, //
+							attrs.size(), attrs.lastModifiedTime().toMillis());
+					FileUtil.setFileKey(fileInfo, child, attrs);
+
+					this.folder.addFile(fileInfo);
+					files.add(fileInfo);
+
+					int count = this.shared.loadCounter.incrementAndGet();
+					if ((count % 1000) == 0) {
+						Trace.trace(Trace.NORMAL, ".");
+						Trace.traceln(Trace.VERBOSE, "Ingest file #" + count);
+					}
+				}
+			}
+		} catch (IOException | DirectoryIteratorException e) {
+			// Unreadable folder - keep whatever we found
+		}
+
+		invokeAll(subtasks);
+
+		for (IngestTask task : subtasks) {
+			this.folder.addFolder(task.folder);
+		}
+
+		this.shared.batches.add(files);
+	}
+}
@@ -0,0 +1,165 @@
+package dup.util;
+
+import java.util.Arrays;
+
+/**
+ * Hash map with primitive long keys (open addressing, linear probing).<br>
+ * Avoids boxing a Long and allocating an entry object for every mapping, which
+ * matters when the map holds one entry per distinct file size.
+ */
+public class LongHashMap<V> {
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] keys;
+	private Object[] values;
+	private int count;
+
+	public LongHashMap() {
+		this(MIN_CAPACITY);
+	}
+
+	public LongHashMap(int expected) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < expected * 2) {
+			capacity <<= 1;
+		}
+
+		this.keys = new long[capacity];
+		this.values = new Object[capacity];
+		this.count = 0;
+	}
+
+	public int size() {
+		return this.count;
+	}
+
+	public boolean isEmpty() {
+		return this.count == 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int slot = findSlot(this.keys, this.values, key);
+
+		return (V) this.values[slot];
+	}
+
+	/**
+	 * Add or replace a mapping
+	 *
+	 * @return The previous value for the key, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		assert value != null;
+
+		int slot = findSlot(this.keys, this.values, key);
+		V old = (V) this.values[slot];
+
+		this.keys[slot] = key;
+		this.values[slot] = value;
+
+		if (old == null) {
+			++this.count;
+
+			if (this.count * 4 > this.keys.length * 3) {
+				rehash(this.keys.length * 2);
+			}
+		}
+
+		return old;
+	}
+
+	/**
+	 * Remove a mapping
+	 *
+	 * @return The value that was removed, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int slot = findSlot(this.keys, this.values, key);
+		V old = (V) this.values[slot];
+
+		if (old == null) {
+			return null;
+		}
+
+		this.values[slot] = null;
+		--this.count;
+
+		// Shift following entries back so probe sequences remain unbroken
+		int mask = this.keys.length - 1;
+		int hole = slot;
+
+		for (int next = (slot + 1) & mask; this.values[next] != null; next = (next + 1) & mask) {
+			int home = hash(this.keys[next]) & mask;
+
+			boolean movable = (hole <= next) //
+					? ((home <= hole) || (home > next)) //
+					: ((home <= hole) && (home > next));
+
+			if (movable) {
+				this.keys[hole] = this.keys[next];
+				this.values[hole] = this.values[next];
+				this.values[next] = null;
+				hole = next;
+			}
+		}
+
+		return old;
+	}
+
+	public void clear() {
+		Arrays.fill(this.values, null);
+		this.count = 0;
+	}
+
+	/** Get all keys, in no particular order */
+	public long[] keys() {
+		long[] ret = new long[this.count];
+		int idx = 0;
+
+		for (int slot = 0; slot < this.keys.length; ++slot) {
+			if (this.values[slot] != null) {
+				ret[idx++] = this.keys[slot];
+			}
+		}
+
+		return ret;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldkeys = this.keys;
+		Object[] oldvalues = this.values;
+
+		this.keys = new long[capacity];
+		this.values = new Object[capacity];
+
+		for (int slot = 0; slot < oldkeys.length; ++slot) {
+			if (oldvalues[slot] != null) {
+				int newslot = findSlot(this.keys, this.values, oldkeys[slot]);
+
+				this.keys[newslot] = oldkeys[slot];
+				this.values[newslot] = oldvalues[slot];
+			}
+		}
+	}
+
+	/** Find the slot holding a key, or the empty slot where it belongs */
+	private static int findSlot(long[] keys, Object[] values, long key) {
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+
+		while ((values[slot] != null) && (keys[slot] != key)) {
+			slot = (slot + 1) & mask;
+		}
+
+		return slot;
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+
+		return (int) (h ^ (h >>> 32));
+	}
+}
@@ -1,5 +1,7 @@
 package dup.util;
 
+import java.io.PrintStream;
+
 /** Configurable tracing facility */
 public class Trace {
 	public static final int NONE = 0;
@@ -7,12 +9,14 @@ public class Trace {
 	public static final int DEBUG = 2;
 	public static final int VERBOSE = 3;
 
-	public static final int traceLevel = NORMAL;
+	public static int traceLevel = NORMAL;
+	/** Stream trace output is written to */
+	public static PrintStream out = System.out;
 
 	public static void trace(int level, String msg) {
 		if (level <= traceLevel) {
-			System.out.print(msg);
-			System.out.flush();
+			out.print(msg);
+			out.flush();
 		}
 	}
 
@@ -23,8 +27,8 @@ public class Trace {
 
 	public static void traceln(int level) {
 		if (level <= traceLevel) {
-			System.out.println();
-			System.out.flush();
+			out.println();
+			out.flush();
 		}
 	}
 